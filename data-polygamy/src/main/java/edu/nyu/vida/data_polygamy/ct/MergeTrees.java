@@ -247,6 +247,7 @@ public class MergeTrees implements Serializable {
 			
 			rg.nodes = new ReebGraphData.Node[noNodes];
 			rg.arcs = new ReebGraphData.Arc[noArcs];
+			rg.nodeMap = ReebGraphData.newNodeMap(noNodes);
 
 			int in = 0;
 			if(newVertex) {
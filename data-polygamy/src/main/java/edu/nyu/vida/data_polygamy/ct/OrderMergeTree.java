@@ -6,6 +6,7 @@ package edu.nyu.vida.data_polygamy.ct;
 import edu.nyu.vida.data_polygamy.ct.ReebGraphData.Node;
 import edu.nyu.vida.data_polygamy.utils.DisjointSets;
 import edu.nyu.vida.data_polygamy.utils.Utilities;
+import it.unimi.dsi.fastutil.ints.IntSet;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -14,7 +15,6 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
 
 public class OrderMergeTree implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -161,7 +161,7 @@ public class OrderMergeTree implements Serializable {
 			return;
 		}
 		dj = new DisjointSets();
-		Set<Integer> matched = tree.nodeMap.keySet();
+		IntSet matched = tree.nodeMap.keySet();
 		HashSet<Integer> remaining = new HashSet<Integer>(); 
 		for(int i = 0;i < rg.nodes.length;i ++) {
 			if(matched.contains(rg.nodes[i].v)) {
@@ -5,11 +5,11 @@ package edu.nyu.vida.data_polygamy.ct;
 
 import static edu.nyu.vida.data_polygamy.utils.Utilities.splitString;
 
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.HashMap;
 
 public class ReebGraphData implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -30,8 +30,8 @@ public class ReebGraphData implements Serializable {
 		public float fn;
 		public byte type;
 		
-		public ArrayList<Integer> prev = new ArrayList<Integer>();
-		public ArrayList<Integer> next = new ArrayList<Integer>();
+		public MyIntList prev = new MyIntList(2);
+		public MyIntList next = new MyIntList(2);
 	}
 	
 	public class Arc implements Serializable {
@@ -53,12 +53,21 @@ public class ReebGraphData implements Serializable {
 	
 	public Node [] nodes;
 	public Arc [] arcs;
-	public HashMap<Integer, Integer> nodeMap = new HashMap<Integer, Integer>();
+	public Int2IntOpenHashMap nodeMap = newNodeMap(16);
 	
 	public ReebGraphData() {
 		
 	}
 	
+	/**
+	 * Vertex id to node index map; missing vertices map to -1.
+	 */
+	public static Int2IntOpenHashMap newNodeMap(int expected) {
+		Int2IntOpenHashMap map = new Int2IntOpenHashMap(expected);
+		map.defaultReturnValue(-1);
+		return map;
+	}
+	
 	public ReebGraphData(String file) {
 		readReebGraph(file);
 	}
@@ -73,7 +82,7 @@ public class ReebGraphData implements Serializable {
 			
 			nodes = new Node[noNodes];
 			arcs = new Arc[noArcs];
-			
+			nodeMap = newNodeMap(noNodes);
 			
 			for(int i = 0;i < noNodes;i ++) {
 				s = f.readLine();
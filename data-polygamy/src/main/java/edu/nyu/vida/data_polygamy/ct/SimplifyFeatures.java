@@ -13,9 +13,8 @@ import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
 
 public class SimplifyFeatures implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -83,8 +82,15 @@ public class SimplifyFeatures implements Serializable {
 		}
 		return no;
 	}
-	HashSet<Integer> featureSet = new HashSet<Integer>();
-	HashMap<Integer, Integer> cps;
+	// branches selected as features
+	BitSet featureSet = new BitSet();
+	// node index to feature number, -1 if the node is not a feature extremum
+	int [] cps;
+	
+	private void initCps() {
+		cps = new int[sim.data.noNodes];
+		Arrays.fill(cps, -1);
+	}
 	
 	private void initFeatures(boolean max) {
 		int nf = brFeatures.length;
@@ -112,7 +118,7 @@ public class SimplifyFeatures implements Serializable {
 		}
 		// Added by Harish
 		lastSaddle = -1;
-		cps = new HashMap<Integer, Integer>();
+		initCps();
 		boolean root = true;
 		int no = 0;
 		while(no < nf) {
@@ -120,7 +126,7 @@ public class SimplifyFeatures implements Serializable {
 			Branch br = sim.branches[bno];
 			if(max) {
 				if(data.nodes[br.to].type == ReebGraphData.MAXIMUM) {
-					cps.put(br.to, no);
+					cps[br.to] = no;
 					brFeatures[no] = new Feature();
 					brFeatures[no].v = data.nodes[br.to].v;
 					brFeatures[no].exFn = data.nodes[br.to].fn;
@@ -141,7 +147,7 @@ public class SimplifyFeatures implements Serializable {
 				}
 			} else {
 				if(data.nodes[br.from].type == ReebGraphData.MINIMUM) {
-					cps.put(br.from, no);
+					cps[br.from] = no;
 					brFeatures[no] = new Feature();
 					brFeatures[no].v = data.nodes[br.from].v;
 					brFeatures[no].exFn = data.nodes[br.from].fn;
@@ -172,17 +178,12 @@ public class SimplifyFeatures implements Serializable {
 				continue;
 			}
 			Branch br = sim.branches[i];
-			int fno = -1;
-			if(max && cps.get(br.to) != null) {
-				fno = cps.get(br.to);
-			} else if(!max && cps.get(br.from) != null) {
-				fno = cps.get(br.from);
-			}
+			int fno = (max)?cps[br.to]:cps[br.from];
 			if(fno == -1) {
 				continue;
 			}
 			brFeatures[fno].br = i;
-			featureSet.add(i);
+			featureSet.set(i);
 		}
 	}
 	
@@ -201,11 +202,11 @@ public class SimplifyFeatures implements Serializable {
 	
 	private void populateFeature(int f, boolean max) {
 		int bno = brFeatures[f].br;
-		ArrayList<Integer> queue = new ArrayList<Integer>();
+		MyIntList queue = new MyIntList();
 		queue.add(bno);
-		while(queue.size() > 0) {
-			int b = queue.remove(0);
-			if(b != bno && featureSet.contains(b)) {
+		for(int head = 0;head < queue.length;head ++) {
+			int b = queue.get(head);
+			if(b != bno && featureSet.get(b)) {
 				Utilities.er("Can this now happen??");
 				continue;
 			}
@@ -537,17 +538,17 @@ public class SimplifyFeatures implements Serializable {
 			}
 			Branch br = sim.branches[i];
 			int fno = -1;
-			if(cps.get(br.to) != null) {
-				fno = cps.get(br.to);
+			if(cps[br.to] != -1) {
+				fno = cps[br.to];
 			} 
-			if(cps.get(br.from) != null) {
-				fno = cps.get(br.from);
+			if(cps[br.from] != -1) {
+				fno = cps[br.from];
 			}
 			if(fno == -1) {
 				continue;
 			}
 			brFeatures[fno].br = i;
-			featureSet.add(i);
+			featureSet.set(i);
 		}
 	}
 	
@@ -584,7 +585,7 @@ public class SimplifyFeatures implements Serializable {
 		}
 		int pos = sim.order.length - 1;
 		ReebGraphData data = sim.data;
-		cps = new HashMap<Integer, Integer>();
+		initCps();
 		int root = 0;
 		int no = 0;
 		while(no < nf) {
@@ -592,8 +593,8 @@ public class SimplifyFeatures implements Serializable {
 			Branch br = sim.branches[bno];
 
 			if(data.nodes[br.to].type == ReebGraphData.MAXIMUM) {
-				featureSet.add(bno);
-				cps.put(br.to, no);
+				featureSet.set(bno);
+				cps[br.to] = no;
 				brFeatures[no] = new Feature();
 				brFeatures[no].v = data.nodes[br.to].v;
 				brFeatures[no].exFn = data.nodes[br.to].fn;
@@ -607,8 +608,8 @@ public class SimplifyFeatures implements Serializable {
 				brFeatures[no].br = bno;
 				no ++;
 			} else if(data.nodes[br.from].type == ReebGraphData.MINIMUM) {
-				featureSet.add(bno);
-				cps.put(br.from, no);
+				featureSet.set(bno);
+				cps[br.from] = no;
 				brFeatures[no] = new Feature();
 				brFeatures[no].v = data.nodes[br.from].v;
 				brFeatures[no].exFn = data.nodes[br.from].fn;
@@ -639,7 +640,7 @@ public class SimplifyFeatures implements Serializable {
 		}
 		int pos = sim.order.length - 1;
 		ReebGraphData data = sim.data;
-		cps = new HashMap<Integer, Integer>();
+		initCps();
 		int root = 0;
 		int no = 0;
 		while(no < nf) {
@@ -647,8 +648,8 @@ public class SimplifyFeatures implements Serializable {
 			Branch br = sim.branches[bno];
 
 			if(data.nodes[br.to].type == ReebGraphData.MAXIMUM) {
-				featureSet.add(bno);
-				cps.put(br.to, no);
+				featureSet.set(bno);
+				cps[br.to] = no;
 				brFeatures[no] = new Feature();
 				brFeatures[no].v = data.nodes[br.to].v;
 				brFeatures[no].exFn = data.nodes[br.to].fn;
@@ -664,8 +665,8 @@ public class SimplifyFeatures implements Serializable {
 			} 
 			
 			if(data.nodes[br.from].type == ReebGraphData.MINIMUM) {
-				featureSet.add(bno);
-				cps.put(br.from, no);
+				featureSet.set(bno);
+				cps[br.from] = no;
 				brFeatures[no] = new Feature();
 				brFeatures[no].v = data.nodes[br.from].v;
 				brFeatures[no].exFn = data.nodes[br.from].fn;
@@ -689,11 +690,11 @@ public class SimplifyFeatures implements Serializable {
 	
 	private void populateFeature(int f) {
 		int bno = brFeatures[f].br;
-		ArrayList<Integer> queue = new ArrayList<Integer>();
+		MyIntList queue = new MyIntList();
 		queue.add(bno);
-		while(queue.size() > 0) {
-			int b = queue.remove(0);
-			if(b!= bno && featureSet.contains(b)) {
+		for(int head = 0;head < queue.length;head ++) {
+			int b = queue.get(head);
+			if(b!= bno && featureSet.get(b)) {
 				continue;
 			}
 			Branch br = sim.branches[b];
@@ -707,11 +708,11 @@ public class SimplifyFeatures implements Serializable {
 	
 	private void populateFeatureNoPart(int f) {
 		int bno = brFeatures[f].br;
-		ArrayList<Integer> queue = new ArrayList<Integer>();
+		MyIntList queue = new MyIntList();
 		queue.add(bno);
-		while(queue.size() > 0) {
-			int b = queue.remove(0);
-			if(b!= bno && featureSet.contains(b)) {
+		for(int head = 0;head < queue.length;head ++) {
+			int b = queue.get(head);
+			if(b!= bno && featureSet.get(b)) {
 				continue;
 			}
 			Branch br = sim.branches[b];
@@ -887,7 +888,7 @@ public class SimplifyFeatures implements Serializable {
 		}
 		int pos = sim.order.length - 1;
 		ReebGraphData data = sim.data;
-		cps = new HashMap<Integer, Integer>();
+		initCps();
 		int root = 0;
 		int rootBr = sim.order.array[sim.order.length - 1];
 		int no = 0;
@@ -896,8 +897,8 @@ public class SimplifyFeatures implements Serializable {
 			Branch br = sim.branches[bno];
 			if(rootBr == bno || br.parent == rootBr) {
 				if(data.nodes[br.to].type == ReebGraphData.MAXIMUM) {
-					featureSet.add(bno);
-					cps.put(br.to, no);
+					featureSet.set(bno);
+					cps[br.to] = no;
 					brFeatures[no] = new Feature();
 					brFeatures[no].v = data.nodes[br.to].v;
 					brFeatures[no].exFn = data.nodes[br.to].fn;
@@ -911,8 +912,8 @@ public class SimplifyFeatures implements Serializable {
 					brFeatures[no].br = bno;
 					no ++;
 				} else if(data.nodes[br.from].type == ReebGraphData.MINIMUM) {
-					featureSet.add(bno);
-					cps.put(br.from, no);
+					featureSet.set(bno);
+					cps[br.from] = no;
 					brFeatures[no] = new Feature();
 					brFeatures[no].v = data.nodes[br.from].v;
 					brFeatures[no].exFn = data.nodes[br.from].fn;
@@ -0,0 +1,203 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.ctdata;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Memory-bounded storage of the values of an attribute, by temporal bin.
+ * The values are kept in memory until there are more than memoryValues of
+ * them; then the bins in memory are written to local files, one per bin,
+ * and the next values of these bins are appended to their files. A
+ * spilled bin is read back only while the index processes it (see
+ * TopologicalIndex.createIndex and queryEvents).
+ *
+ * A value takes VALUE_BYTES in memory, and usually 4 to 8 bytes in a
+ * file: the spatial unit and the difference to the time of the previous
+ * value of the bin as variable-length integers, and the value as a float.
+ * The number of values, fingerprint, and order of every bin are kept in
+ * memory.
+ */
+public class AttributeStore {
+
+    // approximate size in memory of a value (SpatioTemporalVal and its reference)
+    public static final int VALUE_BYTES = 40;
+
+    long memoryValues;
+    File dir = null;
+
+    Int2ObjectOpenHashMap<ArrayList<SpatioTemporalVal>> resident =
+            new Int2ObjectOpenHashMap<ArrayList<SpatioTemporalVal>>();
+    IntOpenHashSet spilled = new IntOpenHashSet();
+    long residentValues = 0;
+
+    Int2IntOpenHashMap counts = new Int2IntOpenHashMap();
+    Int2LongOpenHashMap sums = new Int2LongOpenHashMap();
+    Int2IntOpenHashMap lastTemporal = new Int2IntOpenHashMap();
+    IntOpenHashSet unsorted = new IntOpenHashSet();
+
+    // file of the last spilled bin a value was added to
+    int outBin = 0;
+    DataOutputStream out = null;
+
+    public long spilledValues = 0;
+    public long spilledBytes = 0;
+
+    public AttributeStore(long memoryValues) {
+        this.memoryValues = memoryValues;
+    }
+
+    public void add(int bin, int spatial, int temporal, float val) throws IOException {
+
+        // same fingerprint as TopologicalIndex.fingerprint, without the size
+        long point = (((long) temporal) << 32) | (spatial & 0xffffffffL);
+        sums.put(bin, sums.get(bin) + TopologicalIndex.mix(TopologicalIndex.mix(point)
+                ^ Float.floatToIntBits(val)));
+        int count = counts.get(bin);
+        if ((count > 0) && (temporal < lastTemporal.get(bin)))
+            unsorted.add(bin);
+        int previous = (count > 0) ? lastTemporal.get(bin) : 0;
+        counts.put(bin, count + 1);
+        lastTemporal.put(bin, temporal);
+
+        if (spilled.contains(bin)) {
+            DataOutputStream binOut = output(bin);
+            WritableUtils.writeVInt(binOut, spatial);
+            WritableUtils.writeVLong(binOut, ((long) temporal) - previous);
+            binOut.writeFloat(val);
+            spilledValues++;
+            return;
+        }
+
+        ArrayList<SpatioTemporalVal> vals = resident.get(bin);
+        if (vals == null) {
+            vals = new ArrayList<SpatioTemporalVal>();
+            resident.put(bin, vals);
+        }
+        vals.add(new SpatioTemporalVal(spatial, temporal, val));
+        residentValues++;
+        if (residentValues > memoryValues)
+            spill();
+    }
+
+    /**
+     * Writes all the bins in memory to their files.
+     */
+    void spill() throws IOException {
+        if (dir == null)
+            dir = Files.createTempDirectory("attribute").toFile();
+        for (int bin : resident.keySet()) {
+            spilled.add(bin);
+            DataOutputStream binOut = output(bin);
+            int previous = 0;
+            for (SpatioTemporalVal val : resident.get(bin)) {
+                WritableUtils.writeVInt(binOut, val.getSpatial());
+                WritableUtils.writeVLong(binOut, ((long) val.getTemporal()) - previous);
+                binOut.writeFloat(val.getVal());
+                previous = val.getTemporal();
+                spilledValues++;
+            }
+        }
+        resident.clear();
+        residentValues = 0;
+    }
+
+    DataOutputStream output(int bin) throws IOException {
+        if ((out != null) && (outBin == bin))
+            return out;
+        closeOutput();
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file(bin), true), 1 << 16));
+        outBin = bin;
+        return out;
+    }
+
+    void closeOutput() throws IOException {
+        if (out != null) {
+            spilledBytes += out.size();
+            out.close();
+            out = null;
+        }
+    }
+
+    File file(int bin) {
+        return new File(dir, String.valueOf(bin));
+    }
+
+    public IntSet bins() {
+        return counts.keySet();
+    }
+
+    public boolean isSpilled(int bin) {
+        return spilled.contains(bin);
+    }
+
+    /**
+     * Values of the bin ordered by time, read from its file if it was
+     * spilled (the list is not kept).
+     */
+    public ArrayList<SpatioTemporalVal> values(int bin) throws IOException {
+        ArrayList<SpatioTemporalVal> vals = resident.get(bin);
+        if (vals == null) {
+            if (!spilled.contains(bin))
+                return null;
+            if (outBin == bin)
+                closeOutput();
+            int count = counts.get(bin);
+            vals = new ArrayList<SpatioTemporalVal>(count);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file(bin)), 1 << 16));
+            long temporal = 0;
+            for (int i = 0; i < count; i++) {
+                int spatial = WritableUtils.readVInt(in);
+                temporal += WritableUtils.readVLong(in);
+                vals.add(new SpatioTemporalVal(spatial, (int) temporal, in.readFloat()));
+            }
+            in.close();
+        }
+        if (unsorted.contains(bin)) {
+            Collections.sort(vals);
+            if (!spilled.contains(bin))
+                unsorted.remove(bin);
+        }
+        return vals;
+    }
+
+    public long fingerprint(int bin) {
+        return counts.get(bin) + sums.get(bin);
+    }
+
+    /**
+     * Deletes the files of the spilled bins.
+     */
+    public void close() throws IOException {
+        closeOutput();
+        if (dir != null) {
+            for (int bin : spilled)
+                file(bin).delete();
+            dir.delete();
+            dir = null;
+        }
+        resident.clear();
+        spilled.clear();
+    }
+}
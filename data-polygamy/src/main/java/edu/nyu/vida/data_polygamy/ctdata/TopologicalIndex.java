@@ -4,21 +4,23 @@
 package edu.nyu.vida.data_polygamy.ctdata;
 
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
-import org.apache.commons.math3.exception.ConvergenceException;
 import org.apache.commons.math3.ml.clustering.CentroidCluster;
 import org.apache.commons.math3.ml.clustering.DoublePoint;
 import org.apache.commons.math3.ml.clustering.KMeansPlusPlusClusterer;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
 import edu.nyu.vida.data_polygamy.ct.Function;
 import edu.nyu.vida.data_polygamy.ct.GraphInput;
@@ -30,12 +32,16 @@ import edu.nyu.vida.data_polygamy.ct.ReebGraphData;
 import edu.nyu.vida.data_polygamy.ct.SimplifyFeatures;
 import edu.nyu.vida.data_polygamy.ct.SimplifyFeatures.Feature;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.StageProfiler;
+import edu.nyu.vida.data_polygamy.utils.StageProfiler.Phase;
 import edu.nyu.vida.data_polygamy.utils.Utilities;
 
 public class TopologicalIndex implements Serializable {
 	
     private static final long serialVersionUID = 1L;
     
+    public static final int MERGE_TREE_VERSION = 1;
+    
     //private static final double thresholdRatio = 0.2;
 
     public static class Attribute implements Serializable {
@@ -54,11 +60,26 @@ public class TopologicalIndex implements Serializable {
                 new Int2ObjectOpenHashMap<Float>();
         public IntOpenHashSet nodeSet = new IntOpenHashSet();
         
+        // if not null, the values are in store instead of data
+        public transient AttributeStore store = null;
+        
         public void copy(Attribute att) {
             this.id = att.id;
             data.putAll(att.data);
             nodeSet.addAll(att.nodeSet);
         }
+        
+        public IntSet bins() {
+            return (store == null) ? data.keySet() : store.bins();
+        }
+        
+        public ArrayList<SpatioTemporalVal> values(int tempBin) throws IOException {
+            return (store == null) ? data.get(tempBin) : store.values(tempBin);
+        }
+        
+        long fingerprint(int tempBin) {
+            return (store == null) ? TopologicalIndex.fingerprint(data.get(tempBin)) : store.fingerprint(tempBin);
+        }
     }
 	
 	public static class Event implements Comparable<Event>, Serializable {
@@ -107,6 +128,9 @@ public class TopologicalIndex implements Serializable {
 	
 	static TreeType [] types = {TreeType.JoinTree, TreeType.SplitTree};
 	
+	// owner of the features kept by the index (see summaries)
+	static final SimplifyFeatures SUMMARIES = new SimplifyFeatures();
+	
 	int attribute;
 	int spatialRes, tempRes;
     boolean is2D = false;
@@ -117,9 +141,17 @@ public class TopologicalIndex implements Serializable {
     public int nv;
     
     Int2ObjectOpenHashMap<GraphInput> functions = new Int2ObjectOpenHashMap<GraphInput>();
+    int[][] edges2D = null;
     Int2ObjectOpenHashMap<Feature[]> minIndex = new Int2ObjectOpenHashMap<Feature[]>();
     Int2ObjectOpenHashMap<Feature[]> maxIndex = new Int2ObjectOpenHashMap<Feature[]>();
     
+    // fingerprints of the values of every temporal bin, and of the spatial units
+    Int2LongOpenHashMap binFingerprints = new Int2LongOpenHashMap();
+    long nodeSetFingerprint = 0;
+    
+    // temporal bins whose merge trees were built by the last createIndex
+    public int rebuiltBins = 0;
+    
     public TopologicalIndex() {}
 	
     public TopologicalIndex(int spatialRes, int tempRes, int nv) {
@@ -139,54 +171,91 @@ public class TopologicalIndex implements Serializable {
             return maxIndex;
     }
 
-    public int createIndex(Attribute att, int[][] edges2D) {
+    public int createIndex(Attribute att, int[][] edges2D) throws IOException {
+        return createIndex(att, edges2D, new StageProfiler());
+    }
+    
+    /**
+     * Creates the index, adding the time of the merge trees to
+     * Phase.TREE_BUILD, and the time of their simplification to
+     * Phase.SIMPLIFICATION, of profiler.
+     */
+    public int createIndex(Attribute att, int[][] edges2D, StageProfiler profiler) throws IOException {
+        return createIndex(att, edges2D, profiler, null);
+    }
+    
+    /**
+     * Creates the index, reusing the features of the temporal bins of
+     * previous (see readMergeTrees) whose values did not change; the merge
+     * trees of the other bins (e.g., a month that was appended) are built.
+     * All the bins are built if the spatial units changed, since the
+     * graph of every bin depends on them.
+     */
+    public int createIndex(Attribute att, int[][] edges2D, StageProfiler profiler,
+            TopologicalIndex previous) throws IOException {
         this.attribute = att.id;
+        this.edges2D = edges2D;
         //if (att.data.size() == 0) return 1;
-		for (int t = 0; t < types.length; t++) {
-			TreeType tree = types[t];
-			boolean min = true;
-			if (tree == TreeType.SplitTree) {
-				min = false;
-			}
-			try {
-				for (int tempBin : att.data.keySet()) {
-				    //System.out.println("Time: " + tempBin);
-				    ArrayList<SpatioTemporalVal> stArr = att.data.get(tempBin);
+        
+        nodeSetFingerprint = fingerprint(att.nodeSet);
+        binFingerprints.clear();
+        for (int tempBin : att.bins())
+            binFingerprints.put(tempBin, att.fingerprint(tempBin));
+        boolean reuse = (previous != null) && !previous.empty && (previous.nv == this.nv)
+                && (previous.nodeSetFingerprint == nodeSetFingerprint);
+        rebuiltBins = 0;
+        
+        // bin by bin, so only the values of one bin are needed at a time
+		try {
+			for (int tempBin : att.bins()) {
+			    //System.out.println("Time: " + tempBin);
+			    ArrayList<SpatioTemporalVal> stArr = att.values(tempBin);
+				
+				int localSt = stArr.get(0).getTemporal();
+				int localEnd = stArr.get(stArr.size() - 1).getTemporal();
+				stTime = Math.min(stTime, localSt);
+                enTime = Math.max(enTime, localEnd);
+                
+                GraphInput tf = null;
+				for (int t = 0; t < types.length; t++) {
+					TreeType tree = types[t];
+					boolean min = true;
+					if (tree == TreeType.SplitTree) {
+						min = false;
+					}
 					int actualVertices = stArr.size();
 					
 					//if (actualVertices == 0) continue;
 					
-					int localSt = stArr.get(0).getTemporal();
-					int localEnd = stArr.get(stArr.size() - 1).getTemporal();
-					stTime = Math.min(stTime, localSt);
-                    enTime = Math.max(enTime, localEnd);
-                    
-                    att.thresholdStTime.put(tempBin, new Integer(stTime));
-                    att.thresholdEnTime.put(tempBin, new Integer(enTime));
-					
-					GraphInput tf = functions.get(tempBin);
-					if (tf == null) {
-					    if (is2D) {
-	                        tf = new TimeSeries2DFunction(stArr, att.nodeSet, edges2D,
-	                                this.nv, this.tempRes, localSt, localEnd);
-					    }
-	                    else
-	                        tf = new TimeSeriesFunction(stArr);
-						functions.put(tempBin, tf);
+					long time = profiler.start();
+					if (reuse && previous.binFingerprints.containsKey(tempBin)
+					        && (previous.binFingerprints.get(tempBin) == binFingerprints.get(tempBin))
+					        && (previous.getIndex(min).get(tempBin) != null)) {
+					    // same values: same merge tree and features
+					    profiler.stop(Phase.TREE_BUILD, time);
+					    getIndex(min).put(tempBin, previous.getIndex(min).get(tempBin));
+					    continue;
 					}
+					if (min)
+					    rebuiltBins++;
 					
+					if (tf == null)
+					    tf = function(att, tempBin, stArr);
 					MergeTrees ct = new MergeTrees();
 					ct.computeTree(tf, tree);
 					ReebGraphData data = ct.output(tree);
+					profiler.stop(Phase.TREE_BUILD, time);
 
 					if (data.noArcs == 0) {
 					    System.err.println("Empty Attribute: " + att.id);
 					    return 1;
 					}
 					
+					time = profiler.start();
 					Function fn = new Persistence(data);
 					SimplifyFeatures sim = new SimplifyFeatures();
 					sim.simplify(data, null, fn, 0.01f);
+					profiler.stop(Phase.SIMPLIFICATION, time);
 
 					Feature[] f = sim.brFeatures;
 					if (min) {
@@ -216,26 +285,179 @@ public class TopologicalIndex implements Serializable {
 					}
 					//System.out.println("creating contour tree for " + tempBin);
 					if (min) {
-						minIndex.put(tempBin, f);
+						minIndex.put(tempBin, summaries(f));
 					} else {
-						maxIndex.put(tempBin, f);
+						maxIndex.put(tempBin, summaries(f));
 					}
 				}
-				
-			} catch (Exception e) {
-				e.printStackTrace();
-				return 1;
 			}
+			
+		} catch (IOException e) {
+		    // values of a spilled bin that cannot be read: the task fails
+		    throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return 1;
+		}
+		
+		for (int tempBin : att.bins()) {
+		    att.thresholdStTime.put(tempBin, new Integer(stTime));
+		    att.thresholdEnTime.put(tempBin, new Integer(enTime));
 		}
 		
         return 0;
 	}
     
-    public ArrayList<byte[]> queryEvents(float th, boolean outlier, Attribute att, String threshold) {
+    /**
+     * Function of the values of a temporal bin (read from the store of att
+     * if vals is null). It is kept for the next calls, unless the values
+     * are in a store: then only the function of one bin is in memory.
+     */
+    GraphInput function(Attribute att, int tempBin, ArrayList<SpatioTemporalVal> vals) throws IOException {
+        GraphInput tf = functions.get(tempBin);
+        if (tf != null)
+            return tf;
+        if (vals == null)
+            vals = att.values(tempBin);
+        int localSt = vals.get(0).getTemporal();
+        int localEnd = vals.get(vals.size() - 1).getTemporal();
+        if (is2D)
+            tf = new TimeSeries2DFunction(vals, att.nodeSet, edges2D, this.nv, this.tempRes, localSt, localEnd);
+        else
+            tf = new TimeSeriesFunction(vals);
+        if (att.store == null)
+            functions.put(tempBin, tf);
+        return tf;
+    }
+    
+    /**
+     * Fingerprint of the values of a temporal bin, which does not depend on
+     * their order (values of a same time step come in any order).
+     */
+    static long fingerprint(ArrayList<SpatioTemporalVal> vals) {
+        long h = vals.size();
+        for (SpatioTemporalVal val : vals) {
+            long point = (((long) val.getTemporal()) << 32) | (val.getSpatial() & 0xffffffffL);
+            h += mix(mix(point) ^ Float.floatToIntBits(val.getVal()));
+        }
+        return h;
+    }
+    
+    static long fingerprint(IntOpenHashSet nodeSet) {
+        long h = nodeSet.size();
+        for (int node : nodeSet)
+            h += mix(node);
+        return h;
+    }
+    
+    static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+    
+    /**
+     * Writes the features of every temporal bin, with the fingerprints of
+     * their values, so a later execution can rebuild only the bins whose
+     * values changed. Only the fields of the features used by queryEvents
+     * are written.
+     */
+    public void writeMergeTrees(DataOutput out) throws IOException {
+        out.writeInt(MERGE_TREE_VERSION);
+        out.writeInt(nv);
+        out.writeLong(nodeSetFingerprint);
+        out.writeInt(binFingerprints.size());
+        for (int tempBin : binFingerprints.keySet()) {
+            out.writeInt(tempBin);
+            out.writeLong(binFingerprints.get(tempBin));
+            writeFeatures(out, minIndex.get(tempBin));
+            writeFeatures(out, maxIndex.get(tempBin));
+        }
+    }
+    
+    static void writeFeatures(DataOutput out, Feature[] f) throws IOException {
+        if (f == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(f.length);
+        for (int i = 0; i < f.length; i++) {
+            out.writeInt(f[i].v);
+            out.writeFloat(f[i].wt);
+            out.writeFloat(f[i].exFn);
+            out.writeFloat(f[i].sadFn);
+        }
+    }
+    
+    /**
+     * Reads the merge trees written by writeMergeTrees, to be used as the
+     * previous index of createIndex.
+     */
+    public static TopologicalIndex readMergeTrees(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != MERGE_TREE_VERSION)
+            throw new IOException("Unsupported merge tree version: " + version);
+        TopologicalIndex index = new TopologicalIndex();
+        index.empty = false;
+        index.nv = in.readInt();
+        index.nodeSetFingerprint = in.readLong();
+        int nbBins = in.readInt();
+        for (int i = 0; i < nbBins; i++) {
+            int tempBin = in.readInt();
+            index.binFingerprints.put(tempBin, in.readLong());
+            Feature[] f = readFeatures(in);
+            if (f != null)
+                index.minIndex.put(tempBin, f);
+            f = readFeatures(in);
+            if (f != null)
+                index.maxIndex.put(tempBin, f);
+        }
+        return index;
+    }
+    
+    static Feature[] readFeatures(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        Feature[] f = new Feature[length];
+        for (int i = 0; i < length; i++) {
+            int v = in.readInt();
+            float wt = in.readFloat();
+            float exFn = in.readFloat();
+            f[i] = summary(v, wt, exFn, in.readFloat());
+        }
+        return f;
+    }
+    
+    /**
+     * Copies of the features with only the fields used by queryEvents: the
+     * features of SimplifyFeatures keep the whole simplification of their
+     * merge tree in memory, for every temporal bin.
+     */
+    static Feature[] summaries(Feature[] f) {
+        Feature[] copy = new Feature[f.length];
+        for (int i = 0; i < f.length; i++)
+            copy[i] = summary(f[i].v, f[i].wt, f[i].exFn, f[i].sadFn);
+        return copy;
+    }
+    
+    static Feature summary(int v, float wt, float exFn, float sadFn) {
+        Feature f = SUMMARIES.new Feature();
+        f.arcs = null;
+        f.v = v;
+        f.wt = wt;
+        f.exFn = exFn;
+        f.sadFn = sadFn;
+        return f;
+    }
+    
+    public ArrayList<byte[]> queryEvents(float th, boolean outlier, Attribute att, String threshold)
+            throws IOException {
         return queryEvents(th, outlier, att, threshold, false);
     }
 	
-	public ArrayList<byte[]> queryEvents(float th, boolean outlier, Attribute att, String threshold, boolean print) {
+	public ArrayList<byte[]> queryEvents(float th, boolean outlier, Attribute att, String threshold, boolean print)
+	        throws IOException {
 		
 	    att.minThreshold.clear();
 	    att.maxThreshold.clear();
@@ -248,90 +470,111 @@ public class TopologicalIndex implements Serializable {
 	        Arrays.fill(data, FrameworkUtils.nonEvent);
 	        results.add(data);
 	    }
+	    
+	    // outliers: a single threshold per tree, from the features of all the bins
+	    double[] outlierTh = new double[types.length];
+	    boolean[] hasOutliers = new boolean[types.length];
+	    if (outlier) {
+	        for (int t = 0; t < types.length; t++) {
+	            TreeType tree = types[t];
+	            Int2ObjectOpenHashMap<Feature[]> index = getIndex(tree == TreeType.JoinTree);
+	            PersistencePoints perVals = new PersistencePoints();
+	            for (int tempBin : att.bins()) {
+	                Feature []f = index.get(tempBin);
+	                if (f.length == 0) continue;
+	                addPersistencePoints(perVals, f, th * f[0].wt, tree);
+	            }
+	            if(perVals.ex.size() == 0) {
+	                continue;
+	            }
+	            hasOutliers[t] = true;
+	            if (threshold.isEmpty()) {
+	                outlierTh[t] = iqOutlierTh(perVals.ex.toDoubleArray(), tree == TreeType.JoinTree);
+	            } else {
+	                outlierTh[t] = Double.parseDouble(threshold);
+	            }
+	        }
+	    }
 		
-		for(int t = 0;t < types.length;t ++) {
-			TreeType tree = types[t];
-			boolean min = true;
-			if (tree == TreeType.SplitTree) {
-				min = false;
-			}
-			Int2ObjectOpenHashMap<Feature[]> index = getIndex(min);
-			
-			PersistencePoints perVals = new PersistencePoints();
-			for (int tempBin : att.data.keySet()) {
-				Feature []f = index.get(tempBin);
-				
-				if (f.length == 0) continue;
-				
-				double pth = th * f[0].wt;
-				if (!outlier) {
-				    try {
-				        if (threshold.isEmpty()) {
-				            pth = getThreshold(f);
-				        } else {
-				            pth = Double.parseDouble(threshold);
-				        }
-				    } catch (ConvergenceException e) {
-				        continue;
-				    }
-				}
-				for (int i = 0; i < f.length; i++) {
-					if(f[i].wt >= pth) {
-						perVals.addPersistencePoint(f[i], tree);
-					} else {
-						break;
-					}
-				}
-				if (!outlier) {
-					Collections.sort(perVals.ex);
-					int no = perVals.ex.size();
-					double[] vals = new double[no];
-					for (int i = 0; i < vals.length; i++) {
-						vals[i] = perVals.ex.get(i);
-					}
-					if(vals.length == 0) {
-						continue;
-					}
-					double eventTh = min?vals[vals.length - 1]:vals[0];
-					getEvents(results, functions.get(tempBin), index.get(tempBin), min, eventTh, print);
-					perVals = new PersistencePoints();
-					
-					if (min) {
-					    att.minThreshold.put(tempBin, new Float(eventTh));
-					} else {
-					    att.maxThreshold.put(tempBin, new Float(eventTh));
-					}
-				}
-			}
-			if (outlier) {
-				Collections.sort(perVals.ex);
-				int no = perVals.ex.size();
-				double[] vals = new double[no];
-				
-				for (int i = 0; i < vals.length; i++) {
-					vals[i] = perVals.ex.get(i);
-				}
-				if(vals.length == 0) {
-					continue;
-				}
-				double eventTh = min?vals[vals.length - 1]:vals[0];
-				
-			    if (threshold.isEmpty()) {
-			        eventTh = iqOutlierTh(vals, min);
-                } else {
-                    eventTh = Double.parseDouble(threshold);
-                }
-				getEvents(results, eventTh, index, min, att);
-			}
-		}
+	    // bin by bin, so only the function of one bin is needed at a time
+	    for (int tempBin : att.bins()) {
+	        GraphInput tf = null;
+	        for(int t = 0;t < types.length;t ++) {
+	            TreeType tree = types[t];
+	            boolean min = true;
+	            if (tree == TreeType.SplitTree) {
+	                min = false;
+	            }
+	            Feature []f = getIndex(min).get(tempBin);
+	            
+	            double eventTh;
+	            if (outlier) {
+	                if (!hasOutliers[t]) continue;
+	                eventTh = outlierTh[t];
+	            } else {
+	                if (f.length == 0) continue;
+	                double pth;
+	                if (threshold.isEmpty()) {
+	                    pth = getThreshold(f);
+	                } else {
+	                    pth = Double.parseDouble(threshold);
+	                }
+	                PersistencePoints perVals = new PersistencePoints();
+	                addPersistencePoints(perVals, f, pth, tree);
+	                if(perVals.ex.size() == 0) {
+	                    continue;
+	                }
+	                // only the extreme value is needed, no need to sort
+	                eventTh = extreme(perVals.ex, min);
+	            }
+	            
+	            if (f.length > 0) {
+	                if (tf == null)
+	                    tf = function(att, tempBin, null);
+	                getEvents(results, tf, f, min, eventTh, print && !outlier);
+	            }
+	            if (min) {
+	                att.minThreshold.put(tempBin, new Float(eventTh));
+	            } else {
+	                att.maxThreshold.put(tempBin, new Float(eventTh));
+	            }
+	        }
+	    }
 		return results;
 	}
 	
+	// persistence points of the features with weight at least pth (sorted by weight)
+	private static void addPersistencePoints(PersistencePoints perVals, Feature[] f, double pth, TreeType tree) {
+	    for (int i = 0; i < f.length; i++) {
+	        if(f[i].wt >= pth) {
+	            perVals.addPersistencePoint(f[i], tree);
+	        } else {
+	            break;
+	        }
+	    }
+	}
+	
+	private static double extreme(DoubleArrayList vals, boolean max) {
+	    double ex = vals.getDouble(0);
+	    for (int i = 1; i < vals.size(); i++) {
+	        double v = vals.getDouble(i);
+	        if (max ? (v > ex) : (v < ex)) {
+	            ex = v;
+	        }
+	    }
+	    return ex;
+	}
+	
 	public static double epsilon = 0.00001;
-	private double iqOutlierTh(double[] vals, boolean min) {
-		DescriptiveStatistics ds = new DescriptiveStatistics(vals);
-		double fq = ds.getPercentile(25);
-		double tq = ds.getPercentile(75);
+	/**
+	 * IQR outlier threshold. Quartiles follow the default (legacy) estimation
+	 * of commons-math {@code DescriptiveStatistics.getPercentile}, but
+	 * are found by selection instead of sorting the values.
+	 * Note that the array is reordered.
+	 */
+	public static double iqOutlierTh(double[] vals, boolean min) {
+		double fq = percentile(vals, 25);
+		double tq = percentile(vals, 75);
 		double iqr = tq - fq;
 		
 		if(min) {
@@ -343,20 +586,72 @@ public class TopologicalIndex implements Serializable {
 		}
 	}
 	
-	void getEvents(ArrayList<byte[]> events, double eventTh,
-			Int2ObjectOpenHashMap<Feature[] > featureMap, boolean min, Attribute att) {
-		// getting events using merge tree
-		for (int tempBin : att.data.keySet()) {
-			Feature[] features = featureMap.get(tempBin);
-			GraphInput tf = functions.get(tempBin);
-			getEvents(events, tf, features, min, eventTh, false);
-			
-			if (min) {
-                att.minThreshold.put(tempBin, new Float(eventTh));
-            } else {
-                att.maxThreshold.put(tempBin, new Float(eventTh));
-            }
-		}
+	static double percentile(double[] work, double p) {
+	    int length = work.length;
+	    if (length == 1) {
+	        return work[0];
+	    }
+	    double pos = p * (length + 1) / 100;
+	    double fpos = Math.floor(pos);
+	    int intPos = (int) fpos;
+	    double dif = pos - fpos;
+	    
+	    if (pos < 1) {
+	        return select(work, 0);
+	    }
+	    if (pos >= length) {
+	        return select(work, length - 1);
+	    }
+	    double lower = select(work, intPos - 1);
+	    // after the selection, everything on the right is >= lower
+	    double upper = work[intPos];
+	    for (int i = intPos + 1; i < length; i++) {
+	        upper = Math.min(upper, work[i]);
+	    }
+	    return lower + dif * (upper - lower);
+	}
+	
+	/**
+	 * Returns the k-th smallest value (quickselect), partially reordering
+	 * the array around it.
+	 */
+	static double select(double[] work, int k) {
+	    int left = 0;
+	    int right = work.length - 1;
+	    while (right > left) {
+	        // median of three as pivot
+	        int mid = (left + right) >>> 1;
+	        if (work[mid] < work[left]) swap(work, mid, left);
+	        if (work[right] < work[left]) swap(work, right, left);
+	        if (work[right] < work[mid]) swap(work, right, mid);
+	        double pivot = work[mid];
+	        
+	        int i = left;
+	        int j = right;
+	        while (i <= j) {
+	            while (work[i] < pivot) i++;
+	            while (work[j] > pivot) j--;
+	            if (i <= j) {
+	                swap(work, i, j);
+	                i++;
+	                j--;
+	            }
+	        }
+	        if (k <= j) {
+	            right = j;
+	        } else if (k >= i) {
+	            left = i;
+	        } else {
+	            break;
+	        }
+	    }
+	    return work[k];
+	}
+	
+	private static void swap(double[] work, int i, int j) {
+	    double tmp = work[i];
+	    work[i] = work[j];
+	    work[j] = tmp;
 	}
 	
 	private void getEvents(ArrayList<byte[]> events, GraphInput tf, Feature[] features, boolean min, double eventTh, boolean print) {
@@ -494,15 +789,72 @@ public class TopologicalIndex implements Serializable {
 	}
 
 	public double getThreshold(Feature []f) {
+		if(f.length < 2) {
+			return f[0].wt * 0.4;
+		}
+		double[] wts = new double[f.length];
+		for (int i = 0; i < f.length; i++) {
+			wts[i] = f[i].wt;
+		}
+		return getThreshold(wts);
+	}
+	
+	/**
+	 * Optimal 2-means split of the persistence values. In one dimension the
+	 * clusters of an optimal split are contiguous in sorted order, so after a
+	 * single sort every split position is evaluated in O(1) with prefix sums.
+	 * Returns the smallest value of the high persistence cluster, which is
+	 * what the k-means based selection returns, but without the random
+	 * initialization.
+	 */
+	public static double getThreshold(double[] wts) {
+		int n = wts.length;
+		double[] sorted = Arrays.copyOf(wts, n);
+		Arrays.sort(sorted);
+		if (sorted[0] == sorted[n - 1]) {
+			return sorted[0];
+		}
+		
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			total += sorted[i];
+		}
+		
+		// minimizing the within cluster sum of squares is the same as
+		// maximizing sum_low^2/n_low + sum_high^2/n_high
+		double best = Double.NEGATIVE_INFINITY;
+		int split = 1;
+		double low = 0;
+		for (int k = 1; k < n; k++) {
+			low += sorted[k - 1];
+			if (sorted[k] == sorted[k - 1]) {
+				// equal values always end up in the same cluster
+				continue;
+			}
+			double high = total - low;
+			double score = low * low / k + high * high / (n - k);
+			if (score > best) {
+				best = score;
+				split = k;
+			}
+		}
+		return sorted[split];
+	}
+	
+	/**
+	 * Threshold selection based on the KMeans++ clusterer; kept for
+	 * comparison with {@link #getThreshold(double[])}.
+	 */
+	public static double getKMeansThreshold(double[] wts) {
 	    
 	    KMeansPlusPlusClusterer<DoublePoint> kmeans = new KMeansPlusPlusClusterer<DoublePoint>(2,1000);
 	    ArrayList<DoublePoint> pts = new ArrayList<DoublePoint>();
 		
-		if(f.length < 2) {
-			return f[0].wt * 0.4;
+		if(wts.length < 2) {
+			return wts[0] * 0.4;
 		}
-		for (int i = 0; i < f.length; i++) {
-			DoublePoint dpt = new DoublePoint(new double[] {f[i].wt});
+		for (int i = 0; i < wts.length; i++) {
+			DoublePoint dpt = new DoublePoint(new double[] {wts[i]});
 			pts.add(dpt);
 		}
 		List<CentroidCluster<DoublePoint>> clusters = kmeans.cluster(pts);
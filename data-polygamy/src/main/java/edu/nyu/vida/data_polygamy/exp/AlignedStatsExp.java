@@ -0,0 +1,311 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Hours;
+
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationReducer;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TimeSeriesStats;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.SpatialGraph;
+
+/**
+ * Compares the Monte Carlo loop of CorrelationReducer with the previous
+ * per-pair alignment against the loop over series aligned once per
+ * attribute pair, for hourly series over a spatial graph (BFS shifts)
+ * and at city resolution (temporal shifts). Both loops use the same
+ * seeded random number generator, and every repetition is checked to
+ * produce the same counts.
+ */
+public class AlignedStatsExp {
+
+    static int repetitions = 1000;
+    static float alpha = 0.05f;
+
+    Random r;
+    int stTime1, enTime1, stTime2, enTime2;
+
+    public AlignedStatsExp(long seed) {
+        r = new Random(seed);
+    }
+
+    // the second dataset starts a month later and ends a month later
+    TopologyTimeSeriesWritable[][] generate(int nv, int hours) {
+        DateTime st = new DateTime(2011, 1, 1, 0, 0, DateTimeZone.UTC);
+        stTime1 = (int) (st.getMillis() / 1000);
+        enTime1 = stTime1 + (hours - 1) * 3600;
+        stTime2 = stTime1 + 24 * 31 * 3600;
+        enTime2 = enTime1 + 24 * 31 * 3600;
+
+        TopologyTimeSeriesWritable[][] series = new TopologyTimeSeriesWritable[nv][2];
+        for (int v = 0; v < nv; v++) {
+            byte[] e1 = new byte[hours];
+            byte[] e2 = new byte[hours];
+            for (int i = 0; i < hours; i++) {
+                e1[i] = randomEvent(0.05);
+                e2[i] = randomEvent(0.05);
+            }
+            // the second dataset follows the first one with some probability
+            for (int i = 0; i + 24*31 < hours; i++)
+                if (r.nextDouble() < 0.3)
+                    e2[i] = e1[i + 24*31];
+            series[v][0] = new TopologyTimeSeriesWritable(v, 0, e1, stTime1, enTime1, false);
+            series[v][1] = new TopologyTimeSeriesWritable(v, 1, e2, stTime2, enTime2, false);
+        }
+        return series;
+    }
+
+    byte randomEvent(double rate) {
+        double p = r.nextDouble();
+        if (p < rate/2)
+            return FrameworkUtils.positiveEvent;
+        if (p < rate)
+            return FrameworkUtils.negativeEvent;
+        return FrameworkUtils.nonEvent;
+    }
+
+    // previous implementation of CorrelationReducer.getStats, hourly series only
+    static TimeSeriesStats legacyGetStats(TopologyTimeSeriesWritable timeSeries1,
+            TopologyTimeSeriesWritable timeSeries2, boolean temporalPermutationTest, Random random) {
+
+        TimeSeriesStats output = new TimeSeriesStats();
+
+        if ((timeSeries1 == null) || (timeSeries2 == null))
+            return output;
+
+        long start1 = timeSeries1.getStart();
+        long end1 = timeSeries1.getEnd();
+        long start2 = timeSeries2.getStart();
+        long end2 = timeSeries2.getEnd();
+
+        if (((end1 < start2) && (start1 < start2)) || ((end1 > end2) && (start1 > end2)))
+            return output;
+
+        output.setIntersect(true);
+
+        DateTime start1Obj = new DateTime(start1*1000, DateTimeZone.UTC);
+        DateTime end1Obj = new DateTime(end1*1000, DateTimeZone.UTC);
+        DateTime start2Obj = new DateTime(start2*1000, DateTimeZone.UTC);
+        DateTime end2Obj = new DateTime(end2*1000, DateTimeZone.UTC);
+
+        byte[] eventTimeSeries1 = timeSeries1.getTimeSeries();
+        byte[] eventTimeSeries2 = timeSeries2.getTimeSeries();
+
+        int startRange = (start1 > start2) ? Hours.hoursBetween(start2Obj, start1Obj).getHours() :
+            Hours.hoursBetween(start1Obj, start2Obj).getHours();
+        int endRange = (end1 > end2) ? Hours.hoursBetween(end2Obj, end1Obj).getHours() :
+            Hours.hoursBetween(end1Obj, end2Obj).getHours();
+
+        int indexStart1 = (start2 > start1) ? startRange : 0;
+        int indexStart2 = (start2 > start1) ? 0 : startRange;
+        int indexEnd1 = (end2 > end1) ? eventTimeSeries1.length : eventTimeSeries1.length - endRange;
+        int indexEnd2 = (end2 > end1) ? eventTimeSeries2.length - endRange : eventTimeSeries2.length;
+
+        byte[] timeSeries1Int = Arrays.copyOfRange(eventTimeSeries1, indexStart1, indexEnd1);
+        byte[] timeSeries2Int = Arrays.copyOfRange(eventTimeSeries2, indexStart2, indexEnd2);
+
+        int nMatchEvents = 0, nMatchPosEvents = 0, nMatchNegEvents = 0;
+        int nPosFirstPosSecond = 0, nNegFirstNegSecond = 0, nPosFirstNegSecond = 0, nNegFirstPosSecond = 0;
+        int nPosFirstNonSecond = 0, nNegFirstNonSecond = 0, nNonFirstPosSecond = 0, nNonFirstNegSecond = 0;
+
+        int indexD1 = (temporalPermutationTest) ? random.nextInt(timeSeries1Int.length) : 0;
+        int indexD2 = (temporalPermutationTest) ? random.nextInt(timeSeries2Int.length) : 0;
+        for (int i = 0; i < timeSeries1Int.length; i++) {
+            int j = (indexD1 + i) % timeSeries1Int.length;
+            int k = (indexD2 + i) % timeSeries2Int.length;
+            byte result = (byte) (timeSeries1Int[j] | timeSeries2Int[k]);
+
+            switch(result) {
+            case FrameworkUtils.nonEventsMatch:
+                break;
+            case FrameworkUtils.posEventsMatch:
+                nMatchEvents++;
+                nMatchPosEvents++;
+                nPosFirstPosSecond++;
+                break;
+            case FrameworkUtils.nonEventPosEventMatch:
+                if (timeSeries1Int[j] == FrameworkUtils.positiveEvent)
+                    nPosFirstNonSecond++;
+                else
+                    nNonFirstPosSecond++;
+                break;
+            case FrameworkUtils.negEventsMatch:
+                nMatchEvents++;
+                nMatchPosEvents++;
+                nNegFirstNegSecond++;
+                break;
+            case FrameworkUtils.nonEventNegEventMatch:
+                if (timeSeries1Int[j] == FrameworkUtils.negativeEvent)
+                    nNegFirstNonSecond++;
+                else
+                    nNonFirstNegSecond++;
+                break;
+            case FrameworkUtils.negEventPosEventMatch:
+                nMatchEvents++;
+                nMatchNegEvents++;
+                if (timeSeries1Int[i] == FrameworkUtils.positiveEvent)
+                    nPosFirstNegSecond++;
+                else
+                    nNegFirstPosSecond++;
+                break;
+            default:
+                System.out.println("Something went wrong... Wrong case");
+                System.exit(-1);
+            }
+        }
+
+        output.setParameters(nMatchEvents, nMatchPosEvents, nMatchNegEvents,
+                nPosFirstPosSecond, nNegFirstNegSecond, nPosFirstNegSecond, nNegFirstPosSecond,
+                nPosFirstNonSecond, nNegFirstNonSecond, nNonFirstPosSecond, nNonFirstNegSecond);
+        return output;
+    }
+
+    static String counts(TimeSeriesStats s) {
+        return s.getMatchEvents() + "," + s.getMatchPosEvents() + "," + s.getMatchNegEvents() + ","
+                + s.getPosFirstPosSecond() + "," + s.getNegFirstNegSecond() + ","
+                + s.getPosFirstNegSecond() + "," + s.getNegFirstPosSecond() + ","
+                + s.getPosFirstNonSecond() + "," + s.getNegFirstNonSecond() + ","
+                + s.getNonFirstPosSecond() + "," + s.getNonFirstNegSecond();
+    }
+
+    // the loop of CorrelationReducer.reduce; returns the p-value and
+    //   appends the counts of every repetition to trace
+    float monteCarlo(TopologyTimeSeriesWritable[][] series, SpatialGraph graph,
+            boolean aligned, Random random, ArrayList<String> trace) {
+
+        int size = series.length;
+        byte[][] codes1 = new byte[size][];
+        byte[][] codes2 = new byte[size][];
+        int length = 0;
+        if (aligned) {
+            int[] alignment = CorrelationReducer.getAlignment(FrameworkUtils.HOUR, series[0][0], series[0][1]);
+            length = alignment[2];
+            for (int i = 0; i < size; i++) {
+                codes1[i] = series[i][0].getCodes(alignment[0], alignment[0] + length);
+                codes2[i] = series[i][1].getCodes(alignment[1], alignment[1] + length);
+            }
+        }
+
+        TimeSeriesStats stats = new TimeSeriesStats();
+        for (int i = 0; i < size; i++) {
+            if (aligned) {
+                TimeSeriesStats s = new TimeSeriesStats();
+                s.setIntersect(true);
+                CorrelationReducer.countEvents(s, codes1[i], codes2[i], length, 0, 0);
+                stats.add(s);
+            } else
+                stats.add(legacyGetStats(series[i][0], series[i][1], false, random));
+        }
+        stats.computeScores();
+        float alignedScore = stats.getRelationshipScore();
+        trace.add(counts(stats));
+
+        boolean temporal = (graph == null);
+        float pValue = 0;
+        for (int j = 0; j < repetitions; j++) {
+            stats = new TimeSeriesStats();
+            if (temporal) {
+                if (aligned) {
+                    TimeSeriesStats s = new TimeSeriesStats();
+                    s.setIntersect(true);
+                    int indexD1 = random.nextInt(length);
+                    int indexD2 = random.nextInt(length);
+                    CorrelationReducer.countEvents(s, codes1[0], codes2[0], length, indexD1, indexD2);
+                    stats.add(s);
+                } else
+                    stats.add(legacyGetStats(series[0][0], series[0][1], true, random));
+            } else {
+                ArrayList<Integer[]> pairs = graph.generateRandomShift();
+                for (int i = 0; i < pairs.size(); i++) {
+                    Integer[] pair = pairs.get(i);
+                    if (aligned) {
+                        TimeSeriesStats s = new TimeSeriesStats();
+                        s.setIntersect(true);
+                        CorrelationReducer.countEvents(s, codes1[pair[0]], codes2[pair[1]], length, 0, 0);
+                        stats.add(s);
+                    } else
+                        stats.add(legacyGetStats(series[pair[0]][0], series[pair[1]][1], false, random));
+                }
+            }
+            stats.computeScores();
+            trace.add(counts(stats));
+
+            float mcScore = stats.getRelationshipScore();
+            if (alignedScore > 0) {
+                if (mcScore >= alignedScore)
+                    pValue += 1;
+            } else {
+                if (mcScore <= alignedScore)
+                    pValue += 1;
+            }
+            if (pValue > (alpha*repetitions)) break; // pruning
+        }
+        return pValue/((float)(repetitions));
+    }
+
+    SpatialGraph loadGraph(String graphFile, long seed) throws IOException {
+        File dir = Files.createTempDirectory("graph").toFile();
+        File dest = new File(dir, "neighborhood-graph");
+        Files.copy(new File(graphFile).toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Configuration conf = new Configuration();
+        conf.set("bucket", dir.toURI().toString());
+        SpatialGraph graph = new SpatialGraph();
+        graph.setRandom(new Random(seed));
+        graph.init(FrameworkUtils.NBHD, conf);
+        dest.delete();
+        dir.delete();
+        return graph;
+    }
+
+    void run(String label, TopologyTimeSeriesWritable[][] series, String graphFile, long seed) throws IOException {
+        ArrayList<String> legacyTrace = new ArrayList<String>();
+        ArrayList<String> alignedTrace = new ArrayList<String>();
+
+        SpatialGraph graph = (graphFile == null) ? null : loadGraph(graphFile, seed);
+        long st = System.nanoTime();
+        float legacyP = monteCarlo(series, graph, false, new Random(seed), legacyTrace);
+        long legacyTime = System.nanoTime() - st;
+
+        graph = (graphFile == null) ? null : loadGraph(graphFile, seed);
+        st = System.nanoTime();
+        float alignedP = monteCarlo(series, graph, true, new Random(seed), alignedTrace);
+        long alignedTime = System.nanoTime() - st;
+
+        System.out.println(label + "\t" + series.length + "\t" + (legacyTrace.size() - 1) + "\t"
+                + legacyP + "\t" + alignedP + "\t" + legacyTrace.equals(alignedTrace) + "\t"
+                + (legacyTime / 1000000.0) + "\t" + (alignedTime / 1000000.0));
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.out.println("Usage: AlignedStatsExp <graph file> [nb of vertices] [hours] [seed]");
+            System.exit(-1);
+        }
+
+        String graphFile = args[0];
+        int hours = (args.length > 2) ? Integer.parseInt(args[2]) : 24*365;
+        long seed = (args.length > 3) ? Long.parseLong(args[3]) : 42L;
+
+        AlignedStatsExp exp = new AlignedStatsExp(seed);
+        int nv = (args.length > 1) ? Integer.parseInt(args[1]) :
+            exp.loadGraph(graphFile, seed).nbNodes();
+
+        System.out.println("resolution\tunits\trepetitions\tlegacyP\talignedP\tidentical\tlegacyMs\talignedMs");
+        exp.run("city", exp.generate(1, hours), null, seed);
+        exp.run("graph", exp.generate(nv, hours), graphFile, seed);
+    }
+}
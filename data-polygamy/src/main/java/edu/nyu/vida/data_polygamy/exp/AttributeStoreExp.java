@@ -0,0 +1,199 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import edu.nyu.vida.data_polygamy.ctdata.AttributeStore;
+import edu.nyu.vida.data_polygamy.ctdata.SpatioTemporalVal;
+import edu.nyu.vida.data_polygamy.ctdata.TopologicalIndex;
+import edu.nyu.vida.data_polygamy.ctdata.TopologicalIndex.Attribute;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.Utilities;
+
+/**
+ * Creates the index and the events of a synthetic hourly neighborhood
+ * attribute with its values in memory (Attribute.data) and in an
+ * AttributeStore, as IndexCreationReducer does with -sp:
+ *
+ *   validation: a few months with the values in memory, in a store
+ *     that keeps them in memory, in a store that spills every bin, and in
+ *     a store that spills some of them; the events (regular and outliers)
+ *     and thresholds must be the same;
+ *   large key: enough months for the values not to fit in the heap
+ *     (run with e.g. -Xmx256m); the values in memory run out of memory,
+ *     while the store, with a quarter of the heap as the reducer uses,
+ *     creates the index.
+ */
+public class AttributeStoreExp {
+
+    int nv;
+    int[][] edges;
+    int start = 1420070400; // 2015-01-01
+
+    void loadGraph(String graphFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(graphFile));
+        String [] s = Utilities.splitString(reader.readLine().trim());
+        nv = Integer.parseInt(s[0].trim());
+        int ne = Integer.parseInt(s[1].trim());
+        edges = new int[ne][2];
+        for(int i = 0;i < ne;i ++) {
+            s = Utilities.splitString(reader.readLine().trim());
+            int v1 = Integer.parseInt(s[0].trim());
+            int v2 = Integer.parseInt(s[1].trim());
+            if(v1 == v2) {
+                continue;
+            }
+            edges[i][0] = v1;
+            edges[i][1] = v2;
+        }
+        reader.close();
+    }
+
+    /**
+     * Daily periodic signal with a per-region level, noise, and a few
+     * spikes, added in time order to att (to its store, if any).
+     */
+    long fill(Attribute att, int months, long seed) throws IOException {
+        Random r = new Random(seed);
+        DateTime first = new DateTime(((long) start) * 1000, DateTimeZone.UTC);
+        int end = (int) (first.plusMonths(months).getMillis() / 1000);
+        long values = 0;
+        int bin = 0;
+        ArrayList<SpatioTemporalVal> vals = null;
+        for (int time = start; time < end; time += 3600) {
+            DateTime date = new DateTime(((long) time) * 1000, DateTimeZone.UTC);
+            int hash = date.getYear() * 100 + date.getMonthOfYear();
+            if ((vals == null) || (hash != bin)) {
+                bin = hash;
+                vals = new ArrayList<SpatioTemporalVal>();
+                if (att.store == null)
+                    att.data.put(bin, vals);
+            }
+            double daily = Math.sin(2 * Math.PI * ((time / 3600) % 24) / 24.0);
+            for (int v = 0; v < nv; v++) {
+                float level = 10 + (v % 40);
+                float val = (float) (level * (1 + 0.5 * daily) + 3 * r.nextGaussian());
+                if (r.nextDouble() < 0.002)
+                    val += 10 * level;
+                att.nodeSet.add(v);
+                if (att.store != null)
+                    att.store.add(bin, v, time, val);
+                else
+                    vals.add(new SpatioTemporalVal(v, time, val));
+                values++;
+            }
+        }
+        return values;
+    }
+
+    static void resetPeaks() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+    }
+
+    static long peak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    /**
+     * Creates the index and the events, printing the times, peak heap and
+     * spilled bytes, and returns a digest of the events and thresholds (or
+     * null if out of memory).
+     */
+    String run(String label, int months, long seed, AttributeStore store)
+            throws IOException, NoSuchAlgorithmException {
+        System.gc();
+        resetPeaks();
+        long t = System.nanoTime();
+        try {
+            Attribute att = new Attribute();
+            att.store = store;
+            long values = fill(att, months, seed);
+            TopologicalIndex index = new TopologicalIndex(FrameworkUtils.NBHD, FrameworkUtils.HOUR, nv);
+            if (index.createIndex(att, edges) != 0)
+                return null;
+            long indexTime = System.nanoTime() - t;
+
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            for (boolean outlier : new boolean[] {false, true}) {
+                for (byte[] events : index.queryEvents(0.9f, outlier, att, ""))
+                    md.update(events);
+                md.update((new TreeMap<Integer, Float>(att.minThreshold).toString()
+                        + new TreeMap<Integer, Float>(att.maxThreshold)).getBytes("UTF-8"));
+            }
+            md.update((index.stTime + " " + index.enTime).getBytes("UTF-8"));
+            long totalTime = System.nanoTime() - t;
+
+            String digest = new BigInteger(1, md.digest()).toString(16);
+            System.out.println(label + "\t" + months + "\t" + values + "\t" + (indexTime / 1000000) + "\t"
+                    + (totalTime / 1000000) + "\t" + (peak() / 1048576) + "\t"
+                    + ((store == null) ? "-" : String.format("%.1f", store.spilledBytes / 1048576.0)) + "\t"
+                    + digest);
+            return digest;
+        } catch (OutOfMemoryError e) {
+            System.out.println(label + "\t" + months + "\tOutOfMemoryError after "
+                    + ((System.nanoTime() - t) / 1000000) + " ms");
+            return null;
+        } finally {
+            if (store != null)
+                store.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+
+        if (args.length < 1) {
+            System.out.println("Usage: AttributeStoreExp <data directory> [months] [validation months] [seed]");
+            System.exit(-1);
+        }
+
+        String dir = args[0];
+        int months = (args.length > 1) ? Integer.parseInt(args[1]) : 48;
+        int smallMonths = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+        long seed = (args.length > 3) ? Long.parseLong(args[3]) : 42L;
+
+        AttributeStoreExp exp = new AttributeStoreExp();
+        exp.loadGraph(new File(dir, "neighborhood-graph.txt").getPath());
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        long memoryValues = maxMemory / 4 / AttributeStore.VALUE_BYTES;
+        System.out.println(exp.nv + " neighborhoods, heap of " + (maxMemory / 1048576) + " MB, "
+                + memoryValues + " values in memory in the store");
+
+        System.out.println("values\tmonths\tvalues\tindexMs\ttotalMs\tpeakHeapMB\tspilledMB\tdigest");
+        long smallValues = (long) exp.nv * 24 * 30 * smallMonths;
+        String memory = exp.run("memory", smallMonths, seed, null);
+        String resident = exp.run("store (in memory)", smallMonths, seed, new AttributeStore(Long.MAX_VALUE));
+        String spilled = exp.run("store (all spilled)", smallMonths, seed, new AttributeStore(1));
+        String half = exp.run("store (half spilled)", smallMonths, seed, new AttributeStore(smallValues / 2));
+        boolean equal = (memory != null) && memory.equals(resident) && memory.equals(spilled)
+                && memory.equals(half);
+        System.out.println("same events and thresholds: " + equal);
+
+        System.out.println("large key: " + ((long) exp.nv * 24 * 365 * months / 12 * AttributeStore.VALUE_BYTES / 1048576)
+                + " MB of values in memory");
+        exp.run("memory", months, seed, null);
+        exp.run("store", months, seed, new AttributeStore(memoryValues));
+    }
+}
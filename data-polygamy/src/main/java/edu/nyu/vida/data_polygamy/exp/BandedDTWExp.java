@@ -0,0 +1,153 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.sf.javaml.core.DenseInstance;
+import net.sf.javaml.distance.fastdtw.dtw.DTW;
+import net.sf.javaml.distance.fastdtw.timeseries.TimeSeries;
+
+import edu.nyu.vida.data_polygamy.standard_techniques.BandedDTW;
+
+/**
+ * Compares the DTW score of the standard techniques computed with Java-ML
+ * (three full DTW distances) and with BandedDTW, on normalized hourly
+ * city series of different lengths:
+ *
+ *   exactness: with the full width, the distances must be equal, and the
+ *     scores equal up to the rounding of the closed-form distances to
+ *     the zero series;
+ *   band: time and score of narrower Sakoe-Chiba bands;
+ *   permutation test: temporal rotations of both series, counting the
+ *     repetitions with a score at least the observed one, computed
+ *     exactly and with the cutoff (LB_Keogh and early abandoning); the
+ *     counts must be equal.
+ */
+public class BandedDTWExp {
+
+    Random r;
+
+    public BandedDTWExp(long seed) {
+        r = new Random(seed);
+    }
+
+    double[] series(int hours, double[] common) {
+        double[] values = new double[hours];
+        for (int h = 0; h < hours; h++)
+            values[h] = 20 + 10 * Math.sin(2 * Math.PI * (h % 24) / 24.0)
+                + 5 * common[h] + 3 * r.nextGaussian();
+        return normalize(values);
+    }
+
+    static double[] normalize(double[] values) {
+        double mean = 0, var = 0;
+        for (double v : values) mean += v;
+        mean /= values.length;
+        for (double v : values) var += (v - mean) * (v - mean);
+        double std = Math.sqrt(var / (values.length - 1));
+        for (int i = 0; i < values.length; i++)
+            values[i] = (values[i] - mean) / std;
+        return values;
+    }
+
+    static double javaml(double[] a, double[] b) {
+        double[] zeros1 = new double[a.length];
+        double[] zeros2 = new double[b.length];
+        double ab = DTW.getWarpDistBetween(new TimeSeries(new DenseInstance(a)), new TimeSeries(new DenseInstance(b)));
+        double a0 = DTW.getWarpDistBetween(new TimeSeries(new DenseInstance(a)), new TimeSeries(new DenseInstance(zeros2)));
+        double b0 = DTW.getWarpDistBetween(new TimeSeries(new DenseInstance(b)), new TimeSeries(new DenseInstance(zeros1)));
+        if ((a0 + b0) == 0)
+            return 0;
+        return 1 - ab / (a0 + b0);
+    }
+
+    static double[] rotate(double[] values, int shift) {
+        double[] rotated = new double[values.length];
+        for (int i = 0; i < values.length; i++)
+            rotated[i] = values[(shift + i) % values.length];
+        return rotated;
+    }
+
+    public void run(int hours, int repetitions) {
+        // the second series misses a few hours
+        double[] common = new double[hours];
+        for (int h = 0; h < hours; h++)
+            common[h] = r.nextGaussian();
+        double[] a = series(hours, common);
+        double[] b = Arrays.copyOf(series(hours, common), hours - hours / 50);
+        System.out.println("Hours: " + a.length + " and " + b.length);
+
+        // exactness
+        BandedDTW full = new BandedDTW();
+        long start = System.nanoTime();
+        double expected = javaml(a, b);
+        long javamlTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        double actual = full.score(a, b);
+        long fullTime = System.nanoTime() - start;
+        double javamlDistance = DTW.getWarpDistBetween(new TimeSeries(new DenseInstance(a)),
+                new TimeSeries(new DenseInstance(b)));
+        System.out.println("distance\tjava-ml " + javamlDistance + "\tbanded " + full.distance(a, b)
+                + "\tequal: " + (javamlDistance == full.distance(a, b)));
+        double[] zerosB = new double[b.length];
+        System.out.println("zero distance\tjava-ml "
+                + DTW.getWarpDistBetween(new TimeSeries(new DenseInstance(b)), new TimeSeries(new DenseInstance(new double[a.length])))
+                + "\tclosed form " + full.zeroDistance(b, a.length)
+                + "\tbanded 5% " + new BandedDTW(0.05).zeroDistance(b, a.length)
+                + "\t(a: " + full.zeroDistance(a, zerosB.length) + ")");
+        System.out.println("version\tband\tms per score\tscore");
+        System.out.println("java-ml\t1\t" + String.format("%.1f", javamlTime / 1000000.0) + "\t" + expected);
+        System.out.println("banded\t1\t" + String.format("%.1f", fullTime / 1000000.0) + "\t" + actual);
+        double[] bands = {0.2, 0.1, 0.05, 0.01};
+        for (double band : bands) {
+            BandedDTW dtw = new BandedDTW(band);
+            start = System.nanoTime();
+            double score = dtw.score(a, b);
+            System.out.println("banded\t" + band + "\t" + String.format("%.1f", (System.nanoTime() - start) / 1000000.0)
+                    + "\t" + score);
+        }
+
+        // permutation test, with the full width and a 10% band
+        int[] shiftsA = new int[repetitions];
+        int[] shiftsB = new int[repetitions];
+        for (int i = 0; i < repetitions; i++) {
+            shiftsA[i] = r.nextInt(a.length);
+            shiftsB[i] = r.nextInt(b.length);
+        }
+        System.out.println("permutation test, " + repetitions + " repetitions");
+        System.out.println("band\tversion\tms\tcount\tpruned\tabandoned");
+        double[] testBands = {1, 0.1};
+        for (double band : testBands) {
+            BandedDTW exact = new BandedDTW(band);
+            BandedDTW cutoff = new BandedDTW(band);
+            double observed = exact.score(a, b);
+            int exactCount = 0, cutoffCount = 0;
+            long exactTime = 0, cutoffTime = 0;
+            for (int i = 0; i < repetitions; i++) {
+                double[] ra = rotate(a, shiftsA[i]);
+                double[] rb = rotate(b, shiftsB[i]);
+                start = System.nanoTime();
+                if (exact.score(ra, rb) >= observed) exactCount++;
+                exactTime += System.nanoTime() - start;
+                start = System.nanoTime();
+                if (cutoff.score(ra, rb, observed) >= observed) cutoffCount++;
+                cutoffTime += System.nanoTime() - start;
+            }
+            System.out.println(band + "\texact\t" + exactTime / 1000000 + "\t" + exactCount);
+            System.out.println(band + "\tcutoff\t" + cutoffTime / 1000000 + "\t" + cutoffCount + "\t"
+                    + cutoff.pruned + "\t" + cutoff.abandoned);
+        }
+    }
+
+    public static void main(String[] args) {
+        int hours = (args.length > 0) ? Integer.parseInt(args[0]) : 24 * 90;
+        int repetitions = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        long seed = (args.length > 2) ? Long.parseLong(args[2]) : 42L;
+
+        BandedDTWExp exp = new BandedDTWExp(seed);
+        exp.run(hours, repetitions);
+    }
+}
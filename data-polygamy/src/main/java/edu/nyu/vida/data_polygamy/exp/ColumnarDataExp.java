@@ -0,0 +1,347 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+
+import edu.nyu.vida.data_polygamy.text_output.ColumnarData;
+import edu.nyu.vida.data_polygamy.text_output.ColumnarFile;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.FloatArrayWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.SpatioTemporalWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+
+/**
+ * Compares the columnar export (ColumnarData) of synthetic index and
+ * aggregate SequenceFiles with their text output (the records of
+ * FeatureDataMapper and ScalarFunctionDataMapper, as TextOutputFormat
+ * writes them):
+ *
+ *   export: time, throughput and size of both outputs (and the time
+ *     to only read the SequenceFiles);
+ *   load: time to read the outputs back into typed values (parsing the
+ *     text, or reading the columns), checking that the columnar file has
+ *     the values of the SequenceFiles.
+ */
+public class ColumnarDataExp {
+
+    static final int DATASET = 7;
+
+    Random r;
+    Configuration conf = new Configuration();
+    FileSystem fs;
+    File dir;
+
+    public ColumnarDataExp(long seed) throws IOException {
+        r = new Random(seed);
+        fs = FileSystem.getLocal(conf);
+        dir = Files.createTempDirectory("columnar").toFile();
+    }
+
+    /**
+     * Index of nbAttributes attributes at the hour and day resolutions, for
+     * nbSpatial neighborhoods and the city, with about 5% of events.
+     */
+    Path writeIndex(int nbAttributes, int nbSpatial, int days) throws IOException {
+        Path file = new Path(new File(dir, "index/part-r-00000").getPath());
+        SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(file),
+                SequenceFile.Writer.keyClass(AttributeResolutionWritable.class),
+                SequenceFile.Writer.valueClass(TopologyTimeSeriesWritable.class));
+        int start = 1420070400; // 2015-01-01
+        int[] temporal = {FrameworkUtils.HOUR, FrameworkUtils.DAY};
+        int[] steps = {24 * days, days};
+        int[] spatialRes = {FrameworkUtils.NBHD, FrameworkUtils.CITY};
+        for (int a = 0; a < nbAttributes; a++) {
+            for (int t = 0; t < temporal.length; t++) {
+                for (int s = 0; s < spatialRes.length; s++) {
+                    AttributeResolutionWritable key = new AttributeResolutionWritable(a,
+                            spatialRes[s], temporal[t], DATASET);
+                    int units = (spatialRes[s] == FrameworkUtils.CITY) ? 1 : nbSpatial;
+                    for (boolean outlier : new boolean[] {false, true}) {
+                        for (int u = 0; u < units; u++) {
+                            byte[] events = new byte[steps[t]];
+                            double rate = (outlier) ? 0.01 : 0.05;
+                            for (int i = 0; i < events.length; i++) {
+                                double p = r.nextDouble();
+                                events[i] = (p < rate / 2) ? FrameworkUtils.positiveEvent
+                                        : (p < rate) ? FrameworkUtils.negativeEvent : FrameworkUtils.nonEvent;
+                            }
+                            writer.append(key, new TopologyTimeSeriesWritable(u, DATASET, events,
+                                    start, start + days * 86400, outlier));
+                        }
+                    }
+                }
+            }
+        }
+        writer.close();
+        return file.getParent();
+    }
+
+    /**
+     * Hourly aggregates of nbSpatial neighborhoods: counts (many zeros),
+     * and averages.
+     */
+    Path writeAggregates(int nbAggregates, int nbSpatial, int days) throws IOException {
+        Path file = new Path(new File(dir, "aggregates/part-r-00000").getPath());
+        SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(file),
+                SequenceFile.Writer.keyClass(SpatioTemporalWritable.class),
+                SequenceFile.Writer.valueClass(FloatArrayWritable.class));
+        int start = 1420070400;
+        for (int u = 0; u < nbSpatial; u++) {
+            for (int h = 0; h < 24 * days; h++) {
+                float[] values = new float[nbAggregates];
+                for (int a = 0; a < nbAggregates; a++) {
+                    if (a % 2 == 0)
+                        values[a] = (r.nextDouble() < 0.6) ? 0 : r.nextInt(20);
+                    else
+                        values[a] = (float) (10 + 5 * r.nextGaussian());
+                }
+                writer.append(new SpatioTemporalWritable(u, start + h * 3600, FrameworkUtils.NBHD,
+                        FrameworkUtils.HOUR, DATASET), new FloatArrayWritable(values));
+            }
+        }
+        writer.close();
+        return file.getParent();
+    }
+
+    // only reads the SequenceFile
+    long read(Path input, boolean index) throws IOException {
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                SequenceFile.Reader.file(new Path(input, "part-r-00000")));
+        long rows = 0;
+        if (index) {
+            AttributeResolutionWritable key = new AttributeResolutionWritable();
+            TopologyTimeSeriesWritable value = new TopologyTimeSeriesWritable();
+            while (reader.next(key, value))
+                rows++;
+        } else {
+            SpatioTemporalWritable key = new SpatioTemporalWritable();
+            FloatArrayWritable value = new FloatArrayWritable();
+            while (reader.next(key, value))
+                rows++;
+        }
+        reader.close();
+        return rows;
+    }
+
+    // text output, as the mappers of FeatureData and ScalarFunctionData
+    long writeText(Path input, File output, boolean index) throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(output));
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                SequenceFile.Reader.file(new Path(input, "part-r-00000")));
+        long rows = 0;
+        if (index) {
+            AttributeResolutionWritable key = new AttributeResolutionWritable();
+            TopologyTimeSeriesWritable value = new TopologyTimeSeriesWritable();
+            while (reader.next(key, value)) {
+                out.write(key.toString() + "\t" + value.toString() + "\n");
+                rows++;
+            }
+        } else {
+            SpatioTemporalWritable key = new SpatioTemporalWritable();
+            FloatArrayWritable value = new FloatArrayWritable();
+            while (reader.next(key, value)) {
+                out.write(key.toString() + "\t" + value.toString() + "\n");
+                rows++;
+            }
+        }
+        reader.close();
+        out.close();
+        return rows;
+    }
+
+    // parses the text output into typed values; returns a checksum (so
+    // that the values are used)
+    long loadText(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        long checksum = 0;
+        String line = in.readLine();
+        while (line != null) {
+            String[] fields = line.replace('\t', ',').split(",");
+            for (String field : fields) {
+                if (field.equals("true") || field.equals("false"))
+                    checksum += field.equals("true") ? 1 : 0;
+                else
+                    checksum += (long) Float.parseFloat(field);
+            }
+            line = in.readLine();
+        }
+        in.close();
+        return checksum;
+    }
+
+    // reads all the columns; returns a checksum
+    long loadColumnar(Path file) throws IOException {
+        ColumnarFile.Reader reader = new ColumnarFile.Reader(fs, file);
+        long checksum = 0;
+        for (int b = 0; b < reader.getNbBlocks(); b++) {
+            for (int c = 0; c < reader.getNbColumns(); c++) {
+                switch (reader.getColumnType(c)) {
+                case ColumnarFile.INT:
+                    for (int v : reader.readInts(b, c))
+                        checksum += v;
+                    break;
+                case ColumnarFile.FLOAT:
+                    for (float v : reader.readFloats(b, c))
+                        checksum += (long) v;
+                    break;
+                default:
+                    for (byte[] v : reader.readBytes(b, c))
+                        checksum += v.length;
+                    break;
+                }
+            }
+        }
+        reader.close();
+        return checksum;
+    }
+
+    // the columnar file has the records of the SequenceFile
+    boolean checkIndex(Path input, Path file) throws IOException {
+        ColumnarFile.Reader columnar = new ColumnarFile.Reader(fs, file);
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                SequenceFile.Reader.file(new Path(input, "part-r-00000")));
+        AttributeResolutionWritable key = new AttributeResolutionWritable();
+        TopologyTimeSeriesWritable value = new TopologyTimeSeriesWritable();
+        boolean equal = columnar.getProperty("content").equals("index");
+        for (int b = 0; equal && (b < columnar.getNbBlocks()); b++) {
+            int[][] ints = new int[9][];
+            for (int c = 0; c < 9; c++)
+                ints[c] = columnar.readInts(b, c);
+            byte[][] events = columnar.readBytes(b, 9);
+            for (int i = 0; equal && (i < columnar.getBlockRows(b)); i++) {
+                equal &= reader.next(key, value);
+                equal &= (ints[0][i] == key.getDataset()) && (ints[1][i] == key.getAttribute())
+                        && (ints[2][i] == key.getTemporalResolution())
+                        && (ints[3][i] == key.getSpatialResolution())
+                        && (ints[4][i] == value.getSpatial()) && ((ints[5][i] == 1) == value.getIsOutlier())
+                        && (ints[6][i] == value.getStart()) && (ints[7][i] == value.getEnd())
+                        && (ints[8][i] == value.getLength());
+                for (int t = 0; equal && (t < value.getLength()); t++)
+                    equal &= (TopologyTimeSeriesWritable.getEvent(
+                            TopologyTimeSeriesWritable.getCode(events[i], t)) == value.get(t));
+            }
+        }
+        equal &= !reader.next(key, value);
+        reader.close();
+        columnar.close();
+        return equal;
+    }
+
+    boolean checkAggregates(Path input, Path file) throws IOException {
+        ColumnarFile.Reader columnar = new ColumnarFile.Reader(fs, file);
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                SequenceFile.Reader.file(new Path(input, "part-r-00000")));
+        SpatioTemporalWritable key = new SpatioTemporalWritable();
+        FloatArrayWritable value = new FloatArrayWritable();
+        int nbColumns = columnar.getNbColumns();
+        boolean equal = columnar.getProperty("content").equals("aggregates");
+        for (int b = 0; equal && (b < columnar.getNbBlocks()); b++) {
+            int[][] ints = new int[5][];
+            for (int c = 0; c < 5; c++)
+                ints[c] = columnar.readInts(b, c);
+            float[][] floats = new float[nbColumns - 5][];
+            for (int c = 5; c < nbColumns; c++)
+                floats[c - 5] = columnar.readFloats(b, c);
+            for (int i = 0; equal && (i < columnar.getBlockRows(b)); i++) {
+                equal &= reader.next(key, value);
+                equal &= (ints[0][i] == key.getTemporal()) && (ints[1][i] == key.getSpatial())
+                        && (ints[2][i] == key.getDataset()) && (ints[3][i] == key.getTemporalResolution())
+                        && (ints[4][i] == key.getSpatialResolution());
+                for (int a = 0; equal && (a < floats.length); a++)
+                    equal &= (Float.floatToIntBits(floats[a][i]) == Float.floatToIntBits(value.get()[a]));
+            }
+        }
+        equal &= !reader.next(key, value);
+        reader.close();
+        columnar.close();
+        return equal;
+    }
+
+    void run(String label, Path input, boolean index, int blockRows) throws IOException {
+        File text = new File(dir, label + ".txt");
+        Path columnar = new Path(new File(dir, label + ".dpc").getPath());
+        long inputSize = new File(input.toUri().getPath(), "part-r-00000").length();
+
+        long start = System.nanoTime();
+        read(input, index);
+        long readTime = System.nanoTime() - start;
+        System.out.println(label + "\tread only\t\t" + inputSize + "\t" + readTime / 1000000 + "\t"
+                + String.format("%.1f", inputSize / 1e6 / (readTime / 1e9)));
+
+        start = System.nanoTime();
+        long rows = writeText(input, text, index);
+        long textTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        if (index)
+            ColumnarData.exportIndex(conf, fs, input, columnar, "synthetic", blockRows);
+        else
+            ColumnarData.exportAggregates(conf, fs, input, columnar, "synthetic", blockRows);
+        long columnarTime = System.nanoTime() - start;
+        long columnarSize = new File(columnar.toUri().getPath()).length();
+
+        start = System.nanoTime();
+        long checksum = loadText(text);
+        long textLoad = System.nanoTime() - start;
+        start = System.nanoTime();
+        checksum += loadColumnar(columnar);
+        long columnarLoad = System.nanoTime() - start;
+
+        boolean equal = (index) ? checkIndex(input, columnar) : checkAggregates(input, columnar);
+        if (checksum == 42) System.out.print("");
+
+        double mb = inputSize / 1e6;
+        System.out.println(label + "\ttext\t" + rows + "\t" + text.length() + "\t"
+                + textTime / 1000000 + "\t" + String.format("%.1f", mb / (textTime / 1e9)) + "\t"
+                + textLoad / 1000000);
+        System.out.println(label + "\tcolumnar\t" + rows + "\t" + columnarSize + "\t"
+                + columnarTime / 1000000 + "\t" + String.format("%.1f", mb / (columnarTime / 1e9)) + "\t"
+                + columnarLoad / 1000000 + "\t" + equal);
+    }
+
+    void printEncodings(Path file) throws IOException {
+        ColumnarFile.Reader reader = new ColumnarFile.Reader(fs, file);
+        String line = "encodings (block 0):";
+        for (int c = 0; c < reader.getNbColumns(); c++)
+            line += " " + reader.getColumnName(c) + "="
+                    + Arrays.asList("plain", "delta", "dictionary").get(reader.getChunk(0, c).encoding);
+        System.out.println(line);
+        reader.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int nbSpatial = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        int days = (args.length > 1) ? Integer.parseInt(args[1]) : 90;
+        int nbAttributes = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+        int blockRows = (args.length > 3) ? Integer.parseInt(args[3]) : ColumnarFile.DEFAULT_BLOCK_ROWS;
+        long seed = (args.length > 4) ? Long.parseLong(args[4]) : 42L;
+
+        ColumnarDataExp exp = new ColumnarDataExp(seed);
+        Path index = exp.writeIndex(nbAttributes, nbSpatial, days);
+        Path aggregates = exp.writeAggregates(nbAttributes, nbSpatial, days);
+
+        System.out.println("data\toutput\trows\tbytes\texportMs\tinputMB/s\tloadMs\tequal");
+        exp.run("index", index, true, blockRows);
+        exp.run("aggregates", aggregates, false, blockRows);
+        exp.printEncodings(new Path(new File(exp.dir, "index.dpc").getPath()));
+        exp.printEncodings(new Path(new File(exp.dir, "aggregates.dpc").getPath()));
+
+        exp.fs.delete(new Path(exp.dir.getPath()), true);
+    }
+}
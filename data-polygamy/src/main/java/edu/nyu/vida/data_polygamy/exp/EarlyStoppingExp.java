@@ -0,0 +1,198 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationMapper;
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationReducer;
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationReducer.PermutationCounter;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+
+/**
+ * Compares the fixed-length permutation test of the relationship reducer
+ * with the sequential test (early stopping) on synthetic pairs of
+ * datasets: the attributes of the second dataset copy the events of the
+ * attributes of the first one with increasing probabilities, so the
+ * p-values of the pairs range from 0 to 1. Reports the decisions at alpha
+ * that differ, the mean number of repetitions and the reduce time.
+ */
+public class EarlyStoppingExp {
+
+    static final float alpha = 0.05f;
+
+    int nbAttributes;
+    int days;
+    Random r;
+
+    ArrayList<AttributeResolutionWritable> keys = new ArrayList<AttributeResolutionWritable>();
+    ArrayList<TopologyTimeSeriesWritable> values = new ArrayList<TopologyTimeSeriesWritable>();
+
+    public EarlyStoppingExp(int nbAttributes, int days, long seed) {
+        this.nbAttributes = nbAttributes;
+        this.days = days;
+        this.r = new Random(seed);
+    }
+
+    byte randomEvent() {
+        double p = r.nextDouble();
+        return (p < 0.05) ? FrameworkUtils.positiveEvent :
+            (p < 0.1) ? FrameworkUtils.negativeEvent : FrameworkUtils.nonEvent;
+    }
+
+    // attribute a of dataset 1 copies each event of attribute a of dataset 0
+    //   with probability 0.1*a/nbAttributes
+    void generate(int nbhds) {
+        int start = (int) (new DateTime(2011, 1, 1, 0, 0, DateTimeZone.UTC).getMillis() / 1000);
+        int end = start + (days - 1) * 86400;
+        for (int a = 0; a < nbAttributes; a++) {
+            double copy = 0.1 * a / nbAttributes;
+            for (int spatial : new int[] {FrameworkUtils.NBHD, FrameworkUtils.CITY}) {
+                int units = (spatial == FrameworkUtils.NBHD) ? nbhds : 1;
+                for (int v = 0; v < units; v++) {
+                    byte[] events0 = new byte[days];
+                    byte[] events1 = new byte[days];
+                    for (int i = 0; i < days; i++) {
+                        events0[i] = randomEvent();
+                        events1[i] = (r.nextDouble() < copy) ? events0[i] : randomEvent();
+                    }
+                    keys.add(new AttributeResolutionWritable(a, spatial, FrameworkUtils.DAY, 0));
+                    values.add(new TopologyTimeSeriesWritable(v, 0, events0, start, end, false));
+                    keys.add(new AttributeResolutionWritable(a, spatial, FrameworkUtils.DAY, 1));
+                    values.add(new TopologyTimeSeriesWritable(v, 1, events1, start, end, false));
+                }
+            }
+        }
+    }
+
+    Configuration configuration(String graphDir, String output, long seed, double errorBound) {
+        Configuration conf = new Configuration();
+        String agg = "";
+        for (int a = 0; a < nbAttributes; a++)
+            agg += a + "-attribute" + a + ",";
+        for (int d = 0; d < 2; d++) {
+            conf.set("dataset-" + d + "-agg", agg.substring(0, agg.length()-1));
+            conf.set("dataset-" + d + "-agg-size", String.valueOf(nbAttributes));
+        }
+        conf.set("dataset-keys", "0,1");
+        conf.set("dataset-names", "dataset0,dataset1");
+        conf.set("first-group", "0");
+        conf.set("second-group", "1");
+        conf.set("tmp", "false");
+        conf.set("complete-random", "false");
+        conf.set("complete-random-str", "restricted");
+        conf.set("remove-not-significant", "false");
+        conf.set("random-seed", String.valueOf(seed));
+        conf.set("bucket", graphDir);
+        conf.set("mapreduce.output.fileoutputformat.outputdir", output);
+        if (errorBound > 0)
+            conf.set("early-stopping-error", String.valueOf(errorBound));
+        return conf;
+    }
+
+    /**
+     * Runs the job and returns the p-value of every relationship.
+     */
+    HashMap<String,Float> run(String graphDir, File output, long seed, double errorBound)
+            throws IOException, InterruptedException {
+
+        Configuration conf = configuration(graphDir, output.toURI().toString(), seed, errorBound);
+        InMemoryJob<AttributeResolutionWritable, TopologyTimeSeriesWritable,
+            PairAttributeWritable, TopologyTimeSeriesWritable> job =
+            new InMemoryJob<AttributeResolutionWritable, TopologyTimeSeriesWritable,
+                PairAttributeWritable, TopologyTimeSeriesWritable>(conf,
+                        PairAttributeWritable.class, TopologyTimeSeriesWritable.class);
+        job.map(new CorrelationMapper(), keys, values);
+        job.reduce(new CorrelationReducer(), GroupedPlanExp.noOutput);
+
+        ArrayList<String> lines = new ArrayList<String>();
+        GroupedPlanExp.lines(output, lines);
+        HashMap<String,Float> pValues = new HashMap<String,Float>();
+        for (String line : lines) {
+            String[] fields = line.split("\t");
+            pValues.put(fields[0], Float.parseFloat(fields[1].split(",")[2]));
+        }
+
+        long tests = job.counters.findCounter(PermutationCounter.TESTS).getValue();
+        long repetitions = job.counters.findCounter(PermutationCounter.REPETITIONS).getValue();
+        long stoppedEarly = job.counters.findCounter(PermutationCounter.STOPPED_EARLY).getValue();
+        System.out.println(((errorBound > 0) ? "sequential (" + errorBound + ")" : "fixed") + "\t"
+                + tests + "\t" + String.format("%.1f", repetitions / (double) tests) + "\t"
+                + stoppedEarly + "\t" + String.format("%.0f", job.reduceTime / 1000000.0));
+        return pValues;
+    }
+
+    public void run(String dataDir, long seed, double errorBound) throws IOException, InterruptedException {
+
+        // graphs, as expected by the reducers
+        File dir = Files.createTempDirectory("relationship").toFile();
+        String[][] graphs = {{"neighborhood-graph.txt", "neighborhood-graph"},
+                {"zipcode-graph.txt", "zipcode-graph"}, {"block-graph.txt", "block-graph"}};
+        for (String[] graph : graphs)
+            Files.copy(new File(dataDir, graph[0]).toPath(), new File(dir, graph[1]).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        String graphDir = dir.toURI().toString();
+        BufferedReader reader = new BufferedReader(new FileReader(new File(dataDir, "neighborhood-graph.txt")));
+        int nbhds = Integer.parseInt(reader.readLine().trim().split("\\s+")[0]);
+        reader.close();
+
+        generate(nbhds);
+        System.out.println("Attributes: " + nbAttributes + " x " + nbAttributes + ", days: " + days);
+        System.out.println("test\tpairs\trepetitions/pair\tstoppedEarly\treduceMs");
+
+        HashMap<String,Float> fixed = run(graphDir, new File(dir, "fixed"), seed, 0);
+        HashMap<String,Float> sequential = run(graphDir, new File(dir, "sequential"), seed, errorBound);
+
+        int significant = 0;
+        int differ = 0;
+        for (String relationship : fixed.keySet()) {
+            boolean fixedDecision = fixed.get(relationship) <= alpha;
+            boolean sequentialDecision = sequential.get(relationship) <= alpha;
+            if (fixedDecision) significant++;
+            if (fixedDecision != sequentialDecision) {
+                differ++;
+                System.out.println("Different decision: " + relationship + " " + fixed.get(relationship)
+                        + " " + sequential.get(relationship));
+            }
+        }
+        System.out.println("Significant (fixed): " + significant + " of " + fixed.size()
+                + ", different decisions: " + differ);
+
+        FileSystem.getLocal(new Configuration()).delete(new Path(dir.toURI()), true);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        if (args.length < 1) {
+            System.out.println("Usage: EarlyStoppingExp <data directory> [attributes per dataset] "
+                    + "[days] [error bound] [seed]");
+            System.exit(-1);
+        }
+
+        int nbAttributes = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        int days = (args.length > 2) ? Integer.parseInt(args[2]) : 365;
+        double errorBound = (args.length > 3) ? Double.parseDouble(args[3]) : 0.001;
+        long seed = (args.length > 4) ? Long.parseLong(args[4]) : 42L;
+
+        EarlyStoppingExp exp = new EarlyStoppingExp(nbAttributes, days, seed);
+        exp.run(args[0], seed, errorBound);
+    }
+}
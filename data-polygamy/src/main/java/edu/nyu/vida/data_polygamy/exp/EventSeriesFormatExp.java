@@ -0,0 +1,159 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import edu.nyu.vida.data_polygamy.ctdata.SpatioTemporalVal;
+import edu.nyu.vida.data_polygamy.ctdata.TopologicalIndex;
+import edu.nyu.vida.data_polygamy.ctdata.TopologicalIndex.Attribute;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+
+/**
+ * Reports the size of the event series written by the index creation step
+ * in the previous one byte per time step format and in the packed / run
+ * length format, checking that both are read back to the same events.
+ * Event series are computed by TopologicalIndex over a synthetic hourly
+ * function on a spatial graph.
+ */
+public class EventSeriesFormatExp {
+
+    long legacyBytes = 0;
+    long newBytes = 0;
+    int nbSeries = 0;
+    int nbRunLength = 0;
+    int nbEvents = 0;
+    long nbSteps = 0;
+
+    // previous serialization of TopologyTimeSeriesWritable
+    static byte[] writeLegacy(TopologyTimeSeriesWritable t) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        byte[] events = t.getTimeSeries();
+        out.writeInt(t.getSpatial());
+        out.writeInt(t.getDataset());
+        out.writeInt(events.length);
+        for (int i = 0; i < events.length; i++)
+            out.writeByte(events[i]);
+        out.writeInt(t.getStart());
+        out.writeInt(t.getEnd());
+        out.writeBoolean(t.getIsOutlier());
+        return Arrays.copyOf(out.getData(), out.getLength());
+    }
+
+    static TopologyTimeSeriesWritable read(byte[] data) throws IOException {
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(data, data.length);
+        TopologyTimeSeriesWritable t = new TopologyTimeSeriesWritable();
+        t.readFields(in);
+        return t;
+    }
+
+    static void check(byte[] expected, TopologyTimeSeriesWritable t) {
+        if (!Arrays.equals(expected, t.getTimeSeries())) {
+            System.out.println("Something went wrong... Different events after reading");
+            System.exit(-1);
+        }
+    }
+
+    void add(byte[] events, boolean outlier) throws IOException {
+        TopologyTimeSeriesWritable t = new TopologyTimeSeriesWritable(
+                nbSeries, 0, events, 0, 0, outlier);
+
+        DataOutputBuffer out = new DataOutputBuffer();
+        t.write(out);
+        byte[] packed = Arrays.copyOf(out.getData(), out.getLength());
+        byte[] legacy = writeLegacy(t);
+
+        check(events, read(packed));
+        check(events, read(legacy));
+
+        if (ByteBuffer.wrap(packed, 8, 4).getInt() == TopologyTimeSeriesWritable.RUN_LENGTH)
+            nbRunLength++;
+        for (int i = 0; i < events.length; i++)
+            if (events[i] != FrameworkUtils.nonEvent)
+                nbEvents++;
+        nbSteps += events.length;
+        legacyBytes += legacy.length;
+        newBytes += packed.length;
+        nbSeries++;
+    }
+
+    void report(String label) {
+        System.out.println(label + "\t" + nbSeries + "\t" + nbRunLength + "\t"
+                + String.format("%.4f", (nbSteps > 0) ? nbEvents / (double) nbSteps : 0) + "\t"
+                + legacyBytes + "\t" + newBytes + "\t"
+                + String.format("%.1f", (legacyBytes > 0) ? 100.0 * (legacyBytes - newBytes) / legacyBytes : 0));
+        legacyBytes = newBytes = nbSteps = 0;
+        nbSeries = nbRunLength = nbEvents = 0;
+    }
+
+    public void run(String graphFile, int months, long seed) throws IOException {
+        SimplifyFeaturesExp gen = new SimplifyFeaturesExp(seed);
+        gen.loadGraph(graphFile);
+
+        Attribute att = new Attribute();
+        for (int v = 0; v < gen.nv; v++)
+            att.nodeSet.add(v);
+        DateTime month = new DateTime(2011, 1, 1, 0, 0, DateTimeZone.UTC);
+        for (int m = 0; m < months; m++) {
+            DateTime next = month.plusMonths(1);
+            int stTime = (int) (month.getMillis() / 1000);
+            int hours = (int) ((next.getMillis() - month.getMillis()) / 3600000L);
+            ArrayList<SpatioTemporalVal> data = gen.generateData(stTime, hours);
+            Collections.sort(data);
+            att.data.put(month.getYear()*100 + month.getMonthOfYear(), data);
+            month = next;
+        }
+
+        TopologicalIndex index = new TopologicalIndex(FrameworkUtils.NBHD, FrameworkUtils.HOUR, gen.nv);
+        index.createIndex(att, gen.edges);
+
+        System.out.println("series\tcount\trunLength\teventRate\tlegacyBytes\tnewBytes\tsaved%");
+        for (boolean outlier : new boolean[] {false, true}) {
+            ArrayList<byte[]> events = index.queryEvents(0.9f, outlier, att, "");
+            for (byte[] e : events)
+                add(e, outlier);
+            report((outlier) ? "outliers" : "events");
+        }
+
+        // sparse series, e.g. mostly empty regions at block resolution
+        int steps = 24 * 365 * 3;
+        Random r = new Random(seed);
+        for (int i = 0; i < 1000; i++) {
+            byte[] e = new byte[steps];
+            Arrays.fill(e, FrameworkUtils.nonEvent);
+            int nb = r.nextInt(20);
+            for (int j = 0; j < nb; j++)
+                e[r.nextInt(steps)] = (r.nextBoolean()) ? FrameworkUtils.positiveEvent : FrameworkUtils.negativeEvent;
+            add(e, false);
+        }
+        report("sparse");
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.out.println("Usage: EventSeriesFormatExp <graph file> [months] [seed]");
+            System.exit(-1);
+        }
+
+        String graphFile = args[0];
+        int months = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        long seed = (args.length > 2) ? Long.parseLong(args[2]) : 42L;
+
+        EventSeriesFormatExp exp = new EventSeriesFormatExp();
+        exp.run(graphFile, months, seed);
+    }
+}
@@ -0,0 +1,215 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationMapper;
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationReducer;
+import edu.nyu.vida.data_polygamy.relationship_computation.GroupedCorrelationMapper;
+import edu.nyu.vida.data_polygamy.relationship_computation.GroupedCorrelationReducer;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.DatasetPairWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+
+/**
+ * Compares the map output (shuffle) and the time of the default
+ * relationship plan (one record per pair of attributes) and of the
+ * grouped plan (one record per pair of datasets), for two groups of
+ * synthetic datasets with daily series at neighborhood and city
+ * resolutions, checking that both plans write the same relationships.
+ */
+public class GroupedPlanExp {
+
+    int nbDatasets;
+    int nbAttributes;
+    int days;
+    Random r;
+    File dir;
+
+    ArrayList<AttributeResolutionWritable> keys = new ArrayList<AttributeResolutionWritable>();
+    ArrayList<TopologyTimeSeriesWritable> values = new ArrayList<TopologyTimeSeriesWritable>();
+
+    public GroupedPlanExp(int nbDatasets, int nbAttributes, int days, long seed) {
+        this.nbDatasets = nbDatasets;
+        this.nbAttributes = nbAttributes;
+        this.days = days;
+        this.r = new Random(seed);
+    }
+
+    // index of every dataset: nbAttributes attributes at NBHD x DAY and CITY x DAY
+    void generate(int nbhds) {
+        int start = (int) (new DateTime(2011, 1, 1, 0, 0, DateTimeZone.UTC).getMillis() / 1000);
+        int end = start + (days - 1) * 86400;
+        for (int d = 0; d < 2*nbDatasets; d++) {
+            for (int a = 0; a < nbAttributes; a++) {
+                for (int spatial : new int[] {FrameworkUtils.NBHD, FrameworkUtils.CITY}) {
+                    int units = (spatial == FrameworkUtils.NBHD) ? nbhds : 1;
+                    for (int v = 0; v < units; v++) {
+                        byte[] events = new byte[days];
+                        for (int i = 0; i < days; i++) {
+                            double p = r.nextDouble();
+                            events[i] = (p < 0.05) ? FrameworkUtils.positiveEvent :
+                                (p < 0.1) ? FrameworkUtils.negativeEvent : FrameworkUtils.nonEvent;
+                        }
+                        keys.add(new AttributeResolutionWritable(a, spatial, FrameworkUtils.DAY, d));
+                        values.add(new TopologyTimeSeriesWritable(v, d, events, start, end, false));
+                    }
+                }
+            }
+        }
+    }
+
+    Configuration configuration(String graphDir, String output, long seed) {
+        Configuration conf = new Configuration();
+        String ids = "";
+        String names = "";
+        String firstGroup = "";
+        String secondGroup = "";
+        for (int d = 0; d < 2*nbDatasets; d++) {
+            ids += d + ",";
+            names += "dataset" + d + ",";
+            if (d < nbDatasets)
+                firstGroup += d + ",";
+            else
+                secondGroup += d + ",";
+            String agg = "";
+            for (int a = 0; a < nbAttributes; a++)
+                agg += a + "-attribute" + a + ",";
+            conf.set("dataset-" + d + "-agg", agg.substring(0, agg.length()-1));
+            conf.set("dataset-" + d + "-agg-size", String.valueOf(nbAttributes));
+        }
+        conf.set("dataset-keys", ids.substring(0, ids.length()-1));
+        conf.set("dataset-names", names.substring(0, names.length()-1));
+        conf.set("first-group", firstGroup.substring(0, firstGroup.length()-1));
+        conf.set("second-group", secondGroup.substring(0, secondGroup.length()-1));
+        conf.set("tmp", "false");
+        conf.set("complete-random", "false");
+        conf.set("complete-random-str", "restricted");
+        conf.set("remove-not-significant", "false");
+        conf.set("random-seed", String.valueOf(seed));
+        conf.set("bucket", graphDir);
+        conf.set("mapreduce.output.fileoutputformat.outputdir", output);
+        return conf;
+    }
+
+    static RecordWriter<Text,Text> noOutput = new RecordWriter<Text,Text>() {
+        public void write(Text key, Text value) {}
+        public void close(TaskAttemptContext context) {}
+    };
+
+    static void lines(File file, ArrayList<String> lines) throws IOException {
+        if (file.isDirectory()) {
+            for (File f : file.listFiles())
+                lines(f, lines);
+        } else if (file.getName().startsWith("data") && !file.getName().endsWith(".crc")) {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            String line = reader.readLine();
+            while (line != null) {
+                lines.add(file.getParentFile().getName() + "/" + line);
+                line = reader.readLine();
+            }
+            reader.close();
+        }
+    }
+
+    static void report(String plan, InMemoryJob<?, ?, ?, ?> job, int nbLines) {
+        System.out.println(plan + "\t" + job.records.size() + "\t" + job.mapOutputBytes + "\t"
+                + String.format("%.0f", job.mapTime / 1000000.0) + "\t"
+                + String.format("%.0f", job.sortTime / 1000000.0) + "\t"
+                + String.format("%.0f", job.reduceTime / 1000000.0) + "\t" + nbLines);
+    }
+
+    public void run(String dataDir, long seed) throws IOException, InterruptedException {
+
+        // graphs, as expected by the reducers
+        dir = Files.createTempDirectory("relationship").toFile();
+        String[][] graphs = {{"neighborhood-graph.txt", "neighborhood-graph"},
+                {"zipcode-graph.txt", "zipcode-graph"}, {"block-graph.txt", "block-graph"}};
+        for (String[] graph : graphs)
+            Files.copy(new File(dataDir, graph[0]).toPath(), new File(dir, graph[1]).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        String graphDir = dir.toURI().toString();
+        BufferedReader reader = new BufferedReader(new FileReader(new File(dataDir, "neighborhood-graph.txt")));
+        int nbhds = Integer.parseInt(reader.readLine().trim().split("\\s+")[0]);
+        reader.close();
+
+        generate(nbhds);
+        System.out.println("Datasets: " + nbDatasets + " x " + nbDatasets + ", attributes: "
+                + nbAttributes + ", series: " + keys.size());
+        System.out.println("plan\tmapRecords\tmapOutputBytes\tmapMs\tsortMs\treduceMs\trelationships");
+
+        // default plan
+        File output = new File(dir, "default");
+        Configuration conf = configuration(graphDir, output.toURI().toString(), seed);
+        InMemoryJob<AttributeResolutionWritable, TopologyTimeSeriesWritable,
+            PairAttributeWritable, TopologyTimeSeriesWritable> job =
+            new InMemoryJob<AttributeResolutionWritable, TopologyTimeSeriesWritable,
+                PairAttributeWritable, TopologyTimeSeriesWritable>(conf,
+                        PairAttributeWritable.class, TopologyTimeSeriesWritable.class);
+        job.map(new CorrelationMapper(), keys, values);
+        job.reduce(new CorrelationReducer(), noOutput);
+        ArrayList<String> defaultLines = new ArrayList<String>();
+        lines(output, defaultLines);
+        report("default", job, defaultLines.size());
+        job = null;
+
+        // grouped plan
+        output = new File(dir, "grouped");
+        conf = configuration(graphDir, output.toURI().toString(), seed);
+        InMemoryJob<AttributeResolutionWritable, TopologyTimeSeriesWritable,
+            DatasetPairWritable, AttributeTimeSeriesWritable> groupedJob =
+            new InMemoryJob<AttributeResolutionWritable, TopologyTimeSeriesWritable,
+                DatasetPairWritable, AttributeTimeSeriesWritable>(conf,
+                        DatasetPairWritable.class, AttributeTimeSeriesWritable.class);
+        groupedJob.map(new GroupedCorrelationMapper(), keys, values);
+        groupedJob.reduce(new GroupedCorrelationReducer(), noOutput);
+        ArrayList<String> groupedLines = new ArrayList<String>();
+        lines(output, groupedLines);
+        report("grouped", groupedJob, groupedLines.size());
+
+        Collections.sort(defaultLines);
+        Collections.sort(groupedLines);
+        System.out.println("Same relationships: " + defaultLines.equals(groupedLines));
+
+        FileSystem.getLocal(new Configuration()).delete(new Path(dir.toURI()), true);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        if (args.length < 1) {
+            System.out.println("Usage: GroupedPlanExp <data directory> [datasets per group] "
+                    + "[attributes per dataset] [days] [seed]");
+            System.exit(-1);
+        }
+
+        int nbDatasets = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        int nbAttributes = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+        int days = (args.length > 3) ? Integer.parseInt(args[3]) : 365;
+        long seed = (args.length > 4) ? Long.parseLong(args[4]) : 42L;
+
+        GroupedPlanExp exp = new GroupedPlanExp(nbDatasets, nbAttributes, days, seed);
+        exp.run(args[0], seed);
+    }
+}
@@ -0,0 +1,163 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.util.Progress;
+
+/**
+ * Runs a mapper and a reducer in the current thread with Hadoop's task
+ * contexts, sorting the serialized map output in memory; used by the
+ * experiments to measure the map output of a job and the time of its
+ * reduce phase without a cluster.
+ */
+class InMemoryJob<KEYIN, VALUEIN, KEYOUT extends WritableComparable<?>, VALUEOUT extends Writable> {
+
+    Configuration conf;
+    Class<KEYOUT> keyClass;
+    Class<VALUEOUT> valueClass;
+
+    // serialized map output
+    ArrayList<byte[][]> records = new ArrayList<byte[][]>();
+    long mapOutputBytes = 0;
+    long mapTime = 0;
+    long sortTime = 0;
+    long reduceTime = 0;
+
+    Counters counters = new Counters();
+
+    StatusReporter reporter = new StatusReporter() {
+        public Counter getCounter(Enum<?> name) { return counters.findCounter(name); }
+        public Counter getCounter(String group, String name) { return counters.findCounter(group, name); }
+        public void progress() {}
+        public float getProgress() { return 0; }
+        public void setStatus(String status) {}
+    };
+
+    OutputCommitter committer = new OutputCommitter() {
+        public void setupJob(JobContext jobContext) {}
+        public void setupTask(TaskAttemptContext taskContext) {}
+        public boolean needsTaskCommit(TaskAttemptContext taskContext) { return false; }
+        public void commitTask(TaskAttemptContext taskContext) {}
+        public void abortTask(TaskAttemptContext taskContext) {}
+    };
+
+    InMemoryJob(Configuration conf, Class<KEYOUT> keyClass, Class<VALUEOUT> valueClass) {
+        this.conf = conf;
+        this.keyClass = keyClass;
+        this.valueClass = valueClass;
+    }
+
+    void map(Mapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> mapper, final ArrayList<KEYIN> keys,
+            final ArrayList<VALUEIN> values) throws IOException, InterruptedException {
+
+        RecordReader<KEYIN, VALUEIN> reader = new RecordReader<KEYIN, VALUEIN>() {
+            int i = -1;
+            public void initialize(InputSplit split, TaskAttemptContext context) {}
+            public boolean nextKeyValue() { return ++i < keys.size(); }
+            public KEYIN getCurrentKey() { return keys.get(i); }
+            public VALUEIN getCurrentValue() { return values.get(i); }
+            public float getProgress() { return i / (float) keys.size(); }
+            public void close() {}
+        };
+
+        RecordWriter<KEYOUT, VALUEOUT> writer = new RecordWriter<KEYOUT, VALUEOUT>() {
+            DataOutputBuffer buffer = new DataOutputBuffer();
+            public void write(KEYOUT key, VALUEOUT value) throws IOException {
+                buffer.reset();
+                key.write(buffer);
+                byte[] keyBytes = Arrays.copyOf(buffer.getData(), buffer.getLength());
+                buffer.reset();
+                value.write(buffer);
+                byte[] valueBytes = Arrays.copyOf(buffer.getData(), buffer.getLength());
+                records.add(new byte[][] {keyBytes, valueBytes});
+                mapOutputBytes += keyBytes.length + valueBytes.length;
+            }
+            public void close(TaskAttemptContext context) {}
+        };
+
+        MapContextImpl<KEYIN, VALUEIN, KEYOUT, VALUEOUT> mapContext =
+                new MapContextImpl<KEYIN, VALUEIN, KEYOUT, VALUEOUT>(conf,
+                        new TaskAttemptID("local", 0, TaskType.MAP, 0, 0),
+                        reader, writer, committer, reporter, null);
+        long st = System.nanoTime();
+        mapper.run(new WrappedMapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT>().getMapContext(mapContext));
+        mapTime += System.nanoTime() - st;
+    }
+
+    <K, V> void reduce(Reducer<KEYOUT, VALUEOUT, K, V> reducer, RecordWriter<K, V> output)
+            throws IOException, InterruptedException {
+
+        @SuppressWarnings("unchecked")
+        final RawComparator<KEYOUT> comparator =
+            (RawComparator<KEYOUT>) WritableComparator.get(keyClass.asSubclass(WritableComparable.class));
+
+        long st = System.nanoTime();
+        // stable, so values keep the map output order
+        Collections.sort(records, new Comparator<byte[][]>() {
+            public int compare(byte[][] r1, byte[][] r2) {
+                return comparator.compare(r1[0], 0, r1[0].length, r2[0], 0, r2[0].length);
+            }
+        });
+        sortTime += System.nanoTime() - st;
+
+        final Iterator<byte[][]> it = records.iterator();
+        RawKeyValueIterator input = new RawKeyValueIterator() {
+            DataInputBuffer key = new DataInputBuffer();
+            DataInputBuffer value = new DataInputBuffer();
+            public DataInputBuffer getKey() { return key; }
+            public DataInputBuffer getValue() { return value; }
+            public boolean next() {
+                if (!it.hasNext())
+                    return false;
+                byte[][] record = it.next();
+                key.reset(record[0], record[0].length);
+                value.reset(record[1], record[1].length);
+                return true;
+            }
+            public void close() {}
+            public Progress getProgress() { return new Progress(); }
+        };
+
+        ReduceContextImpl<KEYOUT, VALUEOUT, K, V> reduceContext =
+                new ReduceContextImpl<KEYOUT, VALUEOUT, K, V>(conf,
+                        new TaskAttemptID("local", 0, TaskType.REDUCE, 0, 0),
+                        input, reporter.getCounter("reduce", "keys"), reporter.getCounter("reduce", "values"),
+                        output, committer, reporter, comparator, keyClass, valueClass);
+        st = System.nanoTime();
+        reducer.run(new WrappedReducer<KEYOUT, VALUEOUT, K, V>().getReducerContext(reduceContext));
+        reduceTime += System.nanoTime() - st;
+    }
+}
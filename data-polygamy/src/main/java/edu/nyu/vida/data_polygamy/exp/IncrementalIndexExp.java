@@ -0,0 +1,238 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import edu.nyu.vida.data_polygamy.ct.SimplifyFeatures.Feature;
+import edu.nyu.vida.data_polygamy.ctdata.SpatioTemporalVal;
+import edu.nyu.vida.data_polygamy.ctdata.TopologicalIndex;
+import edu.nyu.vida.data_polygamy.ctdata.TopologicalIndex.Attribute;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.StageProfiler;
+import edu.nyu.vida.data_polygamy.utils.Utilities;
+
+/**
+ * Compares the incremental update of the index (TopologicalIndex.createIndex
+ * with the merge trees of a previous execution, as IndexCreationReducer
+ * does with -inc) with a full rebuild, for a synthetic hourly attribute of
+ * the neighborhoods and of the city:
+ *
+ *   append: a month is appended, so only its bin is built;
+ *   correction: the values of a past month change;
+ *   new unit: a neighborhood appears, so all the bins are built (the
+ *     graph of every bin depends on the spatial units).
+ *
+ * Both indices must have the same features for every temporal bin, and
+ * the same events and thresholds (regular and outliers).
+ */
+public class IncrementalIndexExp {
+
+    int nv;
+    int[][] edges;
+    Random r;
+    int start = 1420070400; // 2015-01-01
+
+    public IncrementalIndexExp(long seed) {
+        r = new Random(seed);
+    }
+
+    void loadGraph(String graphFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(graphFile));
+        String [] s = Utilities.splitString(reader.readLine().trim());
+        nv = Integer.parseInt(s[0].trim());
+        int ne = Integer.parseInt(s[1].trim());
+        edges = new int[ne][2];
+        for(int i = 0;i < ne;i ++) {
+            s = Utilities.splitString(reader.readLine().trim());
+            int v1 = Integer.parseInt(s[0].trim());
+            int v2 = Integer.parseInt(s[1].trim());
+            if(v1 == v2) {
+                continue;
+            }
+            edges[i][0] = v1;
+            edges[i][1] = v2;
+        }
+        reader.close();
+    }
+
+    /**
+     * Daily periodic signal with a per-region level, noise, and a few
+     * spikes, for the given units (all of them if city).
+     */
+    ArrayList<SpatioTemporalVal> month(int m, int units, boolean city) {
+        DateTime first = new DateTime(((long) start) * 1000, DateTimeZone.UTC).plusMonths(m);
+        int from = (int) (first.getMillis() / 1000);
+        int to = (int) (first.plusMonths(1).getMillis() / 1000);
+        ArrayList<SpatioTemporalVal> data = new ArrayList<SpatioTemporalVal>();
+        for (int time = from; time < to; time += 3600) {
+            double daily = Math.sin(2 * Math.PI * ((time / 3600) % 24) / 24.0);
+            for (int v = 0; v < (city ? 1 : units); v++) {
+                float level = 10 + (v % 40);
+                float val = (float) (level * (1 + 0.5 * daily) + 3 * r.nextGaussian());
+                if (r.nextDouble() < 0.002)
+                    val += 10 * level;
+                data.add(new SpatioTemporalVal(v, time, val));
+            }
+        }
+        return data;
+    }
+
+    // as IndexCreationReducer: one bin per month at the hour resolution
+    static Attribute attribute(ArrayList<ArrayList<SpatioTemporalVal>> months) {
+        Attribute att = new Attribute();
+        att.id = 0;
+        for (ArrayList<SpatioTemporalVal> month : months) {
+            for (SpatioTemporalVal val : month) {
+                att.nodeSet.add(val.getSpatial());
+                DateTime date = new DateTime(((long) val.getTemporal()) * 1000, DateTimeZone.UTC);
+                int hash = date.getYear() * 100 + date.getMonthOfYear();
+                ArrayList<SpatioTemporalVal> bin = att.data.get(hash);
+                if (bin == null) {
+                    bin = new ArrayList<SpatioTemporalVal>();
+                    att.data.put(hash, bin);
+                }
+                bin.add(val);
+            }
+        }
+        for (ArrayList<SpatioTemporalVal> bin : att.data.values())
+            Collections.sort(bin);
+        return att;
+    }
+
+    TopologicalIndex index(boolean city) {
+        return city ? new TopologicalIndex(FrameworkUtils.CITY, FrameworkUtils.HOUR, 1)
+                : new TopologicalIndex(FrameworkUtils.NBHD, FrameworkUtils.HOUR, nv);
+    }
+
+    static byte[] store(TopologicalIndex index) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        index.writeMergeTrees(out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static boolean sameFeatures(TopologicalIndex a, TopologicalIndex b, Attribute att) {
+        for (boolean min : new boolean[] {true, false}) {
+            for (int bin : att.data.keySet()) {
+                Feature[] fa = a.getIndex(min).get(bin);
+                Feature[] fb = b.getIndex(min).get(bin);
+                if (fa.length != fb.length)
+                    return false;
+                for (int i = 0; i < fa.length; i++) {
+                    if ((fa[i].v != fb[i].v) || (fa[i].wt != fb[i].wt)
+                            || (fa[i].exFn != fb[i].exFn) || (fa[i].sadFn != fb[i].sadFn))
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    static boolean sameEvents(ArrayList<byte[]> a, ArrayList<byte[]> b) {
+        if (a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (!Arrays.equals(a.get(i), b.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Builds the index of before, stores its merge trees, and then builds
+     * the index of after both from scratch and incrementally.
+     */
+    void compare(String label, ArrayList<ArrayList<SpatioTemporalVal>> before,
+            ArrayList<ArrayList<SpatioTemporalVal>> after, boolean city) throws IOException {
+
+        TopologicalIndex base = index(city);
+        base.createIndex(attribute(before), edges);
+        byte[] stored = store(base);
+
+        Attribute fullAtt = attribute(after);
+        TopologicalIndex full = index(city);
+        long t = System.nanoTime();
+        full.createIndex(fullAtt, edges);
+        long fullTime = System.nanoTime() - t;
+
+        Attribute incAtt = attribute(after);
+        TopologicalIndex incremental = index(city);
+        t = System.nanoTime();
+        TopologicalIndex previous = TopologicalIndex.readMergeTrees(
+                new DataInputStream(new ByteArrayInputStream(stored)));
+        incremental.createIndex(incAtt, edges, new StageProfiler(), previous);
+        long incTime = System.nanoTime() - t;
+
+        t = System.nanoTime();
+        ArrayList<byte[]> incEvents = incremental.queryEvents(0.9f, false, incAtt, "");
+        ArrayList<byte[]> incOutliers = incremental.queryEvents(0.9f, true, incAtt, "");
+        long eventsTime = System.nanoTime() - t;
+        ArrayList<byte[]> fullEvents = full.queryEvents(0.9f, false, fullAtt, "");
+        ArrayList<byte[]> fullOutliers = full.queryEvents(0.9f, true, fullAtt, "");
+
+        boolean equal = sameFeatures(full, incremental, fullAtt)
+                && sameEvents(fullEvents, incEvents) && sameEvents(fullOutliers, incOutliers)
+                && (full.stTime == incremental.stTime) && (full.enTime == incremental.enTime);
+
+        System.out.println(label + "\t" + (city ? "city" : "nbhd") + "\t" + fullAtt.data.size() + "\t"
+                + incremental.rebuiltBins + "\t" + (fullTime / 1000000) + "\t" + (incTime / 1000000) + "\t"
+                + (eventsTime / 1000000) + "\t" + stored.length + "\t" + equal);
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.out.println("Usage: IncrementalIndexExp <data directory> [months] [seed]");
+            System.exit(-1);
+        }
+
+        String dir = args[0];
+        int nbMonths = (args.length > 1) ? Integer.parseInt(args[1]) : 12;
+        long seed = (args.length > 2) ? Long.parseLong(args[2]) : 42L;
+
+        IncrementalIndexExp exp = new IncrementalIndexExp(seed);
+        exp.loadGraph(new File(dir, "neighborhood-graph.txt").getPath());
+
+        System.out.println(nbMonths + " months, " + exp.nv + " neighborhoods");
+        System.out.println("change\tspatial\tbins\trebuilt\tfullMs\tincrementalMs\teventsMs\tmergeTreeBytes\tequal");
+
+        for (boolean city : new boolean[] {false, true}) {
+            // the last neighborhood only appears in the new unit case
+            int units = exp.nv - 1;
+            ArrayList<ArrayList<SpatioTemporalVal>> months = new ArrayList<ArrayList<SpatioTemporalVal>>();
+            for (int m = 0; m <= nbMonths; m++)
+                months.add(exp.month(m, units, city));
+
+            ArrayList<ArrayList<SpatioTemporalVal>> before = new ArrayList<ArrayList<SpatioTemporalVal>>(
+                    months.subList(0, nbMonths));
+            exp.compare("append", before, months, city);
+
+            ArrayList<ArrayList<SpatioTemporalVal>> corrected = new ArrayList<ArrayList<SpatioTemporalVal>>(before);
+            corrected.set(nbMonths / 2, exp.month(nbMonths / 2, units, city));
+            exp.compare("correction", before, corrected, city);
+
+            if (!city) {
+                ArrayList<ArrayList<SpatioTemporalVal>> newUnit = new ArrayList<ArrayList<SpatioTemporalVal>>(before);
+                newUnit.add(exp.month(nbMonths, exp.nv, city));
+                exp.compare("new unit", before, newUnit, city);
+            }
+        }
+    }
+}
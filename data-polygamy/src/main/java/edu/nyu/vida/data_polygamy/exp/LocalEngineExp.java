@@ -0,0 +1,238 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import edu.nyu.vida.data_polygamy.scalar_function.Aggregation;
+import edu.nyu.vida.data_polygamy.scalar_function.Average;
+import edu.nyu.vida.data_polygamy.scalar_function.Count;
+import edu.nyu.vida.data_polygamy.scalar_function.Max;
+import edu.nyu.vida.data_polygamy.scalar_function_computation.AggregationCombiner;
+import edu.nyu.vida.data_polygamy.scalar_function_computation.AggregationMapper;
+import edu.nyu.vida.data_polygamy.scalar_function_computation.AggregationReducer;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AggregationArrayWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.FloatArrayWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.MultipleSpatioTemporalWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.SpatioTemporalWritable;
+import edu.nyu.vida.data_polygamy.utils.LocalEngine;
+
+/**
+ * Runs the aggregation job end to end with LocalEngine, on synthetic
+ * pre-processing output (hourly values of every neighborhood), and
+ * compares the output files of several settings of the engine: one
+ * thread, several threads, without the combiner, and with buffers small
+ * enough to spill every map task to local files.
+ *
+ * The values are small integers, so the sums of the aggregates do not
+ * depend on the order in which the combiner and the reducer add them,
+ * and the output files of all the settings must be identical.
+ */
+public class LocalEngineExp {
+
+    int nbDatasets;
+    int nbhds;
+    int days;
+    Random r;
+
+    public LocalEngineExp(int nbDatasets, int nbhds, int days, long seed) {
+        this.nbDatasets = nbDatasets;
+        this.nbhds = nbhds;
+        this.days = days;
+        this.r = new Random(seed);
+    }
+
+    static ArrayList<Integer> list(int i) {
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        list.add(i);
+        return list;
+    }
+
+    /**
+     * Writes the pre-processing output of every dataset, in a directory
+     * named as the pre-processing job names it.
+     */
+    void generate(Configuration conf, File dir) throws IOException {
+        int start = (int) (new DateTime(2011, 1, 1, 0, 0, DateTimeZone.UTC).getMillis() / 1000);
+        for (int d = 0; d < nbDatasets; d++) {
+            Path file = new Path(new File(dir, "dataset" + d + "-hour-nbhd").toURI().toString() + "/part-r-00000");
+            SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                    SequenceFile.Writer.file(file),
+                    SequenceFile.Writer.keyClass(MultipleSpatioTemporalWritable.class),
+                    SequenceFile.Writer.valueClass(AggregationArrayWritable.class));
+            for (int v = 0; v < nbhds; v++) {
+                for (int h = 0; h < days * 24; h++) {
+                    int time = start + h * 3600;
+                    Aggregation[] agg = new Aggregation[] {new Count(), new Average(), new Max()};
+                    int n = 1 + r.nextInt(5);
+                    for (int i = 0; i < n; i++) {
+                        float value = r.nextInt(100);
+                        for (Aggregation a : agg)
+                            a.addValue(value, time);
+                    }
+                    writer.append(new MultipleSpatioTemporalWritable(list(v), list(time)),
+                            new AggregationArrayWritable(agg));
+                }
+            }
+            writer.close();
+        }
+    }
+
+    Job job(File input, File output, boolean combiner, int reduces) throws IOException {
+        Configuration conf = new Configuration();
+        String names = "", ids = "";
+        for (int d = 0; d < nbDatasets; d++) {
+            names += "dataset" + d + ",";
+            ids += d + ",";
+            conf.set("dataset-" + d + "-temporal-att", "0");
+            conf.set("dataset-" + d + "-spatial-att", "0");
+            conf.set("dataset-" + d + "-multiple", "false");
+        }
+        conf.set("dataset-name", names.substring(0, names.length()-1));
+        conf.set("dataset-id", ids.substring(0, ids.length()-1));
+
+        Job job = Job.getInstance(conf);
+        job.setJobName("aggregates");
+        job.setMapOutputKeyClass(SpatioTemporalWritable.class);
+        job.setMapOutputValueClass(AggregationArrayWritable.class);
+        job.setOutputKeyClass(SpatioTemporalWritable.class);
+        job.setOutputValueClass(FloatArrayWritable.class);
+        job.setMapperClass(AggregationMapper.class);
+        if (combiner)
+            job.setCombinerClass(AggregationCombiner.class);
+        job.setReducerClass(AggregationReducer.class);
+        job.setNumReduceTasks(reduces);
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        LazyOutputFormat.setOutputFormatClass(job, SequenceFileOutputFormat.class);
+        FileInputFormat.setInputDirRecursive(job, true);
+        FileInputFormat.setInputPaths(job, new Path(input.toURI()));
+        FileOutputFormat.setOutputPath(job, new Path(output.toURI()));
+        return job;
+    }
+
+    /**
+     * Records of every output file, by path; also checks that every file
+     * is sorted by key.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static void records(Configuration conf, FileSystem fs, Path root, Path dir,
+            TreeMap<String,ArrayList<String>> records) throws IOException {
+        for (FileStatus status : fs.listStatus(dir)) {
+            Path path = status.getPath();
+            if (status.isDirectory()) {
+                records(conf, fs, root, path, records);
+                continue;
+            }
+            if (path.getName().startsWith("_") || path.getName().startsWith(".")) continue;
+            ArrayList<String> list = new ArrayList<String>();
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+            WritableComparable key = (WritableComparable) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+            Writable value = (Writable) ReflectionUtils.newInstance(reader.getValueClass(), conf);
+            WritableComparable previous = null;
+            while (reader.next(key, value)) {
+                if ((previous != null) && (previous.compareTo(key) > 0))
+                    System.out.println("Not sorted: " + path);
+                list.add(key.toString() + "\t" + value.toString());
+                previous = key;
+                key = (WritableComparable) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+            }
+            reader.close();
+            records.put(path.toUri().getPath().substring(root.toUri().getPath().length()), list);
+        }
+    }
+
+    TreeMap<String,ArrayList<String>> run(String name, File input, File output, int threads,
+            boolean combiner, int reduces, long bufferMb, long memoryMb)
+            throws IOException, InterruptedException, ClassNotFoundException {
+        Job job = job(input, output, combiner, reduces);
+        if (bufferMb > 0)
+            job.getConfiguration().setLong("mapreduce.task.io.sort.mb", bufferMb);
+        if (memoryMb >= 0)
+            job.getConfiguration().setLong("local-memory-mb", memoryMb);
+
+        long start = System.currentTimeMillis();
+        Counters counters = LocalEngine.run(job, threads);
+        long time = System.currentTimeMillis() - start;
+
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+        TreeMap<String,ArrayList<String>> records = new TreeMap<String,ArrayList<String>>();
+        Path root = new Path(output.toURI());
+        records(conf, fs, root, root, records);
+        int nbRecords = 0;
+        for (ArrayList<String> list : records.values())
+            nbRecords += list.size();
+
+        System.out.println(name + "\t" + threads + "\t" + time + "\t"
+                + counters.findCounter(TaskCounter.MAP_OUTPUT_RECORDS).getValue() + "\t"
+                + counters.findCounter(TaskCounter.COMBINE_OUTPUT_RECORDS).getValue() + "\t"
+                + counters.findCounter(TaskCounter.SPILLED_RECORDS).getValue() + "\t"
+                + counters.findCounter(TaskCounter.REDUCE_INPUT_RECORDS).getValue() + "\t"
+                + records.size() + "\t" + nbRecords);
+        return records;
+    }
+
+    public void run(int threads, int reduces) throws IOException, InterruptedException, ClassNotFoundException {
+
+        File dir = Files.createTempDirectory("local-engine").toFile();
+        File input = new File(dir, "pre-processing");
+        Configuration conf = new Configuration();
+        generate(conf, input);
+        System.out.println("Datasets: " + nbDatasets + ", neighborhoods: " + nbhds + ", days: " + days
+                + ", reduces: " + reduces);
+        System.out.println("setting\tthreads\tms\tmapOutput\tcombineOutput\tspilled\treduceInput\tfiles\trecords");
+
+        TreeMap<String,ArrayList<String>> reference =
+                run("memory", input, new File(dir, "a"), 1, true, reduces, 0, -1);
+        ArrayList<TreeMap<String,ArrayList<String>>> outputs = new ArrayList<TreeMap<String,ArrayList<String>>>();
+        outputs.add(run("no-combiner", input, new File(dir, "b"), 1, false, reduces, 0, -1));
+        outputs.add(run("memory", input, new File(dir, "c"), threads, true, reduces, 0, -1));
+        outputs.add(run("spill", input, new File(dir, "d"), 1, true, reduces, 1, 0));
+        outputs.add(run("spill", input, new File(dir, "e"), threads, true, reduces, 1, 0));
+
+        boolean same = true;
+        for (TreeMap<String,ArrayList<String>> output : outputs)
+            same &= reference.equals(output);
+        System.out.println("Same output: " + same);
+
+        FileSystem.getLocal(conf).delete(new Path(dir.toURI()), true);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ClassNotFoundException {
+
+        int nbDatasets = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        int nbhds = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+        int days = (args.length > 2) ? Integer.parseInt(args[2]) : 90;
+        int threads = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+        int reduces = (args.length > 4) ? Integer.parseInt(args[4]) : 4;
+        long seed = (args.length > 5) ? Long.parseLong(args[5]) : 42L;
+
+        LocalEngineExp exp = new LocalEngineExp(nbDatasets, nbhds, days, seed);
+        exp.run(threads, reduces);
+    }
+}
@@ -0,0 +1,282 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.MergeFiles;
+
+/**
+ * Compares MergeFiles.merge() and MergeFiles.parallelMerge() on a
+ * synthetic index directory with many block-compressed part files (the
+ * attributes are spread over the part files, as by the partitioner of
+ * the index job):
+ *
+ *   merge: time and size of the merged file, checking that both merges
+ *     have the same records in the same order;
+ *   lookup: time to read the series of one attribute and resolution,
+ *     scanning the file merged by merge(), or seeking to the offset of
+ *     the sidecar index of parallelMerge();
+ *   truncated: parallelMerge() of a copy of the part files with one of
+ *     them truncated (in the middle of its records, or of its header)
+ *     must fail with an IOException instead of waiting for that file.
+ */
+public class MergeFilesExp {
+
+    static final int DATASET = 7;
+
+    Random r;
+    Configuration conf = new Configuration();
+    FileSystem fs;
+    File dir;
+
+    public MergeFilesExp(long seed) throws IOException {
+        r = new Random(seed);
+        fs = FileSystem.getLocal(conf);
+        dir = Files.createTempDirectory("merge").toFile();
+    }
+
+    /**
+     * Index of nbAttributes attributes at the hour and day resolutions, for
+     * nbSpatial neighborhoods and the city, over nbParts part files.
+     */
+    Path writeIndex(int nbParts, int nbAttributes, int nbSpatial, int days) throws IOException {
+        Path input = new Path(new File(dir, "index").getPath());
+        int start = 1420070400; // 2015-01-01
+        int[] temporal = {FrameworkUtils.HOUR, FrameworkUtils.DAY};
+        int[] steps = {24 * days, days};
+        int[] spatialRes = {FrameworkUtils.NBHD, FrameworkUtils.CITY};
+        for (int p = 0; p < nbParts; p++) {
+            SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                    SequenceFile.Writer.file(new Path(input, String.format("part-r-%05d", p))),
+                    SequenceFile.Writer.keyClass(AttributeResolutionWritable.class),
+                    SequenceFile.Writer.valueClass(TopologyTimeSeriesWritable.class),
+                    SequenceFile.Writer.compression(CompressionType.BLOCK));
+            for (int a = p; a < nbAttributes; a += nbParts) {
+                for (int t = 0; t < temporal.length; t++) {
+                    for (int s = 0; s < spatialRes.length; s++) {
+                        AttributeResolutionWritable key = new AttributeResolutionWritable(a,
+                                spatialRes[s], temporal[t], DATASET);
+                        int units = (spatialRes[s] == FrameworkUtils.CITY) ? 1 : nbSpatial;
+                        for (boolean outlier : new boolean[] {false, true}) {
+                            for (int u = 0; u < units; u++) {
+                                byte[] events = new byte[steps[t]];
+                                double rate = (outlier) ? 0.01 : 0.05;
+                                for (int i = 0; i < events.length; i++) {
+                                    double q = r.nextDouble();
+                                    events[i] = (q < rate / 2) ? FrameworkUtils.positiveEvent
+                                            : (q < rate) ? FrameworkUtils.negativeEvent : FrameworkUtils.nonEvent;
+                                }
+                                writer.append(key, new TopologyTimeSeriesWritable(u, DATASET, events,
+                                        start, start + days * 86400, outlier));
+                            }
+                        }
+                    }
+                }
+            }
+            writer.close();
+        }
+        fs.create(new Path(input, "_SUCCESS")).close();
+        return input;
+    }
+
+    long size(Path file) throws IOException {
+        return fs.getFileStatus(file).getLen();
+    }
+
+    // checks that both files have the same records in the same order
+    long compare(Path first, Path second) throws IOException {
+        SequenceFile.Reader r1 = new SequenceFile.Reader(conf, SequenceFile.Reader.file(first));
+        SequenceFile.Reader r2 = new SequenceFile.Reader(conf, SequenceFile.Reader.file(second));
+        AttributeResolutionWritable k1 = new AttributeResolutionWritable();
+        AttributeResolutionWritable k2 = new AttributeResolutionWritable();
+        TopologyTimeSeriesWritable v1 = new TopologyTimeSeriesWritable();
+        TopologyTimeSeriesWritable v2 = new TopologyTimeSeriesWritable();
+        long records = 0;
+        while (true) {
+            boolean n1 = r1.next(k1, v1);
+            boolean n2 = r2.next(k2, v2);
+            if (n1 != n2)
+                return -1;
+            if (!n1)
+                break;
+            if (!k1.equals(k2) || (v1.getSpatial() != v2.getSpatial())
+                    || (v1.getIsOutlier() != v2.getIsOutlier())
+                    || !Arrays.equals(v1.getTimeSeries(), v2.getTimeSeries()))
+                return -1;
+            records++;
+        }
+        r1.close();
+        r2.close();
+        return records;
+    }
+
+    // series of one key, scanning the file from the start
+    int scan(Path file, AttributeResolutionWritable target) throws IOException {
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+        AttributeResolutionWritable key = new AttributeResolutionWritable();
+        TopologyTimeSeriesWritable value = new TopologyTimeSeriesWritable();
+        int series = 0;
+        while (reader.next(key, value)) {
+            if (key.equals(target))
+                series++;
+            else if (series > 0)
+                break;
+        }
+        reader.close();
+        return series;
+    }
+
+    // series of one key, seeking to its offset in the sidecar index
+    int seek(Path file, HashMap<AttributeResolutionWritable, Long> index,
+            AttributeResolutionWritable target) throws IOException {
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+        reader.seek(index.get(target));
+        AttributeResolutionWritable key = new AttributeResolutionWritable();
+        TopologyTimeSeriesWritable value = new TopologyTimeSeriesWritable();
+        int series = 0;
+        while (reader.next(key, value) && key.equals(target))
+            series++;
+        reader.close();
+        return series;
+    }
+
+    /**
+     * Copy of the part files of input (without their checksums) with part
+     * file part truncated to length bytes.
+     */
+    Path truncate(Path input, int part, long length) throws IOException {
+        File copy = new File(dir, "truncated-" + length);
+        copy.mkdirs();
+        for (File file : new File(input.toString()).listFiles()) {
+            if (file.getName().startsWith(".") || file.getName().startsWith("_")) continue;
+            Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+        }
+        RandomAccessFile file = new RandomAccessFile(new File(copy, String.format("part-r-%05d", part)), "rw");
+        file.setLength(Math.min(length, file.length()));
+        file.close();
+        return new Path(copy.getPath());
+    }
+
+    /**
+     * Outcome of parallelMerge() on input: the message of its IOException,
+     * or "hung" if it did not finish within a minute.
+     */
+    String failedMerge(final Path input, final int threads) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Long> merge = executor.submit(new Callable<Long>() {
+            public Long call() throws IOException {
+                return MergeFiles.parallelMerge(input, new Path(input.getParent(), input.getName() + "-merged"),
+                        AttributeResolutionWritable.class, TopologyTimeSeriesWritable.class, threads, 4, true);
+            }
+        });
+        try {
+            return "no error (" + merge.get(60, TimeUnit.SECONDS) + " records)";
+        } catch (ExecutionException e) {
+            return "IOException: " + e.getCause().getMessage()
+                    + ((e.getCause().getCause() == null) ? "" : " (" + e.getCause().getCause() + ")");
+        } catch (TimeoutException e) {
+            return "hung";
+        } catch (InterruptedException e) {
+            return "interrupted";
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        int nbParts = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+        int nbAttributes = (args.length > 1) ? Integer.parseInt(args[1]) : 256;
+        int nbSpatial = (args.length > 2) ? Integer.parseInt(args[2]) : 40;
+        int days = (args.length > 3) ? Integer.parseInt(args[3]) : 90;
+        long seed = (args.length > 4) ? Long.parseLong(args[4]) : 42L;
+        int[] threads = {1, 2, 4};
+
+        MergeFilesExp exp = new MergeFilesExp(seed);
+        Path input = exp.writeIndex(nbParts, nbAttributes, nbSpatial, days);
+        System.out.println(nbParts + " part files, " + nbAttributes + " attributes, "
+                + nbSpatial + " neighborhoods, " + days + " days");
+
+        System.out.println("merge\tthreads\tms\tMB\trecords");
+        Path sequential = new Path(new File(exp.dir, "sequential").getPath());
+        long start = System.nanoTime();
+        MergeFiles.merge(input, sequential, AttributeResolutionWritable.class,
+                TopologyTimeSeriesWritable.class);
+        long time = System.nanoTime() - start;
+        System.out.println("merge\t1\t" + (time / 1000000) + "\t"
+                + String.format("%.2f", exp.size(sequential) / 1048576.0) + "\t-");
+
+        Path parallel = null;
+        for (int t : threads) {
+            parallel = new Path(new File(exp.dir, "parallel-" + t).getPath());
+            start = System.nanoTime();
+            long records = MergeFiles.parallelMerge(input, parallel, AttributeResolutionWritable.class,
+                    TopologyTimeSeriesWritable.class, t, 4, true);
+            time = System.nanoTime() - start;
+            System.out.println("parallelMerge\t" + t + "\t" + (time / 1000000) + "\t"
+                    + String.format("%.2f", exp.size(parallel) / 1048576.0) + "\t" + records
+                    + "\tequal=" + (exp.compare(sequential, parallel) == records));
+        }
+
+        // lookups of random attributes
+        HashMap<AttributeResolutionWritable, Long> index = MergeFiles.loadIndex(exp.conf, parallel,
+                AttributeResolutionWritable.class);
+        ArrayList<AttributeResolutionWritable> keys = new ArrayList<AttributeResolutionWritable>(index.keySet());
+        int lookups = 50;
+        long scanTime = 0;
+        long seekTime = 0;
+        boolean equal = true;
+        for (int i = 0; i < lookups; i++) {
+            AttributeResolutionWritable key = keys.get(exp.r.nextInt(keys.size()));
+            start = System.nanoTime();
+            int scanned = exp.scan(sequential, key);
+            scanTime += System.nanoTime() - start;
+            start = System.nanoTime();
+            int sought = exp.seek(parallel, index, key);
+            seekTime += System.nanoTime() - start;
+            int expected = 2 * ((key.getSpatialResolution() == FrameworkUtils.CITY) ? 1 : nbSpatial);
+            equal &= (scanned == expected) && (sought == expected);
+        }
+        System.out.println("lookup\tkeys\tscanMs\tseekMs\tequal");
+        System.out.println("lookup\t" + index.size() + "\t"
+                + String.format("%.3f", scanTime / 1000000.0 / lookups) + "\t"
+                + String.format("%.3f", seekTime / 1000000.0 / lookups) + "\t" + equal);
+
+        // a part file that cannot be read fails the merge
+        int part = nbParts / 2;
+        long partLength = new File(new File(input.toString()), String.format("part-r-%05d", part)).length();
+        System.out.println("truncated\tbytes\tthreads\toutcome");
+        for (long length : new long[] {partLength / 2, 10}) {
+            Path truncated = exp.truncate(input, part, length);
+            for (int t : threads)
+                System.out.println("truncated\t" + length + "\t" + t + "\t" + exp.failedMerge(truncated, t));
+        }
+
+        exp.fs.delete(new Path(exp.dir.getPath()), true);
+    }
+}
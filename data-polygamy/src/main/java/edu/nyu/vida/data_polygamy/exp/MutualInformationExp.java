@@ -0,0 +1,159 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.nyu.vida.data_polygamy.standard_techniques.MutualInformation;
+import edu.nyu.vida.data_polygamy.standard_techniques.StreamingPearson;
+
+/**
+ * Compares the mutual information estimators of the standard techniques
+ * (MutualInformation.estimators) on hourly city series:
+ *
+ *   calibration: the scores of all the estimators for pairs of series of
+ *     increasing dependence (linear, non-linear, and counts with ties),
+ *     and the rank correlation of each estimator with the kernel one;
+ *   time: the time of a score for a year of hourly values, as in each
+ *     repetition of the permutation test.
+ */
+public class MutualInformationExp {
+
+    Random r;
+
+    public MutualInformationExp(long seed) {
+        r = new Random(seed);
+    }
+
+    /**
+     * Hourly series with a daily pattern and dependence d in [0, 1]:
+     * linear, quadratic, or Poisson counts of a common rate.
+     */
+    float[][] pair(int hours, double d, String kind) {
+        float[] x = new float[hours];
+        float[] y = new float[hours];
+        for (int h = 0; h < hours; h++) {
+            double daily = Math.sin(2 * Math.PI * (h % 24) / 24.0);
+            double common = daily + r.nextGaussian();
+            double own = daily + r.nextGaussian();
+            double z = d * common + Math.sqrt(1 - d * d) * own;
+            if (kind.equals("linear")) {
+                x[h] = (float) common;
+                y[h] = (float) z;
+            } else if (kind.equals("quadratic")) {
+                x[h] = (float) common;
+                y[h] = (float) (d * common * common + (1 - d) * r.nextGaussian());
+            } else {
+                x[h] = poisson(3 * Math.exp(0.5 * common));
+                y[h] = poisson(3 * Math.exp(0.5 * z));
+            }
+        }
+        return new float[][] {x, y};
+    }
+
+    int poisson(double lambda) {
+        double l = Math.exp(-lambda), p = 1;
+        int k = 0;
+        do {
+            k++;
+            p *= r.nextDouble();
+        } while (p > l);
+        return k - 1;
+    }
+
+    static double[] ranks(double[] values) {
+        Integer[] order = new Integer[values.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        final double[] v = values;
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(v[a], v[b]);
+            }
+        });
+        double[] ranks = new double[values.length];
+        for (int i = 0; i < order.length; i++)
+            ranks[order[i]] = i;
+        return ranks;
+    }
+
+    static double spearman(double[] a, double[] b) {
+        double[] ra = ranks(a), rb = ranks(b);
+        float[] fa = new float[a.length], fb = new float[b.length];
+        for (int i = 0; i < a.length; i++) {
+            fa[i] = (float) ra[i];
+            fb[i] = (float) rb[i];
+        }
+        return new StreamingPearson().correlation(fa, fb, a.length);
+    }
+
+    void calibration(int hours) throws Exception {
+        String[] kinds = {"linear", "quadratic", "counts"};
+        double[] dependence = {0, 0.2, 0.4, 0.6, 0.8, 0.95};
+        int nbEstimators = MutualInformation.estimators.length;
+        int nbPairs = kinds.length * dependence.length;
+        double[][] scores = new double[nbEstimators][nbPairs];
+        MutualInformation[] estimators = new MutualInformation[nbEstimators];
+        for (int e = 0; e < nbEstimators; e++)
+            estimators[e] = MutualInformation.get(MutualInformation.estimators[e], 0, 4);
+
+        System.out.println("Calibration, " + hours + " hours");
+        String header = "series\tdependence\t|pearson|";
+        for (String name : MutualInformation.estimators)
+            header += "\t" + name;
+        System.out.println(header);
+        int p = 0;
+        for (String kind : kinds) {
+            for (double d : dependence) {
+                float[][] pair = pair(hours, d, kind);
+                String line = kind + "\t" + d + "\t"
+                        + String.format("%.3f", Math.abs(new StreamingPearson().correlation(pair[0], pair[1], hours)));
+                for (int e = 0; e < nbEstimators; e++) {
+                    estimators[e].setObservations(pair[0], pair[1], hours);
+                    scores[e][p] = estimators[e].score(0, 0);
+                    line += "\t" + String.format("%.3f", scores[e][p]);
+                }
+                System.out.println(line);
+                p++;
+            }
+        }
+        for (int e = 1; e < nbEstimators; e++)
+            System.out.println("rank correlation " + MutualInformation.estimators[e] + " / "
+                    + MutualInformation.estimators[0] + "\t" + String.format("%.3f", spearman(scores[e], scores[0])));
+    }
+
+    void time(int hours, int kernelRuns, int runs) throws Exception {
+        float[][] pair = pair(hours, 0.6, "counts");
+        System.out.println("Time, " + hours + " hours");
+        System.out.println("estimator\tms per score\tms per 1000 repetitions");
+        double kernelTime = 0;
+        for (String name : MutualInformation.estimators) {
+            MutualInformation estimator = MutualInformation.get(name, 0, 4);
+            estimator.setObservations(pair[0], pair[1], hours);
+            int n = name.equals("kernel") ? kernelRuns : runs;
+            estimator.score(r.nextInt(hours), r.nextInt(hours)); // warm-up
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                estimator.score(r.nextInt(hours), r.nextInt(hours));
+            double ms = (System.nanoTime() - start) / 1000000.0 / n;
+            if (name.equals("kernel"))
+                kernelTime = ms;
+            System.out.println(name + "\t" + String.format("%.3f", ms) + "\t" + String.format("%.0f", ms * 1000)
+                    + ((kernelTime > 0) && !name.equals("kernel") ? "\t" + String.format("%.0fx", kernelTime / ms) : ""));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int calibrationHours = (args.length > 0) ? Integer.parseInt(args[0]) : 24 * 60;
+        int hours = (args.length > 1) ? Integer.parseInt(args[1]) : 24 * 365;
+        int kernelRuns = (args.length > 2) ? Integer.parseInt(args[2]) : 2;
+        int runs = (args.length > 3) ? Integer.parseInt(args[3]) : 50;
+        long seed = (args.length > 4) ? Long.parseLong(args[4]) : 42L;
+
+        MutualInformationExp exp = new MutualInformationExp(seed);
+        exp.calibration(calibrationHours);
+        exp.time(hours, kernelRuns, runs);
+    }
+}
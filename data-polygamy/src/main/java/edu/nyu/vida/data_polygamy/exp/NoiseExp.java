@@ -419,7 +419,7 @@ public class NoiseExp {
     }
     
     public TopologicalIndex createIndex(HashMap<String, Attribute> attributes,
-            String attribute, int spatialRes, int nv, int[][] edges) {
+            String attribute, int spatialRes, int nv, int[][] edges) throws IOException {
         TopologicalIndex index = new TopologicalIndex(
                 spatialRes, FrameworkUtils.HOUR, nv);
         Attribute a = attributes.get(attribute);
@@ -0,0 +1,265 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+
+import edu.nyu.vida.data_polygamy.relationship_computation.CostModelPartitioner;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+
+/**
+ * Simulates the load of the reducers of the relationship job with the
+ * hash partitioner and with the cost model partitioner.
+ *
+ * Writes block-compressed index files for synthetic datasets of three
+ * kinds (grid and hourly data, neighborhood and daily data, and city
+ * data), runs the sampling pre-pass of the cost model over them, and
+ * assigns every key of the job with both partitioners. The load of a
+ * reducer is the sum of the exact cost of its keys, with the same cost
+ * model but with the real number of spatial units and time steps.
+ */
+public class PartitionerExp {
+
+    static final int[] TEMPORAL = {FrameworkUtils.HOUR, FrameworkUtils.DAY, FrameworkUtils.WEEK,
+        FrameworkUtils.MONTH, FrameworkUtils.YEAR};
+    static final int[] STEPS = {365*24, 365, 52, 12, 1};
+
+    int nbDatasets;
+    Random r;
+
+    // spatial units per dataset and resolutions ("spatial:temporal")
+    ArrayList<TreeMap<String,Integer>> resolutions = new ArrayList<TreeMap<String,Integer>>();
+    ArrayList<Integer> attributes = new ArrayList<Integer>();
+
+    public PartitionerExp(int nbDatasets, long seed) {
+        this.nbDatasets = nbDatasets;
+        this.r = new Random(seed);
+    }
+
+    // kind 0: grid and neighborhoods; kind 1: neighborhoods; kind 2: city
+    void generate() {
+        for (int d = 0; d < 2*nbDatasets; d++) {
+            TreeMap<String,Integer> res = new TreeMap<String,Integer>();
+            int kind = (d % nbDatasets == 0) ? 0 : ((d % 3 == 0) ? 1 : 2);
+            for (int t = 0; t < TEMPORAL.length; t++) {
+                if ((kind == 0) && (t <= 1))
+                    res.put(FrameworkUtils.GRID + ":" + TEMPORAL[t], 2000 + r.nextInt(2000));
+                if (kind <= 1)
+                    res.put(FrameworkUtils.NBHD + ":" + TEMPORAL[t], 150 + r.nextInt(110));
+                if ((kind <= 1) || (t > 0))
+                    res.put(FrameworkUtils.CITY + ":" + TEMPORAL[t], 1);
+            }
+            resolutions.add(res);
+            attributes.add(2 + r.nextInt(4));
+        }
+    }
+
+    void writeIndex(FileSystem fs, Configuration conf, Path dir, int files) throws IOException {
+        for (int d = 0; d < 2*nbDatasets; d++) {
+            SequenceFile.Writer[] writers = new SequenceFile.Writer[files];
+            for (int f = 0; f < files; f++)
+                writers[f] = SequenceFile.createWriter(conf,
+                        SequenceFile.Writer.file(new Path(dir, d + "/part-r-0000" + f)),
+                        SequenceFile.Writer.keyClass(AttributeResolutionWritable.class),
+                        SequenceFile.Writer.valueClass(TopologyTimeSeriesWritable.class),
+                        SequenceFile.Writer.compression(CompressionType.BLOCK));
+            // ordered by key, as written by the index creation reducers
+            for (int a = 0; a < attributes.get(d); a++) {
+                for (String resolution : resolutions.get(d).keySet()) {
+                    String[] fields = resolution.split(":");
+                    int spatial = Integer.parseInt(fields[0]);
+                    int temporal = Integer.parseInt(fields[1]);
+                    int steps = STEPS[temporal];
+                    AttributeResolutionWritable key = new AttributeResolutionWritable(a, spatial, temporal, d);
+                    SequenceFile.Writer writer = writers[(key.hashCode() & Integer.MAX_VALUE) % files];
+                    for (int v = 0; v < resolutions.get(d).get(resolution); v++) {
+                        byte[] events = new byte[steps];
+                        for (int i = 0; i < steps; i++) {
+                            double p = r.nextDouble();
+                            events[i] = (p < 0.05) ? FrameworkUtils.positiveEvent :
+                                (p < 0.1) ? FrameworkUtils.negativeEvent : FrameworkUtils.nonEvent;
+                        }
+                        writer.append(key, new TopologyTimeSeriesWritable(v, d, events, 0, steps - 1, false));
+                    }
+                }
+            }
+            for (SequenceFile.Writer writer : writers)
+                writer.close();
+        }
+    }
+
+    Configuration configuration() {
+        Configuration conf = new Configuration();
+        String ids = "";
+        String firstGroup = "";
+        String secondGroup = "";
+        for (int d = 0; d < 2*nbDatasets; d++) {
+            ids += d + ",";
+            if (d < nbDatasets)
+                firstGroup += d + ",";
+            else
+                secondGroup += d + ",";
+            conf.set("dataset-" + d + "-agg-size", String.valueOf(attributes.get(d)));
+        }
+        conf.set("dataset-keys", ids.substring(0, ids.length()-1));
+        conf.set("first-group", firstGroup.substring(0, firstGroup.length()-1));
+        conf.set("second-group", secondGroup.substring(0, secondGroup.length()-1));
+        return conf;
+    }
+
+    /**
+     * Exact costs of all the keys of the job; keys of a resolution that
+     * only one dataset has are not tested, and cost one pass over the
+     * spatial units.
+     */
+    void keys(CostModelPartitioner exact, ArrayList<PairAttributeWritable> keys, ArrayList<Long> costs) {
+        for (int d1 = 0; d1 < nbDatasets; d1++) {
+            for (int d2 = nbDatasets; d2 < 2*nbDatasets; d2++) {
+                TreeMap<String,Integer> res = new TreeMap<String,Integer>(resolutions.get(d1));
+                res.putAll(resolutions.get(d2));
+                for (String resolution : res.keySet()) {
+                    String[] fields = resolution.split(":");
+                    int spatial = Integer.parseInt(fields[0]);
+                    int temporal = Integer.parseInt(fields[1]);
+                    long cost = exact.cost(d1, d2, spatial, temporal, false);
+                    if (cost < 0)
+                        cost = (spatial == FrameworkUtils.GRID) ? CostModelPartitioner.GRID_SIZE : res.get(resolution);
+                    for (int a1 = 0; a1 < attributes.get(d1); a1++) {
+                        for (int a2 = 0; a2 < attributes.get(d2); a2++) {
+                            keys.add(new PairAttributeWritable(a1, a2, d1, d2, spatial, temporal, false));
+                            costs.add(cost);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static void report(String name, long[] loads, long total, long ideal) {
+        long max = 0;
+        int idle = 0;
+        for (long load : loads) {
+            max = Math.max(max, load);
+            if (load == 0) idle++;
+        }
+        double mean = total / (double) loads.length;
+        System.out.println(name + "\t" + String.format("%.3e", (double) max) + "\t"
+                + String.format("%.2f", max / mean) + "\t" + String.format("%.2f", max / (double) ideal)
+                + "\t" + idle);
+    }
+
+    public void run(int reducers, int samples) throws IOException {
+
+        generate();
+
+        File dir = Files.createTempDirectory("index").toFile();
+        Configuration fsConf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(fsConf);
+        Path indexDir = new Path(dir.toURI());
+        writeIndex(fs, fsConf, indexDir, 4);
+
+        ArrayList<Path> dirs = new ArrayList<Path>();
+        long bytes = 0;
+        for (int d = 0; d < 2*nbDatasets; d++) {
+            dirs.add(new Path(indexDir, String.valueOf(d)));
+            bytes += fs.getContentSummary(new Path(indexDir, String.valueOf(d))).getLength();
+        }
+
+        // sampling pre-pass
+        long st = System.nanoTime();
+        String sampled = CostModelPartitioner.sample(fsConf, fs, dirs, samples);
+        long sampleTime = System.nanoTime() - st;
+
+        // exact statistics
+        String exactCosts = "";
+        for (int d = 0; d < 2*nbDatasets; d++)
+            for (String resolution : resolutions.get(d).keySet())
+                exactCosts += d + ":" + resolution + ":0:" + attributes.get(d) * resolutions.get(d).get(resolution)
+                    + ":" + STEPS[Integer.parseInt(resolution.split(":")[1])] + ",";
+
+        Configuration conf = configuration();
+        conf.set("partition-costs", exactCosts.substring(0, exactCosts.length()-1));
+        CostModelPartitioner exact = new CostModelPartitioner();
+        exact.setConf(conf);
+
+        conf = configuration();
+        conf.set("partition-costs", sampled);
+        CostModelPartitioner partitioner = new CostModelPartitioner();
+        partitioner.setConf(conf);
+
+        ArrayList<PairAttributeWritable> keys = new ArrayList<PairAttributeWritable>();
+        ArrayList<Long> costs = new ArrayList<Long>();
+        keys(exact, keys, costs);
+
+        long total = 0;
+        long maxKey = 0;
+        for (long cost : costs) {
+            total += cost;
+            maxKey = Math.max(maxKey, cost);
+        }
+        long ideal = Math.max(maxKey, (total + reducers - 1) / reducers);
+
+        // estimation error of the tested keys
+        double error = 0;
+        int nbTested = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            PairAttributeWritable key = keys.get(i);
+            long estimated = partitioner.cost(key.getFirstDataset(), key.getSecondDataset(),
+                    key.getSpatialResolution(), key.getTemporalResolution(), false);
+            if (estimated < 0) continue;
+            error += Math.abs(estimated - costs.get(i)) / (double) costs.get(i);
+            nbTested++;
+        }
+
+        System.out.println("Datasets: " + nbDatasets + " x " + nbDatasets + ", keys: " + keys.size()
+                + ", index: " + bytes + " bytes, reducers: " + reducers);
+        System.out.println("Sampling: " + samples + " positions per file, "
+                + String.format("%.0f", sampleTime / 1000000.0) + " ms, mean cost error "
+                + String.format("%.1f", 100 * error / nbTested) + "%");
+        System.out.println("partitioner\tmaxLoad\tmax/mean\tmax/ideal\tidleReducers");
+
+        HashPartitioner<PairAttributeWritable, TopologyTimeSeriesWritable> hash =
+                new HashPartitioner<PairAttributeWritable, TopologyTimeSeriesWritable>();
+        long[] hashLoads = new long[reducers];
+        long[] costLoads = new long[reducers];
+        st = System.nanoTime();
+        for (int i = 0; i < keys.size(); i++)
+            costLoads[partitioner.getPartition(keys.get(i), null, reducers)] += costs.get(i);
+        long assignTime = System.nanoTime() - st;
+        for (int i = 0; i < keys.size(); i++)
+            hashLoads[hash.getPartition(keys.get(i), null, reducers)] += costs.get(i);
+
+        report("hash", hashLoads, total, ideal);
+        report("cost-model", costLoads, total, ideal);
+        System.out.println("Assignment: " + String.format("%.0f", assignTime / 1000000.0) + " ms");
+
+        fs.delete(indexDir, true);
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        int nbDatasets = (args.length > 0) ? Integer.parseInt(args[0]) : 6;
+        int reducers = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        int samples = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+        long seed = (args.length > 3) ? Long.parseLong(args[3]) : 42L;
+
+        PartitionerExp exp = new PartitionerExp(nbDatasets, seed);
+        exp.run(reducers, samples);
+    }
+}
@@ -0,0 +1,188 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.Permutation;
+import edu.nyu.vida.data_polygamy.utils.SpatialGraph;
+
+/**
+ * Per repetition time and allocated bytes of the spatial permutations of
+ * CorrelationReducer, as lists of boxed pairs (previous implementation)
+ * and as a reused Permutation, checking that both give the same pairs
+ * for the same seed.
+ */
+public class PermutationAllocExp {
+
+    static com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    interface Strategy {
+        ArrayList<Integer[]> legacy(Random random);
+        void fill(Random random, Permutation permutation);
+    }
+
+    // previous CorrelationReducer.toroidalShift
+    static ArrayList<Integer[]> legacyToroidalShift(int[][] originalGrid, int gridSize, Random random) {
+        ArrayList<Integer[]> result = new ArrayList<Integer[]>();
+        int x = random.nextInt(gridSize);
+        int y = random.nextInt(gridSize);
+        for (int j = 0; j < gridSize; j++) {
+            for (int i = 0; i < gridSize; i++) {
+                int newX = (x + i) % gridSize;
+                int newY = (y + j) % gridSize;
+                Integer[] pair = new Integer[2];
+                pair[0] = originalGrid[i][j];
+                pair[1] = originalGrid[newX][newY];
+                result.add(pair);
+            }
+        }
+        return result;
+    }
+
+    // previous CorrelationReducer.spatialCompleteRandom
+    static ArrayList<Integer[]> legacyCompleteRandom(int size, Random random) {
+        ArrayList<Integer[]> result = new ArrayList<Integer[]>();
+        ArrayList<Integer> vals = new ArrayList<Integer>();
+        for (int k = 0; k < size; k++)
+            vals.add(k);
+        Collections.shuffle(vals, random);
+        for (int k = 0; k < size; k++) {
+            Integer[] pair = new Integer[2];
+            pair[0] = vals.get(k);
+            pair[1] = k;
+            result.add(pair);
+        }
+        return result;
+    }
+
+    static boolean same(ArrayList<Integer[]> pairs, Permutation permutation) {
+        int[] targets = new int[permutation.size()];
+        Arrays.fill(targets, -1);
+        for (Integer[] pair : pairs) {
+            if (targets[pair[0]] != -1)
+                return false;
+            targets[pair[0]] = pair[1];
+        }
+        for (int i = 0; i < targets.length; i++)
+            if (targets[i] != permutation.get(i))
+                return false;
+        return true;
+    }
+
+    static void run(String label, Strategy strategy, int reps, long seed) {
+        long checksum = 0;
+
+        // warm up and check
+        boolean identical = true;
+        Permutation permutation = new Permutation();
+        for (int j = 0; j < 3; j++) {
+            ArrayList<Integer[]> pairs = strategy.legacy(new Random(seed + j));
+            strategy.fill(new Random(seed + j), permutation);
+            identical &= same(pairs, permutation);
+        }
+
+        long bytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long st = System.nanoTime();
+        for (int j = 0; j < reps; j++) {
+            ArrayList<Integer[]> pairs = strategy.legacy(new Random(seed + j));
+            for (int i = 0; i < pairs.size(); i++)
+                checksum += pairs.get(i)[1];
+        }
+        long legacyTime = System.nanoTime() - st;
+        long legacyBytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+
+        bytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        st = System.nanoTime();
+        for (int j = 0; j < reps; j++) {
+            strategy.fill(new Random(seed + j), permutation);
+            for (int i = 0; i < permutation.size(); i++)
+                checksum -= Math.max(0, permutation.get(i));
+        }
+        long newTime = System.nanoTime() - st;
+        long newBytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+
+        System.out.println(label + "\t" + permutation.size() + "\t" + identical + "\t" + (checksum == 0) + "\t"
+                + String.format("%.3f", legacyTime / 1000000.0 / reps) + "\t"
+                + String.format("%.3f", newTime / 1000000.0 / reps) + "\t"
+                + (legacyBytes / reps) + "\t" + (newBytes / reps));
+    }
+
+    static SpatialGraph loadGraph(String graphFile, String name, int resolution) throws IOException {
+        File dir = Files.createTempDirectory("graph").toFile();
+        File dest = new File(dir, name);
+        Files.copy(new File(graphFile).toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Configuration conf = new Configuration();
+        conf.set("bucket", dir.toURI().toString());
+        SpatialGraph graph = new SpatialGraph();
+        graph.init(resolution, conf);
+        dest.delete();
+        dir.delete();
+        return graph;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 2) {
+            System.out.println("Usage: PermutationAllocExp <neighborhood graph file> <block graph file> "
+                    + "[grid size] [repetitions] [seed]");
+            System.exit(-1);
+        }
+
+        final int gridSize = (args.length > 2) ? Integer.parseInt(args[2]) : 2048;
+        int reps = (args.length > 3) ? Integer.parseInt(args[3]) : 20;
+        long seed = (args.length > 4) ? Long.parseLong(args[4]) : 42L;
+
+        final int[][] originalGrid = new int[gridSize][gridSize];
+        for (int j = 0; j < gridSize; j++) {
+            for (int i = 0; i < gridSize; i++)
+                originalGrid[i][j] = j * gridSize + i;
+        }
+        final SpatialGraph nbhdGraph = loadGraph(args[0], "neighborhood-graph", FrameworkUtils.NBHD);
+        final SpatialGraph blockGraph = loadGraph(args[1], "block-graph", FrameworkUtils.BLOCK);
+
+        System.out.println("permutation\tunits\tidentical\tchecksum\tlegacyMs\tnewMs\tlegacyBytes\tnewBytes");
+
+        run("grid-toroidal", new Strategy() {
+            public ArrayList<Integer[]> legacy(Random random) {
+                return legacyToroidalShift(originalGrid, gridSize, random);
+            }
+            public void fill(Random random, Permutation permutation) {
+                permutation.toroidalShift(gridSize, random);
+            }
+        }, reps, seed);
+
+        run("block-complete", new Strategy() {
+            public ArrayList<Integer[]> legacy(Random random) {
+                return legacyCompleteRandom(blockGraph.nbNodes(), random);
+            }
+            public void fill(Random random, Permutation permutation) {
+                permutation.shuffle(blockGraph.nbNodes(), random);
+            }
+        }, reps * 10, seed);
+
+        for (final SpatialGraph graph : new SpatialGraph[] {nbhdGraph, blockGraph}) {
+            run((graph == nbhdGraph) ? "nbhd-bfs" : "block-bfs", new Strategy() {
+                public ArrayList<Integer[]> legacy(Random random) {
+                    return graph.generateRandomShift(random);
+                }
+                public void fill(Random random, Permutation permutation) {
+                    graph.generateRandomShift(random, permutation);
+                }
+            }, reps * 10, seed);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.IOException;
+import java.util.Random;
+
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationReducer;
+import edu.nyu.vida.data_polygamy.relationship_computation.PermutationTest;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TimeSeriesStats;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.Permutation;
+import edu.nyu.vida.data_polygamy.utils.SpatialGraph;
+
+/**
+ * Runs the permutation test of CorrelationReducer (BFS shifts over a
+ * spatial graph, hourly series) with 1 to N threads, reporting the time
+ * and checking that the p-value is the same for every number of threads.
+ * A related pair runs all the repetitions; an unrelated pair (regions
+ * paired with their next region) is pruned early.
+ */
+public class PermutationScalingExp {
+
+    static int repetitions = 1000;
+    static float alpha = 0.05f;
+
+    SpatialGraph graph;
+    byte[][] codes1;
+    byte[][] codes2;
+    int length;
+
+    public PermutationScalingExp(SpatialGraph graph, TopologyTimeSeriesWritable[][] series, int offset) {
+        this.graph = graph;
+        int size = series.length;
+        int[] alignment = CorrelationReducer.getAlignment(FrameworkUtils.HOUR, series[0][0], series[0][1]);
+        length = alignment[2];
+        codes1 = new byte[size][];
+        codes2 = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            codes1[i] = series[i][0].getCodes(alignment[0], alignment[0] + length);
+            codes2[i] = series[(i + offset) % size][1].getCodes(alignment[1], alignment[1] + length);
+        }
+    }
+
+    float score(Permutation permutation) {
+        TimeSeriesStats stats = new TimeSeriesStats();
+        for (int i = 0; i < permutation.size(); i++) {
+            int target = permutation.get(i);
+            if (target < 0) continue;
+            TimeSeriesStats s = new TimeSeriesStats();
+            s.setIntersect(true);
+            CorrelationReducer.countEvents(s, codes1[i], codes2[target], length, 0, 0);
+            stats.add(s);
+        }
+        stats.computeScores();
+        return stats.getRelationshipScore();
+    }
+
+    float alignedScore() {
+        Permutation identity = new Permutation(codes1.length);
+        for (int i = 0; i < codes1.length; i++)
+            identity.set(i, i);
+        return score(identity);
+    }
+
+    void run(String label, int maxThreads, long seed) throws InterruptedException {
+        final ThreadLocal<Permutation> permutations = new ThreadLocal<Permutation>() {
+            @Override
+            protected Permutation initialValue() {
+                return new Permutation();
+            }
+        };
+        PermutationTest.Repetition repetition = new PermutationTest.Repetition() {
+            public float score(Random random) {
+                Permutation permutation = permutations.get();
+                graph.generateRandomShift(random, permutation);
+                return PermutationScalingExp.this.score(permutation);
+            }
+        };
+        float alignedScore = alignedScore();
+
+        float firstPValue = Float.NaN;
+        long firstTime = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            PermutationTest test = new PermutationTest(threads);
+            long st = System.nanoTime();
+            float pValue = test.pValue(repetition, alignedScore, repetitions, alpha, seed);
+            long time = System.nanoTime() - st;
+            test.shutdown();
+
+            if (threads == 1) {
+                firstPValue = pValue;
+                firstTime = time;
+            }
+            System.out.println(label + "\t" + threads + "\t" + alignedScore + "\t" + pValue + "\t"
+                    + (pValue == firstPValue) + "\t" + (time / 1000000.0) + "\t"
+                    + String.format("%.2f", firstTime / (double) time));
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        if (args.length < 1) {
+            System.out.println("Usage: PermutationScalingExp <graph file> [max threads] [hours] [seed]");
+            System.exit(-1);
+        }
+
+        String graphFile = args[0];
+        int maxThreads = (args.length > 1) ? Integer.parseInt(args[1]) :
+            Runtime.getRuntime().availableProcessors();
+        int hours = (args.length > 2) ? Integer.parseInt(args[2]) : 24*365;
+        long seed = (args.length > 3) ? Long.parseLong(args[3]) : 42L;
+
+        AlignedStatsExp gen = new AlignedStatsExp(seed);
+        SpatialGraph graph = gen.loadGraph(graphFile, seed);
+        TopologyTimeSeriesWritable[][] series = gen.generate(graph.nbNodes(), hours);
+
+        System.out.println("pair\tthreads\talignedScore\tpValue\tsamePValue\tms\tspeedup");
+        new PermutationScalingExp(graph, series, 0).run("related", maxThreads, seed);
+        new PermutationScalingExp(graph, series, 1).run("unrelated", maxThreads, seed);
+    }
+}
@@ -0,0 +1,262 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.PipelineScheduler;
+import edu.nyu.vida.data_polygamy.utils.PipelineScheduler.JobRunner;
+import edu.nyu.vida.data_polygamy.utils.PipelineScheduler.PipelineJob;
+
+/**
+ * Runs PipelineScheduler on a synthetic pipeline on the local file system,
+ * whose jobs write their outputs from their inputs (checking that the
+ * inputs exist, and that two jobs of a same stage never run at the same
+ * time), after a sequence of changes, checking that only the jobs whose
+ * outputs are stale run:
+ *
+ *   initial: all the jobs run (with 1 and 4 jobs at the same time);
+ *   unchanged: no job runs;
+ *   append: a month of data is appended to a dataset, so its
+ *     pre-processing, aggregates, index and relationships run;
+ *   new dataset: only the jobs of the new dataset, and its relationships;
+ *   deleted output: the index of a dataset is deleted;
+ *   arguments: the arguments of the relationships change;
+ *   failure: the aggregates of a dataset fail, so its index and
+ *     relationships are skipped, and run in the next execution.
+ */
+public class PipelineSchedulerExp {
+
+    Configuration conf = new Configuration();
+    FileSystem fs;
+    Path base;
+    long jobMillis;
+
+    // datasets, and their pre-processing resolutions
+    TreeMap<String, String[]> datasets = new TreeMap<String, String[]>();
+    String relationshipArgs = "";
+    String failing = null;
+
+    public PipelineSchedulerExp(long jobMillis) throws IOException {
+        fs = FileSystem.getLocal(conf);
+        base = new Path(Files.createTempDirectory("pipeline").toFile().getPath());
+        this.jobMillis = jobMillis;
+    }
+
+    void write(String name, String content, boolean append) throws IOException {
+        Path path = new Path(base, name);
+        String previous = "";
+        if (append && fs.exists(path)) {
+            byte[] bytes = Files.readAllBytes(new File(path.toUri().getPath()).toPath());
+            previous = new String(bytes, "UTF-8");
+        }
+        FSDataOutputStream out = fs.create(path, true);
+        out.write((previous + content).getBytes("UTF-8"));
+        out.close();
+    }
+
+    void addDataset(String dataset, int id, String... resolutions) throws IOException {
+        datasets.put(dataset, resolutions);
+        write(FrameworkUtils.dataDir + "/" + dataset, "1420070400,1,2\n", false);
+        write(FrameworkUtils.dataDir + "/" + dataset + ".header", "time,x,y\n", false);
+        write(FrameworkUtils.dataDir + "/" + dataset + ".defaults", "NONE,NONE,NONE\n", false);
+        write(FrameworkUtils.datasetsIndexDir, dataset + "\t" + id + "\n", true);
+
+        String pipeline = "";
+        for (String d : datasets.keySet()) {
+            for (String resolution : datasets.get(d)) {
+                String[] res = resolution.split("-");
+                pipeline += d + "\t" + d + ".header\t" + d + ".defaults\t" + res[0] + "\t" + res[1]
+                        + "\tpoints\t0 1 2\t0 0\n";
+            }
+        }
+        write(FrameworkUtils.dataDir + "/pipeline", pipeline, false);
+    }
+
+    /**
+     * Writes the outputs of a job from the sizes of its inputs.
+     */
+    class SyntheticRunner implements JobRunner {
+
+        HashMap<String, Integer> runs = new HashMap<String, Integer>();
+        HashSet<String> runningStages = new HashSet<String>();
+        boolean concurrentStages = false;
+        boolean missingInputs = false;
+
+        @Override
+        public boolean run(PipelineJob job) throws Exception {
+            synchronized (this) {
+                if (!runningStages.add(job.getStage()))
+                    concurrentStages = true;
+                Integer count = runs.get(job.getStage());
+                runs.put(job.getStage(), (count == null) ? 1 : count + 1);
+            }
+            try {
+                long size = 0;
+                for (String input : job.getInputs()) {
+                    Path path = new Path(base, input);
+                    if (!fs.exists(path)) {
+                        missingInputs = true;
+                        return false;
+                    }
+                    size += fs.getContentSummary(path).getLength();
+                }
+                Thread.sleep(jobMillis);
+                if (job.getId().equals(failing))
+                    return false;
+                for (String output : job.getOutputs()) {
+                    if (output.endsWith(".aggregates"))
+                        write(output, size + "\n", false);
+                    else
+                        write(output + "/part-r-00000", size + "\n", false);
+                }
+                return true;
+            } finally {
+                synchronized (this) {
+                    runningStages.remove(job.getStage());
+                }
+            }
+        }
+
+        String summary() {
+            String[] stages = {"pre-processing", "aggregates", "index", "relationships"};
+            String s = "";
+            for (String stage : stages)
+                s += "\t" + ((runs.get(stage) == null) ? 0 : runs.get(stage));
+            return s;
+        }
+    }
+
+    PipelineScheduler scheduler() throws IOException {
+        PipelineScheduler scheduler = new PipelineScheduler(fs, base);
+        String[] relArgs = relationshipArgs.isEmpty() ? new String[0] : relationshipArgs.split(" ");
+        scheduler.addPipeline("pipeline", new String[] {"-m", "local", "-n", "1"}, false, relArgs, false);
+        return scheduler;
+    }
+
+    /**
+     * Runs the stale jobs, printing the number of jobs that ran per stage,
+     * and whether they are the expected ones.
+     */
+    boolean execute(String label, int threads, String... expected) throws IOException, InterruptedException {
+        PipelineScheduler scheduler = scheduler();
+        ArrayList<PipelineJob> plan = scheduler.plan(false);
+        HashSet<String> planned = new HashSet<String>();
+        for (PipelineJob job : plan)
+            planned.add(job.getId());
+        HashSet<String> expectedSet = new HashSet<String>();
+        for (String id : expected)
+            expectedSet.add(id);
+
+        SyntheticRunner runner = new SyntheticRunner();
+        long start = System.nanoTime();
+        int failed = scheduler.run(plan, runner, threads);
+        long time = System.nanoTime() - start;
+
+        boolean ok = planned.equals(expectedSet) && !runner.concurrentStages && !runner.missingInputs;
+        System.out.println(label + "\t" + threads + "\t" + scheduler.getJobs().size() + runner.summary()
+                + "\t" + failed + "\t" + (time / 1000000) + "\t" + ok);
+        if (!planned.equals(expectedSet))
+            System.out.println("  planned " + planned + ", expected " + expectedSet);
+        return ok;
+    }
+
+    // ids of the jobs of the given datasets
+    ArrayList<String> jobs(boolean preProcessing, boolean aggregates, boolean index,
+            boolean relationships, String... names) {
+        ArrayList<String> ids = new ArrayList<String>();
+        for (String dataset : names) {
+            if (preProcessing)
+                for (String resolution : datasets.get(dataset))
+                    ids.add(FrameworkUtils.preProcessingDir + "/" + dataset + "-" + resolution);
+            if (aggregates)
+                ids.add(FrameworkUtils.aggregatesDir + "/" + dataset);
+            if (index)
+                ids.add(FrameworkUtils.indexDir + "/" + dataset);
+        }
+        if (relationships) {
+            // pairs of datasets are ordered by dataset id
+            ArrayList<String> all = new ArrayList<String>(datasets.keySet());
+            HashSet<String> selected = new HashSet<String>();
+            for (String dataset : names)
+                selected.add(dataset);
+            for (String d1 : all)
+                for (String d2 : all)
+                    if ((order.get(d1) < order.get(d2)) && (selected.contains(d1) || selected.contains(d2)))
+                        ids.add(FrameworkUtils.relationshipsDir + "/" + d1 + "-" + d2);
+        }
+        return ids;
+    }
+
+    HashMap<String, Integer> order = new HashMap<String, Integer>();
+
+    void dataset(String name, int id, String... resolutions) throws IOException {
+        order.put(name, id);
+        addDataset(name, id, resolutions);
+    }
+
+    static String[] array(ArrayList<String> ids) {
+        return ids.toArray(new String[ids.size()]);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        long jobMillis = (args.length > 0) ? Long.parseLong(args[0]) : 50;
+
+        PipelineSchedulerExp exp = new PipelineSchedulerExp(jobMillis);
+        exp.dataset("taxi", 0, "hour-nbhd", "hour-city");
+        exp.dataset("weather", 1, "hour-city");
+        exp.dataset("311", 2, "hour-nbhd", "day-zip");
+        exp.dataset("citibike", 4, "hour-nbhd");
+        String[] all = {"taxi", "weather", "311", "citibike"};
+
+        System.out.println("change\tthreads\tjobs\tpre-processing\taggregates\tindex\trelationships\tfailed\tms\tok");
+        boolean ok = exp.execute("initial", 1, array(exp.jobs(true, true, true, true, all)));
+
+        // same pipeline from scratch, with 4 jobs at the same time
+        PipelineSchedulerExp parallel = new PipelineSchedulerExp(jobMillis);
+        parallel.dataset("taxi", 0, "hour-nbhd", "hour-city");
+        parallel.dataset("weather", 1, "hour-city");
+        parallel.dataset("311", 2, "hour-nbhd", "day-zip");
+        parallel.dataset("citibike", 4, "hour-nbhd");
+        ok &= parallel.execute("initial", 4, array(parallel.jobs(true, true, true, true, all)));
+        parallel.fs.delete(parallel.base, true);
+
+        ok &= exp.execute("unchanged", 4);
+
+        exp.write(FrameworkUtils.dataDir + "/taxi", "1422748800,3,4\n", true);
+        ok &= exp.execute("append", 4, array(exp.jobs(true, true, true, true, "taxi")));
+
+        exp.dataset("crash", 3, "hour-nbhd");
+        ok &= exp.execute("new dataset", 4, array(exp.jobs(true, true, true, true, "crash")));
+
+        exp.fs.delete(new Path(exp.base, FrameworkUtils.indexDir + "/311"), true);
+        ok &= exp.execute("deleted output", 4, array(exp.jobs(false, false, true, true, "311")));
+
+        exp.relationshipArgs = "-sc 0.6";
+        ok &= exp.execute("arguments", 4, array(exp.jobs(false, false, false, true,
+                "taxi", "weather", "311", "crash", "citibike")));
+
+        exp.write(FrameworkUtils.dataDir + "/weather", "1422748800,5\n", true);
+        exp.failing = FrameworkUtils.aggregatesDir + "/weather";
+        ok &= exp.execute("failure", 4, array(exp.jobs(true, true, true, true, "weather")));
+        exp.failing = null;
+        ok &= exp.execute("after failure", 4, array(exp.jobs(false, true, true, true, "weather")));
+
+        System.out.println("all as expected: " + ok);
+        exp.fs.delete(exp.base, true);
+    }
+}
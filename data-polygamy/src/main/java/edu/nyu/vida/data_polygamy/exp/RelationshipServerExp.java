@@ -0,0 +1,224 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationMapper;
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationReducer;
+import edu.nyu.vida.data_polygamy.relationship_computation.RelationshipServer;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.LocalEngine;
+
+/**
+ * Compares the latency of relationship queries answered by
+ * RelationshipServer, on localhost, with the time of the relationship job
+ * (run with LocalEngine) on the same synthetic indices of two datasets,
+ * and checks that both give the same relationships.
+ *
+ * The job reads the indices and the graphs for every question; the
+ * server reads them once, and caches its answers.
+ */
+public class RelationshipServerExp {
+
+    static final String[] resolutions = {"day nbhd", "day city"};
+
+    GroupedPlanExp data;
+
+    public RelationshipServerExp(int nbAttributes, int days, long seed) {
+        data = new GroupedPlanExp(1, nbAttributes, days, seed);
+    }
+
+    void writeIndex(Configuration conf, File dir) throws IOException {
+        SequenceFile.Writer[] writers = new SequenceFile.Writer[2];
+        for (int d = 0; d < 2; d++)
+            writers[d] = SequenceFile.createWriter(conf,
+                    SequenceFile.Writer.file(new Path(new File(dir, "dataset" + d).toURI().toString()
+                            + "/part-r-00000")),
+                    SequenceFile.Writer.keyClass(AttributeResolutionWritable.class),
+                    SequenceFile.Writer.valueClass(TopologyTimeSeriesWritable.class));
+        for (int i = 0; i < data.keys.size(); i++)
+            writers[data.keys.get(i).getDataset()].append(data.keys.get(i), data.values.get(i));
+        for (SequenceFile.Writer writer : writers)
+            writer.close();
+    }
+
+    /**
+     * Relationship job on the indices of both datasets; returns its time
+     * and adds its relationships to lines.
+     */
+    long job(String graphDir, File index, File output, long seed, ArrayList<String> lines)
+            throws IOException, InterruptedException, ClassNotFoundException {
+        Configuration conf = data.configuration(graphDir, output.toURI().toString(), seed);
+        Job job = Job.getInstance(conf);
+        job.setJobName("relationship-restricted");
+        job.setMapOutputKeyClass(PairAttributeWritable.class);
+        job.setMapOutputValueClass(TopologyTimeSeriesWritable.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        job.setMapperClass(CorrelationMapper.class);
+        job.setReducerClass(CorrelationReducer.class);
+        job.setNumReduceTasks(1);
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+        FileInputFormat.setInputDirRecursive(job, true);
+        FileInputFormat.setInputPaths(job, new Path(new File(index, "dataset0").toURI()),
+                new Path(new File(index, "dataset1").toURI()));
+        FileOutputFormat.setOutputPath(job, new Path(output.toURI()));
+
+        long start = System.nanoTime();
+        LocalEngine.run(job, 1);
+        long time = System.nanoTime() - start;
+        GroupedPlanExp.lines(output, lines);
+        return time;
+    }
+
+    static ArrayList<String> query(BufferedReader in, PrintWriter out, String query) throws IOException {
+        out.println(query);
+        out.flush();
+        ArrayList<String> answer = new ArrayList<String>();
+        String line = in.readLine();
+        while ((line != null) && !line.equals(".")) {
+            answer.add(line);
+            line = in.readLine();
+        }
+        return answer;
+    }
+
+    public void run(String dataDir, long seed, int jobs) throws Exception {
+
+        // graphs, as expected by the reducers
+        File dir = Files.createTempDirectory("relationship-server").toFile();
+        String[][] graphs = {{"neighborhood-graph.txt", "neighborhood-graph"},
+                {"zipcode-graph.txt", "zipcode-graph"}, {"block-graph.txt", "block-graph"}};
+        for (String[] graph : graphs)
+            Files.copy(new File(dataDir, graph[0]).toPath(), new File(dir, graph[1]).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        String graphDir = dir.toURI().toString();
+        BufferedReader reader = new BufferedReader(new FileReader(new File(dataDir, "neighborhood-graph.txt")));
+        int nbhds = Integer.parseInt(reader.readLine().trim().split("\\s+")[0]);
+        reader.close();
+
+        data.generate(nbhds);
+        File index = new File(dir, "index");
+        writeIndex(new Configuration(), index);
+        System.out.println("Attributes: " + data.nbAttributes + " x " + data.nbAttributes + ", days: "
+                + data.days + ", series: " + data.keys.size());
+
+        // job-based: one job per question
+        ArrayList<String> jobLines = new ArrayList<String>();
+        long jobTime = 0;
+        for (int i = 0; i < jobs; i++) {
+            jobLines.clear();
+            jobTime += job(graphDir, index, new File(dir, "job" + i), seed, jobLines);
+        }
+        System.out.println("job\t" + String.format("%.1f", jobTime / 1000000.0 / jobs) + " ms per run\t"
+                + jobLines.size() + " relationships");
+
+        // server: loading once, then queries on a local socket
+        long start = System.nanoTime();
+        Configuration conf = data.configuration(graphDir, "", seed);
+        final RelationshipServer server = new RelationshipServer(conf);
+        long graphTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        FileSystem fs = FileSystem.getLocal(new Configuration());
+        server.load(fs, new Path(new File(index, "dataset0").toURI()));
+        server.load(fs, new Path(new File(index, "dataset1").toURI()));
+        long loadTime = System.nanoTime() - start;
+        System.out.println("server start\t" + String.format("%.1f", graphTime / 1000000.0) + " ms graphs\t"
+                + String.format("%.1f", loadTime / 1000000.0) + " ms index");
+
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    server.serve(0);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.start();
+        while (server.getPort() < 0)
+            Thread.sleep(10);
+
+        Socket socket = new Socket("localhost", server.getPort());
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+
+        ArrayList<String> serverLines = new ArrayList<String>();
+        System.out.println("query\tcold ms\tcached ms\trelationships");
+        long coldTotal = 0;
+        for (String resolution : resolutions) {
+            String query = "relationships dataset0 dataset1 " + resolution + " events";
+            start = System.nanoTime();
+            ArrayList<String> answer = query(in, out, query);
+            long cold = System.nanoTime() - start;
+            coldTotal += cold;
+            start = System.nanoTime();
+            int repeats = 100;
+            for (int i = 0; i < repeats; i++)
+                query(in, out, query);
+            long cached = (System.nanoTime() - start) / repeats;
+            System.out.println(resolution + "\t" + String.format("%.1f", cold / 1000000.0) + "\t"
+                    + String.format("%.3f", cached / 1000000.0) + "\t" + answer.size());
+            String prefix = resolution.replace(' ', '-') + "-events-restricted/";
+            for (String line : answer)
+                serverLines.add(prefix + line);
+        }
+        System.out.println("all resolutions\t" + String.format("%.1f", coldTotal / 1000000.0) + " ms cold");
+        for (String line : query(in, out, "stats"))
+            System.out.println("  " + line);
+        query(in, out, "shutdown");
+        socket.close();
+        thread.join();
+
+        Collections.sort(jobLines);
+        Collections.sort(serverLines);
+        System.out.println("Same relationships: " + jobLines.equals(serverLines));
+
+        FileSystem.getLocal(new Configuration()).delete(new Path(dir.toURI()), true);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 1) {
+            System.out.println("Usage: RelationshipServerExp <data directory> [attributes per dataset] "
+                    + "[days] [job runs] [seed]");
+            System.exit(-1);
+        }
+
+        int nbAttributes = (args.length > 1) ? Integer.parseInt(args[1]) : 6;
+        int days = (args.length > 2) ? Integer.parseInt(args[2]) : 365;
+        int jobs = (args.length > 3) ? Integer.parseInt(args[3]) : 3;
+        long seed = (args.length > 4) ? Long.parseLong(args[4]) : 42L;
+
+        RelationshipServerExp exp = new RelationshipServerExp(nbAttributes, days, seed);
+        exp.run(args[0], seed, jobs);
+    }
+}
@@ -0,0 +1,429 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationMapper;
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationReducer;
+import edu.nyu.vida.data_polygamy.relationship_computation.RelationshipStore;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.RelationshipWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+
+/**
+ * Compares queries over the relationship store with scans of the text
+ * output of the relationship job.
+ *
+ * First checks, with the relationship reducer, that the binary output has
+ * the same relationships as the text output. Then writes the text and
+ * binary outputs of synthetic relationships between all the pairs of
+ * nbDatasets datasets (a tenth of the pairs being related), builds the
+ * store, and runs random queries for the significant relationships of a
+ * dataset (or of one of its attributes) at a resolution, and for the
+ * strongest relationships of a pair of datasets (or of an attribute of
+ * the first one), with the store, with a scan of the matching directories
+ * of the text output, and with a scan of the whole text output.
+ */
+public class RelationshipStoreExp {
+
+    static final float alpha = 0.05f;
+    static final int[] TEMPORAL = {FrameworkUtils.HOUR, FrameworkUtils.DAY, FrameworkUtils.WEEK,
+        FrameworkUtils.MONTH, FrameworkUtils.YEAR};
+    static final int[] SPATIAL = {FrameworkUtils.NBHD, FrameworkUtils.CITY};
+
+    int nbDatasets;
+    int nbAttributes;
+    Random r;
+    FrameworkUtils utils = new FrameworkUtils();
+
+    public RelationshipStoreExp(int nbDatasets, int nbAttributes, long seed) {
+        this.nbDatasets = nbDatasets;
+        this.nbAttributes = nbAttributes;
+        this.r = new Random(seed);
+    }
+
+    String resolutionDir(int spatial, int temporal, boolean isOutlier) {
+        return utils.temporalResolutionStr(temporal) + "-" + utils.spatialResolutionStr(spatial)
+                + "-" + ((isOutlier) ? "outliers" : "events") + "-restricted";
+    }
+
+    /**
+     * Binary output of the reducer, in the format of the text output.
+     */
+    static void binaryLines(Configuration conf, File file, ArrayList<String> lines) throws IOException {
+        if (file.isDirectory()) {
+            for (File f : file.listFiles())
+                binaryLines(conf, f, lines);
+        } else if (file.getName().startsWith("binary") && !file.getName().endsWith(".crc")) {
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                    SequenceFile.Reader.file(new Path(file.toURI())));
+            RelationshipWritable relationship = new RelationshipWritable();
+            while (reader.next(relationship, NullWritable.get())) {
+                String line = file.getParentFile().getName() + "/attribute"
+                        + relationship.getPair().getFirstAttribute() + ",attribute"
+                        + relationship.getPair().getSecondAttribute() + "\t" + relationship.getScore()
+                        + "," + relationship.getStrength() + "," + relationship.getPValue();
+                for (float count : relationship.getCounts())
+                    line += "," + count;
+                lines.add(line);
+            }
+            reader.close();
+        }
+    }
+
+    /**
+     * Runs the relationship reducer with the text and binary outputs on
+     * the datasets of GroupedPlanExp.
+     */
+    void checkReducer(String dataDir, File dir, long seed) throws IOException, InterruptedException {
+
+        String[][] graphs = {{"neighborhood-graph.txt", "neighborhood-graph"},
+                {"zipcode-graph.txt", "zipcode-graph"}, {"block-graph.txt", "block-graph"}};
+        for (String[] graph : graphs)
+            Files.copy(new File(dataDir, graph[0]).toPath(), new File(dir, graph[1]).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        String graphDir = dir.toURI().toString();
+        BufferedReader reader = new BufferedReader(new FileReader(new File(dataDir, "neighborhood-graph.txt")));
+        int nbhds = Integer.parseInt(reader.readLine().trim().split("\\s+")[0]);
+        reader.close();
+
+        GroupedPlanExp data = new GroupedPlanExp(1, 4, 365, seed);
+        data.generate(nbhds);
+
+        ArrayList<ArrayList<String>> outputs = new ArrayList<ArrayList<String>>();
+        for (boolean binary : new boolean[] {false, true}) {
+            File output = new File(dir, (binary) ? "binary" : "text");
+            Configuration conf = data.configuration(graphDir, output.toURI().toString(), seed);
+            if (binary) {
+                conf.set("binary-output", "true");
+                Job job = Job.getInstance(conf);
+                MultipleOutputs.addNamedOutput(job, "binary", SequenceFileOutputFormat.class,
+                        RelationshipWritable.class, NullWritable.class);
+                conf = job.getConfiguration();
+            }
+            InMemoryJob<AttributeResolutionWritable, TopologyTimeSeriesWritable,
+                PairAttributeWritable, TopologyTimeSeriesWritable> job =
+                new InMemoryJob<AttributeResolutionWritable, TopologyTimeSeriesWritable,
+                    PairAttributeWritable, TopologyTimeSeriesWritable>(conf,
+                            PairAttributeWritable.class, TopologyTimeSeriesWritable.class);
+            job.map(new CorrelationMapper(), data.keys, data.values);
+            job.reduce(new CorrelationReducer(), GroupedPlanExp.noOutput);
+
+            ArrayList<String> lines = new ArrayList<String>();
+            if (binary)
+                binaryLines(conf, output, lines);
+            else
+                GroupedPlanExp.lines(output, lines);
+            Collections.sort(lines);
+            outputs.add(lines);
+        }
+        System.out.println("Reducer: " + outputs.get(0).size() + " relationships, same binary output: "
+                + outputs.get(0).equals(outputs.get(1)));
+    }
+
+    /**
+     * Writes the text and binary outputs of the synthetic relationships.
+     */
+    void generate(Configuration conf, File text, Path binary) throws IOException {
+        for (int d1 = 0; d1 < nbDatasets; d1++) {
+            for (int d2 = d1 + 1; d2 < nbDatasets; d2++) {
+                boolean related = r.nextDouble() < 0.1;
+                String pairDir = "dataset" + d1 + "-dataset" + d2;
+                for (int temporal : TEMPORAL) {
+                    for (int spatial : SPATIAL) {
+                        for (boolean isOutlier : new boolean[] {false, true}) {
+                            String resolution = resolutionDir(spatial, temporal, isOutlier);
+                            File dir = new File(text, pairDir + "/" + resolution);
+                            dir.mkdirs();
+                            BufferedWriter writer = new BufferedWriter(new FileWriter(new File(dir, "data-r-00000")));
+                            SequenceFile.Writer binaryWriter = SequenceFile.createWriter(conf,
+                                    SequenceFile.Writer.file(new Path(binary, pairDir + "/" + resolution + "/binary-r-00000")),
+                                    SequenceFile.Writer.keyClass(RelationshipWritable.class),
+                                    SequenceFile.Writer.valueClass(NullWritable.class));
+                            for (int a1 = 0; a1 < nbAttributes; a1++) {
+                                for (int a2 = 0; a2 < nbAttributes; a2++) {
+                                    float score = (float) (2*r.nextDouble() - 1);
+                                    float strength = (float) r.nextDouble();
+                                    float pValue = (related && r.nextDouble() < 0.5) ?
+                                            (float) (0.1 * r.nextDouble()) : (float) (0.1 + 0.9 * r.nextDouble());
+                                    float[] counts = new float[RelationshipWritable.NB_COUNTS];
+                                    for (int i = 0; i < counts.length; i++)
+                                        counts[i] = r.nextInt(100);
+                                    PairAttributeWritable pair = new PairAttributeWritable(a1, a2, d1, d2,
+                                            spatial, temporal, isOutlier);
+                                    RelationshipWritable relationship = new RelationshipWritable(pair,
+                                            score, strength, pValue, counts);
+                                    binaryWriter.append(relationship, NullWritable.get());
+                                    String value = score + "," + strength + "," + pValue;
+                                    for (float count : counts)
+                                        value += "," + count;
+                                    writer.write("attribute" + a1 + ",attribute" + a2 + "\t" + value + "\n");
+                                }
+                            }
+                            writer.close();
+                            binaryWriter.close();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Relationships of a data file matching a p-value (if pValue) or a
+     * minimum absolute score.
+     */
+    static int scanFile(File file, boolean pValue, float threshold) throws IOException {
+        return scanFile(file, pValue, threshold, -1, null);
+    }
+
+    /**
+     * Relationships of a data file matching a p-value (if pValue) or a
+     * minimum absolute score whose attribute at position (0 for the first
+     * one, 1 for the second one, -1 for any) is named attribute.
+     */
+    static int scanFile(File file, boolean pValue, float threshold, int position, String attribute)
+            throws IOException {
+        int count = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String line = reader.readLine();
+        while (line != null) {
+            String[] fields = line.split("\t");
+            if ((position >= 0) && !fields[0].split(",")[position].equals(attribute)) {
+                line = reader.readLine();
+                continue;
+            }
+            String[] values = fields[1].split(",");
+            if (pValue) {
+                if (Float.parseFloat(values[2]) <= threshold) count++;
+            } else {
+                if (Math.abs(Float.parseFloat(values[0])) >= threshold) count++;
+            }
+            line = reader.readLine();
+        }
+        reader.close();
+        return count;
+    }
+
+    static int scanDir(File dir, boolean pValue, float threshold) throws IOException {
+        return scanDir(dir, pValue, threshold, -1, null);
+    }
+
+    static int scanDir(File dir, boolean pValue, float threshold, int position, String attribute)
+            throws IOException {
+        int count = 0;
+        for (File file : dir.listFiles())
+            if (file.getName().startsWith("data"))
+                count += scanFile(file, pValue, threshold, position, attribute);
+        return count;
+    }
+
+    // significant relationships of an attribute of dataset, scanning the matching directories
+    int scanSignificant(File text, int dataset, String attribute, String resolution) throws IOException {
+        int count = 0;
+        String name = "dataset" + dataset;
+        for (File pairDir : text.listFiles()) {
+            String[] names = pairDir.getName().split("-");
+            File dir = new File(pairDir, resolution);
+            if (!dir.exists()) continue;
+            if (names[0].equals(name))
+                count += scanDir(dir, true, alpha, 0, attribute);
+            if (names[1].equals(name))
+                count += scanDir(dir, true, alpha, 1, attribute);
+        }
+        return count;
+    }
+
+    // significant relationships of dataset, scanning the matching directories
+    int scanSignificant(File text, int dataset, String resolution) throws IOException {
+        int count = 0;
+        String name = "dataset" + dataset;
+        for (File pairDir : text.listFiles()) {
+            String[] names = pairDir.getName().split("-");
+            if (!names[0].equals(name) && !names[1].equals(name)) continue;
+            File dir = new File(pairDir, resolution);
+            if (dir.exists())
+                count += scanDir(dir, true, alpha);
+        }
+        return count;
+    }
+
+    // significant relationships of dataset, scanning the whole output
+    int scanAllSignificant(File text, int dataset, String resolution) throws IOException {
+        int count = 0;
+        String name = "dataset" + dataset;
+        for (File pairDir : text.listFiles()) {
+            String[] names = pairDir.getName().split("-");
+            for (File dir : pairDir.listFiles()) {
+                for (File file : dir.listFiles()) {
+                    if (!file.getName().startsWith("data")) continue;
+                    // every relationship is parsed, then filtered
+                    BufferedReader reader = new BufferedReader(new FileReader(file));
+                    String line = reader.readLine();
+                    while (line != null) {
+                        String[] values = line.split("\t")[1].split(",");
+                        float p = Float.parseFloat(values[2]);
+                        if ((names[0].equals(name) || names[1].equals(name))
+                                && dir.getName().equals(resolution) && (p <= alpha))
+                            count++;
+                        line = reader.readLine();
+                    }
+                    reader.close();
+                }
+            }
+        }
+        return count;
+    }
+
+    public void run(String dataDir, int nbQueries, long seed) throws IOException, InterruptedException {
+
+        File dir = Files.createTempDirectory("relationship").toFile();
+        if (dataDir != null)
+            checkReducer(dataDir, dir, seed);
+
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+        File text = new File(dir, "text-output");
+        Path binary = new Path(new File(dir, "binary-output").toURI());
+        Path storeDir = new Path(new File(dir, "store").toURI());
+        generate(conf, text, binary);
+
+        HashMap<Integer,String> names = new HashMap<Integer,String>();
+        HashMap<Integer,HashMap<Integer,String>> attributeNames = new HashMap<Integer,HashMap<Integer,String>>();
+        for (int d = 0; d < nbDatasets; d++) {
+            names.put(d, "dataset" + d);
+            HashMap<Integer,String> datasetAttributes = new HashMap<Integer,String>();
+            for (int a = 0; a < nbAttributes; a++)
+                datasetAttributes.put(a, "attribute" + a);
+            attributeNames.put(d, datasetAttributes);
+        }
+        long st = System.nanoTime();
+        RelationshipStore.build(conf, fs, binary, storeDir, names, attributeNames);
+        long buildTime = System.nanoTime() - st;
+        long textBytes = fs.getContentSummary(new Path(text.toURI())).getLength();
+        long storeBytes = fs.getContentSummary(storeDir).getLength();
+
+        st = System.nanoTime();
+        RelationshipStore store = new RelationshipStore(fs, storeDir);
+        long openTime = System.nanoTime() - st;
+
+        System.out.println("Datasets: " + nbDatasets + ", pairs: " + nbDatasets*(nbDatasets-1)/2
+                + ", groups: " + store.getGroups().size() + ", relationships: "
+                + store.getGroups().size()*nbAttributes*nbAttributes);
+        System.out.println("Text output: " + textBytes + " bytes, store: " + storeBytes + " bytes, build: "
+                + String.format("%.0f", buildTime / 1000000.0) + " ms, open: "
+                + String.format("%.1f", openTime / 1000000.0) + " ms");
+
+        // random queries
+        int[][] queries = new int[nbQueries][];
+        for (int q = 0; q < nbQueries; q++) {
+            int d1 = r.nextInt(nbDatasets);
+            int d2 = (d1 + 1 + r.nextInt(nbDatasets - 1)) % nbDatasets;
+            queries[q] = new int[] {d1, d2, SPATIAL[r.nextInt(SPATIAL.length)], TEMPORAL[r.nextInt(TEMPORAL.length)],
+                    r.nextInt(nbAttributes)};
+        }
+        float minScore = 0.9f;
+
+        System.out.println("query\tmethod\tmsPerQuery\tresults");
+        long[] times = new long[9];
+        long[] results = new long[9];
+        // the first pass warms up the JVM and the page cache
+        for (int pass = 0; pass < 2; pass++) {
+            times = new long[9];
+            results = new long[9];
+            for (int[] query : queries) {
+                String resolution = resolutionDir(query[2], query[3], false);
+
+                st = System.nanoTime();
+                results[0] += store.significant(query[0], query[2], query[3], false, false, alpha).size();
+                times[0] += System.nanoTime() - st;
+
+                st = System.nanoTime();
+                results[1] += scanSignificant(text, query[0], resolution);
+                times[1] += System.nanoTime() - st;
+
+                st = System.nanoTime();
+                results[2] += scanAllSignificant(text, query[0], resolution);
+                times[2] += System.nanoTime() - st;
+
+                st = System.nanoTime();
+                results[3] += store.relationships(query[0], query[1], query[2], query[3], false, false, minScore).size();
+                times[3] += System.nanoTime() - st;
+
+                st = System.nanoTime();
+                String pairDir = "dataset" + Math.min(query[0], query[1]) + "-dataset" + Math.max(query[0], query[1]);
+                results[4] += scanDir(new File(text, pairDir + "/" + resolution), false, minScore);
+                times[4] += System.nanoTime() - st;
+
+                // an attribute of the first dataset, looked up by name
+                String attribute = "attribute" + query[4];
+                st = System.nanoTime();
+                int attributeId = store.getAttributeId(query[0], attribute);
+                results[5] += store.significant(query[0], attributeId, query[2], query[3], false, false, alpha).size();
+                times[5] += System.nanoTime() - st;
+
+                st = System.nanoTime();
+                results[6] += scanSignificant(text, query[0], attribute, resolution);
+                times[6] += System.nanoTime() - st;
+
+                st = System.nanoTime();
+                results[7] += store.relationships(query[0], attributeId, query[1], query[2], query[3],
+                        false, false, minScore).size();
+                times[7] += System.nanoTime() - st;
+
+                st = System.nanoTime();
+                results[8] += scanDir(new File(text, pairDir + "/" + resolution), false, minScore,
+                        (query[0] < query[1]) ? 0 : 1, attribute);
+                times[8] += System.nanoTime() - st;
+            }
+        }
+        String[][] methods = {{"significant", "store"}, {"significant", "text (directories)"},
+                {"significant", "text (full scan)"}, {"pair", "store"}, {"pair", "text (directory)"},
+                {"attribute significant", "store"}, {"attribute significant", "text (directories)"},
+                {"attribute pair", "store"}, {"attribute pair", "text (directory)"}};
+        for (int i = 0; i < methods.length; i++)
+            System.out.println(methods[i][0] + "\t" + methods[i][1] + "\t"
+                    + String.format("%.3f", times[i] / 1000000.0 / nbQueries) + "\t" + results[i]);
+        System.out.println("Same results: " + ((results[0] == results[1]) && (results[1] == results[2])
+                && (results[3] == results[4]) && (results[5] == results[6]) && (results[7] == results[8])));
+
+        store.close();
+        fs.delete(new Path(dir.toURI()), true);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        String dataDir = (args.length > 0) && !args[0].equals("-") ? args[0] : null;
+        int nbDatasets = (args.length > 1) ? Integer.parseInt(args[1]) : 30;
+        int nbAttributes = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        int nbQueries = (args.length > 3) ? Integer.parseInt(args[3]) : 20;
+        long seed = (args.length > 4) ? Long.parseLong(args[4]) : 42L;
+
+        RelationshipStoreExp exp = new RelationshipStoreExp(nbDatasets, nbAttributes, seed);
+        exp.run(dataDir, nbQueries, seed);
+    }
+}
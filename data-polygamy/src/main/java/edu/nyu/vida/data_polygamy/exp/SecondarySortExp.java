@@ -0,0 +1,242 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import edu.nyu.vida.data_polygamy.ctdata.SpatioTemporalVal;
+import edu.nyu.vida.data_polygamy.ctdata.TopologicalIndex.Attribute;
+import edu.nyu.vida.data_polygamy.feature_identification.IndexCreationReducer;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionTemporalWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.SpatioTemporalFloatWritable;
+import edu.nyu.vida.data_polygamy.utils.StageProfiler;
+
+/**
+ * Compares how the index reducer loads the values of hourly
+ * neighborhood attributes into their temporal bins:
+ *
+ *   legacy: values in map output order (AttributeResolutionWritable
+ *     keys), a DateTime and a bin lookup per value, and a sort per bin;
+ *   secondary sort: values ordered by time by the shuffle
+ *     (AttributeResolutionTemporalWritable keys), loaded in a single pass
+ *     by IndexCreationReducer.loadValues.
+ *
+ * The shuffle sort of the serialized map output is timed apart, since
+ * the secondary sort moves work from the reducer to it. Both loads must
+ * produce the same bins, sorted by time, with the same values.
+ */
+public class SecondarySortExp {
+
+    static com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static final int DATASET = 3;
+
+    // serialized map output (key, value) of the attributes
+    static ArrayList<byte[][]> mapOutput(int nbAttributes, int nv, int months, boolean composite, Random r)
+            throws IOException {
+        int start = 1420070400; // 2015-01-01
+        int end = (int) (new DateTime(((long) start) * 1000, DateTimeZone.UTC).plusMonths(months).getMillis() / 1000);
+        ArrayList<byte[][]> records = new ArrayList<byte[][]>();
+        DataOutputBuffer buffer = new DataOutputBuffer();
+        for (int time = start; time < end; time += 3600) {
+            for (int v = 0; v < nv * nbAttributes; v++) {
+                int attribute = v / nv;
+                buffer.reset();
+                if (composite)
+                    new AttributeResolutionTemporalWritable(attribute, FrameworkUtils.NBHD,
+                            FrameworkUtils.HOUR, DATASET, time, v % nv).write(buffer);
+                else
+                    new AttributeResolutionWritable(attribute, FrameworkUtils.NBHD,
+                            FrameworkUtils.HOUR, DATASET).write(buffer);
+                byte[] key = new byte[buffer.getLength()];
+                System.arraycopy(buffer.getData(), 0, key, 0, key.length);
+                buffer.reset();
+                new SpatioTemporalFloatWritable(v % nv, time, (float) (10 + (v % 40) + r.nextGaussian())).write(buffer);
+                byte[] value = new byte[buffer.getLength()];
+                System.arraycopy(buffer.getData(), 0, value, 0, value.length);
+                records.add(new byte[][] {key, value});
+            }
+        }
+        // map tasks write their outputs in any order
+        Collections.shuffle(records, new Random(r.nextLong()));
+        return records;
+    }
+
+    static long sort(ArrayList<byte[][]> records, final RawComparator<?> comparator) {
+        long st = System.nanoTime();
+        Collections.sort(records, new Comparator<byte[][]>() {
+            public int compare(byte[][] r1, byte[][] r2) {
+                return comparator.compare(r1[0], 0, r1[0].length, r2[0], 0, r2[0].length);
+            }
+        });
+        return System.nanoTime() - st;
+    }
+
+    // first record of every attribute (the attribute is the first int of both keys)
+    static ArrayList<Integer> groups(ArrayList<byte[][]> records) {
+        ArrayList<Integer> starts = new ArrayList<Integer>();
+        for (int i = 0; i < records.size(); i++) {
+            if ((i == 0) || (WritableComparator.readInt(records.get(i)[0], 0)
+                    != WritableComparator.readInt(records.get(i - 1)[0], 0)))
+                starts.add(i);
+        }
+        starts.add(records.size());
+        return starts;
+    }
+
+    // values of a reduce call, deserialized into the same object as Hadoop does
+    static Iterable<SpatioTemporalFloatWritable> values(final ArrayList<byte[][]> records,
+            final int from, final int to) {
+        return new Iterable<SpatioTemporalFloatWritable>() {
+            public Iterator<SpatioTemporalFloatWritable> iterator() {
+                final Iterator<byte[][]> it = records.subList(from, to).iterator();
+                final DataInputBuffer in = new DataInputBuffer();
+                final SpatioTemporalFloatWritable value = new SpatioTemporalFloatWritable();
+                return new Iterator<SpatioTemporalFloatWritable>() {
+                    public boolean hasNext() { return it.hasNext(); }
+                    public SpatioTemporalFloatWritable next() {
+                        byte[] bytes = it.next()[1];
+                        in.reset(bytes, bytes.length);
+                        try {
+                            value.readFields(in);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                        return value;
+                    }
+                    public void remove() {}
+                };
+            }
+        };
+    }
+
+    // the reducer before the secondary sort
+    static void legacy(Iterable<SpatioTemporalFloatWritable> values, Attribute att, int tempRes) {
+        Iterator<SpatioTemporalFloatWritable> it = values.iterator();
+        SpatioTemporalFloatWritable st;
+        DateTime date;
+        while (it.hasNext()) {
+            st = it.next();
+            int spatial = st.getSpatial();
+            int temporal = st.getTemporal();
+            float val = st.getValue();
+            att.nodeSet.add(spatial);
+            date = new DateTime(((long)temporal)*1000, DateTimeZone.UTC);
+            int hash = (tempRes == FrameworkUtils.HOUR) ? date.getYear()*100 + date.getMonthOfYear() :
+                ((tempRes == FrameworkUtils.DAY) ? date.getYear()*100 + (date.getMonthOfYear()/4) : 1);
+            ArrayList<SpatioTemporalVal> temporalBinVals = att.data.get(hash);
+            if (temporalBinVals == null)
+                temporalBinVals = new ArrayList<SpatioTemporalVal>();
+            temporalBinVals.add(new SpatioTemporalVal(spatial, temporal, val));
+            att.data.put(hash, temporalBinVals);
+        }
+        for (ArrayList<SpatioTemporalVal> stVal: att.data.values())
+            Collections.sort(stVal);
+    }
+
+    // same bins, sorted by time, with the same values at each time and space
+    static boolean same(Attribute a, Attribute b) {
+        if (!a.data.keySet().equals(b.data.keySet()) || !a.nodeSet.equals(b.nodeSet))
+            return false;
+        for (int bin : a.data.keySet()) {
+            ArrayList<SpatioTemporalVal> va = a.data.get(bin);
+            ArrayList<SpatioTemporalVal> vb = b.data.get(bin);
+            if (va.size() != vb.size())
+                return false;
+            for (int i = 1; i < vb.size(); i++) {
+                if (vb.get(i - 1).getTemporal() > vb.get(i).getTemporal())
+                    return false;
+            }
+            Comparator<SpatioTemporalVal> order = new Comparator<SpatioTemporalVal>() {
+                public int compare(SpatioTemporalVal v1, SpatioTemporalVal v2) {
+                    return (v1.getTemporal() != v2.getTemporal()) ? Integer.compare(v1.getTemporal(), v2.getTemporal())
+                            : Integer.compare(v1.getSpatial(), v2.getSpatial());
+                }
+            };
+            ArrayList<SpatioTemporalVal> sa = new ArrayList<SpatioTemporalVal>(va);
+            ArrayList<SpatioTemporalVal> sb = new ArrayList<SpatioTemporalVal>(vb);
+            Collections.sort(sa, order);
+            Collections.sort(sb, order);
+            for (int i = 0; i < sa.size(); i++) {
+                if ((sa.get(i).getSpatial() != sb.get(i).getSpatial())
+                        || (sa.get(i).getVal() != sb.get(i).getVal()))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        int nbAttributes = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        int nv = (args.length > 1) ? Integer.parseInt(args[1]) : 260;
+        int months = (args.length > 2) ? Integer.parseInt(args[2]) : 6;
+        int reps = (args.length > 3) ? Integer.parseInt(args[3]) : 3;
+        long seed = (args.length > 4) ? Long.parseLong(args[4]) : 42L;
+
+        ArrayList<byte[][]> plain = mapOutput(nbAttributes, nv, months, false, new Random(seed));
+        long plainSort = sort(plain, WritableComparator.get(AttributeResolutionWritable.class));
+        ArrayList<Integer> plainGroups = groups(plain);
+        ArrayList<byte[][]> composite = mapOutput(nbAttributes, nv, months, true, new Random(seed));
+        long compositeSort = sort(composite, new AttributeResolutionTemporalWritable.SortComparator());
+        ArrayList<Integer> compositeGroups = groups(composite);
+        System.out.println(nbAttributes + " attributes, " + nv + " neighborhoods, " + months + " months, "
+                + plain.size() + " values");
+
+        System.out.println("load\tsortMs\treduceMs\tallocatedMB\tequal");
+        long legacyTime = Long.MAX_VALUE, loadTime = Long.MAX_VALUE;
+        long legacyBytes = 0, loadBytes = 0;
+        boolean equal = (plainGroups.size() == compositeGroups.size());
+        for (int j = 0; j < reps; j++) {
+            for (int g = 0; equal && (g < plainGroups.size() - 1); g++) {
+                Attribute legacyAtt = new Attribute();
+                long bytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                long st = System.nanoTime();
+                legacy(values(plain, plainGroups.get(g), plainGroups.get(g + 1)), legacyAtt, FrameworkUtils.HOUR);
+                long time = System.nanoTime() - st;
+                bytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+                if (g == 0) {
+                    legacyTime = Math.min(legacyTime, time);
+                    legacyBytes = bytes;
+                }
+
+                Attribute att = new Attribute();
+                bytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                st = System.nanoTime();
+                IndexCreationReducer.loadValues(values(composite, compositeGroups.get(g), compositeGroups.get(g + 1)),
+                        att, FrameworkUtils.HOUR, false, new StageProfiler());
+                time = System.nanoTime() - st;
+                bytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+                if (g == 0) {
+                    loadTime = Math.min(loadTime, time);
+                    loadBytes = bytes;
+                }
+
+                equal &= same(legacyAtt, att);
+            }
+        }
+
+        // reduce time and allocation of one attribute
+        System.out.println("legacy\t" + (plainSort / 1000000) + "\t" + (legacyTime / 1000000) + "\t"
+                + String.format("%.1f", legacyBytes / 1048576.0) + "\t-");
+        System.out.println("secondary sort\t" + (compositeSort / 1000000) + "\t" + (loadTime / 1000000) + "\t"
+                + String.format("%.1f", loadBytes / 1048576.0) + "\t" + equal);
+    }
+}
@@ -0,0 +1,167 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import edu.nyu.vida.data_polygamy.ct.MergeTrees;
+import edu.nyu.vida.data_polygamy.ct.MergeTrees.TreeType;
+import edu.nyu.vida.data_polygamy.ct.Persistence;
+import edu.nyu.vida.data_polygamy.ct.ReebGraphData;
+import edu.nyu.vida.data_polygamy.ct.SimplifyFeatures;
+import edu.nyu.vida.data_polygamy.ct.SimplifyFeatures.Feature;
+import edu.nyu.vida.data_polygamy.ctdata.SpatioTemporalVal;
+import edu.nyu.vida.data_polygamy.ctdata.TimeSeries2DFunction;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.Utilities;
+
+/**
+ * Reports heap and time of merge tree output and feature simplification
+ * for a synthetic hourly function over a spatial graph, i.e., the work
+ * done by TopologicalIndex for one temporal bin at NBHD x HOUR.
+ */
+public class SimplifyFeaturesExp {
+
+    int nv;
+    int[][] edges;
+    Random r;
+
+    public SimplifyFeaturesExp(long seed) {
+        r = new Random(seed);
+    }
+
+    void loadGraph(String graphFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(graphFile));
+        String [] s = Utilities.splitString(reader.readLine().trim());
+        nv = Integer.parseInt(s[0].trim());
+        int ne = Integer.parseInt(s[1].trim());
+        edges = new int[ne][2];
+        for(int i = 0;i < ne;i ++) {
+            s = Utilities.splitString(reader.readLine().trim());
+            int v1 = Integer.parseInt(s[0].trim());
+            int v2 = Integer.parseInt(s[1].trim());
+            if(v1 == v2) {
+                continue;
+            }
+            edges[i][0] = v1;
+            edges[i][1] = v2;
+        }
+        reader.close();
+    }
+
+    // daily periodic signal with a per-region level and noise
+    ArrayList<SpatioTemporalVal> generateData(int stTime, int hours) {
+        ArrayList<SpatioTemporalVal> data = new ArrayList<SpatioTemporalVal>();
+        float[] level = new float[nv];
+        for (int v = 0; v < nv; v++)
+            level[v] = 10 + 40 * r.nextFloat();
+        for (int h = 0; h < hours; h++) {
+            double daily = Math.sin(2 * Math.PI * (h % 24) / 24.0);
+            for (int v = 0; v < nv; v++) {
+                float val = (float) (level[v] * (1 + 0.5 * daily) + 5 * r.nextGaussian());
+                data.add(new SpatioTemporalVal(v, stTime + h * 3600, val));
+            }
+        }
+        return data;
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    static long checksum(Feature[] f) {
+        long sum = 0;
+        for (int i = 0; i < f.length; i++) {
+            sum = 31 * sum + f[i].v;
+            sum = 31 * sum + Float.floatToIntBits(f[i].wt);
+            for (int j = 0; j < f[i].arcs.length; j++)
+                sum = 31 * sum + f[i].arcs.get(j);
+        }
+        return sum;
+    }
+
+    public void run(String graphFile, int hours, int trials) throws IOException {
+        loadGraph(graphFile);
+
+        int stTime = (int) (new DateTime(2011, 1, 1, 0, 0, DateTimeZone.UTC).getMillis() / 1000);
+        ArrayList<SpatioTemporalVal> data = generateData(stTime, hours);
+        IntOpenHashSet nodeSet = new IntOpenHashSet();
+        for (int v = 0; v < nv; v++)
+            nodeSet.add(v);
+        TimeSeries2DFunction tf = new TimeSeries2DFunction(data, nodeSet, edges, nv,
+                FrameworkUtils.HOUR, stTime, stTime + (hours - 1) * 3600);
+        data = null;
+
+        System.out.println("Vertices: " + tf.getVertexCount());
+        System.out.println("tree\tnodes\tfeatures\tchecksum\ttreeHeapMB\tsimplifyHeapMB\toutputMs\tsimplifyMs");
+
+        TreeType[] types = {TreeType.JoinTree, TreeType.SplitTree};
+        for (TreeType tree : types) {
+            MergeTrees ct = new MergeTrees();
+            ct.computeTree(tf, tree);
+
+            long outputTime = 0;
+            long simplifyTime = 0;
+            long treeHeap = 0;
+            long simplifyHeap = 0;
+            int nodes = 0;
+            int features = 0;
+            long sum = 0;
+
+            for (int t = 0; t < trials; t++) {
+                long base = usedHeap();
+                long st = System.nanoTime();
+                ReebGraphData rg = ct.output(tree);
+                outputTime += System.nanoTime() - st;
+                long withTree = usedHeap();
+
+                st = System.nanoTime();
+                SimplifyFeatures sim = new SimplifyFeatures();
+                sim.simplify(rg, null, new Persistence(rg), 0.01f);
+                simplifyTime += System.nanoTime() - st;
+                long withSim = usedHeap();
+
+                treeHeap += withTree - base;
+                simplifyHeap += withSim - withTree;
+                nodes = rg.noNodes;
+                features = sim.getFeatures().length;
+                sum = checksum(sim.getFeatures());
+            }
+
+            System.out.println(tree + "\t" + nodes + "\t" + features + "\t" + sum + "\t"
+                    + (treeHeap / trials / (1024.0 * 1024.0)) + "\t"
+                    + (simplifyHeap / trials / (1024.0 * 1024.0)) + "\t"
+                    + (outputTime / trials / 1000000.0) + "\t"
+                    + (simplifyTime / trials / 1000000.0));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.out.println("Usage: SimplifyFeaturesExp <graph file> [hours] [trials] [seed]");
+            System.exit(-1);
+        }
+
+        String graphFile = args[0];
+        int hours = (args.length > 1) ? Integer.parseInt(args[1]) : 24*31;
+        int trials = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        long seed = (args.length > 3) ? Long.parseLong(args[3]) : 42L;
+
+        SimplifyFeaturesExp exp = new SimplifyFeaturesExp(seed);
+        exp.run(graphFile, hours, trials);
+    }
+}
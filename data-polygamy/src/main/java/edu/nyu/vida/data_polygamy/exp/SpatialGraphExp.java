@@ -0,0 +1,320 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.Permutation;
+import edu.nyu.vida.data_polygamy.utils.SpatialGraph;
+import edu.nyu.vida.data_polygamy.utils.Utilities;
+
+/**
+ * Per shift time and allocated bytes of the random BFS shifts of
+ * SpatialGraph against the previous list-based graph, over the graphs
+ * of the data directory, checking that both draw the same shifts for
+ * the same seed.
+ */
+public class SpatialGraphExp {
+
+    static com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // previous SpatialGraph, with lists of boxed nodes
+    static class LegacySpatialGraph {
+
+        private ArrayList<ArrayList<Integer>> adjacencyList = new ArrayList<ArrayList<Integer>>();
+        private ArrayList<ArrayList<Integer>> bfsLevelArray = new ArrayList<ArrayList<Integer>>();
+        private int nbNodes = 0;
+
+        LegacySpatialGraph(String graphFile, Random random) throws IOException {
+            BufferedReader buff = new BufferedReader(new FileReader(graphFile));
+            String line = buff.readLine();
+            String [] s = Utilities.splitString(line.trim());
+            nbNodes = Integer.parseInt(s[0].trim());
+            for (int i = 0; i < nbNodes; i++)
+                adjacencyList.add(new ArrayList<Integer>());
+            line = buff.readLine();
+            while (line != null) {
+                String[] values = line.replace("\n", "").split(" ");
+                int id_1 = Integer.parseInt(values[0]);
+                int id_2 = Integer.parseInt(values[1]);
+                adjacencyList.get(id_1).add(id_2);
+                adjacencyList.get(id_2).add(id_1);
+                line = buff.readLine();
+            }
+            buff.close();
+            bfs(random.nextInt(nbNodes));
+        }
+
+        private void bfs(int node) {
+
+            Queue<Integer> queue = new ArrayDeque<Integer>();
+            HashSet<Integer> seen = new HashSet<Integer>();
+            HashMap<Integer,Integer> level = new HashMap<Integer,Integer>();
+
+            queue.add(node);
+            level.put(node, 0);
+            seen.add(node);
+            ArrayList<Integer> elem;
+            while (!queue.isEmpty()) {
+                // current node
+                int currentNode = queue.poll();
+
+                // level of current node
+                int nodeLevel = level.get(currentNode);
+
+                // update the array of levels
+                if (bfsLevelArray.size() == nodeLevel)
+                    bfsLevelArray.add(new ArrayList<Integer>());
+                elem = bfsLevelArray.get(nodeLevel);
+                elem.add(currentNode);
+                bfsLevelArray.set(nodeLevel, elem);
+
+                for (Integer neighbor: adjacencyList.get(currentNode)) {
+                    if (!seen.contains(neighbor)) {
+                        queue.add(neighbor);
+                        seen.add(neighbor);
+                        level.put(neighbor, nodeLevel + 1);
+                    }
+                }
+            }
+
+        }
+
+        private ArrayList<ArrayList<Integer>> randomBFS(Random random) {
+
+            int origin = random.nextInt(nbNodes);
+
+            Queue<Integer> queue = new ArrayDeque<Integer>();
+            int[] seen = new int[nbNodes];
+
+            ArrayList<ArrayList<Integer>> randomBFSLevelArray = new ArrayList<ArrayList<Integer>>();
+            HashMap<Integer,Integer> level = new HashMap<Integer,Integer>();
+
+            int[] leftNodes = new int[nbNodes];
+            for (int i = 0; i < nbNodes; i++) {
+                seen[i] = 0;
+                leftNodes[i] = 1;
+            }
+
+            // running BFS
+
+            queue.add(origin);
+            level.put(origin, 0);
+            seen[origin] = 1;
+            ArrayList<Integer> elem;
+            int currentLevel = -1;
+            int count = 0;
+            while (!queue.isEmpty()) {
+                // current node
+                int currentNode = queue.poll();
+
+                // node level
+                int nodeLevel = level.get(currentNode);
+
+                // current level
+                if (nodeLevel > currentLevel) {
+                    currentLevel = nodeLevel;
+                    if (bfsLevelArray.size() == currentLevel)
+                        break;
+                    count = 1;
+                    randomBFSLevelArray.add(new ArrayList<Integer>());
+                } else {
+                    // guaranteeing that the random BFS will have the same structure as the main one
+                    count++;
+                    if (count > bfsLevelArray.get(currentLevel).size())
+                        continue;
+                }
+
+                elem = randomBFSLevelArray.get(currentLevel);
+                elem.add(currentNode);
+                randomBFSLevelArray.set(currentLevel, elem);
+                leftNodes[currentNode] = 0;
+
+                int nextLevel = nodeLevel + 1;
+                if (bfsLevelArray.size() == nextLevel)
+                    continue;
+                int sizeOriginalNextLevel = bfsLevelArray.get(nextLevel).size();
+                int nodesCount = 0;
+                for (Integer neighbor: adjacencyList.get(currentNode)) {
+                    if (seen[neighbor] == 0) {
+                        if (++nodesCount > sizeOriginalNextLevel)
+                            break;
+                        queue.add(neighbor);
+                        seen[neighbor] = 1;
+                        level.put(neighbor, nextLevel);
+                    }
+                }
+            }
+
+            // filling the gaps
+
+            for (int i = 0; i < bfsLevelArray.size(); i++) {
+                if (i+1 > randomBFSLevelArray.size())
+                    randomBFSLevelArray.add(new ArrayList<Integer>());
+
+                elem = randomBFSLevelArray.get(i);
+                int sizeOriginalElem = bfsLevelArray.get(i).size();
+                int diff = sizeOriginalElem - elem.size();
+                for (int j = 0; j < diff; j++) {
+                    // start looking for neighbors in the previous level,
+                    // and keep going down in the tree to find neighbors
+                    int bfsIndex = i - 1;
+                    Integer node = 0;
+                    boolean found = false;
+                    while (!found) {
+                        for (Integer nbhd: randomBFSLevelArray.get(bfsIndex)) {
+                            for (Integer neighbor: adjacencyList.get(nbhd)) {
+                                if (leftNodes[neighbor] == 1) {
+                                    leftNodes[neighbor] = 0;
+                                    node = neighbor;
+                                    found = true;
+                                    break;
+                                }
+                            }
+                            if (found) break;
+                        }
+                        bfsIndex++;
+                        if (bfsIndex == randomBFSLevelArray.size()) {
+                            bfsIndex = 0;
+                        }
+                    }
+                    elem.add(node);
+                }
+                randomBFSLevelArray.set(i, elem);
+            }
+
+            return randomBFSLevelArray;
+
+        }
+
+        public ArrayList<Integer[]> generateRandomShift(Random random) {
+
+            ArrayList<Integer[]> result = new ArrayList<Integer[]>();
+
+            ArrayList<ArrayList<Integer>> randomBFS = this.randomBFS(random);
+            ArrayList<Integer> elem;
+            ArrayList<Integer> randomElem;
+            for (int i = 0; i < bfsLevelArray.size(); i++) {
+                elem = bfsLevelArray.get(i);
+                randomElem = randomBFS.get(i);
+                if (elem.size() != randomElem.size())
+                    System.out.println("Something is wrong...");
+                for (int j = 0; j < elem.size(); j++) {
+                    Integer[] pair = new Integer[2];
+                    pair[0] = elem.get(j);
+                    pair[1] = randomElem.get(j);
+                    result.add(pair);
+                }
+            }
+
+            return result;
+        }
+    }
+
+    static SpatialGraph loadGraph(String graphFile, String name, int resolution, long seed) throws IOException {
+        File dir = Files.createTempDirectory("graph").toFile();
+        File dest = new File(dir, name);
+        Files.copy(new File(graphFile).toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Configuration conf = new Configuration();
+        conf.set("bucket", dir.toURI().toString());
+        SpatialGraph graph = new SpatialGraph();
+        graph.setRandom(new Random(seed));
+        graph.init(resolution, conf);
+        dest.delete();
+        dir.delete();
+        return graph;
+    }
+
+    static long allocated() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static void run(String label, String graphFile, String name, int resolution,
+            int shifts, long seed) throws IOException {
+
+        long st = System.nanoTime();
+        LegacySpatialGraph legacy = new LegacySpatialGraph(graphFile, new Random(seed));
+        long legacyInit = System.nanoTime() - st;
+
+        st = System.nanoTime();
+        SpatialGraph graph = loadGraph(graphFile, name, resolution, seed);
+        long newInit = System.nanoTime() - st;
+
+        // same shifts
+        boolean identical = true;
+        Permutation permutation = new Permutation();
+        for (int j = 0; j < Math.min(shifts, 20); j++) {
+            ArrayList<Integer[]> legacyPairs = legacy.generateRandomShift(new Random(seed + j));
+            ArrayList<Integer[]> pairs = graph.generateRandomShift(new Random(seed + j));
+            graph.generateRandomShift(new Random(seed + j), permutation);
+            identical &= (legacyPairs.size() == pairs.size());
+            for (int i = 0; identical && (i < pairs.size()); i++) {
+                identical &= legacyPairs.get(i)[0].equals(pairs.get(i)[0]);
+                identical &= legacyPairs.get(i)[1].equals(pairs.get(i)[1]);
+                identical &= (permutation.get(pairs.get(i)[0]) == pairs.get(i)[1]);
+            }
+        }
+
+        long bytes = allocated();
+        st = System.nanoTime();
+        long checksum = 0;
+        for (int j = 0; j < shifts; j++)
+            checksum += legacy.generateRandomShift(new Random(seed + j)).get(0)[1];
+        long legacyTime = System.nanoTime() - st;
+        long legacyBytes = allocated() - bytes;
+
+        bytes = allocated();
+        st = System.nanoTime();
+        for (int j = 0; j < shifts; j++) {
+            graph.generateRandomShift(new Random(seed + j), permutation);
+            checksum -= permutation.get(graph.getMainOriginNode());
+        }
+        long newTime = System.nanoTime() - st;
+        long newBytes = allocated() - bytes;
+
+        System.out.println(label + "\t" + graph.nbNodes() + "\t" + identical + "\t" + (checksum == 0) + "\t"
+                + String.format("%.1f", legacyInit / 1000000.0) + "\t"
+                + String.format("%.1f", newInit / 1000000.0) + "\t"
+                + String.format("%.3f", legacyTime / 1000000.0 / shifts) + "\t"
+                + String.format("%.3f", newTime / 1000000.0 / shifts) + "\t"
+                + (legacyBytes / shifts) + "\t" + (newBytes / shifts));
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.out.println("Usage: SpatialGraphExp <data directory> [shifts] [seed]");
+            System.exit(-1);
+        }
+
+        String dir = args[0];
+        int shifts = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        long seed = (args.length > 2) ? Long.parseLong(args[2]) : 42L;
+
+        System.out.println("graph\tnodes\tidentical\tchecksum\tlegacyInitMs\tnewInitMs"
+                + "\tlegacyShiftMs\tnewShiftMs\tlegacyBytes\tnewBytes");
+        run("nbhd", new File(dir, "neighborhood-graph.txt").getPath(), "neighborhood-graph",
+                FrameworkUtils.NBHD, shifts * 10, seed);
+        run("zip", new File(dir, "zipcode-graph.txt").getPath(), "zipcode-graph",
+                FrameworkUtils.ZIP, shifts * 10, seed);
+        run("block", new File(dir, "block-graph.txt").getPath(), "block-graph",
+                FrameworkUtils.BLOCK, shifts, seed);
+    }
+}
@@ -0,0 +1,236 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import edu.nyu.vida.data_polygamy.standard_techniques.AlignedSeries;
+import edu.nyu.vida.data_polygamy.standard_techniques.SpatialSeries;
+import edu.nyu.vida.data_polygamy.standard_techniques.StreamingPearson;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.Permutation;
+import edu.nyu.vida.data_polygamy.utils.SpatialGraph;
+
+/**
+ * Spatial permutation test of the standard techniques (Pearson's
+ * correlation, as in CorrelationTechniquesReducer) on synthetic hourly
+ * series of the neighborhoods and of a grid, whose correlation structure
+ * is known:
+ *
+ *   paired: the series of both datasets in the same spatial unit are
+ *     correlated (rho), so the test should reject H0;
+ *   independent: no relationship, so the p-values should be uniform
+ *     (rejected at alpha about alpha of the time);
+ *   city-wide: both datasets follow the same city-wide signal, so the
+ *     spatial units are correlated but any pairing is, and the test
+ *     should not reject H0.
+ *
+ * Some units miss hours, some have NaN values, and some have no series in
+ * one of the datasets.
+ * Each repetition is computed with SpatialSeries and with the previous
+ * approach (a list of pairs per shift, and a merge of the times of each
+ * pair), checking that both give the same mean correlations.
+ */
+public class SpatialTechniquesExp {
+
+    static final float alpha = 0.05f;
+
+    Random r;
+    int hours;
+    StreamingPearson pearson = new StreamingPearson();
+
+    public SpatialTechniquesExp(int hours, long seed) {
+        this.hours = hours;
+        this.r = new Random(seed);
+    }
+
+    /**
+     * Series of nbUnits spatial units for both datasets.
+     */
+    AlignedSeries[][] series(int nbUnits, String kind, double rho) {
+        double[] city = new double[hours];
+        for (int h = 0; h < hours; h++)
+            city[h] = Math.sin(2 * Math.PI * (h % 24) / 24.0) + 0.5 * r.nextGaussian();
+
+        AlignedSeries[][] series = new AlignedSeries[nbUnits][2];
+        for (int u = 0; u < nbUnits; u++) {
+            series[u][0] = new AlignedSeries();
+            series[u][1] = new AlignedSeries();
+            boolean missing = (u % 7 == 0);
+            boolean noSecond = (u % 23 == 0);
+            boolean nan = (u % 11 == 0);
+            for (int h = 0; h < hours; h++) {
+                double x = r.nextGaussian();
+                double y;
+                if (kind.equals("paired"))
+                    y = rho * x + Math.sqrt(1 - rho * rho) * r.nextGaussian();
+                else if (kind.equals("independent"))
+                    y = r.nextGaussian();
+                else {
+                    x = city[h] + 0.5 * x;
+                    y = city[h] + 0.5 * r.nextGaussian();
+                }
+                if (nan && (r.nextDouble() < 0.05))
+                    x = Double.NaN;
+                if (!missing || (r.nextDouble() > 0.1))
+                    series[u][0].add(h, (float) x);
+                if (!noSecond && (!missing || (r.nextDouble() > 0.1)))
+                    series[u][1].add(h, (float) y);
+            }
+        }
+        return series;
+    }
+
+    static int[] identity(int n) {
+        int[] units = new int[n];
+        for (int i = 0; i < n; i++)
+            units[i] = i;
+        return units;
+    }
+
+    // previous approach: align the times of each pair
+    double legacyMean(AlignedSeries[][] series, ArrayList<Integer[]> pairs) {
+        double sum = 0;
+        int count = 0;
+        float[] x = new float[hours];
+        float[] y = new float[hours];
+        for (Integer[] pair : pairs) {
+            int n = AlignedSeries.alignDefined(series[pair[0]][0], series[pair[1]][1], x, y);
+            if (n < 2) continue;
+            sum += pearson.correlation(x, y, n);
+            count++;
+        }
+        return (count == 0) ? 0 : sum/count;
+    }
+
+    static ArrayList<Integer[]> pairs(Permutation permutation) {
+        ArrayList<Integer[]> pairs = new ArrayList<Integer[]>();
+        for (int i = 0; i < permutation.size(); i++) {
+            if (permutation.get(i) < 0) continue;
+            pairs.add(new Integer[] {i, permutation.get(i)});
+        }
+        return pairs;
+    }
+
+    interface Shift {
+        void draw(Random random, Permutation permutation);
+    }
+
+    /**
+     * Runs the permutation test of the series, returning the p-value and
+     * printing the observed correlation, the time per repetition of both
+     * approaches, and their largest difference.
+     */
+    double test(String label, AlignedSeries[][] series, Shift shift, int repetitions, boolean print) {
+        int nbUnits = series.length;
+        SpatialSeries spatialSeries = new SpatialSeries();
+        if (!spatialSeries.init(series, identity(nbUnits), nbUnits)) {
+            System.out.println("Something went wrong... The series of " + label + " are too large or too sparse.");
+            System.exit(-1);
+        }
+
+        int[] targets = new int[nbUnits];
+        for (int i = 0; i < nbUnits; i++)
+            targets[i] = i;
+        double observed = spatialSeries.meanCorrelation(targets);
+
+        // shifts drawn once, as in the reducer
+        Permutation permutation = new Permutation();
+        int[][] shifts = new int[repetitions][];
+        for (int j = 0; j < repetitions; j++) {
+            shift.draw(r, permutation);
+            shifts[j] = java.util.Arrays.copyOf(permutation.getTargets(), permutation.size());
+        }
+
+        double pValue = 0;
+        long start = System.nanoTime();
+        for (int j = 0; j < repetitions; j++) {
+            for (int i = 0; i < nbUnits; i++) {
+                int target = (i < shifts[j].length) ? shifts[j][i] : -1;
+                targets[i] = (target < 0) ? -1 : spatialSeries.row(target);
+            }
+            double mcCorr = spatialSeries.meanCorrelation(targets);
+            if (observed > 0) {
+                if (mcCorr >= observed) pValue += 1;
+            } else {
+                if (mcCorr <= observed) pValue += 1;
+            }
+        }
+        long time = System.nanoTime() - start;
+        pValue /= repetitions;
+        if (!print)
+            return pValue;
+
+        double maxDiff = 0;
+        start = System.nanoTime();
+        for (int j = 0; j < repetitions; j++) {
+            Permutation p = new Permutation(shifts[j].length);
+            for (int i = 0; i < shifts[j].length; i++)
+                p.set(i, shifts[j][i]);
+            double legacy = legacyMean(series, pairs(p));
+            for (int i = 0; i < nbUnits; i++) {
+                int target = (i < shifts[j].length) ? shifts[j][i] : -1;
+                targets[i] = (target < 0) ? -1 : spatialSeries.row(target);
+            }
+            maxDiff = Math.max(maxDiff, Math.abs(legacy - spatialSeries.meanCorrelation(targets)));
+        }
+        long legacyTime = System.nanoTime() - start - time;
+
+        System.out.println(label + "\t" + nbUnits + "\t" + String.format("%.3f", observed) + "\t"
+                + String.format("%.3f", pValue) + "\t"
+                + String.format("%.3f", Math.max(0, legacyTime) / 1000000.0 / repetitions) + "\t"
+                + String.format("%.3f", time / 1000000.0 / repetitions) + "\t"
+                + String.format("%.1e", maxDiff));
+        return pValue;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.out.println("Usage: SpatialTechniquesExp <data directory> [hours] [repetitions] [tests] [seed]");
+            System.exit(-1);
+        }
+
+        String dir = args[0];
+        int hours = (args.length > 1) ? Integer.parseInt(args[1]) : 24 * 30;
+        int repetitions = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+        int tests = (args.length > 3) ? Integer.parseInt(args[3]) : 40;
+        long seed = (args.length > 4) ? Long.parseLong(args[4]) : 42L;
+
+        SpatialTechniquesExp exp = new SpatialTechniquesExp(hours, seed);
+
+        final SpatialGraph graph = SpatialGraphExp.loadGraph(new File(dir, "neighborhood-graph.txt").getPath(),
+                "neighborhood-graph", FrameworkUtils.NBHD, seed);
+        final int gridSize = 16;
+        Shift bfsShift = new Shift() {
+            public void draw(Random random, Permutation permutation) {
+                graph.generateRandomShift(random, permutation);
+            }
+        };
+        Shift toroidalShift = new Shift() {
+            public void draw(Random random, Permutation permutation) {
+                permutation.toroidalShift(gridSize, random);
+            }
+        };
+
+        System.out.println(hours + " hours, " + repetitions + " repetitions");
+        System.out.println("series\tunits\tcorr\tp-value\tlegacyMsPerRep\tnewMsPerRep\tmaxDiff");
+        String[] kinds = {"paired", "independent", "city-wide"};
+        for (String kind : kinds) {
+            exp.test("nbhd " + kind, exp.series(graph.nbNodes(), kind, 0.3), bfsShift, repetitions, true);
+            exp.test("grid " + kind, exp.series(gridSize * gridSize, kind, 0.3), toroidalShift, repetitions, true);
+        }
+
+        // under H0, the rate of rejection should be about alpha
+        int rejected = 0;
+        for (int t = 0; t < tests; t++) {
+            if (exp.test("", exp.series(graph.nbNodes(), "independent", 0), bfsShift, repetitions, false) <= alpha)
+                rejected++;
+        }
+        System.out.println("independent nbhd series rejected at " + alpha + ": " + rejected + " of " + tests);
+    }
+}
@@ -0,0 +1,202 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationMapper;
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationReducer;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.LocalEngine;
+import edu.nyu.vida.data_polygamy.utils.StageProfiler.ProfileCounter;
+
+/**
+ * Overhead of StageProfiler: runs the aggregation job (AggregationMapper)
+ * and the relationship job (CorrelationReducer) with LocalEngine, with the
+ * profiler disabled, with the counters, and with the per-key profile
+ * files, and prints the time of every setting and the counters of the
+ * profiler.
+ *
+ * The settings are run in turns, so that the warm-up of the JVM does not
+ * favor any of them.
+ */
+public class StageProfilerExp {
+
+    static final String[] settings = {"disabled", "counters", "keys"};
+
+    int runs;
+    File dir;
+
+    public StageProfilerExp(int runs) {
+        this.runs = runs;
+    }
+
+    static void profile(Configuration conf, int setting, File dir) {
+        if (setting > 0)
+            conf.setBoolean("profile", true);
+        if (setting > 1)
+            conf.set("profile-dir", new File(dir, "profiles").toURI().toString());
+    }
+
+    static String counters(Counters counters) {
+        String str = "";
+        for (ProfileCounter counter : ProfileCounter.values()) {
+            long value = counters.findCounter(counter).getValue();
+            if (value > 0)
+                str += " " + counter.toString().toLowerCase() + "=" + value;
+        }
+        return str;
+    }
+
+    static Job relationshipJob(Configuration conf, File index, File output) throws IOException {
+        Job job = Job.getInstance(conf);
+        job.setJobName("relationship-restricted");
+        job.setMapOutputKeyClass(PairAttributeWritable.class);
+        job.setMapOutputValueClass(TopologyTimeSeriesWritable.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        job.setMapperClass(CorrelationMapper.class);
+        job.setReducerClass(CorrelationReducer.class);
+        job.setNumReduceTasks(1);
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+        FileInputFormat.setInputDirRecursive(job, true);
+        FileInputFormat.setInputPaths(job, new Path(new File(index, "dataset0").toURI()),
+                new Path(new File(index, "dataset1").toURI()));
+        FileOutputFormat.setOutputPath(job, new Path(output.toURI()));
+        return job;
+    }
+
+    /**
+     * Lines of the profile files.
+     */
+    static int profileLines(File dir) throws IOException {
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+        Path path = new Path(new File(dir, "profiles").toURI());
+        if (!fs.exists(path))
+            return 0;
+        int lines = 0;
+        for (FileStatus status : fs.listStatus(path)) {
+            if (status.getPath().getName().startsWith(".")) continue;
+            BufferedReader reader = new BufferedReader(new FileReader(new File(status.getPath().toUri())));
+            while (reader.readLine() != null)
+                lines++;
+            reader.close();
+        }
+        fs.delete(path, true);
+        return lines;
+    }
+
+    void report(String stage, long[] time, Counters[] counters, int[] lines) {
+        for (int s = 0; s < settings.length; s++) {
+            System.out.println(stage + "\t" + settings[s] + "\t"
+                    + String.format("%.1f", time[s] / 1000000.0 / runs) + " ms\t"
+                    + String.format("%+.1f%%", 100.0 * (time[s] - time[0]) / time[0]) + "\t"
+                    + lines[s] + " profile lines\t" + counters(counters[s]));
+        }
+    }
+
+    void aggregation(LocalEngineExp data, File input) throws Exception {
+        long[] time = new long[settings.length];
+        Counters[] counters = new Counters[settings.length];
+        int[] lines = new int[settings.length];
+        int n = 0;
+        for (int r = 0; r < runs; r++) {
+            for (int s = 0; s < settings.length; s++) {
+                Job job = data.job(input, new File(dir, "aggregates" + (n++)), true, 1);
+                profile(job.getConfiguration(), s, dir);
+                long start = System.nanoTime();
+                counters[s] = LocalEngine.run(job, 1);
+                time[s] += System.nanoTime() - start;
+                lines[s] = profileLines(dir);
+            }
+        }
+        report("aggregation", time, counters, lines);
+    }
+
+    void relationship(GroupedPlanExp data, String graphDir, File index, long seed) throws Exception {
+        long[] time = new long[settings.length];
+        Counters[] counters = new Counters[settings.length];
+        int[] lines = new int[settings.length];
+        int n = 0;
+        for (int r = 0; r < runs; r++) {
+            for (int s = 0; s < settings.length; s++) {
+                Configuration conf = data.configuration(graphDir,
+                        new File(dir, "relationships" + n).toURI().toString(), seed);
+                profile(conf, s, dir);
+                Job job = relationshipJob(conf, index, new File(dir, "relationships" + (n++)));
+                long start = System.nanoTime();
+                counters[s] = LocalEngine.run(job, 1);
+                time[s] += System.nanoTime() - start;
+                lines[s] = profileLines(dir);
+            }
+        }
+        report("relationship", time, counters, lines);
+    }
+
+    public void run(String dataDir, long seed) throws Exception {
+
+        dir = Files.createTempDirectory("stage-profiler").toFile();
+
+        // aggregation job, on synthetic pre-processing output
+        LocalEngineExp aggregates = new LocalEngineExp(2, 50, 60, seed);
+        File input = new File(dir, "pre-processing");
+        aggregates.generate(new Configuration(), input);
+
+        // relationship job, on synthetic indices of two datasets
+        String[][] graphs = {{"neighborhood-graph.txt", "neighborhood-graph"},
+                {"zipcode-graph.txt", "zipcode-graph"}, {"block-graph.txt", "block-graph"}};
+        for (String[] graph : graphs)
+            Files.copy(new File(dataDir, graph[0]).toPath(), new File(dir, graph[1]).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        BufferedReader reader = new BufferedReader(new FileReader(new File(dataDir, "neighborhood-graph.txt")));
+        int nbhds = Integer.parseInt(reader.readLine().trim().split("\\s+")[0]);
+        reader.close();
+        RelationshipServerExp relationships = new RelationshipServerExp(4, 365, seed);
+        relationships.data.generate(nbhds);
+        File index = new File(dir, "index");
+        relationships.writeIndex(new Configuration(), index);
+
+        System.out.println("stage\tsetting\ttime per run\toverhead\tprofile\tcounters");
+        aggregation(aggregates, input);
+        relationship(relationships.data, dir.toURI().toString(), index, seed);
+
+        FileSystem.getLocal(new Configuration()).delete(new Path(dir.toURI()), true);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 1) {
+            System.out.println("Usage: StageProfilerExp <data directory> [runs] [seed]");
+            System.exit(-1);
+        }
+
+        int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        long seed = (args.length > 2) ? Long.parseLong(args[2]) : 42L;
+
+        StageProfilerExp exp = new StageProfilerExp(runs);
+        exp.run(args[0], seed);
+    }
+}
@@ -180,7 +180,7 @@ public class StandaloneExp {
         return na;
 	}
 	
-	public TopologicalIndex createIndex(Attribute na, int spatialRes, int nv, int[][] edges) {
+	public TopologicalIndex createIndex(Attribute na, int spatialRes, int nv, int[][] edges) throws IOException {
         
 	    TopologicalIndex index = new TopologicalIndex(
                 spatialRes, FrameworkUtils.HOUR, nv);
@@ -190,7 +190,7 @@ public class StandaloneExp {
         return index;
     }
 	
-    public void test1d(int noMonths, String dataFile) {
+    public void test1d(int noMonths, String dataFile) throws IOException {
         load1DData(dataFile);
         int[][] edges = new int[0][0];
         int spatialRes = FrameworkUtils.CITY;
@@ -0,0 +1,200 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import edu.nyu.vida.data_polygamy.standard_techniques.AlignedSeries;
+import edu.nyu.vida.data_polygamy.standard_techniques.StreamingPearson;
+
+/**
+ * Compares the Pearson's correlation of CorrelationTechniquesReducer on
+ * TreeMap series (intersection into lists, copies into double arrays and
+ * PearsonsCorrelation of commons-math, for every repetition) with the
+ * correlation on AlignedSeries aligned once, computed by StreamingPearson
+ * over rotations, for hourly city series and the temporal permutations of
+ * the Monte Carlo test.
+ *
+ * Both use the same rotations; the correlations must be the same up to
+ * floating-point error. The values are read in random order, with
+ * repeated times, so the last value of a time must be kept by both.
+ */
+public class StreamingPearsonExp {
+
+    static int repetitions = 1000;
+
+    Random r;
+    int[][] times = new int[2][];
+    float[][] values = new float[2][];
+
+    public StreamingPearsonExp(long seed) {
+        r = new Random(seed);
+    }
+
+    /**
+     * Hourly values of two datasets, the second starting a month later,
+     * with some missing hours, some repeated hours and some constant runs.
+     */
+    void generate(int hours) {
+        int start = (int) (new DateTime(2011, 1, 1, 0, 0, DateTimeZone.UTC).getMillis() / 1000);
+        for (int d = 0; d < 2; d++) {
+            int offset = (d == 0) ? 0 : 24 * 31;
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            ArrayList<Float> v = new ArrayList<Float>();
+            for (int h = 0; h < hours; h++) {
+                if (r.nextDouble() < 0.05) continue;
+                int time = start + (h + offset) * 3600;
+                float value = (float) (Math.sin(h / 24.0) * 50 + r.nextGaussian() * 10 + d * 5);
+                t.add(time);
+                v.add(value);
+                if (r.nextDouble() < 0.01) {
+                    t.add(time);
+                    v.add(value + 1);
+                }
+            }
+            // random order, keeping the order of the values of a time
+            int[] order = new int[t.size()];
+            for (int i = 0; i < order.length; i++)
+                order[i] = i;
+            for (int i = order.length - 1; i > 0; i--) {
+                int j = r.nextInt(i + 1);
+                if (t.get(order[i]).equals(t.get(order[j]))) continue;
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+            times[d] = new int[order.length];
+            values[d] = new float[order.length];
+            for (int i = 0; i < order.length; i++) {
+                times[d][i] = t.get(order[i]);
+                values[d][i] = v.get(order[i]);
+            }
+        }
+    }
+
+    /**
+     * Previous version: TreeMap series, and the intersection and the
+     * copies for every repetition.
+     */
+    double[] treeMap(int[] shifts1, int[] shifts2) {
+        ArrayList<TreeMap<Integer, Float>> series = new ArrayList<TreeMap<Integer, Float>>();
+        for (int d = 0; d < 2; d++) {
+            TreeMap<Integer, Float> map = new TreeMap<Integer, Float>();
+            for (int i = 0; i < times[d].length; i++)
+                map.put(times[d][i], values[d][i]);
+            series.add(map);
+        }
+        TreeMap<Integer, Float> map1 = series.get(0);
+        TreeMap<Integer, Float> map2 = series.get(1);
+
+        double[] corr = new double[repetitions];
+        for (int rep = 0; rep < repetitions; rep++) {
+            ArrayList<Double> array1 = new ArrayList<Double>();
+            ArrayList<Double> array2 = new ArrayList<Double>();
+            for (int temp : map1.keySet()) {
+                if (map2.containsKey(temp)) {
+                    array1.add((double) map1.get(temp));
+                    array2.add((double) map2.get(temp));
+                }
+            }
+            double[] tempDoubleArray1 = new double[array1.size()];
+            double[] tempDoubleArray2 = new double[array2.size()];
+            int indexD1 = shifts1[rep] % array1.size();
+            int indexD2 = shifts2[rep] % array2.size();
+            for (int i = 0; i < array1.size(); i++) {
+                tempDoubleArray1[i] = array1.get((indexD1 + i) % array1.size());
+                tempDoubleArray2[i] = array2.get((indexD2 + i) % array2.size());
+            }
+            corr[rep] = new PearsonsCorrelation().correlation(tempDoubleArray1, tempDoubleArray2);
+        }
+        return corr;
+    }
+
+    /**
+     * Current version: primitive series aligned once, and the streaming
+     * correlation over the rotations.
+     */
+    double[] aligned(int[] shifts1, int[] shifts2) {
+        AlignedSeries[] series = new AlignedSeries[2];
+        for (int d = 0; d < 2; d++) {
+            series[d] = new AlignedSeries();
+            for (int i = 0; i < times[d].length; i++)
+                series[d].add(times[d][i], values[d][i]);
+            series[d].sort();
+        }
+        int capacity = Math.min(series[0].size, series[1].size);
+        float[] x = new float[capacity];
+        float[] y = new float[capacity];
+        int n = AlignedSeries.align(series[0], series[1], x, y);
+
+        StreamingPearson pearson = new StreamingPearson();
+        double[] corr = new double[repetitions];
+        for (int rep = 0; rep < repetitions; rep++)
+            corr[rep] = pearson.correlation(x, shifts1[rep] % n, y, shifts2[rep] % n, n);
+        return corr;
+    }
+
+    public void run(int hours, int runs) {
+        generate(hours);
+        int[] shifts1 = new int[repetitions];
+        int[] shifts2 = new int[repetitions];
+        for (int i = 0; i < repetitions; i++) {
+            shifts1[i] = (i == 0) ? 0 : r.nextInt(Integer.MAX_VALUE);
+            shifts2[i] = (i == 0) ? 0 : r.nextInt(Integer.MAX_VALUE);
+        }
+        System.out.println("Hours: " + hours + ", values: " + times[0].length + " and " + times[1].length
+                + ", repetitions: " + repetitions);
+
+        // warm-up
+        double[] expected = treeMap(shifts1, shifts2);
+        double[] actual = aligned(shifts1, shifts2);
+
+        long treeMapTime = 0, alignedTime = 0;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            expected = treeMap(shifts1, shifts2);
+            treeMapTime += System.nanoTime() - start;
+            start = System.nanoTime();
+            actual = aligned(shifts1, shifts2);
+            alignedTime += System.nanoTime() - start;
+        }
+
+        double maxError = 0;
+        for (int i = 0; i < repetitions; i++)
+            maxError = Math.max(maxError, Math.abs(expected[i] - actual[i]));
+
+        System.out.println("version\tms per attribute pair");
+        System.out.println("treemap\t" + String.format("%.2f", treeMapTime / 1000000.0 / runs));
+        System.out.println("aligned\t" + String.format("%.2f", alignedTime / 1000000.0 / runs));
+        System.out.println("speedup\t" + String.format("%.1fx", treeMapTime / (double) alignedTime));
+        System.out.println("correlation (no permutation)\t" + expected[0] + "\t" + actual[0]);
+        System.out.println("max difference\t" + maxError);
+
+        // constant series: NaN in both
+        double[] constant = {1, 1, 1, 1};
+        double[] varying = {1, 2, 3, 5};
+        float[] constantF = {1, 1, 1, 1};
+        float[] varyingF = {1, 2, 3, 5};
+        StreamingPearson pearson = new StreamingPearson();
+        System.out.println("constant series\t" + new PearsonsCorrelation().correlation(constant, varying)
+                + "\t" + pearson.correlation(constantF, varyingF, 4) + "\t"
+                + new PearsonsCorrelation().correlation(varying, constant)
+                + "\t" + pearson.correlation(varyingF, constantF, 4));
+    }
+
+    public static void main(String[] args) {
+        int hours = (args.length > 0) ? Integer.parseInt(args[0]) : 24 * 365;
+        int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        long seed = (args.length > 2) ? Long.parseLong(args[2]) : 42L;
+
+        StreamingPearsonExp exp = new StreamingPearsonExp(seed);
+        exp.run(hours, runs);
+    }
+}
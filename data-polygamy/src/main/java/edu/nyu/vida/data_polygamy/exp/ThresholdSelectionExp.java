@@ -0,0 +1,134 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.math3.exception.ConvergenceException;
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+
+import edu.nyu.vida.data_polygamy.ctdata.TopologicalIndex;
+
+/**
+ * Compares the exact 1D two-cluster threshold selection and the
+ * selection-based IQR threshold of TopologicalIndex against the
+ * KMeans++ clusterer and DescriptiveStatistics, both in value and runtime.
+ */
+public class ThresholdSelectionExp {
+
+    Random r;
+
+    public ThresholdSelectionExp(long seed) {
+        r = new Random(seed);
+    }
+
+    // persistence values: a lot of low persistence noise and a few strong features
+    double[] generatePersistence(int n) {
+        double[] wts = new double[n];
+        int strong = Math.max(1, n/20);
+        for (int i = 0; i < n; i++) {
+            if (i < strong)
+                wts[i] = 50 + 25 * r.nextGaussian();
+            else
+                wts[i] = -Math.log(1 - r.nextDouble()) * 5;
+            wts[i] = Math.abs(wts[i]);
+        }
+        return wts;
+    }
+
+    static double withinSS(double[] wts, double th) {
+        double sLow = 0, sHigh = 0;
+        int nLow = 0, nHigh = 0;
+        for (double w : wts) {
+            if (w >= th) { sHigh += w; nHigh++; }
+            else { sLow += w; nLow++; }
+        }
+        double mLow = (nLow > 0) ? sLow/nLow : 0;
+        double mHigh = (nHigh > 0) ? sHigh/nHigh : 0;
+        double ss = 0;
+        for (double w : wts) {
+            double d = (w >= th) ? w - mHigh : w - mLow;
+            ss += d*d;
+        }
+        return ss;
+    }
+
+    public void run(int[] sizes, int trials) {
+
+        System.out.println("n\ttrials\tagree\tkmeansWorse\texactMs\tkmeansMs\tiqrMaxDiff\tselectMs\tdescStatsMs");
+
+        for (int n : sizes) {
+            int agree = 0;
+            int kmeansWorse = 0;
+            long exactTime = 0L;
+            long kmeansTime = 0L;
+            long selectTime = 0L;
+            long descStatsTime = 0L;
+            double iqrMaxDiff = 0;
+
+            for (int t = 0; t < trials; t++) {
+                double[] wts = generatePersistence(n);
+
+                long st = System.nanoTime();
+                double exact = TopologicalIndex.getThreshold(wts);
+                exactTime += System.nanoTime() - st;
+
+                double kmeans;
+                st = System.nanoTime();
+                try {
+                    kmeans = TopologicalIndex.getKMeansThreshold(wts);
+                } catch (ConvergenceException e) {
+                    kmeans = Double.NaN;
+                }
+                kmeansTime += System.nanoTime() - st;
+
+                if (exact == kmeans)
+                    agree++;
+                else if (Double.isNaN(kmeans) || (withinSS(wts, kmeans) > withinSS(wts, exact)))
+                    kmeansWorse++;
+
+                for (boolean min : new boolean[] {true, false}) {
+                    double[] work = Arrays.copyOf(wts, n);
+                    st = System.nanoTime();
+                    double selected = TopologicalIndex.iqOutlierTh(work, min);
+                    selectTime += System.nanoTime() - st;
+
+                    st = System.nanoTime();
+                    double expected = descStatsIqOutlierTh(wts, min);
+                    descStatsTime += System.nanoTime() - st;
+
+                    iqrMaxDiff = Math.max(iqrMaxDiff, Math.abs(selected - expected));
+                }
+            }
+
+            System.out.println(n + "\t" + trials + "\t" + agree + "\t" + kmeansWorse + "\t"
+                    + (exactTime/1000000.0) + "\t" + (kmeansTime/1000000.0) + "\t"
+                    + iqrMaxDiff + "\t" + (selectTime/1000000.0) + "\t" + (descStatsTime/1000000.0));
+        }
+    }
+
+    // previous IQR threshold, based on a full sort
+    static double descStatsIqOutlierTh(double[] vals, boolean min) {
+        double[] sorted = Arrays.copyOf(vals, vals.length);
+        Arrays.sort(sorted);
+        DescriptiveStatistics ds = new DescriptiveStatistics(sorted);
+        double fq = ds.getPercentile(25);
+        double tq = ds.getPercentile(75);
+        double iqr = tq - fq;
+        if (min)
+            return (fq - 1.5 * iqr) - TopologicalIndex.epsilon;
+        return (tq + 1.5 * iqr) + TopologicalIndex.epsilon;
+    }
+
+    public static void main(String[] args) {
+
+        int trials = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        long seed = (args.length > 1) ? Long.parseLong(args[1]) : 42L;
+        int[] sizes = {2, 10, 100, 1000, 10000};
+
+        ThresholdSelectionExp exp = new ThresholdSelectionExp(seed);
+        exp.run(sizes, trials);
+    }
+}
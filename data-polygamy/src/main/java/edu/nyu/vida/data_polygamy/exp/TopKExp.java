@@ -0,0 +1,243 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.exp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationReducer.PermutationCounter;
+import edu.nyu.vida.data_polygamy.relationship_computation.GroupedCorrelationMapper;
+import edu.nyu.vida.data_polygamy.relationship_computation.GroupedCorrelationReducer;
+import edu.nyu.vida.data_polygamy.relationship_computation.TopKRelationships.TopKCounter;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.DatasetPairWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+
+/**
+ * Compares the top-k query of the relationship job with the exhaustive
+ * path (every pair of attributes tested, then the k strongest significant
+ * relationships selected from the output), on two synthetic datasets.
+ *
+ * Attributes have different event rates, and some attributes of the
+ * second dataset copy the events of an attribute of the first one, so the
+ * strengths of the pairs spread over [0, 1]. Reports the pairs evaluated
+ * and tested, the reduce time, and whether both paths give the same
+ * relationships.
+ */
+public class TopKExp {
+
+    static final float alpha = 0.05f;
+
+    int nbAttributes;
+    int days;
+    Random r;
+
+    ArrayList<AttributeResolutionWritable> keys = new ArrayList<AttributeResolutionWritable>();
+    ArrayList<TopologyTimeSeriesWritable> values = new ArrayList<TopologyTimeSeriesWritable>();
+
+    public TopKExp(int nbAttributes, int days, long seed) {
+        this.nbAttributes = nbAttributes;
+        this.days = days;
+        this.r = new Random(seed);
+    }
+
+    byte randomEvent(double rate) {
+        double p = r.nextDouble();
+        return (p < rate/2) ? FrameworkUtils.positiveEvent :
+            (p < rate) ? FrameworkUtils.negativeEvent : FrameworkUtils.nonEvent;
+    }
+
+    // attribute a has an event rate between 0.02 and 0.3; one attribute of
+    //   the second dataset out of three copies the events of the same
+    //   attribute of the first dataset with a random probability
+    void generate(int nbhds) {
+        int start = (int) (new DateTime(2011, 1, 1, 0, 0, DateTimeZone.UTC).getMillis() / 1000);
+        int end = start + (days - 1) * 86400;
+        double[][] rates = new double[2][nbAttributes];
+        double[] copy = new double[nbAttributes];
+        for (int a = 0; a < nbAttributes; a++) {
+            rates[0][a] = 0.02 + 0.28 * r.nextDouble();
+            rates[1][a] = 0.02 + 0.28 * r.nextDouble();
+            copy[a] = (a % 3 == 0) ? r.nextDouble() : 0;
+        }
+        for (int spatial : new int[] {FrameworkUtils.NBHD, FrameworkUtils.CITY}) {
+            int units = (spatial == FrameworkUtils.NBHD) ? nbhds : 1;
+            for (int v = 0; v < units; v++) {
+                byte[][] events0 = new byte[nbAttributes][days];
+                for (int a = 0; a < nbAttributes; a++) {
+                    byte[] events1 = new byte[days];
+                    for (int i = 0; i < days; i++) {
+                        events0[a][i] = randomEvent(rates[0][a]);
+                        events1[i] = (r.nextDouble() < copy[a]) ? events0[a][i] : randomEvent(rates[1][a]);
+                    }
+                    keys.add(new AttributeResolutionWritable(a, spatial, FrameworkUtils.DAY, 0));
+                    values.add(new TopologyTimeSeriesWritable(v, 0, events0[a], start, end, false));
+                    keys.add(new AttributeResolutionWritable(a, spatial, FrameworkUtils.DAY, 1));
+                    values.add(new TopologyTimeSeriesWritable(v, 1, events1, start, end, false));
+                }
+            }
+        }
+    }
+
+    Configuration configuration(String graphDir, String output, long seed, int k) {
+        Configuration conf = new Configuration();
+        String agg = "";
+        for (int a = 0; a < nbAttributes; a++)
+            agg += a + "-attribute" + a + ",";
+        for (int d = 0; d < 2; d++) {
+            conf.set("dataset-" + d + "-agg", agg.substring(0, agg.length()-1));
+            conf.set("dataset-" + d + "-agg-size", String.valueOf(nbAttributes));
+        }
+        conf.set("dataset-keys", "0,1");
+        conf.set("dataset-names", "dataset0,dataset1");
+        conf.set("first-group", "0");
+        conf.set("second-group", "1");
+        conf.set("tmp", "false");
+        conf.set("complete-random", "false");
+        conf.set("complete-random-str", "restricted");
+        conf.set("remove-not-significant", "false");
+        conf.set("random-seed", String.valueOf(seed));
+        conf.set("bucket", graphDir);
+        conf.set("mapreduce.output.fileoutputformat.outputdir", output);
+        if (k > 0)
+            conf.setInt("top-k", k);
+        return conf;
+    }
+
+    /**
+     * Runs the grouped plan and returns the relationships it writes.
+     */
+    ArrayList<String> run(String graphDir, File output, long seed, int k)
+            throws IOException, InterruptedException {
+
+        Configuration conf = configuration(graphDir, output.toURI().toString(), seed, k);
+        InMemoryJob<AttributeResolutionWritable, TopologyTimeSeriesWritable,
+            DatasetPairWritable, AttributeTimeSeriesWritable> job =
+            new InMemoryJob<AttributeResolutionWritable, TopologyTimeSeriesWritable,
+                DatasetPairWritable, AttributeTimeSeriesWritable>(conf,
+                        DatasetPairWritable.class, AttributeTimeSeriesWritable.class);
+        job.map(new GroupedCorrelationMapper(), keys, values);
+        job.reduce(new GroupedCorrelationReducer(), GroupedPlanExp.noOutput);
+
+        ArrayList<String> lines = new ArrayList<String>();
+        GroupedPlanExp.lines(output, lines);
+
+        Counters counters = job.counters;
+        long tests = counters.findCounter(PermutationCounter.TESTS).getValue();
+        // the exhaustive path evaluates every pair, at both resolutions
+        long evaluated = (k > 0) ?
+                counters.findCounter(TopKCounter.EVALUATED).getValue() : 2*nbAttributes*nbAttributes;
+        System.out.println(((k > 0) ? "top-k" : "exhaustive") + "\t" + evaluated + "\t" + tests + "\t"
+                + String.format("%.0f", job.reduceTime / 1000000.0) + "\t" + lines.size());
+        return lines;
+    }
+
+    static int attribute(String name) {
+        return Integer.parseInt(name.substring("attribute".length()));
+    }
+
+    /**
+     * The k strongest significant relationships of every directory of the
+     * output, with the order of the top-k query.
+     */
+    static ArrayList<String> topK(ArrayList<String> lines, int k) {
+        TreeMap<String,ArrayList<String[]>> dirs = new TreeMap<String,ArrayList<String[]>>();
+        for (String line : lines) {
+            String dir = line.substring(0, line.indexOf('/'));
+            String[] fields = line.substring(line.indexOf('/') + 1).split("\t");
+            String[] values = fields[1].split(",");
+            if (Float.parseFloat(values[2]) > alpha) continue;
+            String[] attributes = fields[0].split(",");
+            ArrayList<String[]> list = dirs.get(dir);
+            if (list == null) {
+                list = new ArrayList<String[]>();
+                dirs.put(dir, list);
+            }
+            list.add(new String[] {values[1], attributes[0], attributes[1], line});
+        }
+        ArrayList<String> output = new ArrayList<String>();
+        for (ArrayList<String[]> list : dirs.values()) {
+            Collections.sort(list, new Comparator<String[]>() {
+                public int compare(String[] l1, String[] l2) {
+                    int c = Float.compare(Float.parseFloat(l2[0]), Float.parseFloat(l1[0]));
+                    if (c != 0) return c;
+                    c = Integer.compare(attribute(l1[1]), attribute(l2[1]));
+                    if (c != 0) return c;
+                    return Integer.compare(attribute(l1[2]), attribute(l2[2]));
+                }
+            });
+            for (int i = 0; i < Math.min(k, list.size()); i++)
+                output.add(list.get(i)[3]);
+        }
+        return output;
+    }
+
+    public void run(String dataDir, long seed, int k) throws IOException, InterruptedException {
+
+        // graphs, as expected by the reducers
+        File dir = Files.createTempDirectory("relationship").toFile();
+        String[][] graphs = {{"neighborhood-graph.txt", "neighborhood-graph"},
+                {"zipcode-graph.txt", "zipcode-graph"}, {"block-graph.txt", "block-graph"}};
+        for (String[] graph : graphs)
+            Files.copy(new File(dataDir, graph[0]).toPath(), new File(dir, graph[1]).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        String graphDir = dir.toURI().toString();
+        BufferedReader reader = new BufferedReader(new FileReader(new File(dataDir, "neighborhood-graph.txt")));
+        int nbhds = Integer.parseInt(reader.readLine().trim().split("\\s+")[0]);
+        reader.close();
+
+        generate(nbhds);
+        System.out.println("Attributes: " + nbAttributes + " x " + nbAttributes + ", days: " + days
+                + ", k: " + k);
+        System.out.println("path\tevaluated\ttested\treduceMs\trelationships");
+
+        ArrayList<String> exhaustive = topK(run(graphDir, new File(dir, "exhaustive"), seed, 0), k);
+        ArrayList<String> pruned = run(graphDir, new File(dir, "top-k"), seed, k);
+
+        Collections.sort(exhaustive);
+        Collections.sort(pruned);
+        System.out.println("Same relationships: " + exhaustive.equals(pruned));
+        if (!exhaustive.equals(pruned)) {
+            System.out.println("exhaustive: " + exhaustive);
+            System.out.println("top-k: " + pruned);
+        }
+
+        FileSystem.getLocal(new Configuration()).delete(new Path(dir.toURI()), true);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        if (args.length < 1) {
+            System.out.println("Usage: TopKExp <data directory> [attributes per dataset] "
+                    + "[days] [k] [seed]");
+            System.exit(-1);
+        }
+
+        int nbAttributes = (args.length > 1) ? Integer.parseInt(args[1]) : 12;
+        int days = (args.length > 2) ? Integer.parseInt(args[2]) : 365;
+        int k = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
+        long seed = (args.length > 4) ? Long.parseLong(args[4]) : 42L;
+
+        TopKExp exp = new TopKExp(nbAttributes, days, seed);
+        exp.run(args[0], seed, k);
+    }
+}
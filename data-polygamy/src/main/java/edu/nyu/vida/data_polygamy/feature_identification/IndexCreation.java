@@ -30,10 +30,12 @@ import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionTemporalWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.Machine;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.SpatioTemporalFloatWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.LocalEngine;
 
 public class IndexCreation {
     
@@ -58,6 +60,12 @@ public class IndexCreation {
         thresholdOption.setRequired(false);
         options.addOption(thresholdOption);
         
+        Option incrementalOption = new Option("inc", "incremental", false, "update the index and events "
+                + "of the datasets, rebuilding only the merge trees of the temporal bins whose values changed "
+                + "(e.g., after appending a month of data)");
+        incrementalOption.setRequired(false);
+        options.addOption(incrementalOption);
+        
         Option gOption = new Option("g", "group", true, "set group of datasets for which the indices and events"
                 + " will be computed");
         gOption.setRequired(true);
@@ -106,6 +114,31 @@ public class IndexCreation {
         helpOption.setRequired(false);
         options.addOption(helpOption);
         
+        Option localOption = new Option("lt", "local-threads", true, "run the job in this process with "
+                + "THREADS threads instead of submitting it to the cluster (see LocalEngine)");
+        localOption.setRequired(false);
+        localOption.setArgName("THREADS");
+        localOption.setArgs(1);
+        options.addOption(localOption);
+        
+        Option profileOption = new Option("pr", "profile", false, "report the time of every phase "
+                + "of the job as counters (see StageProfiler)");
+        profileOption.setRequired(false);
+        options.addOption(profileOption);
+        
+        Option profileKeysOption = new Option("pk", "profile-keys", false, "as 'profile', and also "
+                + "write the time of every reduce key to '" + FrameworkUtils.profilesDir + "'");
+        profileKeysOption.setRequired(false);
+        options.addOption(profileKeysOption);
+        
+        Option spillOption = new Option("sp", "spill", true, "set the memory of the reducers to MB "
+                + "megabytes (instead of 50000), spilling the values of a key that do not fit in a quarter "
+                + "of the heap to local files, one per temporal bin");
+        spillOption.setRequired(false);
+        spillOption.setArgName("MB");
+        spillOption.setArgs(1);
+        options.addOption(spillOption);
+        
         HelpFormatter formatter = new HelpFormatter();
         CommandLineParser parser = new PosixParser();
         CommandLine cmd = null;
@@ -146,6 +179,10 @@ public class IndexCreation {
         boolean snappyCompression = false;
         boolean bzip2Compression = false;
         String machine = cmd.getOptionValue("m");
+        int localThreads = cmd.hasOption("lt") ? Integer.parseInt(cmd.getOptionValue("lt")) : 0;
+        boolean profileKeys = cmd.hasOption("pk");
+        boolean profile = cmd.hasOption("pr") || profileKeys;
+        int spillMemory = cmd.hasOption("sp") ? Integer.parseInt(cmd.getOptionValue("sp")) : 0;
         int nbNodes = Integer.parseInt(cmd.getOptionValue("n"));
         
         Configuration s3conf = new Configuration();
@@ -171,6 +208,7 @@ public class IndexCreation {
         
         boolean removeExistingFiles = cmd.hasOption("f");
         boolean isThresholdUserDefined = cmd.hasOption("t");
+        boolean incremental = cmd.hasOption("inc");
         
         for (String dataset : cmd.getOptionValues("g")) {
 
@@ -295,7 +333,7 @@ public class IndexCreation {
                 FrameworkUtils.removeFile(indexCreationOutputFileName, s3conf, s3);
                 FrameworkUtils.removeFile(mergeTreeFileName, s3conf, s3);
                 FrameworkUtils.createDir(mergeTreeFileName, s3conf, s3);
-            } else if (datasetRegThreshold.containsKey(dataset)) {
+            } else if (datasetRegThreshold.containsKey(dataset) || incremental) {
                 FrameworkUtils.removeFile(indexCreationOutputFileName, s3conf, s3);
                 if (FrameworkUtils.fileExists(mergeTreeFileName, s3conf, s3)) {
                     useMergeTree.add(dataset);
@@ -340,6 +378,8 @@ public class IndexCreation {
             }
             icConf.set("use-merge-tree", useMergeTreeStr.substring(0, useMergeTreeStr.length()-1));
         }
+        if (incremental)
+            icConf.setBoolean("store-merge-tree", true);
         
         for (int i = 0; i < shortDataset.size(); i++) {
             String dataset = shortDataset.get(i);
@@ -379,6 +419,11 @@ public class IndexCreation {
         //icConf.set("mapreduce.reduce.java.opts", "-Xmx110000m");
         icConf.set("mapreduce.reduce.memory.mb", "50000");
         icConf.set("mapreduce.reduce.java.opts", "-Xmx40000m");
+        if (spillMemory > 0) {
+            icConf.set("mapreduce.reduce.memory.mb", String.valueOf(spillMemory));
+            icConf.set("mapreduce.reduce.java.opts", "-Xmx" + (spillMemory*4/5) + "m");
+            icConf.setBoolean("spill", true);
+        }
         icConf.set("mapreduce.task.timeout", "12000000");
         
         if (s3) {
@@ -398,10 +443,15 @@ public class IndexCreation {
             //icConf.set("mapreduce.output.fileoutputformat.compress.codec", "org.apache.hadoop.io.compress.BZip2Codec");
         }
         
+        if (profile)
+            icConf.setBoolean("profile", true);
+        if (profileKeys)
+            icConf.set("profile-dir", s3bucket + FrameworkUtils.profilesDir + "/" + jobName);
+        
         icJob = new Job(icConf);
         icJob.setJobName(jobName);
         
-        icJob.setMapOutputKeyClass(AttributeResolutionWritable.class);
+        icJob.setMapOutputKeyClass(AttributeResolutionTemporalWritable.class);
         icJob.setMapOutputValueClass(SpatioTemporalFloatWritable.class);
         icJob.setOutputKeyClass(AttributeResolutionWritable.class);
         icJob.setOutputValueClass(TopologyTimeSeriesWritable.class);
@@ -410,6 +460,9 @@ public class IndexCreation {
    
         icJob.setMapperClass(IndexCreationMapper.class);
         icJob.setReducerClass(IndexCreationReducer.class);
+        // secondary sort: the values of an attribute reach the reducer ordered by time
+        icJob.setSortComparatorClass(AttributeResolutionTemporalWritable.SortComparator.class);
+        icJob.setGroupingComparatorClass(AttributeResolutionTemporalWritable.GroupingComparator.class);
         icJob.setNumReduceTasks(machineConf.getNumberReduces());
    
         icJob.setInputFormatClass(SequenceFileInputFormat.class);
@@ -427,8 +480,12 @@ public class IndexCreation {
         icJob.setJarByClass(IndexCreation.class);
         
         long start = System.currentTimeMillis();
-        icJob.submit();
-        icJob.waitForCompletion(true);
+        if (localThreads > 0) {
+            LocalEngine.printCounters(LocalEngine.run(icJob, localThreads));
+        } else {
+            icJob.submit();
+            icJob.waitForCompletion(true);
+        }
         System.out.println(jobName + "\t" + (System.currentTimeMillis() - start));
         
         // moving files to right place
@@ -436,6 +493,15 @@ public class IndexCreation {
             String from = s3bucket + FrameworkUtils.indexDir + "/tmp/" + dataset + "/";
             String to = s3bucket + FrameworkUtils.indexDir + "/" + dataset + "/";
             FrameworkUtils.renameFile(from, to, s3conf, s3);
+            
+            // merge trees published by the reducers (-inc, or reused ones)
+            from = s3bucket + FrameworkUtils.indexDir + "/tmp/" + FrameworkUtils.mergeTreeDir + "/" + dataset + "/";
+            to = s3bucket + FrameworkUtils.mergeTreeDir + "/" + dataset + "/";
+            if (FrameworkUtils.fileExists(from, s3conf, s3)) {
+                FrameworkUtils.removeFile(to, s3conf, s3);
+                FrameworkUtils.createDir(s3bucket + FrameworkUtils.mergeTreeDir, s3conf, s3);
+                FrameworkUtils.renameFile(from, to, s3conf, s3);
+            }
         }
         
     }
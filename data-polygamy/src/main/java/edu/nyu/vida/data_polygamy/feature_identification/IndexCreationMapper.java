@@ -11,21 +11,20 @@ import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
-import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionTemporalWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.FloatArrayWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.SpatioTemporalFloatWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.SpatioTemporalWritable;
 
-public class IndexCreationMapper extends Mapper<SpatioTemporalWritable, FloatArrayWritable, AttributeResolutionWritable, SpatioTemporalFloatWritable> {
+public class IndexCreationMapper extends Mapper<SpatioTemporalWritable, FloatArrayWritable, AttributeResolutionTemporalWritable, SpatioTemporalFloatWritable> {
     
     public static FrameworkUtils utils = new FrameworkUtils();
     
     String datasetIdStr = null;
     HashMap<String,String> datasetToId = new HashMap<String,String>();
-    boolean useExistingMergeTree = false;
     
     int[] index;
-    AttributeResolutionWritable keyWritable = new AttributeResolutionWritable();
+    AttributeResolutionTemporalWritable keyWritable = new AttributeResolutionTemporalWritable();
     SpatioTemporalFloatWritable valueWritable = new SpatioTemporalFloatWritable();
     
     @Override
@@ -44,14 +43,6 @@ public class IndexCreationMapper extends Mapper<SpatioTemporalWritable, FloatArr
         String dataset = fileSplitTokens[fileSplitTokens.length-1];
         datasetIdStr = datasetToId.get(dataset);
         
-        String[] useMergeTree = conf.get("use-merge-tree","").split(",");
-        for (String dt : useMergeTree) {
-            if (dt.equals(dataset)) {
-                useExistingMergeTree = true;
-                break;
-            }
-        }
-        
         String[] aggregates = context.getConfiguration().get("dataset-" + datasetIdStr +
                 "-aggregates", "").split(",");
         
@@ -69,15 +60,15 @@ public class IndexCreationMapper extends Mapper<SpatioTemporalWritable, FloatArr
             System.exit(-1);
         }
         
-        if (useExistingMergeTree) {
-            mapMergeTreeUsage(key, value, context);
-        } else {
-            mapMergeTreeCreation(key, value, context);
-        }
+        // the values are sent even if there are merge trees, since the
+        //   reducer rebuilds the ones of the temporal bins that changed
+        mapMergeTreeCreation(key, value, context);
     }
     
     /**
-     * Map function if merge tree for the dataset must be created in reduce.
+     * Map function that sends the values of every attribute to the reducer
+     * of its key; the time and space in the key order the values of the
+     * reducer (secondary sort).
      */
     public void mapMergeTreeCreation(SpatioTemporalWritable key, FloatArrayWritable value, Context context)
             throws IOException, InterruptedException {
@@ -90,29 +81,11 @@ public class IndexCreationMapper extends Mapper<SpatioTemporalWritable, FloatArr
         for (int i = 0; i < attributeValues.length; i++) {
             if (Float.isNaN(attributeValues[i]))
                 continue;
-            keyWritable = new AttributeResolutionWritable(index[i],
-                    spatialResolution, temporalResolution, key.getDataset());
+            keyWritable = new AttributeResolutionTemporalWritable(index[i],
+                    spatialResolution, temporalResolution, key.getDataset(), temporal, spatial);
             valueWritable = new SpatioTemporalFloatWritable(spatial, temporal, attributeValues[i]);
             context.write(keyWritable, valueWritable);
         }
     }
     
-    /**
-     * Map function if merge tree for the dataset has already been created before.
-     */
-    public void mapMergeTreeUsage(SpatioTemporalWritable key, FloatArrayWritable value, Context context)
-            throws IOException, InterruptedException {
-        
-        float[] attributeValues = value.get();
-        int spatialResolution = key.getSpatialResolution();
-        int temporalResolution = key.getTemporalResolution();
-        for (int i = 0; i < index.length; i++) {
-            if (Float.isNaN(attributeValues[i]))
-                continue;
-            keyWritable = new AttributeResolutionWritable(index[i],
-                    spatialResolution, temporalResolution, key.getDataset());
-            context.write(keyWritable, new SpatioTemporalFloatWritable());
-        }
-    }
-    
 }
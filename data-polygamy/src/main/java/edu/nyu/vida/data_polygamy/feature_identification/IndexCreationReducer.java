@@ -4,12 +4,11 @@
 package edu.nyu.vida.data_polygamy.feature_identification;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -18,21 +17,26 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
+import edu.nyu.vida.data_polygamy.ctdata.AttributeStore;
 import edu.nyu.vida.data_polygamy.ctdata.SpatioTemporalVal;
 import edu.nyu.vida.data_polygamy.ctdata.TopologicalIndex;
 import edu.nyu.vida.data_polygamy.ctdata.TopologicalIndex.Attribute;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionTemporalWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.Function;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.SpatioTemporalFloatWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.StageProfiler;
+import edu.nyu.vida.data_polygamy.utils.StageProfiler.Phase;
 import edu.nyu.vida.data_polygamy.utils.Utilities;
 
-public class IndexCreationReducer extends Reducer<AttributeResolutionWritable, SpatioTemporalFloatWritable, AttributeResolutionWritable, TopologyTimeSeriesWritable> {
+public class IndexCreationReducer extends Reducer<AttributeResolutionTemporalWritable, SpatioTemporalFloatWritable, AttributeResolutionWritable, TopologyTimeSeriesWritable> {
 //public class IndexCreationReducer extends Reducer<AttributeResolutionWritable, SpatioTemporalFloatWritable, Text, Text> {
     
     public static FrameworkUtils utils = new FrameworkUtils();
@@ -43,6 +47,9 @@ public class IndexCreationReducer extends Reducer<AttributeResolutionWritable, S
     HashMap<Integer,HashMap<Integer,String>> idToRegThreshold = new HashMap<Integer,HashMap<Integer,String>>();
     HashMap<Integer,HashMap<Integer,String>> idToRareThreshold = new HashMap<Integer,HashMap<Integer,String>>();
     HashSet<String> useMergeTree = new HashSet<String>(); 
+    
+    // whether the merge trees of every dataset are stored (-inc)
+    boolean storeMergeTrees = false;
 
     // threshold for outliers
     float th = 0.9f;
@@ -58,11 +65,12 @@ public class IndexCreationReducer extends Reducer<AttributeResolutionWritable, S
     
     TopologyTimeSeriesWritable valueWritable = new TopologyTimeSeriesWritable();
     
-    // input stream
-    ObjectInputStream inputStream;
+    String bucket = "";
+    
+    StageProfiler profiler = null;
     
-    // output stream
-    ObjectOutputStream outputStream;
+    // values of a key kept in memory (if spilling, see AttributeStore)
+    long memoryValues = 0;
     
     private MultipleOutputs<AttributeResolutionWritable,TopologyTimeSeriesWritable> out;
     //private MultipleOutputs<Text,Text> out;
@@ -72,6 +80,9 @@ public class IndexCreationReducer extends Reducer<AttributeResolutionWritable, S
             throws IOException, InterruptedException {
 
         Configuration conf = context.getConfiguration();
+        profiler = new StageProfiler(context);
+        if (conf.getBoolean("spill", false))
+            memoryValues = Runtime.getRuntime().maxMemory() / 4 / AttributeStore.VALUE_BYTES;
         
         String[] datasetNames = conf.get("dataset-name","").split(",");
         String[] datasetIds = conf.get("dataset-id","").split(",");
@@ -125,11 +136,13 @@ public class IndexCreationReducer extends Reducer<AttributeResolutionWritable, S
         for (String dt : useMergeTreeStr) {
             useMergeTree.add(dt);
         }
+        storeMergeTrees = conf.getBoolean("store-merge-tree", false);
     	
     	out = new MultipleOutputs<AttributeResolutionWritable,TopologyTimeSeriesWritable>(context);
     	//out = new MultipleOutputs<Text,Text>(context);
 
-        String bucket = conf.get("bucket", "");
+        bucket = conf.get("bucket", "");
+        s3 = !bucket.equals("");
         
         String[] spatialResolutionArray = utils.getSpatialResolutions();
         for (int j = 0; j < spatialResolutionArray.length; j++) {
@@ -197,92 +210,148 @@ public class IndexCreationReducer extends Reducer<AttributeResolutionWritable, S
     }
     
     @Override
-    public void reduce(AttributeResolutionWritable key, Iterable<SpatioTemporalFloatWritable> values, Context context)
-            throws IOException, InterruptedException {
+    public void reduce(AttributeResolutionTemporalWritable compositeKey, Iterable<SpatioTemporalFloatWritable> values,
+            Context context) throws IOException, InterruptedException {
         
+        // the time and space of compositeKey change while iterating the values
+        AttributeResolutionWritable key = compositeKey.getAttributeResolution();
         Attribute att = new Attribute();
-        int spatialRes = key.getSpatialResolution();
-        int tempRes = key.getTemporalResolution();
+        if (memoryValues > 0)
+            att.store = new AttributeStore(memoryValues);
+        // the files of a spilled store are deleted even if the index fails
+        try {
+            int spatialRes = key.getSpatialResolution();
+            int tempRes = key.getTemporalResolution();
+        
+            TopologicalIndex previous = null;
+            boolean mergeTree = useMergeTree.contains(idToDataset.get(key.getDataset()));
+            if (mergeTree)
+                previous = loadMergeTree(key, context);
         
-        TopologicalIndex index = new TopologicalIndex();
-        if (useMergeTree.contains(idToDataset.get(key.getDataset()))) {
-            index = reduceMergeTreeUsage(key, context, att, tempRes, spatialRes);
-        } else {
             att.id = key.getAttribute();
-            index = reduceMergeTreeCreation(key, values, context, att, tempRes, spatialRes);
-        }
-        if (index.empty) return;
+            TopologicalIndex index = reduceMergeTreeCreation(key, values, context, att, tempRes, spatialRes, previous);
+            if (index.empty) {
+                profiler.endKey(key.toString());
+                return;
+            }
+            if (storeMergeTrees || mergeTree)
+                storeMergeTree(key, index, context);
         
-        // non-outliers
-        String regThreshold  = "";
-        //float regThresholdFloat = 0;
-        if (idToRegThreshold.containsKey(key.getDataset())) {
-            if (idToRegThreshold.get(key.getDataset()).containsKey(key.getAttribute())) {
-                regThreshold = idToRegThreshold.get(key.getDataset()).get(key.getAttribute());
+            // non-outliers
+            String regThreshold  = "";
+            //float regThresholdFloat = 0;
+            if (idToRegThreshold.containsKey(key.getDataset())) {
+                if (idToRegThreshold.get(key.getDataset()).containsKey(key.getAttribute())) {
+                    regThreshold = idToRegThreshold.get(key.getDataset()).get(key.getAttribute());
+                }
             }
-        }
-        ArrayList<byte[]> events = index.queryEvents(this.th, false, att, regThreshold);
+            long t = profiler.start();
+            ArrayList<byte[]> events = index.queryEvents(this.th, false, att, regThreshold);
+            profiler.stop(Phase.EVENT_QUERY, t);
         
-        for (int spatial = 0; spatial < events.size(); spatial++) {
-            //if (!att.nodeSet.contains(spatial))
-            //    continue;
+            for (int spatial = 0; spatial < events.size(); spatial++) {
+                //if (!att.nodeSet.contains(spatial))
+                //    continue;
             
-            valueWritable = new TopologyTimeSeriesWritable(
-                    spatial,
-                    key.getDataset(),
-                    events.get(spatial),
-                    index.stTime,
-                    index.enTime,
-                    false);
-            out.write(key, valueWritable,
-                    generateFileName(idToDataset.get(key.getDataset())));
-            //out.write(new Text(key.toString()), new Text(valueWritable.toString()),
-            //        generateFileName(idToDataset.get(key.getDataset())));
-        }
+                valueWritable = new TopologyTimeSeriesWritable(
+                        spatial,
+                        key.getDataset(),
+                        events.get(spatial),
+                        index.stTime,
+                        index.enTime,
+                        false);
+                out.write(key, valueWritable,
+                        generateFileName(idToDataset.get(key.getDataset())));
+                //out.write(new Text(key.toString()), new Text(valueWritable.toString()),
+                //        generateFileName(idToDataset.get(key.getDataset())));
+            }
         
-        // outliers
-        String rareThreshold  = "";
-        //float rareThresholdFloat = 0;
-        if (idToRareThreshold.containsKey(key.getDataset())) {
-            if (idToRareThreshold.get(key.getDataset()).containsKey(key.getAttribute())) {
-                rareThreshold = idToRareThreshold.get(key.getDataset()).get(key.getAttribute());
+            // outliers
+            String rareThreshold  = "";
+            //float rareThresholdFloat = 0;
+            if (idToRareThreshold.containsKey(key.getDataset())) {
+                if (idToRareThreshold.get(key.getDataset()).containsKey(key.getAttribute())) {
+                    rareThreshold = idToRareThreshold.get(key.getDataset()).get(key.getAttribute());
+                }
             }
-        }
-        events = index.queryEvents(this.th, true, att, rareThreshold);
+            t = profiler.start();
+            events = index.queryEvents(this.th, true, att, rareThreshold);
+            profiler.stop(Phase.EVENT_QUERY, t);
         
-        for (int spatial = 0; spatial < events.size(); spatial++) {
-            //if (!att.nodeSet.contains(spatial))
-            //    continue;
+            for (int spatial = 0; spatial < events.size(); spatial++) {
+                //if (!att.nodeSet.contains(spatial))
+                //    continue;
             
-            valueWritable = new TopologyTimeSeriesWritable(
-                    spatial,
-                    key.getDataset(),
-                    events.get(spatial),
-                    index.stTime,
-                    index.enTime,
-                    true);
-            out.write(key, valueWritable,
-                    generateFileName(idToDataset.get(key.getDataset())));
-            //out.write(new Text(key.toString()), new Text(valueWritable.toString()),
-            //        generateFileName(idToDataset.get(key.getDataset())));
+                valueWritable = new TopologyTimeSeriesWritable(
+                        spatial,
+                        key.getDataset(),
+                        events.get(spatial),
+                        index.stTime,
+                        index.enTime,
+                        true);
+                out.write(key, valueWritable,
+                        generateFileName(idToDataset.get(key.getDataset())));
+                //out.write(new Text(key.toString()), new Text(valueWritable.toString()),
+                //        generateFileName(idToDataset.get(key.getDataset())));
+            }
+            profiler.endKey(key.toString());
+        } finally {
+            if (att.store != null)
+                att.store.close();
         }
     }
     
     /**
-     * Reduce function if merge tree for the dataset must be created and stored.
+     * Reduce function that creates the merge trees, reusing the ones of the
+     * temporal bins of previous (if not null) whose values did not change.
      */
     public TopologicalIndex reduceMergeTreeCreation(AttributeResolutionWritable key, Iterable<SpatioTemporalFloatWritable> values,
-            Context context, Attribute att, int tempRes, int spatialRes) throws IOException {
+            Context context, Attribute att, int tempRes, int spatialRes, TopologicalIndex previous) throws IOException {
         
         int datasetId = key.getDataset();
         int attributeId = key.getAttribute();
         boolean isGradient = functions.get(datasetId).contains(attributeId) ? true : false;
         
+        long t = profiler.start();
+        loadValues(values, att, tempRes, isGradient, profiler);
+        profiler.stop(Phase.FUNCTION_LOAD, t);
+        
+        TopologicalIndex index = (spatialRes == FrameworkUtils.NBHD) ?
+                new TopologicalIndex(spatialRes, tempRes, this.nvNbhd) :
+                    ((spatialRes == FrameworkUtils.ZIP) ? new TopologicalIndex(spatialRes, tempRes, this.nvZip) :
+                        ((spatialRes == FrameworkUtils.BLOCK) ? new TopologicalIndex(spatialRes, tempRes, this.nvBlock) :
+                            new TopologicalIndex(spatialRes, tempRes, this.nvCity)));
+        int ret = (spatialRes == FrameworkUtils.NBHD) ? index.createIndex(att, this.nbhdEdges, profiler, previous) :
+            ((spatialRes == FrameworkUtils.BLOCK) ? index.createIndex(att, this.blockEdges, profiler, previous) :
+                index.createIndex(att, this.zipEdges, profiler, previous));
+        
+        if (ret == 1) {
+            return new TopologicalIndex();
+        }
+        
+        return index;
+    }
+    
+    /**
+     * Adds the values to the temporal bins of att (one bin per month for
+     * hours, per group of months for days, a single bin otherwise). The
+     * values arrive ordered by time (see AttributeResolutionTemporalWritable),
+     * so the bins are filled already sorted, and the bin is only computed
+     * again when a value falls out of the month of the previous one. If att
+     * has a store, the values are added to it instead.
+     */
+    public static void loadValues(Iterable<SpatioTemporalFloatWritable> values, Attribute att,
+            int tempRes, boolean isGradient, StageProfiler profiler) throws IOException {
+        
         Iterator<SpatioTemporalFloatWritable> it = values.iterator();
         SpatioTemporalFloatWritable st;
-        DateTime date;
+        ArrayList<SpatioTemporalVal> temporalBinVals = null;
+        int hash = 1;
+        long monthStart = Long.MAX_VALUE;
+        long monthEnd = Long.MIN_VALUE;
         while (it.hasNext()) {
             st = it.next();
+            profiler.record();
             
             int spatial = st.getSpatial();
             int temporal = st.getTemporal();
@@ -290,69 +359,76 @@ public class IndexCreationReducer extends Reducer<AttributeResolutionWritable, S
             
             att.nodeSet.add(spatial);
             
-            // for each temporal bin
-            date = new DateTime(((long)temporal)*1000, DateTimeZone.UTC);
-            int hash = 1;
-            if (!isGradient) {
-                hash = (tempRes == FrameworkUtils.HOUR) ? date.getYear()*100 + date.getMonthOfYear() :
-                    ((tempRes == FrameworkUtils.DAY) ? date.getYear()*100 + (date.getMonthOfYear()/4) : 1);
+            if ((temporal < monthStart) || (temporal >= monthEnd)) {
+                DateTime date = new DateTime(((long)temporal)*1000, DateTimeZone.UTC);
+                DateTime month = new DateTime(date.getYear(), date.getMonthOfYear(), 1, 0, 0, DateTimeZone.UTC);
+                monthStart = month.getMillis()/1000;
+                monthEnd = month.plusMonths(1).getMillis()/1000;
+                
+                // temporal bin
+                hash = 1;
+                if (!isGradient) {
+                    hash = (tempRes == FrameworkUtils.HOUR) ? date.getYear()*100 + date.getMonthOfYear() :
+                        ((tempRes == FrameworkUtils.DAY) ? date.getYear()*100 + (date.getMonthOfYear()/4) : 1);
+                }
+                if (att.store == null) {
+                    temporalBinVals = att.data.get(hash);
+                    if (temporalBinVals == null) {
+                        temporalBinVals = new ArrayList<SpatioTemporalVal>();
+                        att.data.put(hash, temporalBinVals);
+                    }
+                }
             }
-            ArrayList<SpatioTemporalVal> temporalBinVals = att.data.get(hash);
-            if (temporalBinVals == null)
-                temporalBinVals = new ArrayList<SpatioTemporalVal>(); 
             
             // add val
-            SpatioTemporalVal point = new SpatioTemporalVal(spatial, temporal, val);
-            temporalBinVals.add(point);
-            
-            att.data.put(hash, temporalBinVals);
+            if (att.store != null)
+                att.store.add(hash, spatial, temporal, val);
+            else
+                temporalBinVals.add(new SpatioTemporalVal(spatial, temporal, val));
         }
+    }
+    
+    /**
+     * Loads the merge trees stored by a previous execution, or returns null
+     * if there are none.
+     */
+    public TopologicalIndex loadMergeTree(AttributeResolutionWritable key, Context context) throws IOException {
         
-        for (ArrayList<SpatioTemporalVal> stVal: att.data.values())
-            Collections.sort(stVal);
-        
-        TopologicalIndex index = (spatialRes == FrameworkUtils.NBHD) ?
-                new TopologicalIndex(spatialRes, tempRes, this.nvNbhd) :
-                    ((spatialRes == FrameworkUtils.ZIP) ? new TopologicalIndex(spatialRes, tempRes, this.nvZip) :
-                        ((spatialRes == FrameworkUtils.BLOCK) ? new TopologicalIndex(spatialRes, tempRes, this.nvBlock) :
-                            new TopologicalIndex(spatialRes, tempRes, this.nvCity)));
-        int ret = (spatialRes == FrameworkUtils.NBHD) ? index.createIndex(att, this.nbhdEdges) :
-            ((spatialRes == FrameworkUtils.BLOCK) ? index.createIndex(att, this.blockEdges) :
-                index.createIndex(att, this.zipEdges));
-        
-        if (ret == 1) {
-            return new TopologicalIndex();
-        }
+        long t = profiler.start();
+        String fileName = generateIndexFileName(idToDataset.get(key.getDataset()), key.getAttribute(),
+                key.getTemporalResolution(), key.getSpatialResolution());
+        if (!FrameworkUtils.fileExists(fileName, context.getConfiguration(), s3))
+            return null;
+        DataInputStream in = new DataInputStream(FrameworkUtils.openFile(fileName, context.getConfiguration(), s3));
+        TopologicalIndex index = TopologicalIndex.readMergeTrees(in);
+        in.close();
+        profiler.stop(Phase.FUNCTION_LOAD, t);
         
         return index;
     }
     
     /**
-     * Reduce function if merge tree for the dataset has already been created before.
+     * Stores the merge trees, to be reused by the next execution. They are
+     * written to the work path of the task attempt, so the output committer
+     * only publishes the ones of a successful attempt; IndexCreation moves
+     * them to the merge tree directory after the job.
      */
-    public TopologicalIndex reduceMergeTreeUsage(AttributeResolutionWritable key, Context context, Attribute att,
-            int tempRes, int spatialRes) throws IOException {
-        
-        // loading topological index
-        TopologicalIndex index = new TopologicalIndex();
-        String fileName = generateIndexFileName(idToDataset.get(key.getDataset()), key.getAttribute(), tempRes, spatialRes);
-        try {
-            inputStream = new ObjectInputStream(FrameworkUtils.openFile(fileName, context.getConfiguration(), s3));
-            index = (TopologicalIndex) inputStream.readObject();
-            Attribute savedAtt = (Attribute) inputStream.readObject();
-            att.copy(savedAtt);
-            inputStream.close();
-        } catch (ClassNotFoundException e) {
-            System.out.println("Something went wrong... Cannot read merge tree: " + fileName);
-            System.exit(1);
-        }
+    public void storeMergeTree(AttributeResolutionWritable key, TopologicalIndex index, Context context)
+            throws IOException, InterruptedException {
         
-        return index;
+        Path path = new Path(FileOutputFormat.getWorkOutputPath(context),
+                generateMergeTreeFileName(idToDataset.get(key.getDataset()), key.getAttribute(),
+                        key.getTemporalResolution(), key.getSpatialResolution()));
+        FileSystem fs = path.getFileSystem(context.getConfiguration());
+        DataOutputStream out = fs.create(path);
+        index.writeMergeTrees(out);
+        out.close();
     }
     
     @Override
     public void cleanup(Context context) throws IOException, InterruptedException {
     	out.close();
+    	profiler.close(context);
     }
     
     private String generateFileName(String dataset) {
@@ -360,6 +436,10 @@ public class IndexCreationReducer extends Reducer<AttributeResolutionWritable, S
     }
     
     private String generateIndexFileName(String dataset, int att, int tempRes, int spatialRes) {
+        return (bucket + generateMergeTreeFileName(dataset, att, tempRes, spatialRes));
+    }
+    
+    private String generateMergeTreeFileName(String dataset, int att, int tempRes, int spatialRes) {
         return (FrameworkUtils.mergeTreeDir + "/" + dataset + "/" + att + "-" + tempRes + "-" + spatialRes);
     }
 }
@@ -25,6 +25,7 @@ import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AggregationArrayWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.Machine;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.MultipleSpatioTemporalWritable;
+import edu.nyu.vida.data_polygamy.utils.LocalEngine;
 
 public class PreProcessing {
     
@@ -119,6 +120,23 @@ public class PreProcessing {
         helpOption.setRequired(false);
         options.addOption(helpOption);
         
+        Option localOption = new Option("lt", "local-threads", true, "run the job in this process with "
+                + "THREADS threads instead of submitting it to the cluster (see LocalEngine)");
+        localOption.setRequired(false);
+        localOption.setArgName("THREADS");
+        localOption.setArgs(1);
+        options.addOption(localOption);
+        
+        Option profileOption = new Option("pr", "profile", false, "report the time of every phase "
+                + "of the job as counters (see StageProfiler)");
+        profileOption.setRequired(false);
+        options.addOption(profileOption);
+        
+        Option profileKeysOption = new Option("pk", "profile-keys", false, "as 'profile', and also "
+                + "write the time of every reduce key to '" + FrameworkUtils.profilesDir + "'");
+        profileKeysOption.setRequired(false);
+        options.addOption(profileKeysOption);
+        
         HelpFormatter formatter = new HelpFormatter();
         CommandLineParser parser = new PosixParser();
         CommandLine cmd = null;
@@ -159,6 +177,9 @@ public class PreProcessing {
         boolean snappyCompression = false;
         boolean bzip2Compression = false;
         String machine = cmd.getOptionValue("m");
+        int localThreads = cmd.hasOption("lt") ? Integer.parseInt(cmd.getOptionValue("lt")) : 0;
+        boolean profileKeys = cmd.hasOption("pk");
+        boolean profile = cmd.hasOption("pr") || profileKeys;
         int nbNodes = Integer.parseInt(cmd.getOptionValue("n"));
         
         Configuration s3conf = new Configuration();
@@ -292,6 +313,11 @@ public class PreProcessing {
             conf.set("bucket", s3bucket);
         }
         
+        if (profile)
+            conf.setBoolean("profile", true);
+        if (profileKeys)
+            conf.set("profile-dir", s3bucket + FrameworkUtils.profilesDir + "/" + dataset + "-" + temporalResolution + "-" + spatialResolution);
+        
         Job job = new Job(conf);
         job.setJobName(dataset + "-" + temporalResolution + "-" + spatialResolution);
         
@@ -318,8 +344,12 @@ public class PreProcessing {
         job.setJarByClass(PreProcessing.class);
    
         long start = System.currentTimeMillis();
-        job.submit();
-        job.waitForCompletion(true);
+        if (localThreads > 0) {
+            LocalEngine.printCounters(LocalEngine.run(job, localThreads));
+        } else {
+            job.submit();
+            job.waitForCompletion(true);
+        }
         System.out.println(fileName + "\t" + (System.currentTimeMillis() - start));
 
     }
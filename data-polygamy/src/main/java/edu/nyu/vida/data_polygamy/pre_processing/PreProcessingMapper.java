@@ -31,6 +31,8 @@ import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AggregationArrayWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.Function;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.MultipleSpatioTemporalWritable;
+import edu.nyu.vida.data_polygamy.utils.StageProfiler;
+import edu.nyu.vida.data_polygamy.utils.StageProfiler.Phase;
 
 /**
  * 
@@ -43,6 +45,7 @@ public class PreProcessingMapper extends Mapper<LongWritable, Text, MultipleSpat
     Configuration conf = null;
     long records = 0L;
     boolean s3 = true;
+    StageProfiler profiler = null;
     
     // output
     MultipleSpatioTemporalWritable keyWritable = new MultipleSpatioTemporalWritable();
@@ -175,6 +178,7 @@ public class PreProcessingMapper extends Mapper<LongWritable, Text, MultipleSpat
             throws IOException, InterruptedException {
       
         conf = context.getConfiguration();
+        profiler = new StageProfiler(context);
         
         String bucket = conf.get("bucket", "");
         if (bucket.equals(""))
@@ -271,6 +275,8 @@ public class PreProcessingMapper extends Mapper<LongWritable, Text, MultipleSpat
     	
         String[] input;
         
+        profiler.record(value.getLength());
+        long t = profiler.start();
         try {
             input = FrameworkUtils.splitStr(value.toString(),
                     parameterNames.length);
@@ -278,12 +284,15 @@ public class PreProcessingMapper extends Mapper<LongWritable, Text, MultipleSpat
             System.out.println("Error while parsing line: " + e.getLocalizedMessage());
             return;
         }
+        profiler.stop(Phase.PARSE, t);
         
         /**
          * Spatial Resolution
          */
         
+        t = profiler.start();
         ArrayList<Integer> spatial = spatialTranslation.translate(input);
+        profiler.stop(Phase.TRANSLATE, t);
         
         /**
          * Temporal Resolution
@@ -293,6 +302,7 @@ public class PreProcessingMapper extends Mapper<LongWritable, Text, MultipleSpat
         
         //Integer time = null;
         
+        t = profiler.start();
         for (int tempPos: temporalPos) {
             int temp = FrameworkUtils.getTime(temporalResolution, input, tempPos);
             if (temp >= 0) {
@@ -302,6 +312,7 @@ public class PreProcessingMapper extends Mapper<LongWritable, Text, MultipleSpat
                 temporal.add(temp);
             }
         }
+        profiler.stop(Phase.TIME_BUCKETING, t);
         
         if ((spatial.size() <= 0) || (temporal.size() <= 0)) {
         	System.out.println("Spatial size: " + spatial.size() + " | Temporal size: " + temporal.size());
@@ -327,6 +338,7 @@ public class PreProcessingMapper extends Mapper<LongWritable, Text, MultipleSpat
          *  null and default values are ignored
          */
         
+        t = profiler.start();
         ArrayList<Aggregation> output = new ArrayList<Aggregation>();
         Iterator<Integer> it = aggregatesIndex.iterator();
         Float defaultVal;
@@ -375,6 +387,7 @@ public class PreProcessingMapper extends Mapper<LongWritable, Text, MultipleSpat
                     temporal.get(0), temporalResolution));
             output.add(agg);
         }
+        profiler.stop(Phase.PARSE, t);
         
         keyWritable = new MultipleSpatioTemporalWritable(spatial, temporal);
         valueWritable = new AggregationArrayWritable(output);
@@ -384,6 +397,8 @@ public class PreProcessingMapper extends Mapper<LongWritable, Text, MultipleSpat
     @Override
     public void cleanup(Context context) throws IOException {
         
+        profiler.close(context);
+        
     	if (records > 0) {
     	    conf = context.getConfiguration();
     	    Path headerFile = null;
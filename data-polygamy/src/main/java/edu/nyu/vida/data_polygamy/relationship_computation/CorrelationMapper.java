@@ -30,8 +30,14 @@ public class CorrelationMapper extends Mapper<AttributeResolutionWritable, Topol
     @Override
     public void setup(Context context)
             throws IOException, InterruptedException {
-        
-        Configuration conf = context.getConfiguration();
+        setup(context.getConfiguration());
+    }
+    
+    /**
+     * Reads the groups of datasets and the pairs already computed;
+     * also used by GroupedCorrelationMapper.
+     */
+    void setup(Configuration conf) {
         
         String[] datasetIdsStr = conf.get("dataset-keys","").split(",");
         for (int i = 0; i < datasetIdsStr.length; i++) {
@@ -5,15 +5,15 @@ package edu.nyu.vida.data_polygamy.relationship_computation;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Random;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -25,9 +25,13 @@ import org.joda.time.Years;
 
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.RelationshipWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TimeSeriesStats;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.Permutation;
 import edu.nyu.vida.data_polygamy.utils.SpatialGraph;
+import edu.nyu.vida.data_polygamy.utils.StageProfiler;
+import edu.nyu.vida.data_polygamy.utils.StageProfiler.Phase;
 
 public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyTimeSeriesWritable, Text, Text> {
     
@@ -38,6 +42,7 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
     int dataset1Key = 0;
     int dataset2Key = 1;
     String fileName;
+    String binaryFileName;
     HashMap<Integer,String> datasets = new HashMap<Integer,String>();
     
     float scoreThreshold;
@@ -46,15 +51,16 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
     boolean hasStrengthThreshold = false;
     boolean removeNotSignificant = false;
     boolean outputIds = false;
+    boolean binaryOutput = false;
     boolean tmp = false;
     
     // spatial information
+    //   spatialGraph is the graph of the current resolution, shared by all the reduce calls
     SpatialGraph spatialGraph = new SpatialGraph();
     SpatialGraph nbhdGraph = new SpatialGraph();
     SpatialGraph zipGraph = new SpatialGraph();
     SpatialGraph blockGraph = new SpatialGraph();
     int gridSize = 0;
-    int[][] originalGrid;
     boolean isBlock = false;
     boolean isNbhd = false;
     boolean isGrid = false;
@@ -90,11 +96,46 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
     
     ArrayList<TopologyTimeSeriesWritable[]> timeSeriesPerSpatial = new ArrayList<TopologyTimeSeriesWritable[]>();
     
+    // random number generator of the spatial graphs and seed of the permutation tests;
+    //   each attribute pair derives its own seed from baseSeed
+    Random random = new Random();
+    long baseSeed = 0;
+    PermutationTest permutationTest;
+    
+    // sequential test: probability of a different decision than with
+    //   infinite repetitions; 0 runs all the repetitions
+    double errorBound = 0;
+    
+    /**
+     * Counters of the permutation tests; REPETITIONS/TESTS is the mean
+     * number of repetitions per attribute pair.
+     */
+    public static enum PermutationCounter {TESTS, REPETITIONS, STOPPED_EARLY};
+    
+    // pairing of the spatial units in a repetition, reused by each thread
+    ThreadLocal<Permutation> permutations = new ThreadLocal<Permutation>() {
+        @Override
+        protected Permutation initialValue() {
+            return new Permutation();
+        }
+    };
+    
+    // event codes of both datasets over their common time range,
+    //   aligned once per attribute pair and reused by all the repetitions
+    boolean isAligned = false;
+    byte[][] alignedSeries1 = new byte[0][];
+    byte[][] alignedSeries2 = new byte[0][];
+    int alignedLength = 0;
+    
     Text keyWritable = new Text();
     Text valueWritable = new Text();
     
     boolean s3 = true;
     private MultipleOutputs<Text,Text> out;
+    private TaskInputOutputContext<?,?,Text,Text> context;
+    
+    // phases of the relationships; reduce keys are ended by the reducer running this one
+    StageProfiler profiler = new StageProfiler();
     
     private void resolutionHandler(int spatialResolution, int temporalResolution) {
     	spatial = spatialResolution;
@@ -115,15 +156,15 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
         
         switch(spatial) {
         case FrameworkUtils.NBHD:
-            spatialGraph.init(nbhdGraph);
+            spatialGraph = nbhdGraph;
             isNbhd = true;
             break;
         case FrameworkUtils.ZIP:
-        	spatialGraph.init(zipGraph);
+        	spatialGraph = zipGraph;
         	isZip = true;
         	break;
         case FrameworkUtils.BLOCK:
-            spatialGraph.init(blockGraph);
+            spatialGraph = blockGraph;
             isBlock = true;
             break;
         case FrameworkUtils.GRID:
@@ -162,9 +203,20 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
     @Override
     public void setup(Context context)
             throws IOException, InterruptedException {
-        
-    	out = new MultipleOutputs<Text,Text>(context);
-        conf = context.getConfiguration();
+        initialize(context);
+    }
+    
+    /**
+     * Setup with the context of the reducer running this one
+     * (e.g., GroupedCorrelationReducer), used for the output and the counters.
+     */
+    void initialize(TaskInputOutputContext<?,?,Text,Text> context)
+            throws IOException {
+        
+        this.context = context;
+        this.out = new MultipleOutputs<Text,Text>(context);
+        this.conf = context.getConfiguration();
+        this.profiler = new StageProfiler(context);
         
         String[] datasetIdsStr = conf.get("dataset-keys","").split(",");
         String[] datasetNames = conf.get("dataset-names","").split(",");
@@ -205,8 +257,21 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
         completeRandomization = Boolean.parseBoolean(conf.get("complete-random"));
         randomizationStr = conf.get("complete-random-str","");
         outputIds = conf.getBoolean("output-ids", false);
+        binaryOutput = conf.getBoolean("binary-output", false);
         tmp = Boolean.parseBoolean(conf.get("tmp"));
         
+        // with a seed, the permutation tests are reproducible
+        String seedStr = conf.get("random-seed", "");
+        if (!seedStr.isEmpty())
+            random = new Random(Long.parseLong(seedStr));
+        baseSeed = random.nextLong();
+        permutationTest = new PermutationTest(conf.getInt("permutation-threads", 1));
+        errorBound = conf.getFloat("early-stopping-error", 0);
+        spatialGraph.setRandom(random);
+        nbhdGraph.setRandom(random);
+        zipGraph.setRandom(random);
+        blockGraph.setRandom(random);
+        
         // nbhd grapgh
         nbhdGraph.init(FrameworkUtils.NBHD, conf);
         
@@ -219,18 +284,48 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
         // grid
         gridSize = 2048;
         //gridSize = Integer.parseInt(conf.get("spatial-resolution").replace("grid", ""));
-        originalGrid = new int[gridSize][gridSize];
-        for (int j = 0; j < gridSize; j++) {
-            for (int i = 0; i < gridSize; i++)
-                originalGrid[i][j] = j * gridSize + i;
-        }
     }
     
     @Override
     public void reduce(PairAttributeWritable key, Iterable<TopologyTimeSeriesWritable> values, Context context)
             throws IOException, InterruptedException {
+        evaluate(key, values);
+        profiler.endKey(key.toString());
+    }
+    
+    /**
+     * Computes and writes the relationship between the attributes of key,
+     * given the series of both attributes for all the spatial units.
+     */
+    void evaluate(PairAttributeWritable key, Iterable<TopologyTimeSeriesWritable> values)
+            throws IOException, InterruptedException {
+        
+        TimeSeriesStats stats = alignedStats(key, values);
+        if (stats == null)
+            return;
+        
+        float alignedScore = stats.getRelationshipScore();
+        float alignedStrength = stats.getRelationshipStrength();
+        
+        if ((hasScoreThreshold) && (Math.abs(alignedScore) < scoreThreshold)) return;
+        if ((hasStrengthThreshold) && (Math.abs(alignedStrength) < strengthThreshold)) return;
+        
+        float pValue = pValue(key, alignedScore);
+        if (!tmp) {
+            if ((!removeNotSignificant) || ((pValue <= alpha) && (removeNotSignificant))) {
+                emit(key, stats, pValue);
+            }
+        }
+    }
+    
+    /**
+     * Score and strength of the relationship between the attributes of key
+     * (with the aligned spatial units), or null if the series do not
+     * intersect. The series are kept for the permutation test (pValue).
+     */
+    TimeSeriesStats alignedStats(PairAttributeWritable key, Iterable<TopologyTimeSeriesWritable> values) {
     	
-    	//long start = System.currentTimeMillis();
+    	long start = profiler.start();
         
         timeSeriesPerSpatial.clear();
         resolutionHandler(key.getSpatialResolution(), key.getTemporalResolution());
@@ -271,11 +366,13 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
                 + utils.spatialResolutionStr(key.getSpatialResolution()) + "-"
                 + ((key.getIsOutlier()) ? "outliers" : "events") + "-"
                 + randomizationStr + "/data";
+        binaryFileName = fileName.substring(0, fileName.length() - "data".length()) + "binary";
         
         Iterator<TopologyTimeSeriesWritable> it = values.iterator();
         TopologyTimeSeriesWritable timeSeries;
         while (it.hasNext()) {
             timeSeries = it.next();
+            profiler.record();
             int indexSpatial = timeSeries.getSpatial();
             int dataset = timeSeries.getDataset();
             
@@ -294,92 +391,56 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
             timeSeriesPerSpatial.set(indexSpatial, elem);
         }
         
+        isAligned = alignTimeSeries();
+        
         /*
          * Aligned Score and Strength
          */
         
         TimeSeriesStats stats = new TimeSeriesStats();
         for (int i = 0; i < size; i++) {
-            elem = timeSeriesPerSpatial.get(i);
-            TimeSeriesStats tempStats = getStats(temporal, elem[dataset1Key],
-                    elem[dataset2Key], false, !completeRandomization, size);
+            TimeSeriesStats tempStats = getStats(i, i, false, !completeRandomization, null);
             if (!tempStats.isIntersect()) continue;
             stats.add(tempStats);
         }
         
-        if (!stats.isIntersect())
-            return;        
+        if (!stats.isIntersect()) {
+            profiler.stop(Phase.ALIGNMENT, start);
+            return null;
+        }
         stats.computeScores();
         
-        float alignedScore = stats.getRelationshipScore();
-        float alignedStrength = stats.getRelationshipStrength();
-        
-        if ((hasScoreThreshold) && (Math.abs(alignedScore) < scoreThreshold)) return;
-        if ((hasStrengthThreshold) && (Math.abs(alignedStrength) < strengthThreshold)) return;
-        
-        float nMatchEvents = stats.getMatchEvents();
-        float nMatchPosEvents = stats.getMatchPosEvents();
-        float nMatchNegEvents = stats.getMatchNegEvents();
-        float nPosFirstPosSecond = stats.getPosFirstPosSecond();
-        float nNegFirstNegSecond = stats.getNegFirstNegSecond();
-        float nPosFirstNegSecond = stats.getPosFirstNegSecond();
-        float nNegFirstPosSecond = stats.getNegFirstPosSecond();
-        float nPosFirstNonSecond = stats.getPosFirstNonSecond();
-        float nNegFirstNonSecond = stats.getNegFirstNonSecond();
-        float nNonFirstPosSecond = stats.getNonFirstPosSecond();
-        float nNonFirstNegSecond = stats.getNonFirstNegSecond();
+        profiler.stop(Phase.ALIGNMENT, start);
         
-        //long end = System.currentTimeMillis();
+        return stats;
+    }
+    
+    /**
+     * p-value of the relationship between the attributes of key, whose
+     * series were given to the last call of alignedStats.
+     */
+    float pValue(PairAttributeWritable key, float alignedScore) throws InterruptedException {
         
         /*
          * Monte Carlo Permutation Test
          */
         
-        float pValue = 0;
-        ArrayList<Integer[]> pairs = new ArrayList<Integer[]>();
-        
-        //long start2 = System.currentTimeMillis();
-        
+        long start = profiler.start();
+        PermutationTest.Repetition repetition;
         switch(spatial) {
         
         case FrameworkUtils.GRID:
             
-            for (int j = 0; j < repetitions; j++) {
-                pairs.clear();
-                pairs = (completeRandomization) ? spatialCompleteRandom() : toroidalShift();
-                
-                stats = new TimeSeriesStats();
-                for (int i = 0; i < pairs.size(); i++) {
-                    Integer[] pair = pairs.get(i);
-                    stats.add(getStats(temporal, timeSeriesPerSpatial.get(pair[0])[dataset1Key],
-                            timeSeriesPerSpatial.get(pair[1])[dataset2Key], false));
-                }
-                stats.computeScores();
-                
-                float mcScore = stats.getRelationshipScore();
-                //float mcStrength = stats.getRelationshipStrength();
-                
-                if (alignedScore > 0) {
-                    if (mcScore >= alignedScore)
-                        pValue += 1;
-                }
-                else {
-                    if (mcScore <= alignedScore)
-                        pValue += 1;
-                }
-                if (pValue > (alpha*repetitions)) break; // pruning
-            }
-            
-            pValue = pValue/((float)(repetitions));
-            if (!tmp) {
-                if ((!removeNotSignificant) || ((pValue <= alpha) && (removeNotSignificant))) {
-                    emitKeyValue(outputIds, key, alignedScore, alignedStrength, pValue, nMatchEvents,
-                            nMatchPosEvents, nMatchNegEvents, nPosFirstNonSecond,
-                            nNegFirstNonSecond, nNonFirstPosSecond, nNonFirstNegSecond,
-                            nPosFirstPosSecond, nNegFirstNegSecond, nPosFirstNegSecond, nNegFirstPosSecond);
+            repetition = new PermutationTest.Repetition() {
+                public float score(Random random) {
+                    Permutation permutation = permutations.get();
+                    if (completeRandomization)
+                        spatialCompleteRandom(random, permutation);
+                    else
+                        toroidalShift(random, permutation);
+                    return spatialScore(permutation, random);
                 }
-            }
-            
+            };
             break;
             
         case FrameworkUtils.CITY:
@@ -389,87 +450,81 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
                 System.exit(-1);
             }
             
-            elem = timeSeriesPerSpatial.get(0);
-            
-            for (int j = 0; j < repetitions; j++) {
-            	//long startCity = System.currentTimeMillis();
-                stats = new TimeSeriesStats();
-                stats.add(getStats(temporal, elem[dataset1Key], elem[dataset2Key], true));
-                
-                stats.computeScores();
-                
-                float mcScore = stats.getRelationshipScore();
-                //float mcStrength = stats.getRelationshipStrength();
-                
-                if (alignedScore > 0) {
-                    if (mcScore >= alignedScore)
-                        pValue += 1;
-                }
-                else {
-                    if (mcScore <= alignedScore)
-                        pValue += 1;
-                }
-                if (pValue > (alpha*repetitions)) break; // pruning
-                //long endCity = System.currentTimeMillis();
-                //if (j == 0) System.out.println("One repetition: " + (endCity-startCity) + " ms");
-            }
-            
-            pValue = pValue/((float)(repetitions));
-            if (!tmp) {
-                if ((!removeNotSignificant) || ((pValue <= alpha) && (removeNotSignificant))) {
-                    emitKeyValue(outputIds, key, alignedScore, alignedStrength, pValue, nMatchEvents,
-                            nMatchPosEvents, nMatchNegEvents, nPosFirstNonSecond,
-                            nNegFirstNonSecond, nNonFirstPosSecond, nNonFirstNegSecond,
-                            nPosFirstPosSecond, nNegFirstNegSecond, nPosFirstNegSecond, nNegFirstPosSecond);
+            repetition = new PermutationTest.Repetition() {
+                public float score(Random random) {
+                    TimeSeriesStats stats = new TimeSeriesStats();
+                    stats.add(getStats(0, 0, true, false, random));
+                    stats.computeScores();
+                    return stats.getRelationshipScore();
                 }
-            }
-        
+            };
             break;
             
         default:
             
-            for (int j = 0; j < repetitions; j++) {
-                //long startNbhd = System.currentTimeMillis();
-                pairs.clear();
-                pairs = (completeRandomization) ? spatialCompleteRandom() : bfsShift();
-                
-                stats = new TimeSeriesStats();
-                for (int i = 0; i < pairs.size(); i++) {
-                    Integer[] pair = pairs.get(i);
-                    stats.add(getStats(temporal, timeSeriesPerSpatial.get(pair[0])[dataset1Key],
-                            timeSeriesPerSpatial.get(pair[1])[dataset2Key], false));
-                }
-                stats.computeScores();
-                
-                float mcScore = stats.getRelationshipScore();
-                //float mcStrength = stats.getRelationshipStrength();
-                
-                if (alignedScore > 0) {
-                    if (mcScore >= alignedScore)
-                        pValue += 1;
-                }
-                else {
-                    if (mcScore <= alignedScore)
-                        pValue += 1;
-                }
-                if (pValue > (alpha*repetitions)) break; // pruning
-                //long endNbhd = System.currentTimeMillis();
-                //if (j == 0) System.out.println("One repetition: " + (endNbhd-startNbhd) + " ms");
-            }
-            
-            pValue = pValue/((float)(repetitions));
-            if (!tmp) {
-                if ((!removeNotSignificant) || ((pValue <= alpha) && (removeNotSignificant))) {
-                    emitKeyValue(outputIds, key, alignedScore, alignedStrength, pValue, nMatchEvents,
-                            nMatchPosEvents, nMatchNegEvents, nPosFirstNonSecond,
-                            nNegFirstNonSecond, nNonFirstPosSecond, nNonFirstNegSecond,
-                            nPosFirstPosSecond, nNegFirstNegSecond, nPosFirstNegSecond, nNegFirstPosSecond);
+            repetition = new PermutationTest.Repetition() {
+                public float score(Random random) {
+                    Permutation permutation = permutations.get();
+                    if (completeRandomization)
+                        spatialCompleteRandom(random, permutation);
+                    else
+                        bfsShift(random, permutation);
+                    return spatialScore(permutation, random);
                 }
-            }
-            
+            };
             break;
         }
         
+        PermutationTest.Result result = permutationTest.test(repetition, alignedScore,
+                repetitions, alpha, errorBound, keySeed(key));
+        float pValue = result.pValue;
+        context.getCounter(PermutationCounter.TESTS).increment(1);
+        context.getCounter(PermutationCounter.REPETITIONS).increment(result.repetitions);
+        if (result.stoppedEarly)
+            context.getCounter(PermutationCounter.STOPPED_EARLY).increment(1);
+        profiler.stop(Phase.MONTE_CARLO, start);
+        return pValue;
+    }
+    
+    /**
+     * Writes the relationship between the attributes of key.
+     */
+    void emit(PairAttributeWritable key, TimeSeriesStats stats, float pValue)
+            throws IOException, InterruptedException {
+        emitKeyValue(outputIds, key, stats.getRelationshipScore(), stats.getRelationshipStrength(),
+                pValue, stats.getMatchEvents(), stats.getMatchPosEvents(), stats.getMatchNegEvents(),
+                stats.getPosFirstNonSecond(), stats.getNegFirstNonSecond(), stats.getNonFirstPosSecond(),
+                stats.getNonFirstNegSecond(), stats.getPosFirstPosSecond(), stats.getNegFirstNegSecond(),
+                stats.getPosFirstNegSecond(), stats.getNegFirstPosSecond());
+    }
+    
+    /**
+     * Relationship score of the first dataset against the second one
+     * when the spatial units are paired as in permutation.
+     */
+    private float spatialScore(Permutation permutation, Random random) {
+        TimeSeriesStats stats = new TimeSeriesStats();
+        for (int i = 0; i < permutation.size(); i++) {
+            int target = permutation.get(i);
+            if (target < 0) continue;
+            stats.add(getStats(i, target, false, false, random));
+        }
+        stats.computeScores();
+        return stats.getRelationshipScore();
+    }
+    
+    /**
+     * Seed of the permutation test of an attribute pair: it depends only
+     * on the seed of the job and on the pair, not on the reducer.
+     */
+    private long keySeed(PairAttributeWritable key) {
+        long seed = PermutationTest.split(baseSeed, key.getFirstDataset());
+        seed = PermutationTest.split(seed, key.getFirstAttribute());
+        seed = PermutationTest.split(seed, key.getSecondDataset());
+        seed = PermutationTest.split(seed, key.getSecondAttribute());
+        seed = PermutationTest.split(seed, key.getSpatialResolution());
+        seed = PermutationTest.split(seed, key.getTemporalResolution());
+        return PermutationTest.split(seed, (key.getIsOutlier()) ? 1 : 0);
     }
     
     private void emitKeyValue(boolean outputIds, PairAttributeWritable key, float score, float strength, 
@@ -480,6 +535,14 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
             float nNegFirstNegSecond, float nPosFirstNegSecond,
             float nNegFirstPosSecond)
                     throws IOException, InterruptedException {
+        if (binaryOutput) {
+            out.write("binary", new RelationshipWritable(key, score, strength, pValue,
+                    new float[] {nMatchEvents, nMatchPosEvents, nMatchNegEvents,
+                        nPosFirstNonSecond, nNegFirstNonSecond, nNonFirstPosSecond, nNonFirstNegSecond,
+                        nPosFirstPosSecond, nNegFirstNegSecond, nPosFirstNegSecond, nNegFirstPosSecond}),
+                    NullWritable.get(), binaryFileName);
+            return;
+        }
         if (outputIds) {
             keyWritable = new Text(key.getFirstDataset() + "," + key.getFirstAttribute() +
                     "," + key.getSecondDataset() + "," + key.getSecondAttribute() +
@@ -493,12 +556,114 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
                 + "," + nNegFirstNonSecond + "," + nNonFirstPosSecond + "," + nNonFirstNegSecond
                 + "," + nPosFirstPosSecond + "," + nNegFirstNegSecond + "," + nPosFirstNegSecond
                 + "," + nNegFirstPosSecond);
-        out.write(keyWritable, valueWritable, fileName);
+        write(keyWritable, valueWritable);
+    }
+    
+    /**
+     * Writes a relationship in text to the output of its pair of datasets
+     * and resolution (fileName); RelationshipServer collects it instead.
+     */
+    void write(Text key, Text value) throws IOException, InterruptedException {
+        out.write(key, value, fileName);
     }
     
     @Override
     public void cleanup(Context context) throws IOException, InterruptedException {
+        close();
+    }
+    
+    void close() throws IOException, InterruptedException {
     	out.close();
+    	permutationTest.shutdown();
+    	profiler.close(context);
+    }
+    
+    /**
+     * Aligns the event series of both datasets once for all the repetitions.
+     * This requires all the series of a dataset to have the same time range,
+     * which is the case for series from the same index; returns false otherwise.
+     */
+    private boolean alignTimeSeries() {
+        
+        TopologyTimeSeriesWritable first1 = null;
+        TopologyTimeSeriesWritable first2 = null;
+        for (int i = 0; i < size; i++) {
+            TopologyTimeSeriesWritable[] elem = timeSeriesPerSpatial.get(i);
+            if (elem[dataset1Key] != null) {
+                if (first1 == null)
+                    first1 = elem[dataset1Key];
+                else if (!sameRange(first1, elem[dataset1Key]))
+                    return false;
+            }
+            if (elem[dataset2Key] != null) {
+                if (first2 == null)
+                    first2 = elem[dataset2Key];
+                else if (!sameRange(first2, elem[dataset2Key]))
+                    return false;
+            }
+        }
+        if ((first1 == null) || (first2 == null))
+            return false;
+        
+        int[] alignment = getAlignment(temporal, first1, first2);
+        if (alignment == null)
+            return false;
+        
+        alignedLength = alignment[2];
+        if (alignedSeries1.length < size) {
+            alignedSeries1 = new byte[size][];
+            alignedSeries2 = new byte[size][];
+        }
+        for (int i = 0; i < size; i++) {
+            TopologyTimeSeriesWritable[] elem = timeSeriesPerSpatial.get(i);
+            alignedSeries1[i] = (elem[dataset1Key] == null) ? null :
+                elem[dataset1Key].getCodes(alignment[0], alignment[0] + alignedLength);
+            alignedSeries2[i] = (elem[dataset2Key] == null) ? null :
+                elem[dataset2Key].getCodes(alignment[1], alignment[1] + alignedLength);
+        }
+        return true;
+    }
+    
+    private boolean sameRange(TopologyTimeSeriesWritable timeSeries1,
+            TopologyTimeSeriesWritable timeSeries2) {
+        return (timeSeries1.getStart() == timeSeries2.getStart()) &&
+                (timeSeries1.getEnd() == timeSeries2.getEnd()) &&
+                (timeSeries1.getLength() == timeSeries2.getLength());
+    }
+    
+    /**
+     * Statistics between the first dataset at spatial index1 and
+     * the second dataset at spatial index2.
+     */
+    private TimeSeriesStats getStats(int index1, int index2,
+            boolean temporalPermutationTest, boolean checkIntersection, Random random) {
+        
+        if (!isAligned)
+            return getStats(temporal, timeSeriesPerSpatial.get(index1)[dataset1Key],
+                    timeSeriesPerSpatial.get(index2)[dataset2Key], temporalPermutationTest,
+                    checkIntersection, size, random);
+        
+        TimeSeriesStats output = new TimeSeriesStats();
+        
+        byte[] codes1 = alignedSeries1[index1];
+        byte[] codes2 = alignedSeries2[index2];
+        if ((codes1 == null) || (codes2 == null))
+            return output;
+        
+        output.setIntersect(true);
+        
+        if (checkIntersection) {
+            if (alignedLength*size < repetitions) {
+                output.setIntersect(false);
+                return output;
+            }
+        }
+        
+        int indexD1 = (temporalPermutationTest) ? random.nextInt(alignedLength) : 0;
+        int indexD2 = (temporalPermutationTest) ? random.nextInt(alignedLength) : 0;
+        countEvents(output, codes1, codes2, alignedLength, indexD1, indexD2);
+        
+        return output;
     }
     
     public static TimeSeriesStats getStats(int temporal, TopologyTimeSeriesWritable timeSeries1,
@@ -512,11 +677,51 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
             TopologyTimeSeriesWritable timeSeries2, boolean temporalPermutationTest,
             boolean checkIntersection, int size) {
         
+        return getStats(temporal, timeSeries1, timeSeries2, temporalPermutationTest,
+                checkIntersection, size, (temporalPermutationTest) ? new Random() : null);
+    }
+    
+    public static TimeSeriesStats getStats(int temporal, TopologyTimeSeriesWritable timeSeries1,
+            TopologyTimeSeriesWritable timeSeries2, boolean temporalPermutationTest,
+            boolean checkIntersection, int size, Random random) {
+        
         TimeSeriesStats output = new TimeSeriesStats();
         
         if ((timeSeries1 == null) || (timeSeries2 == null))
             return output;
         
+        int[] alignment = getAlignment(temporal, timeSeries1, timeSeries2);
+        if (alignment == null)
+            return output;
+        
+        output.setIntersect(true);
+        
+        int length = alignment[2];
+        if (checkIntersection) {
+            if (length*size < repetitions) {
+                output.setIntersect(false);
+                return output;
+            }
+        }
+        
+        byte[] codes1 = timeSeries1.getCodes(alignment[0], alignment[0] + length);
+        byte[] codes2 = timeSeries2.getCodes(alignment[1], alignment[1] + length);
+        
+        int indexD1 = (temporalPermutationTest) ? random.nextInt(length) : 0;
+        int indexD2 = (temporalPermutationTest) ? random.nextInt(length) : 0;
+        countEvents(output, codes1, codes2, length, indexD1, indexD2);
+        
+        return output;
+    }
+    
+    /**
+     * Returns the index of the first common time step in each series and
+     * the number of common time steps, or null if the series do not
+     * intersect in time.
+     */
+    public static int[] getAlignment(int temporal, TopologyTimeSeriesWritable timeSeries1,
+            TopologyTimeSeriesWritable timeSeries2) {
+        
         // detecting intersection
         
         long start1 = timeSeries1.getStart();
@@ -525,17 +730,15 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
         long end2 = timeSeries2.getEnd();
         
         if (((end1 < start2) && (start1 < start2)) || ((end1 > end2) && (start1 > end2)))
-            return output;
-        
-        output.setIntersect(true);
+            return null;
         
         DateTime start1Obj = new DateTime(start1*1000, DateTimeZone.UTC);
         DateTime end1Obj = new DateTime(end1*1000, DateTimeZone.UTC);
         DateTime start2Obj = new DateTime(start2*1000, DateTimeZone.UTC);
         DateTime end2Obj = new DateTime(end2*1000, DateTimeZone.UTC);
         
-        byte[] eventTimeSeries1 = timeSeries1.getTimeSeries();
-        byte[] eventTimeSeries2 = timeSeries2.getTimeSeries();
+        int length1 = timeSeries1.getLength();
+        int length2 = timeSeries2.getLength();
         
         int startRange = 0;
         int endRange = 0;
@@ -581,8 +784,8 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
         
         int indexStart1 = (start2 > start1) ? startRange : 0;
         int indexStart2 = (start2 > start1) ? 0 : startRange;
-        int indexEnd1 = (end2 > end1) ? eventTimeSeries1.length : eventTimeSeries1.length - endRange;
-        int indexEnd2 = (end2 > end1) ? eventTimeSeries2.length - endRange : eventTimeSeries2.length;
+        int indexEnd1 = (end2 > end1) ? length1 : length1 - endRange;
+        int indexEnd2 = (end2 > end1) ? length2 - endRange : length2;
         
         /*DateTime startIntersect = FrameworkUtils.addTime(temporal, indexStart1, start1Obj);
         if (!(startIntersect.isEqual(FrameworkUtils.addTime(temporal, indexStart2, start2Obj)))) {
@@ -590,20 +793,33 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
             System.exit(-1);
         }*/
         
-        byte[] timeSeries1Int = Arrays.copyOfRange(eventTimeSeries1, indexStart1, indexEnd1);
-        byte[] timeSeries2Int = Arrays.copyOfRange(eventTimeSeries2, indexStart2, indexEnd2);
+        int intersectLength = indexEnd1 - indexStart1;
         
-        if (timeSeries1Int.length != timeSeries2Int.length) {
+        if (intersectLength != (indexEnd2 - indexStart2)) {
             System.out.println("Something went wrong... Different sizes");
             System.exit(-1);
         }
         
-        if (checkIntersection) {
-            if ((indexEnd1 - indexStart1)*size < repetitions) {
-                output.setIntersect(false);
-                return output;
-            }
-        }
+        int[] alignment = {indexStart1, indexStart2, intersectLength};
+        return alignment;
+    }
+    
+    // pairs of codes with one negative and one positive event
+    private static final boolean[] posNegCodes = new boolean[16];
+    static {
+        for (int code = 0; code < posNegCodes.length; code++)
+            posNegCodes[code] = ((TopologyTimeSeriesWritable.getEvent(code >> 2) |
+                    TopologyTimeSeriesWritable.getEvent(code & 3)) == FrameworkUtils.negEventPosEventMatch);
+    }
+    
+    /**
+     * Counts the matches between two aligned series of event codes, the
+     * first shifted by indexD1 and the second by indexD2 time steps.
+     * Time steps are first accumulated per pair of codes, and matches are
+     * then counted once per pair of codes.
+     */
+    public static void countEvents(TimeSeriesStats output, byte[] codes1, byte[] codes2,
+            int length, int indexD1, int indexD2) {
         
         int nMatchEvents = 0;
         int nMatchPosEvents = 0;
@@ -617,53 +833,60 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
         int nNonFirstPosSecond = 0;
         int nNonFirstNegSecond = 0;
         
-        //String eventDateTime = null;
-        int indexD1 = (temporalPermutationTest) ? new Random().nextInt(timeSeries1Int.length) : 0;
-        int indexD2 = (temporalPermutationTest) ? new Random().nextInt(timeSeries2Int.length) : 0;
-        for (int i = 0; i < timeSeries1Int.length; i++) {
-            int j = (indexD1 + i) % timeSeries1Int.length;
-            int k = (indexD2 + i) % timeSeries2Int.length;            
-            byte result = (byte) (timeSeries1Int[j] | timeSeries2Int[k]);
+        int[] nCodes = new int[16];
+        // for one negative and one positive event, which one comes
+        //   first is taken from the non-shifted first series
+        int nPosNonShiftedFirst = 0;
+        for (int i = 0; i < length; i++) {
+            int j = indexD1 + i;
+            if (j >= length) j -= length;
+            int k = indexD2 + i;
+            if (k >= length) k -= length;
+            int code = (TopologyTimeSeriesWritable.getCode(codes1, j) << 2)
+                    | TopologyTimeSeriesWritable.getCode(codes2, k);
+            nCodes[code]++;
+            if (posNegCodes[code] && (TopologyTimeSeriesWritable.getEvent(
+                    TopologyTimeSeriesWritable.getCode(codes1, i)) == FrameworkUtils.positiveEvent))
+                nPosNonShiftedFirst++;
+        }
+        
+        for (int code = 0; code < nCodes.length; code++) {
+            int n = nCodes[code];
+            if (n == 0) continue;
             
-            //eventDateTime = FrameworkUtils.getTemporalStr(
-            //        temporal, FrameworkUtils.addTime(temporal, j, startIntersect));
+            byte event1 = TopologyTimeSeriesWritable.getEvent(code >> 2);
+            byte result = (byte) (event1 | TopologyTimeSeriesWritable.getEvent(code & 3));
             
             switch(result) {
             case FrameworkUtils.nonEventsMatch: // both non events
                 // do nothing
                 break;
             case FrameworkUtils.posEventsMatch: // both positive
-                nMatchEvents++;
-                nMatchPosEvents++;
-                nPosFirstPosSecond++;
-                //output.addMatchPosEvents(eventDateTime);
+                nMatchEvents += n;
+                nMatchPosEvents += n;
+                nPosFirstPosSecond += n;
                 break;
             case FrameworkUtils.nonEventPosEventMatch: // one positive, one non-event
-                if (timeSeries1Int[j] == FrameworkUtils.positiveEvent)
-                    nPosFirstNonSecond++;
+                if (event1 == FrameworkUtils.positiveEvent)
+                    nPosFirstNonSecond += n;
                 else
-                    nNonFirstPosSecond++;
+                    nNonFirstPosSecond += n;
                 break;
             case FrameworkUtils.negEventsMatch: // both negative
-                nMatchEvents++;
-                nMatchPosEvents++;
-                nNegFirstNegSecond++;
-                //output.addMatchPosEvents(eventDateTime);
+                nMatchEvents += n;
+                nMatchPosEvents += n;
+                nNegFirstNegSecond += n;
                 break;
             case FrameworkUtils.nonEventNegEventMatch: // one negative, one non-event
-                if (timeSeries1Int[j] == FrameworkUtils.negativeEvent)
-                    nNegFirstNonSecond++;
+                if (event1 == FrameworkUtils.negativeEvent)
+                    nNegFirstNonSecond += n;
                 else
-                    nNonFirstNegSecond++;
+                    nNonFirstNegSecond += n;
                 break;
             case FrameworkUtils.negEventPosEventMatch: // one negative, one positive
-                nMatchEvents++;
-                nMatchNegEvents++;
-                if (timeSeries1Int[i] == FrameworkUtils.positiveEvent)
-                    nPosFirstNegSecond++;
-                else
-                    nNegFirstPosSecond++;
-                //output.addMatchNegEvents(eventDateTime);
+                nMatchEvents += n;
+                nMatchNegEvents += n;
+                nNegFirstPosSecond += n;
                 break;
             default:
                 System.out.println("Something went wrong... Wrong case");
@@ -671,6 +894,9 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
             }
         }
         
+        nPosFirstNegSecond = nPosNonShiftedFirst;
+        nNegFirstPosSecond -= nPosNonShiftedFirst;
+        
         output.setParameters(
                 nMatchEvents,
                 nMatchPosEvents,
@@ -683,59 +909,18 @@ public class CorrelationReducer extends Reducer<PairAttributeWritable, TopologyT
                 nNegFirstNonSecond,
                 nNonFirstPosSecond,
                 nNonFirstNegSecond);
-        
-        return output;
     }
     
-    private ArrayList<Integer[]> spatialCompleteRandom() {
-        
-        // each element inside the array list represents a pair
-        ArrayList<Integer[]> result = new ArrayList<Integer[]>();
-        
-        ArrayList<Integer> vals = new ArrayList<Integer>();
-        for (int k = 0; k < size; k++) {
-            vals.add(k);
-        }
-        Collections.shuffle(vals);
-        
-        for (int k = 0; k < size; k++) {
-            
-            Integer[] pair = new Integer[2];
-            pair[0] = vals.get(k);
-            pair[1] = k;
-            result.add(pair);
-        }
-        
-        return result;
+    private void spatialCompleteRandom(Random random, Permutation permutation) {
+        permutation.shuffle(size, random);
     }
     
-    private ArrayList<Integer[]> toroidalShift() {
-        
-        // each element inside the array list represents a pair
-        ArrayList<Integer[]> result = new ArrayList<Integer[]>();
-        
-        Random random = new Random();
-        
-        int x = random.nextInt(gridSize);
-        int y = random.nextInt(gridSize);
-        
-        // shifted grid
-        for (int j = 0; j < gridSize; j++) {
-            for (int i = 0; i < gridSize; i++) {
-                int newX = (x + i) % gridSize;
-                int newY = (y + j) % gridSize;
-                Integer[] pair = new Integer[2];
-                pair[0] = originalGrid[i][j];
-                pair[1] = originalGrid[newX][newY];
-                result.add(pair);
-            }
-        }
-        
-        return result;
+    private void toroidalShift(Random random, Permutation permutation) {
+        permutation.toroidalShift(gridSize, random);
     }
     
     // TODO: we may not have all the neighborhoods for the data
-    private ArrayList<Integer[]> bfsShift() {
-        return spatialGraph.generateRandomShift();
+    private void bfsShift(Random random, Permutation permutation) {
+        spatialGraph.generateRandomShift(random, permutation);
     }
 }
@@ -0,0 +1,343 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.relationship_computation;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+
+/**
+ * Partitioner of the relationship job that balances the estimated work
+ * of the reducers instead of hashing the keys.
+ *
+ * The work of a key is estimated as
+ *   repetitions * (spatial size + spatial units * time steps),
+ * i.e., the cost of drawing a spatial permutation plus the cost of
+ * comparing the aligned series of both datasets, for every repetition of
+ * the permutation test. The spatial units and the time steps of each
+ * dataset, resolution and outlier flag come from a sampling pre-pass over
+ * the index files (see sample), stored in "partition-costs" by the driver.
+ * Every task enumerates the same keys from the configuration and assigns
+ * them, from the most to the least expensive, to the least loaded
+ * reducer; keys that are not enumerated (e.g., a resolution present only
+ * in one dataset, which is cheap to reduce) are hashed.
+ */
+public class CostModelPartitioner extends Partitioner<PairAttributeWritable, TopologyTimeSeriesWritable>
+    implements Configurable {
+
+    public static final int GRID_SIZE = 2048*2048;
+
+    Configuration conf;
+
+    // estimated records and series length per dataset, resolutions and outlier flag
+    TreeMap<String,long[]> costs = new TreeMap<String,long[]>();
+    HashMap<Integer,Integer> datasetAggSize = new HashMap<Integer,Integer>();
+    TreeSet<Integer> firstGroup = new TreeSet<Integer>();
+    TreeSet<Integer> secondGroup = new TreeSet<Integer>();
+    HashSet<String> noRelationship = new HashSet<String>();
+
+    // reducer of every attribute pair, per dataset pair, resolutions and outlier flag
+    Long2ObjectOpenHashMap<int[]> assignment = new Long2ObjectOpenHashMap<int[]>();
+    long[] loads = null;
+    int nbPartitions = -1;
+
+    @Override
+    public Configuration getConf() {
+        return conf;
+    }
+
+    @Override
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+
+        costs.clear();
+        datasetAggSize.clear();
+        firstGroup.clear();
+        secondGroup.clear();
+        noRelationship.clear();
+        nbPartitions = -1;
+
+        if (conf.get("partition-costs", "").length() > 0) {
+            for (String cost : conf.get("partition-costs").split(",")) {
+                String[] fields = cost.split(":");
+                costs.put(fields[0] + ":" + fields[1] + ":" + fields[2] + ":" + fields[3],
+                        new long[] {Long.parseLong(fields[4]), Long.parseLong(fields[5])});
+            }
+        }
+
+        String[] datasetIdsStr = conf.get("dataset-keys","").split(",");
+        for (int i = 0; i < datasetIdsStr.length; i++) {
+            if (datasetIdsStr[i].length() == 0) continue;
+            datasetAggSize.put(Integer.parseInt(datasetIdsStr[i]),
+                    Integer.parseInt(conf.get("dataset-" + datasetIdsStr[i] + "-agg-size","0")));
+        }
+
+        if (conf.get("no-relationship", "").length() > 0) {
+            for (String relationship : conf.get("no-relationship").split(",")) {
+                String[] ids = relationship.split("-");
+                if (Integer.parseInt(ids[0]) < Integer.parseInt(ids[1])) {
+                    noRelationship.add(relationship);
+                } else {
+                    noRelationship.add(ids[1] + "-" + ids[0]);
+                }
+            }
+        }
+
+        for (String dataset : conf.get("first-group","").split(",")) {
+            if (dataset.length() > 0)
+                firstGroup.add(Integer.parseInt(dataset));
+        }
+        for (String dataset : conf.get("second-group","").split(",")) {
+            if (dataset.length() > 0)
+                secondGroup.add(Integer.parseInt(dataset));
+        }
+    }
+
+    @Override
+    public int getPartition(PairAttributeWritable key, TopologyTimeSeriesWritable value, int numPartitions) {
+
+        if (numPartitions != nbPartitions)
+            assign(numPartitions);
+
+        int[] partitions = assignment.get(code(key.getFirstDataset(), key.getSecondDataset(),
+                key.getSpatialResolution(), key.getTemporalResolution(), key.getIsOutlier()));
+        if (partitions != null) {
+            int index = key.getFirstAttribute()*datasetAggSize.get(key.getSecondDataset())
+                    + key.getSecondAttribute();
+            if ((key.getFirstAttribute() >= 0) && (index >= 0) && (index < partitions.length))
+                return partitions[index];
+        }
+
+        // same as HashPartitioner
+        return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+    }
+
+    /**
+     * Estimated load of every reducer, once the keys are assigned.
+     */
+    public long[] getLoads(int numPartitions) {
+        if (numPartitions != nbPartitions)
+            assign(numPartitions);
+        return loads;
+    }
+
+    /**
+     * Estimated cost of the key of a pair of datasets at the given
+     * resolutions, or -1 if one of the datasets has no series there.
+     */
+    public long cost(int dataset1, int dataset2, int spatial, int temporal, boolean isOutlier) {
+        long[] cost1 = costs.get(dataset1 + ":" + spatial + ":" + temporal + ":" + ((isOutlier) ? 1 : 0));
+        long[] cost2 = costs.get(dataset2 + ":" + spatial + ":" + temporal + ":" + ((isOutlier) ? 1 : 0));
+        if ((cost1 == null) || (cost2 == null))
+            return -1;
+
+        // spatial units per attribute
+        long units1 = Math.max(1, cost1[0] / Math.max(1, datasetAggSize.get(dataset1)));
+        long units2 = Math.max(1, cost2[0] / Math.max(1, datasetAggSize.get(dataset2)));
+        long units = Math.min(units1, units2);
+        long steps = Math.min(cost1[1], cost2[1]);
+
+        long spatialSize;
+        switch (spatial) {
+        case FrameworkUtils.GRID:
+            spatialSize = GRID_SIZE;
+            break;
+        case FrameworkUtils.CITY:
+            spatialSize = 1;
+            break;
+        default:
+            // nodes of the graph that have data
+            spatialSize = Math.max(units1, units2);
+            break;
+        }
+
+        return CorrelationReducer.repetitions * (spatialSize + units*steps);
+    }
+
+    static long code(int dataset1, int dataset2, int spatial, int temporal, boolean isOutlier) {
+        return ((((((long) dataset1 << 24) | dataset2) << 4 | spatial) << 4 | temporal) << 1)
+                | ((isOutlier) ? 1 : 0);
+    }
+
+    /**
+     * Assigns the attribute pairs to the reducers (longest processing time
+     * first); ties are broken by the order of the keys, so every task
+     * computes the same assignment.
+     */
+    private void assign(int numPartitions) {
+
+        assignment.clear();
+        loads = new long[numPartitions];
+        nbPartitions = numPartitions;
+
+        // pairs of datasets, as generated by CorrelationMapper
+        TreeSet<Long> pairs = new TreeSet<Long>();
+        for (int datasetA : firstGroup) {
+            for (int datasetB : secondGroup) {
+                if (datasetA == datasetB) continue;
+                int dataset1 = Math.min(datasetA, datasetB);
+                int dataset2 = Math.max(datasetA, datasetB);
+                if (noRelationship.contains(dataset1 + "-" + dataset2)) continue;
+                pairs.add(((long) dataset1 << 32) | dataset2);
+            }
+        }
+
+        // groups of attribute pairs with the same estimated cost
+        ArrayList<long[]> groups = new ArrayList<long[]>();
+        ArrayList<int[]> groupPartitions = new ArrayList<int[]>();
+        for (long pair : pairs) {
+            int dataset1 = (int) (pair >>> 32);
+            int dataset2 = (int) pair;
+            int nbPairs = datasetAggSize.get(dataset1) * datasetAggSize.get(dataset2);
+            if (nbPairs == 0) continue;
+            for (Entry<String,long[]> entry : costs.entrySet()) {
+                String[] fields = entry.getKey().split(":");
+                if (Integer.parseInt(fields[0]) != dataset1) continue;
+                int spatial = Integer.parseInt(fields[1]);
+                int temporal = Integer.parseInt(fields[2]);
+                boolean isOutlier = fields[3].equals("1");
+                long cost = cost(dataset1, dataset2, spatial, temporal, isOutlier);
+                if (cost < 0) continue;
+                long code = code(dataset1, dataset2, spatial, temporal, isOutlier);
+                int[] partitions = new int[nbPairs];
+                assignment.put(code, partitions);
+                groups.add(new long[] {cost, code, groupPartitions.size()});
+                groupPartitions.add(partitions);
+            }
+        }
+
+        long[][] sortedGroups = groups.toArray(new long[groups.size()][]);
+        Arrays.sort(sortedGroups, new Comparator<long[]>() {
+            public int compare(long[] g1, long[] g2) {
+                if (g1[0] != g2[0])
+                    return (g1[0] > g2[0]) ? -1 : 1;
+                return (g1[1] < g2[1]) ? -1 : ((g1[1] == g2[1]) ? 0 : 1);
+            }
+        });
+
+        // reducers ordered by load, then by index
+        PriorityQueue<long[]> reducers = new PriorityQueue<long[]>(numPartitions,
+                new Comparator<long[]>() {
+            public int compare(long[] r1, long[] r2) {
+                if (r1[0] != r2[0])
+                    return (r1[0] < r2[0]) ? -1 : 1;
+                return (r1[1] < r2[1]) ? -1 : ((r1[1] == r2[1]) ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < numPartitions; i++)
+            reducers.add(new long[] {0, i});
+
+        for (long[] group : sortedGroups) {
+            int[] partitions = groupPartitions.get((int) group[2]);
+            for (int i = 0; i < partitions.length; i++) {
+                long[] reducer = reducers.poll();
+                partitions[i] = (int) reducer[1];
+                reducer[0] += group[0];
+                reducers.add(reducer);
+            }
+        }
+
+        for (long[] reducer : reducers)
+            loads[(int) reducer[1]] = reducer[0];
+    }
+
+    /**
+     * Sampling pre-pass over the index files under dirs: reads the records
+     * between the sync marks found after samples evenly spaced positions of
+     * every file (one block for block-compressed files) and estimates, for every dataset,
+     * resolutions and outlier flag, the number of records and the mean
+     * length of the series. Returns the value of "partition-costs".
+     */
+    public static String sample(Configuration conf, FileSystem fs, ArrayList<Path> dirs, int samples)
+            throws IOException {
+
+        // records (estimated), sampled records and sum of the lengths
+        TreeMap<String,double[]> stats = new TreeMap<String,double[]>();
+
+        AttributeResolutionWritable key = new AttributeResolutionWritable();
+        TopologyTimeSeriesWritable value = new TopologyTimeSeriesWritable();
+        for (Path dir : dirs) {
+            RemoteIterator<LocatedFileStatus> files = fs.listFiles(dir, true);
+            while (files.hasNext()) {
+                LocatedFileStatus file = files.next();
+                String name = file.getPath().getName();
+                if (name.startsWith("_") || name.startsWith(".") || (file.getLen() == 0))
+                    continue;
+
+                HashMap<String,Integer> fileRecords = new HashMap<String,Integer>();
+                long bytes = 0;
+                long last = -1;
+                long dataStart = -1;
+                SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                        SequenceFile.Reader.file(file.getPath()));
+                for (int i = 0; i < samples; i++) {
+                    reader.sync(file.getLen() * i / samples);
+                    long start = reader.getPosition();
+                    if (dataStart < 0) dataStart = start; // end of the header
+                    if (start < last) continue; // already sampled
+
+                    // records up to the next sync mark (the next block if block-compressed)
+                    boolean more = reader.next(key, value);
+                    if (!more) break;
+                    long end = reader.getPosition();
+                    while (more) {
+                        String group = key.getDataset() + ":" + key.getSpatialResolution() + ":"
+                                + key.getTemporalResolution() + ":" + ((value.getIsOutlier()) ? 1 : 0);
+                        Integer count = fileRecords.get(group);
+                        fileRecords.put(group, (count == null) ? 1 : count + 1);
+                        double[] stat = stats.get(group);
+                        if (stat == null) {
+                            stat = new double[3];
+                            stats.put(group, stat);
+                        }
+                        stat[1]++;
+                        stat[2] += value.getLength();
+                        end = reader.getPosition();
+                        more = reader.next(key, value);
+                        if (reader.syncSeen()) break;
+                    }
+                    if (!more) end = reader.getPosition();
+                    bytes += end - start;
+                    last = end;
+                }
+                reader.close();
+
+                if (bytes == 0) continue;
+                for (Entry<String,Integer> entry : fileRecords.entrySet())
+                    stats.get(entry.getKey())[0] += entry.getValue() * (double) (file.getLen() - dataStart) / bytes;
+            }
+        }
+
+        String costs = "";
+        for (Entry<String,double[]> entry : stats.entrySet()) {
+            double[] stat = entry.getValue();
+            costs += entry.getKey() + ":" + Math.max(1, Math.round(stat[0])) + ":"
+                    + Math.max(1, Math.round(stat[2] / stat[1])) + ",";
+        }
+        return (costs.length() > 0) ? costs.substring(0, costs.length()-1) : costs;
+    }
+}
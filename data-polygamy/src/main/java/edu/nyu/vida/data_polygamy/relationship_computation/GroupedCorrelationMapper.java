@@ -0,0 +1,69 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.relationship_computation;
+
+import java.io.IOException;
+import java.util.HashSet;
+
+import org.apache.hadoop.mapreduce.Mapper;
+
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.DatasetPairWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+
+/**
+ * Mapper of the grouped relationship plan: each series is sent once per
+ * dataset of the other group, keyed by the pair of datasets and the
+ * resolution, instead of once per attribute of those datasets
+ * (CorrelationMapper). GroupedCorrelationReducer then evaluates all the
+ * pairs of attributes of both datasets.
+ */
+public class GroupedCorrelationMapper extends Mapper<AttributeResolutionWritable, TopologyTimeSeriesWritable, DatasetPairWritable, AttributeTimeSeriesWritable> {
+    
+    // groups of datasets and pairs already computed
+    CorrelationMapper plan = new CorrelationMapper();
+    
+    @Override
+    public void setup(Context context)
+            throws IOException, InterruptedException {
+        plan.setup(context.getConfiguration());
+    }
+    
+    @Override
+    public void map(AttributeResolutionWritable key, TopologyTimeSeriesWritable value, Context context)
+            throws IOException, InterruptedException {
+        
+        int dataset = key.getDataset();
+        
+        if (plan.firstGroup.contains(dataset))
+            generateDatasetPairs(key, value, context, dataset, plan.secondGroup);
+        else if (plan.secondGroup.contains(dataset))
+            generateDatasetPairs(key, value, context, dataset, plan.firstGroup);
+        else {
+            System.out.println("Something went wrong... Dataset id not found in any group.");
+            System.exit(-1);
+        }
+    }
+    
+    public void generateDatasetPairs(AttributeResolutionWritable key, TopologyTimeSeriesWritable value,
+            Context context, int dataset, HashSet<Integer> datasetIds) throws IOException, InterruptedException {
+        
+        AttributeTimeSeriesWritable valueWritable = new AttributeTimeSeriesWritable(key.getAttribute(), value);
+        
+        for (int compareDataset : datasetIds) {
+            if (compareDataset == dataset) continue;
+            if (plan.datasetAggSize.get(compareDataset) == 0) continue;
+            int dataset1 = Math.min(dataset, compareDataset);
+            int dataset2 = Math.max(dataset, compareDataset);
+            String relationship = Integer.toString(dataset1) + "-" + Integer.toString(dataset2);
+            if (plan.noRelationship.contains(relationship))
+                continue;
+            
+            context.write(new DatasetPairWritable(dataset1, dataset2,
+                    key.getSpatialResolution(), key.getTemporalResolution(), value.getIsOutlier()),
+                    valueWritable);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.relationship_computation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.DatasetPairWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+
+/**
+ * Reducer of the grouped relationship plan: keeps the series of all the
+ * attributes of both datasets in memory and evaluates every pair of
+ * attributes with CorrelationReducer, producing the same output as the
+ * default plan, or only the top k relationships of every pair of datasets
+ * and resolution (see TopKRelationships).
+ */
+public class GroupedCorrelationReducer extends Reducer<DatasetPairWritable, AttributeTimeSeriesWritable, Text, Text> {
+
+    CorrelationReducer evaluator = new CorrelationReducer();
+    TopKRelationships topK = null;
+
+    @Override
+    public void setup(Context context)
+            throws IOException, InterruptedException {
+        evaluator.initialize(context);
+        int k = context.getConfiguration().getInt("top-k", 0);
+        if (k > 0)
+            topK = new TopKRelationships(k, evaluator, context);
+    }
+
+    @Override
+    public void reduce(DatasetPairWritable key, Iterable<AttributeTimeSeriesWritable> values, Context context)
+            throws IOException, InterruptedException {
+
+        int dataset1 = key.getFirstDataset();
+        int dataset2 = key.getSecondDataset();
+
+        // series per attribute, for each dataset
+        TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>> attributes1 =
+                new TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>>();
+        TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>> attributes2 =
+                new TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>>();
+
+        Iterator<AttributeTimeSeriesWritable> it = values.iterator();
+        while (it.hasNext()) {
+            AttributeTimeSeriesWritable value = it.next();
+            TopologyTimeSeriesWritable timeSeries = value.getTimeSeries();
+            TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>> attributes =
+                    (timeSeries.getDataset() == dataset1) ? attributes1 : attributes2;
+            ArrayList<TopologyTimeSeriesWritable> series = attributes.get(value.getAttribute());
+            if (series == null) {
+                series = new ArrayList<TopologyTimeSeriesWritable>();
+                attributes.put(value.getAttribute(), series);
+            }
+            series.add(new TopologyTimeSeriesWritable(timeSeries));
+        }
+
+        if (topK != null) {
+            topK.query(key, attributes1, attributes2);
+            evaluator.profiler.endKey(key.toString());
+            return;
+        }
+
+        ArrayList<TopologyTimeSeriesWritable> pairSeries = new ArrayList<TopologyTimeSeriesWritable>();
+        for (int attribute1 : attributes1.keySet()) {
+            for (int attribute2 : attributes2.keySet()) {
+                pairSeries.clear();
+                pairSeries.addAll(attributes1.get(attribute1));
+                pairSeries.addAll(attributes2.get(attribute2));
+                evaluator.evaluate(new PairAttributeWritable(attribute1, attribute2, dataset1, dataset2,
+                        key.getSpatialResolution(), key.getTemporalResolution(), key.getIsOutlier()),
+                        pairSeries);
+            }
+        }
+        evaluator.profiler.endKey(key.toString());
+    }
+
+    @Override
+    public void cleanup(Context context) throws IOException, InterruptedException {
+        evaluator.close();
+    }
+}
@@ -0,0 +1,220 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.relationship_computation;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.math3.distribution.BinomialDistribution;
+
+/**
+ * Monte Carlo permutation test, with the repetitions split across threads.
+ *
+ * Repetition j draws its permutation from its own random number generator,
+ * seeded from the seed of the test and j, so the p-value only depends on
+ * the seed: not on the number of threads nor on the order in which the
+ * repetitions run. The test stops once more than alpha*repetitions
+ * repetitions reached the aligned score; the count is shared by all the
+ * threads and capped at that limit, which gives the same p-value as
+ * running the repetitions in order and stopping at the limit.
+ */
+public class PermutationTest {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    
+    /** Repetitions of the first batch of the sequential test. */
+    public static final int FIRST_BATCH = 50;
+
+    /**
+     * One repetition of the test.
+     */
+    public interface Repetition {
+        /** Relationship score of a random permutation drawn from random. */
+        float score(Random random);
+    }
+
+    private int nbThreads;
+    private ExecutorService executor = null;
+
+    public PermutationTest(int nbThreads) {
+        this.nbThreads = Math.max(1, nbThreads);
+        if (this.nbThreads > 1) {
+            executor = Executors.newFixedThreadPool(this.nbThreads - 1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "permutation-test");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    public int getNbThreads() {
+        return nbThreads;
+    }
+
+    /**
+     * Outcome of a test.
+     */
+    public static class Result {
+        /** p-value of the test. */
+        public float pValue;
+        /** Number of repetitions that were run. */
+        public int repetitions;
+        /** Whether the sequential test stopped before all the repetitions. */
+        public boolean stoppedEarly;
+    }
+
+    /**
+     * Returns the rate of repetitions with a score at least as extreme
+     * as alignedScore, in the same direction.
+     */
+    public float pValue(Repetition repetition, float alignedScore,
+            int repetitions, float alpha, long seed) throws InterruptedException {
+        return test(repetition, alignedScore, repetitions, alpha, 0, seed).pValue;
+    }
+
+    /**
+     * Same as pValue, but if errorBound is positive, the repetitions are
+     * run in batches of FIRST_BATCH, 2*FIRST_BATCH, 4*FIRST_BATCH, ...
+     * repetitions and the test stops after a batch as soon as an exact
+     * binomial test rejects either p >= alpha (significant) or p <= alpha
+     * (not significant) at level errorBound/(number of batches). The
+     * probability that the decision differs from the one of an infinite
+     * number of repetitions is then at most errorBound on either side.
+     * After an early stop, the p-value is the rate of the repetitions run.
+     */
+    public Result test(final Repetition repetition, final float alignedScore,
+            final int repetitions, float alpha, double errorBound, final long seed)
+            throws InterruptedException {
+
+        // pruning: the sequential test stops at the first count over alpha*repetitions
+        final int limit = (int) Math.floor(alpha*repetitions) + 1;
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicInteger count = new AtomicInteger(0);
+        final AtomicInteger executed = new AtomicInteger(0);
+
+        // ends of the batches
+        ArrayList<Integer> ends = new ArrayList<Integer>();
+        if (errorBound > 0) {
+            for (int end = FIRST_BATCH; end < repetitions; end *= 2)
+                ends.add(end);
+        }
+        ends.add(repetitions);
+        double looks = ends.size() - 1;
+
+        Result result = new Result();
+        for (final int end : ends) {
+            class Worker implements Callable<Void> {
+                public Void call() {
+                    try {
+                        while (count.get() < limit) {
+                            int j = next.getAndIncrement();
+                            if (j >= end)
+                                break;
+                            float mcScore = repetition.score(new Random(split(seed, j)));
+                            executed.incrementAndGet();
+                            if (alignedScore > 0) {
+                                if (mcScore >= alignedScore)
+                                    count.incrementAndGet();
+                            }
+                            else {
+                                if (mcScore <= alignedScore)
+                                    count.incrementAndGet();
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        count.set(limit); // stopping the other workers
+                        throw e;
+                    }
+                    return null;
+                }
+            }
+            run(new Worker());
+            next.set(end);
+
+            result.repetitions = executed.get();
+            if (count.get() >= limit) {
+                result.pValue = limit/((float)(repetitions));
+                return result;
+            }
+            if (end == repetitions)
+                break;
+
+            // the batches before the last one are interim looks
+            BinomialDistribution binomial = new BinomialDistribution(null, end, alpha);
+            if ((binomial.cumulativeProbability(count.get()) <= errorBound/looks) ||
+                    (1 - binomial.cumulativeProbability(count.get() - 1) <= errorBound/looks)) {
+                result.pValue = count.get()/((float)(end));
+                result.stoppedEarly = true;
+                return result;
+            }
+        }
+
+        result.pValue = count.get()/((float)(repetitions));
+        return result;
+    }
+
+    /**
+     * Runs worker in the calling thread and in the other threads of the
+     * test, and waits for all of them.
+     */
+    private void run(Callable<Void> worker) throws InterruptedException {
+
+        ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+        if (executor != null) {
+            for (int i = 1; i < nbThreads; i++)
+                futures.add(executor.submit(worker));
+        }
+
+        // the calling thread is one of the workers
+        RuntimeException error = null;
+        try {
+            worker.call();
+        } catch (RuntimeException e) {
+            error = e;
+        } catch (Exception e) {
+            error = new RuntimeException(e);
+        }
+
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    if (e.getCause() instanceof RuntimeException)
+                        error = (RuntimeException) e.getCause();
+                    else if (e.getCause() instanceof Error)
+                        throw (Error) e.getCause();
+                    else
+                        error = new RuntimeException(e.getCause());
+                }
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    /**
+     * Seed of the index-th stream derived from seed (SplitMix64).
+     */
+    public static long split(long seed, long index) {
+        long z = seed + (index + 1) * GOLDEN_GAMMA;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
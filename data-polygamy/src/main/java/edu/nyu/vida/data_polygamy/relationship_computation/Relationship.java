@@ -21,18 +21,25 @@ import org.apache.commons.cli.PosixParser;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.Machine;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.DatasetPairWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.RelationshipWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+import edu.nyu.vida.data_polygamy.utils.LocalEngine;
 
 public class Relationship {
     
@@ -178,6 +185,72 @@ public class Relationship {
         removeOption.setRequired(false);
         options.addOption(removeOption);
         
+        Option seedOption = new Option("seed", "seed", true, "seed for the Monte Carlo permutation test; "
+                + "the same seed gives the same relationships");
+        seedOption.setRequired(false);
+        seedOption.setArgName("SEED");
+        seedOption.setArgs(1);
+        options.addOption(seedOption);
+        
+        Option threadsOption = new Option("pt", "permutation-threads", true, "number of threads used by each "
+                + "reducer for the Monte Carlo permutation test; it does not change the relationships");
+        threadsOption.setRequired(false);
+        threadsOption.setArgName("THREADS");
+        threadsOption.setArgs(1);
+        options.addOption(threadsOption);
+        
+        Option groupedOption = new Option("gp", "grouped-plan", false, "send each series once per pair of "
+                + "datasets and evaluate all the pairs of attributes in the same reducer; this reduces the "
+                + "shuffle, but the reducer keeps all the attributes of both datasets in memory");
+        groupedOption.setRequired(false);
+        options.addOption(groupedOption);
+        
+        Option costModelOption = new Option("cm", "cost-model", true, "assign the pairs of attributes to the "
+                + "reducers by their estimated cost instead of hashing them; the cost is estimated from "
+                + "SAMPLES positions of every index file (default plan only)");
+        costModelOption.setRequired(false);
+        costModelOption.setArgName("SAMPLES");
+        costModelOption.setArgs(1);
+        options.addOption(costModelOption);
+        
+        Option earlyStoppingOption = new Option("es", "early-stopping", true, "stop the permutation test of "
+                + "a pair of attributes as soon as its significance is determined, with probability at most "
+                + "ERROR of a different decision than with infinite repetitions");
+        earlyStoppingOption.setRequired(false);
+        earlyStoppingOption.setArgName("ERROR");
+        earlyStoppingOption.setArgs(1);
+        options.addOption(earlyStoppingOption);
+        
+        Option binaryOption = new Option("bo", "binary-output", false, "write the relationships as "
+                + "sequence files of RelationshipWritable instead of text; see RelationshipStore");
+        binaryOption.setRequired(false);
+        options.addOption(binaryOption);
+        
+        Option topKOption = new Option("k", "top-k", true, "only write the K strongest significant "
+                + "relationships of every pair of datasets and resolution; pairs of attributes that cannot "
+                + "be in the top K are not tested (grouped plan)");
+        topKOption.setRequired(false);
+        topKOption.setArgName("K");
+        topKOption.setArgs(1);
+        options.addOption(topKOption);
+        
+        Option localOption = new Option("lt", "local-threads", true, "run the job in this process with "
+                + "THREADS threads instead of submitting it to the cluster (see LocalEngine)");
+        localOption.setRequired(false);
+        localOption.setArgName("THREADS");
+        localOption.setArgs(1);
+        options.addOption(localOption);
+        
+        Option profileOption = new Option("pr", "profile", false, "report the time of every phase "
+                + "of the job as counters (see StageProfiler)");
+        profileOption.setRequired(false);
+        options.addOption(profileOption);
+        
+        Option profileKeysOption = new Option("pk", "profile-keys", false, "as 'profile', and also "
+                + "write the time of every reduce key to '" + FrameworkUtils.profilesDir + "'");
+        profileKeysOption.setRequired(false);
+        options.addOption(profileKeysOption);
+        
         HelpFormatter formatter = new HelpFormatter();
         CommandLineParser parser = new PosixParser();
         CommandLine cmd = null;
@@ -218,6 +291,9 @@ public class Relationship {
         boolean snappyCompression = false;
         boolean bzip2Compression = false;
         String machine = cmd.getOptionValue("m");
+        int localThreads = cmd.hasOption("lt") ? Integer.parseInt(cmd.getOptionValue("lt")) : 0;
+        boolean profileKeys = cmd.hasOption("pk");
+        boolean profile = cmd.hasOption("pr") || profileKeys;
         int nbNodes = Integer.parseInt(cmd.getOptionValue("n"));
         
         Configuration s3conf = new Configuration();
@@ -245,6 +321,17 @@ public class Relationship {
     	boolean eraseAll = cmd.hasOption("e");
     	String scoreThreshold = hasScoreThreshold ? cmd.getOptionValue("sc") : "";
     	String strengthThreshold = hasStrengthThreshold ? cmd.getOptionValue("st") : "";
+    	String seed = cmd.hasOption("seed") ? cmd.getOptionValue("seed") : "";
+    	int permutationThreads = cmd.hasOption("pt") ? Integer.parseInt(cmd.getOptionValue("pt")) : 1;
+    	boolean groupedPlan = cmd.hasOption("gp");
+    	int costModelSamples = cmd.hasOption("cm") ? Integer.parseInt(cmd.getOptionValue("cm")) : 0;
+    	String earlyStoppingError = cmd.hasOption("es") ? cmd.getOptionValue("es") : "";
+    	boolean binaryOutput = cmd.hasOption("bo");
+    	int topK = cmd.hasOption("k") ? Integer.parseInt(cmd.getOptionValue("k")) : 0;
+    	if ((topK > 0) && !groupedPlan) {
+    	    System.out.println("The top-k query uses the grouped plan.");
+    	    groupedPlan = true;
+    	}
     	
     	// all datasets
     	ArrayList<String> all_datasets = new ArrayList<String>();
@@ -426,12 +513,24 @@ public class Relationship {
         conf.set("second-group", secondGroupStr);
         conf.set("complete-random", String.valueOf(completeRandomization));
         conf.set("output-ids", String.valueOf(outputIds));
+        conf.set("binary-output", String.valueOf(binaryOutput));
         conf.set("complete-random-str", random);
         conf.set("main-dataset-id", datasetId.get(shortDataset.get(0)));
         conf.set("remove-not-significant", String.valueOf(removeNotSignificant));
+        if (!seed.isEmpty()) {
+            conf.set("random-seed", seed);
+        }
+        conf.setInt("permutation-threads", permutationThreads);
+        if (!earlyStoppingError.isEmpty()) {
+            conf.set("early-stopping-error", earlyStoppingError);
+        }
+        conf.setInt("mapreduce.reduce.cpu.vcores", permutationThreads);
         if (noRelationship.length() > 0) {
             conf.set("no-relationship", noRelationship.substring(0, noRelationship.length()-1));
         }
+        if (topK > 0) {
+            conf.setInt("top-k", topK);
+        }
         if (hasScoreThreshold) {
             conf.set("score-threshold", scoreThreshold);
         }
@@ -477,21 +576,66 @@ public class Relationship {
             //conf.set("mapreduce.output.fileoutputformat.compress.codec", "org.apache.hadoop.io.compress.BZip2Codec");
         }
     
+        // sampling pre-pass for the cost model partitioner
+        if ((costModelSamples > 0) && groupedPlan) {
+            System.out.println("The cost model is only used by the default plan.");
+            costModelSamples = 0;
+        }
+        if (costModelSamples > 0) {
+            ArrayList<Path> indexPaths = new ArrayList<Path>();
+            FileSystem indexFs = null;
+            if (s3) {
+                indexFs = FileSystem.get(new Path(s3bucket + FrameworkUtils.indexDir).toUri(), s3conf);
+                for (String dir : dirs)
+                    indexPaths.add(new Path(dir));
+            } else {
+                indexFs = FileSystem.get(new Configuration());
+                for (String dir : dirs)
+                    indexPaths.add(new Path(indexFs.getHomeDirectory() + "/" + dir));
+            }
+            long start = System.currentTimeMillis();
+            conf.set("partition-costs", CostModelPartitioner.sample(s3conf, indexFs, indexPaths,
+                    costModelSamples));
+            System.out.println("sampling\t" + (System.currentTimeMillis() - start));
+            if (s3)
+                indexFs.close();
+        }
+    
+        if (profile)
+            conf.setBoolean("profile", true);
+        if (profileKeys)
+            conf.set("profile-dir", s3bucket + FrameworkUtils.profilesDir + "/" + jobName);
+        
         Job job = new Job(conf);
         job.setJobName(jobName);
         
-        job.setMapOutputKeyClass(PairAttributeWritable.class);
-        job.setMapOutputValueClass(TopologyTimeSeriesWritable.class);
+        if (groupedPlan) {
+            job.setMapOutputKeyClass(DatasetPairWritable.class);
+            job.setMapOutputValueClass(AttributeTimeSeriesWritable.class);
+        } else {
+            job.setMapOutputKeyClass(PairAttributeWritable.class);
+            job.setMapOutputValueClass(TopologyTimeSeriesWritable.class);
+        }
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(Text.class);
    
-        job.setMapperClass(CorrelationMapper.class);
-        job.setReducerClass(CorrelationReducer.class);
+        if (groupedPlan) {
+            job.setMapperClass(GroupedCorrelationMapper.class);
+            job.setReducerClass(GroupedCorrelationReducer.class);
+        } else {
+            job.setMapperClass(CorrelationMapper.class);
+            job.setReducerClass(CorrelationReducer.class);
+        }
+        if (costModelSamples > 0)
+            job.setPartitionerClass(CostModelPartitioner.class);
         job.setNumReduceTasks(machineConf.getNumberReduces());
    
         job.setInputFormatClass(SequenceFileInputFormat.class);
         //job.setOutputFormatClass(TextOutputFormat.class);
         LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+        if (binaryOutput)
+            MultipleOutputs.addNamedOutput(job, "binary", SequenceFileOutputFormat.class,
+                    RelationshipWritable.class, NullWritable.class);
    
         FileInputFormat.setInputDirRecursive(job, true);
         FileInputFormat.setInputPaths(job, indexInputDirs.substring(0, indexInputDirs.length()-1));
@@ -500,8 +644,12 @@ public class Relationship {
         job.setJarByClass(Relationship.class);
    
         long start = System.currentTimeMillis();
-        job.submit();
-        job.waitForCompletion(true);
+        if (localThreads > 0) {
+            LocalEngine.printCounters(LocalEngine.run(job, localThreads));
+        } else {
+            job.submit();
+            job.waitForCompletion(true);
+        }
         System.out.println(jobName + "\t" + (System.currentTimeMillis() - start));
         
         // moving files to right place
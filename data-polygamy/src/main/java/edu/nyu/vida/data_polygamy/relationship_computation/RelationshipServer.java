@@ -0,0 +1,495 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.relationship_computation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+
+import edu.nyu.vida.data_polygamy.relationship_computation.CorrelationReducer.PermutationCounter;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+
+/**
+ * Long-lived process that loads the indices of a group of datasets once,
+ * keeps the spatial graphs of the relationship reducer in memory, and
+ * computes the relationships between two datasets at a given resolution
+ * on request, instead of running the relationship job for every question.
+ *
+ * The relationships are computed by CorrelationReducer with the
+ * configuration of the job (same seed, same permutation test), so they
+ * are the ones the job writes to the corresponding data file. Answers
+ * are cached, since the indices do not change while the server runs.
+ *
+ * Protocol (one command per line, on stdin or on a local socket; every
+ * answer ends with a line containing a single dot):
+ *
+ *   relationships DATASET1 DATASET2 TEMPORAL SPATIAL [events|outliers]
+ *   resolutions DATASET
+ *   stats
+ *   quit        (closes the connection)
+ *   shutdown    (stops the server)
+ */
+public class RelationshipServer {
+
+    public static FrameworkUtils utils = new FrameworkUtils();
+
+    /**
+     * Reducer whose relationships are collected instead of written.
+     */
+    static class Evaluator extends CorrelationReducer {
+
+        ArrayList<String> output = new ArrayList<String>();
+
+        @Override
+        void write(Text key, Text value) {
+            output.add(key.toString() + "\t" + value.toString());
+        }
+    }
+
+    Configuration conf;
+    HashMap<String,Integer> datasetIds = new HashMap<String,Integer>();
+
+    // series of every attribute, by dataset and resolution (see group)
+    HashMap<Long,TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>>> series =
+            new HashMap<Long,TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>>>();
+    long nbSeries = 0;
+    long nbEvents = 0;
+
+    Evaluator evaluator = new Evaluator();
+    Counters counters = new Counters();
+    HashMap<String,ArrayList<String>> answers = new HashMap<String,ArrayList<String>>();
+    long nbQueries = 0;
+
+    ServerSocket serverSocket = null;
+    volatile boolean shutdown = false;
+
+    /**
+     * Reads the graphs; conf has the keys set by Relationship for the
+     * reducers (dataset-keys, dataset-names, dataset-ID-agg, random-seed,
+     * bucket, ...).
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public RelationshipServer(Configuration conf) throws IOException {
+        this.conf = conf;
+        conf.setBoolean("binary-output", false);
+        conf.set("tmp", "false");
+
+        String[] ids = conf.get("dataset-keys", "").split(",");
+        String[] names = conf.get("dataset-names", "").split(",");
+        for (int i = 0; i < ids.length; i++)
+            datasetIds.put(names[i], Integer.parseInt(ids[i]));
+
+        // context of the evaluator: only its configuration and counters are used
+        StatusReporter reporter = new StatusReporter() {
+            public Counter getCounter(Enum<?> name) { return counters.findCounter(name); }
+            public Counter getCounter(String group, String name) { return counters.findCounter(group, name); }
+            public void progress() {}
+            public float getProgress() { return 0; }
+            public void setStatus(String status) {}
+        };
+        RecordWriter<Text,Text> noOutput = new RecordWriter<Text,Text>() {
+            public void write(Text key, Text value) {}
+            public void close(TaskAttemptContext context) {}
+        };
+        MapContextImpl<Object,Object,Text,Text> context = new MapContextImpl<Object,Object,Text,Text>(conf,
+                new TaskAttemptID("server", 0, TaskType.REDUCE, 0, 0), (RecordReader) null, noOutput,
+                null, reporter, (InputSplit) null);
+        evaluator.initialize(context);
+    }
+
+    static long group(int dataset, int spatial, int temporal, boolean isOutlier) {
+        return ((long) dataset << 32) | (spatial << 16) | (temporal << 1) | (isOutlier ? 1 : 0);
+    }
+
+    /**
+     * Loads the index files under dir (e.g., the index directory of a
+     * dataset).
+     */
+    public void load(FileSystem fs, Path dir) throws IOException {
+        for (FileStatus status : fs.listStatus(dir)) {
+            Path path = status.getPath();
+            if (status.isDirectory()) {
+                load(fs, path);
+                continue;
+            }
+            if (path.getName().startsWith("_") || path.getName().startsWith(".")) continue;
+
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+            AttributeResolutionWritable key = new AttributeResolutionWritable();
+            TopologyTimeSeriesWritable value = new TopologyTimeSeriesWritable();
+            while (reader.next(key, value)) {
+                long g = group(key.getDataset(), key.getSpatialResolution(), key.getTemporalResolution(),
+                        value.getIsOutlier());
+                TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>> attributes = series.get(g);
+                if (attributes == null) {
+                    attributes = new TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>>();
+                    series.put(g, attributes);
+                }
+                ArrayList<TopologyTimeSeriesWritable> list = attributes.get(key.getAttribute());
+                if (list == null) {
+                    list = new ArrayList<TopologyTimeSeriesWritable>();
+                    attributes.put(key.getAttribute(), list);
+                }
+                list.add(value);
+                nbSeries++;
+                nbEvents += value.getLength();
+                value = new TopologyTimeSeriesWritable();
+            }
+            reader.close();
+        }
+    }
+
+    /**
+     * Relationships between the attributes of two datasets, as written
+     * by the relationship job ("attribute1,attribute2<TAB>score,strength,
+     * p-value,..."); the first dataset is the one with the smallest id.
+     */
+    public synchronized ArrayList<String> relationships(String datasetName1, String datasetName2,
+            int spatial, int temporal, boolean isOutlier) throws IOException, InterruptedException {
+
+        Integer id1 = datasetIds.get(datasetName1);
+        Integer id2 = datasetIds.get(datasetName2);
+        if ((id1 == null) || (id2 == null) || id1.equals(id2))
+            return new ArrayList<String>();
+        int dataset1 = Math.min(id1, id2);
+        int dataset2 = Math.max(id1, id2);
+
+        nbQueries++;
+        String query = dataset1 + "-" + dataset2 + "-" + spatial + "-" + temporal + "-" + isOutlier;
+        ArrayList<String> answer = answers.get(query);
+        if (answer != null)
+            return answer;
+
+        answer = new ArrayList<String>();
+        TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>> attributes1 =
+                series.get(group(dataset1, spatial, temporal, isOutlier));
+        TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>> attributes2 =
+                series.get(group(dataset2, spatial, temporal, isOutlier));
+        if ((attributes1 != null) && (attributes2 != null)) {
+            ArrayList<TopologyTimeSeriesWritable> pairSeries = new ArrayList<TopologyTimeSeriesWritable>();
+            for (int attribute1 : attributes1.keySet()) {
+                for (int attribute2 : attributes2.keySet()) {
+                    pairSeries.clear();
+                    pairSeries.addAll(attributes1.get(attribute1));
+                    pairSeries.addAll(attributes2.get(attribute2));
+                    evaluator.output.clear();
+                    evaluator.evaluate(new PairAttributeWritable(attribute1, attribute2, dataset1, dataset2,
+                            spatial, temporal, isOutlier), pairSeries);
+                    answer.addAll(evaluator.output);
+                }
+            }
+        }
+        answers.put(query, answer);
+        return answer;
+    }
+
+    /**
+     * Resolutions loaded for a dataset, as "temporal-spatial-events|outliers".
+     */
+    public synchronized ArrayList<String> resolutions(String datasetName) {
+        ArrayList<String> output = new ArrayList<String>();
+        Integer id = datasetIds.get(datasetName);
+        if (id == null)
+            return output;
+        for (long g : series.keySet()) {
+            if ((g >>> 32) != id) continue;
+            int spatial = (int) ((g >>> 16) & 0xFFFF);
+            int temporal = (int) ((g & 0xFFFF) >>> 1);
+            output.add(utils.temporalResolutionStr(temporal) + "-" + utils.spatialResolutionStr(spatial) + "-"
+                    + (((g & 1) == 1) ? "outliers" : "events") + "\t" + series.get(g).size());
+        }
+        Collections.sort(output);
+        return output;
+    }
+
+    /**
+     * Answers the commands read from in until the end of the input,
+     * "quit", or "shutdown"; returns true on "shutdown".
+     */
+    public boolean serve(BufferedReader in, PrintWriter out) throws IOException, InterruptedException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] args = line.trim().split("\\s+");
+            String command = args[0].toLowerCase();
+
+            if (command.isEmpty()) continue;
+            if (command.equals("quit"))
+                return false;
+            if (command.equals("shutdown"))
+                return true;
+
+            if (command.equals("relationships") && ((args.length == 5) || (args.length == 6))) {
+                int temporal = utils.temporalResolution(args[3]);
+                int spatial = utils.spatialResolution(args[4]);
+                boolean isOutlier = (args.length == 6) && args[5].equalsIgnoreCase("outliers");
+                if ((temporal < 0) || (spatial < 0))
+                    out.println("error: unknown resolution");
+                else if (!datasetIds.containsKey(args[1]) || !datasetIds.containsKey(args[2]))
+                    out.println("error: unknown dataset");
+                else
+                    for (String relationship : relationships(args[1], args[2], spatial, temporal, isOutlier))
+                        out.println(relationship);
+            } else if (command.equals("resolutions") && (args.length == 2)) {
+                for (String resolution : resolutions(args[1]))
+                    out.println(resolution);
+            } else if (command.equals("stats")) {
+                synchronized (this) {
+                    out.println("datasets\t" + datasetIds.size());
+                    out.println("series\t" + nbSeries);
+                    out.println("events\t" + nbEvents);
+                    out.println("queries\t" + nbQueries);
+                    out.println("cached\t" + answers.size());
+                    out.println("tests\t" + counters.findCounter(PermutationCounter.TESTS).getValue());
+                }
+            } else {
+                out.println("error: unknown command '" + line.trim() + "'");
+            }
+            out.println(".");
+            out.flush();
+        }
+        return false;
+    }
+
+    /**
+     * Answers the connections to the given port of the loopback interface
+     * until a "shutdown" command.
+     */
+    public void serve(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        System.out.println("listening\t" + serverSocket.getLocalPort());
+        while (!shutdown) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                // closed by shutdown
+                break;
+            }
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                        PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                        if (serve(in, out))
+                            shutdown();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+        close();
+    }
+
+    /**
+     * Port the server is listening to, or -1.
+     */
+    public int getPort() {
+        return (serverSocket == null) ? -1 : serverSocket.getLocalPort();
+    }
+
+    public void shutdown() throws IOException {
+        shutdown = true;
+        if (serverSocket != null)
+            serverSocket.close();
+    }
+
+    public void close() throws IOException {
+        try {
+            evaluator.close();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        Options options = new Options();
+
+        Option gOption = new Option("g", "group", true, "set group of datasets whose indices are loaded");
+        gOption.setRequired(true);
+        gOption.setArgName("GROUP");
+        gOption.setArgs(Option.UNLIMITED_VALUES);
+        options.addOption(gOption);
+
+        Option portOption = new Option("p", "port", true, "answer the queries on this port of the "
+                + "loopback interface (0 for any free port) instead of the standard input");
+        portOption.setRequired(false);
+        portOption.setArgName("PORT");
+        portOption.setArgs(1);
+        options.addOption(portOption);
+
+        Option completeRandomizationOption = new Option("c", "complete-randomization", false,
+                "use complete randomization when performing significance tests");
+        completeRandomizationOption.setRequired(false);
+        options.addOption(completeRandomizationOption);
+
+        Option removeOption = new Option("r", "remove-not-significant", false, "remove relationships that are not"
+                + "significant from the final output");
+        removeOption.setRequired(false);
+        options.addOption(removeOption);
+
+        Option seedOption = new Option("seed", "seed", true, "seed for the Monte Carlo permutation test; "
+                + "with the same seed, the relationships are the ones of the relationship job");
+        seedOption.setRequired(false);
+        seedOption.setArgName("SEED");
+        seedOption.setArgs(1);
+        options.addOption(seedOption);
+
+        Option threadsOption = new Option("pt", "permutation-threads", true, "number of threads used "
+                + "for the Monte Carlo permutation test");
+        threadsOption.setRequired(false);
+        threadsOption.setArgName("THREADS");
+        threadsOption.setArgs(1);
+        options.addOption(threadsOption);
+
+        Option helpOption = new Option("h", "help", false, "display this message");
+        helpOption.setRequired(false);
+        options.addOption(helpOption);
+
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            formatter.printHelp("hadoop jar data-polygamy.jar " +
+                    "edu.nyu.vida.data_polygamy.relationship_computation.RelationshipServer", options, true);
+            System.exit(0);
+        }
+
+        if (cmd.hasOption("h")) {
+            formatter.printHelp("hadoop jar data-polygamy.jar " +
+                    "edu.nyu.vida.data_polygamy.relationship_computation.RelationshipServer", options, true);
+            System.exit(0);
+        }
+
+        boolean completeRandomization = cmd.hasOption("c");
+        boolean removeNotSignificant = cmd.hasOption("r");
+        String seed = cmd.hasOption("seed") ? cmd.getOptionValue("seed") : "";
+        int permutationThreads = cmd.hasOption("pt") ? Integer.parseInt(cmd.getOptionValue("pt")) : 1;
+        int port = cmd.hasOption("p") ? Integer.parseInt(cmd.getOptionValue("p")) : -1;
+
+        // datasets, headers, and ids, as read by Relationship
+        Configuration s3conf = new Configuration();
+        FileSystem fs = FileSystem.get(new Configuration());
+        Path path = new Path(fs.getHomeDirectory() + "/" + FrameworkUtils.datasetsIndexDir);
+        ArrayList<String> group = new ArrayList<String>();
+        ArrayList<String> shortDataset = new ArrayList<String>();
+        HashMap<String,String> datasetAgg = new HashMap<String,String>();
+        Relationship.addDatasets(cmd.getOptionValues("g"), group, shortDataset, datasetAgg,
+                path, fs, s3conf, false, "");
+
+        if (shortDataset.size() < 2) {
+            System.out.println("At least two datasets with indices are needed.");
+            System.exit(0);
+        }
+
+        HashMap<String,String> datasetId = new HashMap<String,String>();
+        String datasetNames = "";
+        String datasetIds = "";
+        BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path)));
+        String line = br.readLine();
+        while (line != null) {
+            String[] dt = line.split("\t");
+            if (shortDataset.contains(dt[0])) {
+                datasetId.put(dt[0], dt[1]);
+                datasetNames += dt[0] + ",";
+                datasetIds += dt[1] + ",";
+            }
+            line = br.readLine();
+        }
+        br.close();
+        for (String dataset : shortDataset) {
+            if (datasetId.get(dataset) == null) {
+                System.out.println("No dataset id for " + dataset);
+                System.exit(0);
+            }
+        }
+
+        Configuration conf = new Configuration();
+        for (String dataset : shortDataset) {
+            conf.set("dataset-" + datasetId.get(dataset) + "-agg", datasetAgg.get(dataset));
+            conf.set("dataset-" + datasetId.get(dataset) + "-agg-size",
+                    Integer.toString(datasetAgg.get(dataset).split(",").length));
+        }
+        conf.set("dataset-keys", datasetIds.substring(0, datasetIds.length()-1));
+        conf.set("dataset-names", datasetNames.substring(0, datasetNames.length()-1));
+        conf.set("complete-random", String.valueOf(completeRandomization));
+        conf.set("complete-random-str", completeRandomization ? "complete" : "restricted");
+        conf.set("remove-not-significant", String.valueOf(removeNotSignificant));
+        if (!seed.isEmpty())
+            conf.set("random-seed", seed);
+        conf.setInt("permutation-threads", permutationThreads);
+
+        long start = System.currentTimeMillis();
+        RelationshipServer server = new RelationshipServer(conf);
+        System.out.println("graphs\t" + (System.currentTimeMillis() - start));
+
+        start = System.currentTimeMillis();
+        fs = FileSystem.get(new Configuration());
+        for (String dataset : shortDataset)
+            server.load(fs, new Path(fs.getHomeDirectory() + "/" + FrameworkUtils.indexDir + "/" + dataset));
+        System.out.println("index\t" + (System.currentTimeMillis() - start) + "\t" + server.nbSeries);
+
+        if (port >= 0) {
+            server.serve(port);
+        } else {
+            server.serve(new BufferedReader(new InputStreamReader(System.in, "UTF-8")),
+                    new PrintWriter(new OutputStreamWriter(System.out, "UTF-8")));
+            server.close();
+        }
+    }
+}
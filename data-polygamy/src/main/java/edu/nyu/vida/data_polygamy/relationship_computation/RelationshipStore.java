@@ -0,0 +1,644 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.relationship_computation;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.RelationshipWritable;
+
+/**
+ * Sorted, indexed store of the relationships written by the binary
+ * output of the relationship job (-bo).
+ *
+ * The store is a directory with two files:
+ *   - data: the relationships as fixed-size records (attributes, score,
+ *     strength, p-value and event counts), grouped by pair of datasets,
+ *     resolutions, outlier flag and randomization; in each group, the
+ *     records are sorted by first attribute and then by decreasing
+ *     absolute score, and are followed by the record numbers sorted by
+ *     second attribute and then by decreasing absolute score;
+ *   - index: the names of the datasets and of their attributes and, for
+ *     every group, its offset and size in data, its maximum absolute
+ *     score and its minimum p-value, and the same for the records of
+ *     every first attribute and the record numbers of every second
+ *     attribute.
+ * The index is loaded when the store is opened; a query only reads the
+ * groups, or the attributes of the groups, of the index that can match it.
+ */
+public class RelationshipStore {
+
+    public static final String DATA = "data";
+    public static final String INDEX = "index";
+    public static final int VERSION = 2;
+    public static final int RECORD_SIZE = 4 * (5 + RelationshipWritable.NB_COUNTS);
+
+    /**
+     * Records (or record numbers) of an attribute in a group.
+     */
+    public static class AttributeRange {
+        public int attribute;
+        public long offset;
+        public int count;
+        public float maxScore;
+        public float minPValue;
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(attribute);
+            out.writeLong(offset);
+            out.writeInt(count);
+            out.writeFloat(maxScore);
+            out.writeFloat(minPValue);
+        }
+
+        void readFields(DataInputStream in) throws IOException {
+            attribute = in.readInt();
+            offset = in.readLong();
+            count = in.readInt();
+            maxScore = in.readFloat();
+            minPValue = in.readFloat();
+        }
+    }
+
+    /**
+     * Relationships of a pair of datasets at a resolution.
+     */
+    public static class Group {
+        public int firstDataset;
+        public int secondDataset;
+        public int spatialResolution;
+        public int temporalResolution;
+        public boolean isOutlier;
+        public boolean completeRandomization;
+
+        public long offset;
+        public int count;
+        public float maxScore;
+        public float minPValue;
+
+        // records of the first attributes, record numbers of the second ones
+        public TreeMap<Integer,AttributeRange> firstAttributes = new TreeMap<Integer,AttributeRange>();
+        public TreeMap<Integer,AttributeRange> secondAttributes = new TreeMap<Integer,AttributeRange>();
+
+        boolean matches(int spatial, int temporal, boolean outlier, boolean complete) {
+            return (spatialResolution == spatial) && (temporalResolution == temporal)
+                    && (isOutlier == outlier) && (completeRandomization == complete);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(firstDataset);
+            out.writeInt(secondDataset);
+            out.writeInt(spatialResolution);
+            out.writeInt(temporalResolution);
+            out.writeBoolean(isOutlier);
+            out.writeBoolean(completeRandomization);
+            out.writeLong(offset);
+            out.writeInt(count);
+            out.writeFloat(maxScore);
+            out.writeFloat(minPValue);
+            for (TreeMap<Integer,AttributeRange> ranges : attributes()) {
+                out.writeInt(ranges.size());
+                for (AttributeRange range : ranges.values())
+                    range.write(out);
+            }
+        }
+
+        void readFields(DataInputStream in) throws IOException {
+            firstDataset = in.readInt();
+            secondDataset = in.readInt();
+            spatialResolution = in.readInt();
+            temporalResolution = in.readInt();
+            isOutlier = in.readBoolean();
+            completeRandomization = in.readBoolean();
+            offset = in.readLong();
+            count = in.readInt();
+            maxScore = in.readFloat();
+            minPValue = in.readFloat();
+            for (TreeMap<Integer,AttributeRange> ranges : attributes()) {
+                ranges.clear();
+                int nbRanges = in.readInt();
+                for (int i = 0; i < nbRanges; i++) {
+                    AttributeRange range = new AttributeRange();
+                    range.readFields(in);
+                    ranges.put(range.attribute, range);
+                }
+            }
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private TreeMap<Integer,AttributeRange>[] attributes() {
+            return new TreeMap[] {firstAttributes, secondAttributes};
+        }
+    }
+
+    // by decreasing absolute score
+    private static final Comparator<RelationshipWritable> BY_SCORE = new Comparator<RelationshipWritable>() {
+        public int compare(RelationshipWritable r1, RelationshipWritable r2) {
+            int c = Float.compare(Math.abs(r2.getScore()), Math.abs(r1.getScore()));
+            return (c != 0) ? c : r1.compareTo(r2);
+        }
+    };
+
+    private FSDataInputStream data;
+    private ArrayList<Group> groups = new ArrayList<Group>();
+    private HashMap<Integer,ArrayList<Group>> datasetGroups = new HashMap<Integer,ArrayList<Group>>();
+    private HashMap<Long,ArrayList<Group>> pairGroups = new HashMap<Long,ArrayList<Group>>();
+    private HashMap<Integer,String> datasetNames = new HashMap<Integer,String>();
+    private HashMap<String,Integer> datasetIds = new HashMap<String,Integer>();
+    private HashMap<Integer,HashMap<Integer,String>> attributeNames = new HashMap<Integer,HashMap<Integer,String>>();
+    private HashMap<Integer,HashMap<String,Integer>> attributeIds = new HashMap<Integer,HashMap<String,Integer>>();
+
+    /**
+     * Opens the store in directory store.
+     */
+    public RelationshipStore(FileSystem fs, Path store) throws IOException {
+
+        DataInputStream in = fs.open(new Path(store, INDEX));
+        if (in.readInt() != VERSION) {
+            in.close();
+            throw new IOException("Unsupported version of relationship store: " + store);
+        }
+        int nbDatasets = in.readInt();
+        for (int i = 0; i < nbDatasets; i++) {
+            int id = in.readInt();
+            String name = in.readUTF();
+            datasetNames.put(id, name);
+            datasetIds.put(name, id);
+            HashMap<Integer,String> names = new HashMap<Integer,String>();
+            HashMap<String,Integer> ids = new HashMap<String,Integer>();
+            int nbAttributes = in.readInt();
+            for (int j = 0; j < nbAttributes; j++) {
+                int attribute = in.readInt();
+                String attributeName = in.readUTF();
+                names.put(attribute, attributeName);
+                ids.put(attributeName, attribute);
+            }
+            attributeNames.put(id, names);
+            attributeIds.put(id, ids);
+        }
+        int nbGroups = in.readInt();
+        for (int i = 0; i < nbGroups; i++) {
+            Group group = new Group();
+            group.readFields(in);
+            groups.add(group);
+            for (int dataset : new int[] {group.firstDataset, group.secondDataset}) {
+                ArrayList<Group> list = datasetGroups.get(dataset);
+                if (list == null) {
+                    list = new ArrayList<Group>();
+                    datasetGroups.put(dataset, list);
+                }
+                list.add(group);
+            }
+            long pair = pairKey(group.firstDataset, group.secondDataset);
+            ArrayList<Group> list = pairGroups.get(pair);
+            if (list == null) {
+                list = new ArrayList<Group>();
+                pairGroups.put(pair, list);
+            }
+            list.add(group);
+        }
+        in.close();
+
+        data = fs.open(new Path(store, DATA));
+    }
+
+    public ArrayList<Group> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Id of a dataset, or -1 if the store does not know its name.
+     */
+    public int getDatasetId(String name) {
+        Integer id = datasetIds.get(name);
+        return (id == null) ? -1 : id;
+    }
+
+    public String getDatasetName(int id) {
+        return datasetNames.get(id);
+    }
+
+    /**
+     * Id of an attribute of a dataset, or -1 if the store does not know
+     * its name.
+     */
+    public int getAttributeId(int dataset, String name) {
+        HashMap<String,Integer> ids = attributeIds.get(dataset);
+        Integer id = (ids == null) ? null : ids.get(name);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Name of an attribute of a dataset (as in the header of its
+     * aggregates), or null if the store does not know it.
+     */
+    public String getAttributeName(int dataset, int attribute) {
+        HashMap<Integer,String> names = attributeNames.get(dataset);
+        return (names == null) ? null : names.get(attribute);
+    }
+
+    /**
+     * Relationships of dataset (with any other dataset) at the given
+     * resolutions that have a p-value of at most alpha.
+     */
+    public ArrayList<RelationshipWritable> significant(int dataset, int spatial, int temporal,
+            boolean isOutlier, boolean completeRandomization, float alpha) throws IOException {
+
+        ArrayList<RelationshipWritable> output = new ArrayList<RelationshipWritable>();
+        ArrayList<Group> candidates = datasetGroups.get(dataset);
+        if (candidates == null)
+            return output;
+        for (Group group : candidates) {
+            if (!group.matches(spatial, temporal, isOutlier, completeRandomization)) continue;
+            if (group.minPValue > alpha) continue;
+            ByteBuffer buffer = read(group.offset, group.count * RECORD_SIZE);
+            for (int i = 0; i < group.count; i++) {
+                if (buffer.getFloat(i*RECORD_SIZE + 16) <= alpha)
+                    output.add(decode(group, buffer, i));
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Relationships of an attribute of dataset (with any attribute of
+     * any other dataset) at the given resolutions that have a p-value of
+     * at most alpha.
+     */
+    public ArrayList<RelationshipWritable> significant(int dataset, int attribute, int spatial,
+            int temporal, boolean isOutlier, boolean completeRandomization, float alpha)
+                    throws IOException {
+
+        ArrayList<RelationshipWritable> output = new ArrayList<RelationshipWritable>();
+        ArrayList<Group> candidates = datasetGroups.get(dataset);
+        if (candidates == null)
+            return output;
+        for (Group group : candidates) {
+            if (!group.matches(spatial, temporal, isOutlier, completeRandomization)) continue;
+            if (group.minPValue > alpha) continue;
+            attributeRelationships(group, dataset, attribute, 0, alpha, output);
+        }
+        return output;
+    }
+
+    /**
+     * Relationships between both datasets at the given resolutions that
+     * have an absolute score of at least minScore, by decreasing score.
+     */
+    public ArrayList<RelationshipWritable> relationships(int dataset1, int dataset2, int spatial,
+            int temporal, boolean isOutlier, boolean completeRandomization, float minScore)
+                    throws IOException {
+
+        ArrayList<RelationshipWritable> output = new ArrayList<RelationshipWritable>();
+        ArrayList<Group> candidates = pairGroups.get(pairKey(dataset1, dataset2));
+        if (candidates == null)
+            return output;
+        for (Group group : candidates) {
+            if (!group.matches(spatial, temporal, isOutlier, completeRandomization)) continue;
+            if (group.maxScore < minScore) continue;
+            for (AttributeRange range : group.firstAttributes.values()) {
+                if (range.maxScore < minScore) continue;
+                ByteBuffer buffer = read(range.offset, range.count * RECORD_SIZE);
+                for (int i = 0; i < range.count; i++) {
+                    if (Math.abs(buffer.getFloat(i*RECORD_SIZE + 8)) < minScore)
+                        break;
+                    output.add(decode(group, buffer, i));
+                }
+            }
+        }
+        Collections.sort(output, BY_SCORE);
+        return output;
+    }
+
+    /**
+     * Relationships between an attribute of dataset1 and the attributes
+     * of dataset2 at the given resolutions that have an absolute score
+     * of at least minScore, by decreasing score.
+     */
+    public ArrayList<RelationshipWritable> relationships(int dataset1, int attribute1, int dataset2,
+            int spatial, int temporal, boolean isOutlier, boolean completeRandomization, float minScore)
+                    throws IOException {
+
+        ArrayList<RelationshipWritable> output = new ArrayList<RelationshipWritable>();
+        ArrayList<Group> candidates = pairGroups.get(pairKey(dataset1, dataset2));
+        if (candidates == null)
+            return output;
+        for (Group group : candidates) {
+            if (!group.matches(spatial, temporal, isOutlier, completeRandomization)) continue;
+            if (group.maxScore < minScore) continue;
+            attributeRelationships(group, dataset1, attribute1, minScore, 1, output);
+        }
+        Collections.sort(output, BY_SCORE);
+        return output;
+    }
+
+    public void close() throws IOException {
+        data.close();
+    }
+
+    private static long pairKey(int dataset1, int dataset2) {
+        return (((long) Math.min(dataset1, dataset2)) << 32) | Math.max(dataset1, dataset2);
+    }
+
+    private synchronized ByteBuffer read(long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        data.seek(offset);
+        data.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Adds to output the relationships of an attribute of dataset in
+     * group that have an absolute score of at least minScore and a
+     * p-value of at most alpha, reading only the records of the attribute.
+     */
+    private void attributeRelationships(Group group, int dataset, int attribute, float minScore,
+            float alpha, ArrayList<RelationshipWritable> output) throws IOException {
+
+        if (group.firstDataset == dataset) {
+            AttributeRange range = group.firstAttributes.get(attribute);
+            if ((range != null) && (range.maxScore >= minScore) && (range.minPValue <= alpha)) {
+                ByteBuffer buffer = read(range.offset, range.count * RECORD_SIZE);
+                for (int i = 0; i < range.count; i++) {
+                    if (Math.abs(buffer.getFloat(i*RECORD_SIZE + 8)) < minScore)
+                        break;
+                    if (buffer.getFloat(i*RECORD_SIZE + 16) <= alpha)
+                        output.add(decode(group, buffer, i));
+                }
+            }
+        }
+        if (group.secondDataset == dataset) {
+            AttributeRange range = group.secondAttributes.get(attribute);
+            if ((range != null) && (range.maxScore >= minScore) && (range.minPValue <= alpha)) {
+                ByteBuffer records = read(range.offset, range.count * 4);
+                // the records of the attribute are spread over the group: if they
+                // are a large part of it, a single read is cheaper than a read per record
+                ByteBuffer all = (range.count >= group.count / 8) ?
+                        read(group.offset, group.count * RECORD_SIZE) : null;
+                for (int i = 0; i < range.count; i++) {
+                    int record = records.getInt(4*i);
+                    ByteBuffer buffer = all;
+                    if (all == null) {
+                        buffer = read(group.offset + ((long) record) * RECORD_SIZE, RECORD_SIZE);
+                        record = 0;
+                    }
+                    int position = record*RECORD_SIZE;
+                    if (Math.abs(buffer.getFloat(position + 8)) < minScore)
+                        break;
+                    // relationships of the attribute with itself were added above
+                    if ((group.firstDataset == dataset) && (buffer.getInt(position) == attribute))
+                        continue;
+                    if (buffer.getFloat(position + 16) <= alpha)
+                        output.add(decode(group, buffer, record));
+                }
+            }
+        }
+    }
+
+    // range of the records (or record numbers) of every attribute
+    private static TreeMap<Integer,AttributeRange> ranges(ArrayList<RelationshipWritable> records,
+            boolean first, long offset, int size) {
+        TreeMap<Integer,AttributeRange> ranges = new TreeMap<Integer,AttributeRange>();
+        for (int i = 0; i < records.size(); i++) {
+            RelationshipWritable record = records.get(i);
+            int attribute = (first) ? record.getPair().getFirstAttribute() : record.getPair().getSecondAttribute();
+            AttributeRange range = ranges.get(attribute);
+            if (range == null) {
+                range = new AttributeRange();
+                range.attribute = attribute;
+                range.offset = offset + ((long) i) * size;
+                range.maxScore = Math.abs(record.getScore());
+                range.minPValue = 1;
+                ranges.put(attribute, range);
+            }
+            range.count++;
+            range.minPValue = Math.min(range.minPValue, record.getPValue());
+        }
+        return ranges;
+    }
+
+    private static RelationshipWritable decode(Group group, ByteBuffer buffer, int i) {
+        int position = i*RECORD_SIZE;
+        PairAttributeWritable pair = new PairAttributeWritable(buffer.getInt(position),
+                buffer.getInt(position + 4), group.firstDataset, group.secondDataset,
+                group.spatialResolution, group.temporalResolution, group.isOutlier);
+        float[] counts = new float[RelationshipWritable.NB_COUNTS];
+        for (int j = 0; j < counts.length; j++)
+            counts[j] = buffer.getFloat(position + 20 + 4*j);
+        return new RelationshipWritable(pair, buffer.getFloat(position + 8),
+                buffer.getFloat(position + 12), buffer.getFloat(position + 16), counts);
+    }
+
+    private static void encode(RelationshipWritable relationship, DataOutputStream out) throws IOException {
+        out.writeInt(relationship.getPair().getFirstAttribute());
+        out.writeInt(relationship.getPair().getSecondAttribute());
+        out.writeFloat(relationship.getScore());
+        out.writeFloat(relationship.getStrength());
+        out.writeFloat(relationship.getPValue());
+        for (float count : relationship.getCounts())
+            out.writeFloat(count);
+    }
+
+    /**
+     * Builds a store in directory store from the binary output of the
+     * relationship job in directory relationships (one directory per
+     * pair of datasets, with one directory per resolution); datasetNames
+     * maps the ids of the datasets to their names, and attributeNames the
+     * ids of their attributes to their names.
+     */
+    public static void build(Configuration conf, FileSystem fs, Path relationships, Path store,
+            HashMap<Integer,String> datasetNames, HashMap<Integer,HashMap<Integer,String>> attributeNames)
+                    throws IOException {
+
+        // groups, by pair of datasets and resolution, and their directories
+        TreeMap<String,ArrayList<Path>> groupFiles = new TreeMap<String,ArrayList<Path>>();
+        TreeMap<String,Group> groupInfo = new TreeMap<String,Group>();
+        RelationshipWritable relationship = new RelationshipWritable();
+        NullWritable nothing = NullWritable.get();
+
+        for (FileStatus pairStatus : fs.listStatus(relationships)) {
+            if (!pairStatus.isDirectory()) continue;
+            for (FileStatus resolutionStatus : fs.listStatus(pairStatus.getPath())) {
+                if (!resolutionStatus.isDirectory()) continue;
+                boolean complete = resolutionStatus.getPath().getName().endsWith("-complete");
+                for (FileStatus fileStatus : fs.listStatus(resolutionStatus.getPath())) {
+                    Path file = fileStatus.getPath();
+                    if (!file.getName().startsWith("binary")) continue;
+                    SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+                    boolean hasRecord = reader.next(relationship, nothing);
+                    reader.close();
+                    if (!hasRecord) continue;
+
+                    PairAttributeWritable pair = relationship.getPair();
+                    Group group = new Group();
+                    group.firstDataset = pair.getFirstDataset();
+                    group.secondDataset = pair.getSecondDataset();
+                    group.spatialResolution = pair.getSpatialResolution();
+                    group.temporalResolution = pair.getTemporalResolution();
+                    group.isOutlier = pair.getIsOutlier();
+                    group.completeRandomization = complete;
+                    String key = String.format("%010d-%010d-%d-%d-%d-%d", group.firstDataset,
+                            group.secondDataset, group.spatialResolution, group.temporalResolution,
+                            (group.isOutlier) ? 1 : 0, (complete) ? 1 : 0);
+                    if (!groupFiles.containsKey(key)) {
+                        groupFiles.put(key, new ArrayList<Path>());
+                        groupInfo.put(key, group);
+                    }
+                    groupFiles.get(key).add(file);
+                }
+            }
+        }
+
+        fs.mkdirs(store);
+        DataOutputStream dataOut = fs.create(new Path(store, DATA), true);
+        long offset = 0;
+        ArrayList<Group> groups = new ArrayList<Group>();
+        for (Entry<String,ArrayList<Path>> entry : groupFiles.entrySet()) {
+            ArrayList<RelationshipWritable> records = new ArrayList<RelationshipWritable>();
+            for (Path file : entry.getValue()) {
+                SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+                RelationshipWritable record = new RelationshipWritable();
+                while (reader.next(record, nothing)) {
+                    records.add(record);
+                    record = new RelationshipWritable();
+                }
+                reader.close();
+            }
+
+            // by first attribute, then by decreasing absolute score
+            Collections.sort(records, new Comparator<RelationshipWritable>() {
+                public int compare(RelationshipWritable r1, RelationshipWritable r2) {
+                    int c = Integer.compare(r1.getPair().getFirstAttribute(), r2.getPair().getFirstAttribute());
+                    return (c != 0) ? c : BY_SCORE.compare(r1, r2);
+                }
+            });
+
+            Group group = groupInfo.get(entry.getKey());
+            group.offset = offset;
+            group.count = records.size();
+            group.maxScore = 0;
+            group.minPValue = 1;
+            for (RelationshipWritable record : records) {
+                group.maxScore = Math.max(group.maxScore, Math.abs(record.getScore()));
+                group.minPValue = Math.min(group.minPValue, record.getPValue());
+                encode(record, dataOut);
+            }
+            group.firstAttributes = ranges(records, true, offset, RECORD_SIZE);
+            offset += (long) records.size() * RECORD_SIZE;
+
+            // record numbers by second attribute, then by decreasing absolute score
+            final ArrayList<RelationshipWritable> sorted = records;
+            ArrayList<Integer> numbers = new ArrayList<Integer>(records.size());
+            for (int i = 0; i < records.size(); i++)
+                numbers.add(i);
+            Collections.sort(numbers, new Comparator<Integer>() {
+                public int compare(Integer i1, Integer i2) {
+                    RelationshipWritable r1 = sorted.get(i1);
+                    RelationshipWritable r2 = sorted.get(i2);
+                    int c = Integer.compare(r1.getPair().getSecondAttribute(), r2.getPair().getSecondAttribute());
+                    return (c != 0) ? c : BY_SCORE.compare(r1, r2);
+                }
+            });
+            ArrayList<RelationshipWritable> bySecond = new ArrayList<RelationshipWritable>(records.size());
+            for (int i : numbers) {
+                bySecond.add(records.get(i));
+                dataOut.writeInt(i);
+            }
+            group.secondAttributes = ranges(bySecond, false, offset, 4);
+            offset += (long) records.size() * 4;
+            groups.add(group);
+        }
+        dataOut.close();
+
+        DataOutputStream indexOut = fs.create(new Path(store, INDEX), true);
+        indexOut.writeInt(VERSION);
+        indexOut.writeInt(datasetNames.size());
+        for (Entry<Integer,String> entry : datasetNames.entrySet()) {
+            indexOut.writeInt(entry.getKey());
+            indexOut.writeUTF(entry.getValue());
+            HashMap<Integer,String> names = attributeNames.get(entry.getKey());
+            if (names == null)
+                names = new HashMap<Integer,String>();
+            indexOut.writeInt(names.size());
+            for (Entry<Integer,String> attribute : names.entrySet()) {
+                indexOut.writeInt(attribute.getKey());
+                indexOut.writeUTF(attribute.getValue());
+            }
+        }
+        indexOut.writeInt(groups.size());
+        for (Group group : groups)
+            group.write(indexOut);
+        indexOut.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 2) {
+            System.out.println("Usage: RelationshipStore <relationships directory> <store directory>");
+            System.exit(-1);
+        }
+
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.get(conf);
+        Path relationships = new Path(fs.getHomeDirectory() + "/" + args[0]);
+        Path store = new Path(fs.getHomeDirectory() + "/" + args[1]);
+
+        // names of the datasets
+        HashMap<Integer,String> datasetNames = new HashMap<Integer,String>();
+        Path datasetsPath = new Path(fs.getHomeDirectory() + "/" + FrameworkUtils.datasetsIndexDir);
+        if (fs.exists(datasetsPath)) {
+            BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(datasetsPath)));
+            String line = br.readLine();
+            while (line != null) {
+                String[] dt = line.split("\t");
+                datasetNames.put(Integer.parseInt(dt[1]), dt[0]);
+                line = br.readLine();
+            }
+            br.close();
+        }
+
+        // names of the attributes, from the headers of the aggregates
+        HashMap<Integer,HashMap<Integer,String>> attributeNames = new HashMap<Integer,HashMap<Integer,String>>();
+        for (Entry<Integer,String> dataset : datasetNames.entrySet()) {
+            String headerFileName = FrameworkUtils.searchAggregatesHeader(dataset.getValue(), conf, false);
+            if (headerFileName == null)
+                continue;
+            Path headerPath = new Path(fs.getHomeDirectory() + "/" + FrameworkUtils.preProcessingDir
+                    + "/" + headerFileName);
+            BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(headerPath)));
+            String[] header = br.readLine().split("\t")[1].split(",");
+            br.close();
+            HashMap<Integer,String> names = new HashMap<Integer,String>();
+            for (String attribute : header) {
+                int id = Integer.parseInt(attribute.substring(0, attribute.indexOf("-")));
+                names.put(id, attribute.substring(attribute.indexOf("-")+1, attribute.length()));
+            }
+            attributeNames.put(dataset.getKey(), names);
+        }
+
+        long start = System.currentTimeMillis();
+        build(conf, fs, relationships, store, datasetNames, attributeNames);
+        System.out.println("relationship-store\t" + (System.currentTimeMillis() - start));
+    }
+}
@@ -0,0 +1,283 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.relationship_computation;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.DatasetPairWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TimeSeriesStats;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+
+/**
+ * Top-k query of the grouped relationship plan: writes the k strongest
+ * significant relationships between the attributes of a pair of datasets
+ * at a resolution, without testing every pair of attributes.
+ *
+ * The strength of a relationship is 2tp/(2tp + fp + fn), where tp is the
+ * number of matched events, and fp and fn the number of events of one
+ * attribute against non-events of the other one. For every spatial unit,
+ * the number of events and missing values of both series in their common
+ * time range bound tp from above and fp + fn from below, which bounds the
+ * strength of the pair. Pairs are evaluated (score and strength) by
+ * decreasing bound, and tested (permutation test) by decreasing strength
+ * once no pair left to evaluate can be stronger: the query stops at the
+ * k-th significant pair, without evaluating the pairs whose bound is
+ * below its strength, nor testing the pairs weaker than it.
+ *
+ * The score of a relationship has no useful bound from these counts (a
+ * single matched event can give a score of 1), so the score threshold is
+ * applied to the exact score, before the permutation test.
+ */
+public class TopKRelationships {
+
+    /**
+     * PAIRS is the number of pairs of attributes, EVALUATED the number of
+     * pairs whose score and strength were computed, and TESTED the number
+     * of pairs that went through the permutation test.
+     */
+    public static enum TopKCounter {PAIRS, EVALUATED, TESTED};
+
+    // computed strengths may differ from the bound by the float rounding
+    private static final float BOUND_MARGIN = 1e-5f;
+
+    int k;
+    CorrelationReducer evaluator;
+    TaskInputOutputContext<?,?,?,?> context;
+
+    // time ranges of the last alignment
+    int[] lastRanges = new int[6];
+    int[] lastAlignment = null;
+
+    private static class Candidate {
+        int attribute1;
+        int attribute2;
+        float bound;
+
+        Candidate(int attribute1, int attribute2, float bound) {
+            this.attribute1 = attribute1;
+            this.attribute2 = attribute2;
+            this.bound = bound;
+        }
+    }
+
+    private static class Result {
+        PairAttributeWritable pair;
+        TimeSeriesStats stats;
+        ArrayList<TopologyTimeSeriesWritable> series;
+        float pValue;
+
+        Result(PairAttributeWritable pair, TimeSeriesStats stats) {
+            this.pair = pair;
+            this.stats = stats;
+        }
+    }
+
+    // stronger relationships first; ties are broken by the pair of attributes
+    private static final Comparator<Result> strongerFirst = new Comparator<Result>() {
+        public int compare(Result r1, Result r2) {
+            int c = Float.compare(r2.stats.getRelationshipStrength(), r1.stats.getRelationshipStrength());
+            if (c != 0) return c;
+            c = Integer.compare(r1.pair.getFirstAttribute(), r2.pair.getFirstAttribute());
+            if (c != 0) return c;
+            return Integer.compare(r1.pair.getSecondAttribute(), r2.pair.getSecondAttribute());
+        }
+    };
+
+    TopKRelationships(int k, CorrelationReducer evaluator, TaskInputOutputContext<?,?,?,?> context) {
+        this.k = k;
+        this.evaluator = evaluator;
+        this.context = context;
+    }
+
+    /**
+     * Finds and writes the top k relationships between the attributes of
+     * both datasets, given their series.
+     */
+    void query(DatasetPairWritable key,
+            TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>> attributes1,
+            TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>> attributes2)
+                    throws IOException, InterruptedException {
+
+        int temporal = key.getTemporalResolution();
+
+        ArrayList<Int2ObjectOpenHashMap<TopologyTimeSeriesWritable>> units1 = byUnit(attributes1);
+        ArrayList<Int2ObjectOpenHashMap<TopologyTimeSeriesWritable>> units2 = byUnit(attributes2);
+        ArrayList<Integer> ids1 = new ArrayList<Integer>(attributes1.keySet());
+        ArrayList<Integer> ids2 = new ArrayList<Integer>(attributes2.keySet());
+
+        // events and missing values of every series, in the common time range
+        //   with the series of the other dataset at the same spatial unit
+        ArrayList<Int2ObjectOpenHashMap<int[]>> counts1 = new ArrayList<Int2ObjectOpenHashMap<int[]>>();
+        ArrayList<Int2ObjectOpenHashMap<int[]>> counts2 = new ArrayList<Int2ObjectOpenHashMap<int[]>>();
+        for (int i = 0; i < ids1.size(); i++)
+            counts1.add(new Int2ObjectOpenHashMap<int[]>());
+        for (int j = 0; j < ids2.size(); j++)
+            counts2.add(new Int2ObjectOpenHashMap<int[]>());
+
+        ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+        for (int i = 0; i < ids1.size(); i++) {
+            for (int j = 0; j < ids2.size(); j++) {
+                float bound = strengthBound(temporal, units1.get(i), units2.get(j),
+                        counts1.get(i), counts2.get(j));
+                candidates.add(new Candidate(ids1.get(i), ids2.get(j), bound));
+            }
+        }
+        context.getCounter(TopKCounter.PAIRS).increment(candidates.size());
+
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            public int compare(Candidate c1, Candidate c2) {
+                int c = Float.compare(c2.bound, c1.bound);
+                if (c != 0) return c;
+                c = Integer.compare(c1.attribute1, c2.attribute1);
+                if (c != 0) return c;
+                return Integer.compare(c1.attribute2, c2.attribute2);
+            }
+        });
+
+        // pairs evaluated but not tested yet, strongest at the head; a pair
+        //   is tested only when no pair left to evaluate can be stronger,
+        //   so the first k significant pairs tested are the top k
+        PriorityQueue<Result> evaluated = new PriorityQueue<Result>(11, strongerFirst);
+        ArrayList<Result> top = new ArrayList<Result>();
+        ArrayList<TopologyTimeSeriesWritable> pairSeries = new ArrayList<TopologyTimeSeriesWritable>();
+        int next = 0;
+        while (top.size() < k) {
+            Result best = evaluated.peek();
+            if ((next < candidates.size()) && ((best == null) ||
+                    (candidates.get(next).bound >= best.stats.getRelationshipStrength()))) {
+                Candidate candidate = candidates.get(next++);
+                PairAttributeWritable pair = new PairAttributeWritable(candidate.attribute1,
+                        candidate.attribute2, key.getFirstDataset(), key.getSecondDataset(),
+                        key.getSpatialResolution(), temporal, key.getIsOutlier());
+                pairSeries.clear();
+                pairSeries.addAll(attributes1.get(candidate.attribute1));
+                pairSeries.addAll(attributes2.get(candidate.attribute2));
+                TimeSeriesStats stats = evaluator.alignedStats(pair, pairSeries);
+                context.getCounter(TopKCounter.EVALUATED).increment(1);
+                if (stats == null) continue;
+                
+                if ((evaluator.hasScoreThreshold) &&
+                        (Math.abs(stats.getRelationshipScore()) < evaluator.scoreThreshold)) continue;
+                if ((evaluator.hasStrengthThreshold) &&
+                        (Math.abs(stats.getRelationshipStrength()) < evaluator.strengthThreshold)) continue;
+                
+                // the series are needed again by the permutation test
+                Result result = new Result(pair, stats);
+                result.series = new ArrayList<TopologyTimeSeriesWritable>(pairSeries);
+                evaluated.add(result);
+                continue;
+            }
+            if (best == null)
+                break;
+            
+            evaluated.poll();
+            evaluator.alignedStats(best.pair, best.series);
+            best.pValue = evaluator.pValue(best.pair, best.stats.getRelationshipScore());
+            best.series = null;
+            context.getCounter(TopKCounter.TESTED).increment(1);
+            if (best.pValue <= evaluator.alpha)
+                top.add(best);
+        }
+
+        if (evaluator.tmp)
+            return;
+        for (Result result : top)
+            evaluator.emit(result.pair, result.stats, result.pValue);
+    }
+
+    private ArrayList<Int2ObjectOpenHashMap<TopologyTimeSeriesWritable>> byUnit(
+            TreeMap<Integer,ArrayList<TopologyTimeSeriesWritable>> attributes) {
+        ArrayList<Int2ObjectOpenHashMap<TopologyTimeSeriesWritable>> output =
+                new ArrayList<Int2ObjectOpenHashMap<TopologyTimeSeriesWritable>>();
+        for (ArrayList<TopologyTimeSeriesWritable> series : attributes.values()) {
+            Int2ObjectOpenHashMap<TopologyTimeSeriesWritable> map =
+                    new Int2ObjectOpenHashMap<TopologyTimeSeriesWritable>(series.size());
+            for (TopologyTimeSeriesWritable timeSeries : series)
+                map.put(timeSeries.getSpatial(), timeSeries);
+            output.add(map);
+        }
+        return output;
+    }
+
+    /**
+     * Upper bound on the strength of the relationship between two
+     * attributes, given their series by spatial unit. For a spatial unit
+     * where the first series has e1 events and m1 missing values, and the
+     * second one e2 and m2, in their common time range:
+     *   tp <= min(e1, e2 + m2) + min(m1, e2)
+     *   fn >= e1 - e2 - m2
+     *   fp >= e2 - e1 - m1
+     */
+    float strengthBound(int temporal, Int2ObjectOpenHashMap<TopologyTimeSeriesWritable> units1,
+            Int2ObjectOpenHashMap<TopologyTimeSeriesWritable> units2,
+            Int2ObjectOpenHashMap<int[]> counts1, Int2ObjectOpenHashMap<int[]> counts2) {
+
+        long tp = 0;
+        long fpfn = 0;
+        for (Int2ObjectOpenHashMap.Entry<TopologyTimeSeriesWritable> entry : units1.int2ObjectEntrySet()) {
+            int unit = entry.getIntKey();
+            TopologyTimeSeriesWritable timeSeries1 = entry.getValue();
+            TopologyTimeSeriesWritable timeSeries2 = units2.get(unit);
+            if (timeSeries2 == null) continue;
+
+            int[] alignment = alignment(temporal, timeSeries1, timeSeries2);
+            if (alignment == null) continue;
+            int[] c1 = counts(counts1, unit, timeSeries1, alignment[0], alignment[2]);
+            int[] c2 = counts(counts2, unit, timeSeries2, alignment[1], alignment[2]);
+
+            tp += Math.min(c1[2], c2[2] + c2[3]) + Math.min(c1[3], c2[2]);
+            fpfn += Math.max(0, c1[2] - c2[2] - c2[3]) + Math.max(0, c2[2] - c1[2] - c1[3]);
+        }
+        if (tp == 0)
+            return 0;
+        return 2*tp / (float)(2*tp + fpfn) + BOUND_MARGIN;
+    }
+
+    // series of the same dataset usually have the same time range,
+    //   so the last alignment is kept
+    private int[] alignment(int temporal, TopologyTimeSeriesWritable timeSeries1,
+            TopologyTimeSeriesWritable timeSeries2) {
+        int[] ranges = {timeSeries1.getStart(), timeSeries1.getEnd(), timeSeries1.getLength(),
+                timeSeries2.getStart(), timeSeries2.getEnd(), timeSeries2.getLength()};
+        if ((lastAlignment == null) || !Arrays.equals(ranges, lastRanges)) {
+            lastRanges = ranges;
+            lastAlignment = CorrelationReducer.getAlignment(temporal, timeSeries1, timeSeries2);
+            if (lastAlignment == null) {
+                lastRanges = new int[6];
+                return null;
+            }
+        }
+        return lastAlignment;
+    }
+
+    // {start, length, events, missing values} of a series at a spatial unit
+    private static int[] counts(Int2ObjectOpenHashMap<int[]> counts, int unit,
+            TopologyTimeSeriesWritable timeSeries, int start, int length) {
+        int[] c = counts.get(unit);
+        if ((c != null) && (c[0] == start) && (c[1] == length))
+            return c;
+        c = new int[] {start, length, 0, 0};
+        for (int i = start; i < start + length; i++) {
+            byte event = timeSeries.get(i);
+            if ((event == FrameworkUtils.positiveEvent) || (event == FrameworkUtils.negativeEvent))
+                c[2]++;
+            else if (event != FrameworkUtils.nonEvent)
+                c[3]++;
+        }
+        counts.put(unit, c);
+        return c;
+    }
+}
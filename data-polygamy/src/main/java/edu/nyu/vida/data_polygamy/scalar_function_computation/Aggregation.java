@@ -34,6 +34,7 @@ import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AggregationArrayWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.FloatArrayWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.Machine;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.SpatioTemporalWritable;
+import edu.nyu.vida.data_polygamy.utils.LocalEngine;
 
 public class Aggregation {
     
@@ -101,6 +102,23 @@ public class Aggregation {
         helpOption.setRequired(false);
         options.addOption(helpOption);
         
+        Option localOption = new Option("lt", "local-threads", true, "run the job in this process with "
+                + "THREADS threads instead of submitting it to the cluster (see LocalEngine)");
+        localOption.setRequired(false);
+        localOption.setArgName("THREADS");
+        localOption.setArgs(1);
+        options.addOption(localOption);
+        
+        Option profileOption = new Option("pr", "profile", false, "report the time of every phase "
+                + "of the job as counters (see StageProfiler)");
+        profileOption.setRequired(false);
+        options.addOption(profileOption);
+        
+        Option profileKeysOption = new Option("pk", "profile-keys", false, "as 'profile', and also "
+                + "write the time of every reduce key to '" + FrameworkUtils.profilesDir + "'");
+        profileKeysOption.setRequired(false);
+        options.addOption(profileKeysOption);
+        
         HelpFormatter formatter = new HelpFormatter();
         CommandLineParser parser = new PosixParser();
         CommandLine cmd = null;
@@ -141,6 +159,9 @@ public class Aggregation {
         boolean snappyCompression = false;
         boolean bzip2Compression = false;
         String machine = cmd.getOptionValue("m");
+        int localThreads = cmd.hasOption("lt") ? Integer.parseInt(cmd.getOptionValue("lt")) : 0;
+        boolean profileKeys = cmd.hasOption("pk");
+        boolean profile = cmd.hasOption("pr") || profileKeys;
         int nbNodes = Integer.parseInt(cmd.getOptionValue("n"));
         
         Configuration s3conf = new Configuration();
@@ -336,6 +357,11 @@ public class Aggregation {
             //aggConf.set("mapreduce.output.fileoutputformat.compress.codec", "org.apache.hadoop.io.compress.BZip2Codec");
         }
     
+        if (profile)
+            aggConf.setBoolean("profile", true);
+        if (profileKeys)
+            aggConf.set("profile-dir", s3bucket + FrameworkUtils.profilesDir + "/" + jobName);
+        
         aggJob = new Job(aggConf);
         aggJob.setJobName(jobName);
         
@@ -366,8 +392,12 @@ public class Aggregation {
         aggJob.setJarByClass(Aggregation.class);
         
         long start = System.currentTimeMillis();
-        aggJob.submit();
-        aggJob.waitForCompletion(true);
+        if (localThreads > 0) {
+            LocalEngine.printCounters(LocalEngine.run(aggJob, localThreads));
+        } else {
+            aggJob.submit();
+            aggJob.waitForCompletion(true);
+        }
         System.out.println(jobName + "\t" + (System.currentTimeMillis() - start));
         
         // moving files to right place
@@ -17,6 +17,8 @@ import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AggregationArrayWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.MultipleSpatioTemporalWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.SpatioTemporalWritable;
+import edu.nyu.vida.data_polygamy.utils.StageProfiler;
+import edu.nyu.vida.data_polygamy.utils.StageProfiler.Phase;
 
 public class AggregationMapper extends Mapper<MultipleSpatioTemporalWritable, AggregationArrayWritable, SpatioTemporalWritable, AggregationArrayWritable> {
     
@@ -39,6 +41,8 @@ public class AggregationMapper extends Mapper<MultipleSpatioTemporalWritable, Ag
     // output key
     SpatioTemporalWritable keyWritable = new SpatioTemporalWritable();
     
+    StageProfiler profiler = null;
+    
     private SpatialResolution resolveResolution(int currentSpatialResolution,
             int spatialResolution, int spatialPos, Configuration conf) {
         
@@ -80,6 +84,7 @@ public class AggregationMapper extends Mapper<MultipleSpatioTemporalWritable, Ag
             throws IOException, InterruptedException {
     
         Configuration conf = context.getConfiguration();
+        profiler = new StageProfiler(context);
         
         String[] datasetNames = conf.get("dataset-name","").split(",");
         String[] datasetIds = conf.get("dataset-id","").split(",");
@@ -158,6 +163,7 @@ public class AggregationMapper extends Mapper<MultipleSpatioTemporalWritable, Ag
     public void map(MultipleSpatioTemporalWritable key, AggregationArrayWritable value, Context context)
             throws IOException, InterruptedException {
         
+        profiler.record();
         for (int i = 0; i < temporalResolutions.length; i++) {
             
             // input
@@ -191,8 +197,10 @@ public class AggregationMapper extends Mapper<MultipleSpatioTemporalWritable, Ag
             
             spatialAtt = spatialArray[spatialIndex];
             
+            long t = profiler.start();
             if (currentSpatial != spatialResolution)
                 spatialAtt = spatialTranslation[i].translate(spatialArray);
+            profiler.stop(Phase.TRANSLATE, t);
             
             if (spatialAtt == invalidSpatial)
                 continue;
@@ -201,10 +209,12 @@ public class AggregationMapper extends Mapper<MultipleSpatioTemporalWritable, Ag
              * Temporal Resolution
              */
             
+            t = profiler.start();
             if (currentTemporal == temporalResolution)
                 temporalAtt = temporalArray[tempIndex];
             else
                 temporalAtt = FrameworkUtils.getTime(temporalResolution, temporalArray, tempIndex);
+            profiler.stop(Phase.TIME_BUCKETING, t);
             
             if (temporalAtt < 0)
                 continue;
@@ -215,4 +225,9 @@ public class AggregationMapper extends Mapper<MultipleSpatioTemporalWritable, Ag
         }
     }
     
+    @Override
+    public void cleanup(Context context) throws IOException, InterruptedException {
+        profiler.close(context);
+    }
+    
 }
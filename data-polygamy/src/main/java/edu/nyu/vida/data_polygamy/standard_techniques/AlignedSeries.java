@@ -0,0 +1,117 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.standard_techniques;
+
+import java.util.Arrays;
+
+/**
+ * Time series of a spatial unit as sorted primitive arrays: the time keys
+ * (times) and their values (values), with one value per time.
+ *
+ * Values are added in any order; sort() orders them by time, keeping the
+ * last value added for a repeated time (as a TreeMap.put would). Two
+ * sorted series are aligned on their common times by a linear merge.
+ */
+public class AlignedSeries {
+
+    public int[] times;
+    public float[] values;
+    public int size = 0;
+
+    public AlignedSeries() {
+        this(16);
+    }
+
+    public AlignedSeries(int capacity) {
+        times = new int[Math.max(1, capacity)];
+        values = new float[Math.max(1, capacity)];
+    }
+
+    public void add(int time, float value) {
+        if (size == times.length) {
+            times = Arrays.copyOf(times, 2 * size);
+            values = Arrays.copyOf(values, 2 * size);
+        }
+        times[size] = time;
+        values[size] = value;
+        size++;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Sorts the values by time, keeping the last value of a repeated time.
+     */
+    public void sort() {
+        boolean sorted = true;
+        for (int i = 1; (i < size) && sorted; i++)
+            sorted = times[i-1] < times[i];
+        if (sorted) return;
+
+        // time in the high bits, position of the value in the low bits
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++)
+            keys[i] = (((long) times[i]) << 32) | i;
+        Arrays.sort(keys);
+
+        int[] sortedTimes = new int[size];
+        float[] sortedValues = new float[size];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            int time = (int) (keys[i] >> 32);
+            float value = values[(int) keys[i]];
+            if ((n > 0) && (sortedTimes[n-1] == time))
+                sortedValues[n-1] = value;
+            else {
+                sortedTimes[n] = time;
+                sortedValues[n] = value;
+                n++;
+            }
+        }
+        times = sortedTimes;
+        values = sortedValues;
+        size = n;
+    }
+
+    /**
+     * Values of both (sorted) series at their common times, in x and y
+     * (of at least min(s1.size, s2.size) values); returns the number of
+     * common times.
+     */
+    public static int align(AlignedSeries s1, AlignedSeries s2, float[] x, float[] y) {
+        int i = 0, j = 0, n = 0;
+        while ((i < s1.size) && (j < s2.size)) {
+            int t1 = s1.times[i];
+            int t2 = s2.times[j];
+            if (t1 < t2)
+                i++;
+            else if (t1 > t2)
+                j++;
+            else {
+                x[n] = s1.values[i++];
+                y[n] = s2.values[j++];
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Same as align, but skipping the common times where either value is
+     * NaN, which SpatialSeries treats as a missing value.
+     */
+    public static int alignDefined(AlignedSeries s1, AlignedSeries s2, float[] x, float[] y) {
+        int size = align(s1, s2, x, y);
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (Float.isNaN(x[i]) || Float.isNaN(y[i])) continue;
+            x[n] = x[i];
+            y[n] = y[i];
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,229 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.standard_techniques;
+
+/**
+ * Dynamic time warping distance (sum of |a_i - b_j| over the warping
+ * path) with a Sakoe-Chiba band and two rows of costs, and the DTW score
+ * of CorrelationTechniquesReducer:
+ *
+ *   1 - DTW(a, b) / (DTW(a, 0) + DTW(b, 0))
+ *
+ * The rows are the values of the longer series, and the band of a row is
+ * the cells within band of the diagonal (scaled to the lengths of both
+ * series); with the full width, the distance is the one of Java-ML's
+ * DTW.getWarpDistBetween, computed in the same order.
+ *
+ * The distance to a series of zeros has a closed form: every row is on
+ * the path, so it is the sum of |a_i|, plus (when a is the shorter series)
+ * the extra cells at the smallest |a_i|. For the permutation test, a
+ * score known to be below a cutoff is not computed exactly: the LB_Keogh
+ * lower bound of the distance, or a row of costs already above the
+ * bound, gives an upper bound of the score below the cutoff.
+ */
+public class BandedDTW {
+
+    /**
+     * Scores below the cutoff: pruned by LB_Keogh, and abandoned while
+     * computing the distance.
+     */
+    public static enum DTWCounter {PRUNED, ABANDONED};
+
+    public long pruned = 0;
+    public long abandoned = 0;
+
+    // band, as a fraction of the longer series (1 for the full width)
+    double band;
+
+    double[] previous = new double[0];
+    double[] current = new double[0];
+    double[] zeros = new double[0];
+    int[] upperQueue = new int[0];
+    int[] lowerQueue = new int[0];
+
+    public BandedDTW(double band) {
+        this.band = ((band <= 0) || (band > 1)) ? 1 : band;
+    }
+
+    public BandedDTW() {
+        this(1);
+    }
+
+    /**
+     * Width of the band (in cells on each side of the diagonal) for n rows
+     * and m columns; at least m for the full width.
+     */
+    int width(int n, int m) {
+        if (band >= 1) return m;
+        return Math.max(1, (int) Math.ceil(band * n));
+    }
+
+    // first and last column of row i
+    static int low(int i, int n, int m, int w) {
+        double center = (n == 1) ? 0 : ((double) i) * (m - 1) / (n - 1);
+        return Math.max(0, (int) Math.ceil(center - w));
+    }
+
+    static int high(int i, int n, int m, int w) {
+        double center = (n == 1) ? 0 : ((double) i) * (m - 1) / (n - 1);
+        return Math.min(m - 1, (int) Math.floor(center + w));
+    }
+
+    public double distance(double[] a, double[] b) {
+        return distance(a, b, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * DTW distance of a and b or, if it is greater than abandon, possibly
+     * a lower bound of the distance greater than abandon.
+     */
+    public double distance(double[] a, double[] b, double abandon) {
+        if (a.length < b.length)
+            return distance(b, a, abandon);
+
+        int n = a.length;
+        int m = b.length;
+        int w = width(n, m);
+        if (previous.length < m + 1) {
+            previous = new double[m + 1];
+            current = new double[m + 1];
+        }
+        double[] prev = previous;
+        double[] cur = current;
+
+        int hi = high(0, n, m, w);
+        cur[0] = Math.abs(a[0] - b[0]);
+        for (int j = 1; j <= hi; j++)
+            cur[j] = cur[j-1] + Math.abs(a[0] - b[j]);
+        cur[hi + 1] = Double.POSITIVE_INFINITY;
+
+        for (int i = 1; i < n; i++) {
+            double[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+
+            int lo = low(i, n, m, w);
+            hi = high(i, n, m, w);
+            double rowMin = Double.POSITIVE_INFINITY;
+            if (lo == 0) {
+                cur[0] = prev[0] + Math.abs(a[i] - b[0]);
+                rowMin = cur[0];
+                lo = 1;
+            } else
+                cur[lo - 1] = Double.POSITIVE_INFINITY;
+            for (int j = lo; j <= hi; j++) {
+                double min = Math.min(prev[j], Math.min(prev[j-1], cur[j-1]));
+                cur[j] = min + Math.abs(a[i] - b[j]);
+                if (cur[j] < rowMin) rowMin = cur[j];
+            }
+            cur[hi + 1] = Double.POSITIVE_INFINITY;
+
+            // every row is on the path, and the costs only increase
+            if (rowMin > abandon)
+                return rowMin;
+        }
+        return cur[m - 1];
+    }
+
+    /**
+     * DTW distance of a and a series of m zeros.
+     */
+    public double zeroDistance(double[] a, int m) {
+        int n = a.length;
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            double abs = Math.abs(a[i]);
+            sum += abs;
+            min = Math.min(min, abs);
+        }
+        if (m <= n)
+            return sum;
+        if (band >= 1)
+            return sum + (m - n) * min;
+
+        // in the band, the extra cells cannot all be in the same row
+        if (zeros.length != m)
+            zeros = new double[m];
+        return distance(zeros, a);
+    }
+
+    /**
+     * LB_Keogh lower bound of the DTW distance of a and b: the distance
+     * of the values of each row to the envelope of the values of the
+     * other series in the band of the row.
+     */
+    public double lowerBound(double[] a, double[] b) {
+        if (a.length < b.length)
+            return lowerBound(b, a);
+
+        int n = a.length;
+        int m = b.length;
+        int w = width(n, m);
+        if (upperQueue.length < m) {
+            upperQueue = new int[m];
+            lowerQueue = new int[m];
+        }
+
+        // monotonic queues of the maximum and minimum of the band
+        int uHead = 0, uTail = 0, lHead = 0, lTail = 0;
+        int next = 0;
+        double bound = 0;
+        for (int i = 0; i < n; i++) {
+            int lo = low(i, n, m, w);
+            int hi = high(i, n, m, w);
+            for (; next <= hi; next++) {
+                while ((uTail > uHead) && (b[upperQueue[uTail - 1]] <= b[next])) uTail--;
+                upperQueue[uTail++] = next;
+                while ((lTail > lHead) && (b[lowerQueue[lTail - 1]] >= b[next])) lTail--;
+                lowerQueue[lTail++] = next;
+            }
+            while (upperQueue[uHead] < lo) uHead++;
+            while (lowerQueue[lHead] < lo) lHead++;
+
+            double upper = b[upperQueue[uHead]];
+            double lower = b[lowerQueue[lHead]];
+            if (a[i] > upper)
+                bound += a[i] - upper;
+            else if (a[i] < lower)
+                bound += lower - a[i];
+        }
+        return bound;
+    }
+
+    public double score(double[] a, double[] b) {
+        return score(a, b, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * DTW score of a and b or, if it is below cutoff, possibly an upper
+     * bound of the score below cutoff.
+     */
+    public double score(double[] a, double[] b, double cutoff) {
+        double zero = zeroDistance(a, b.length) + zeroDistance(b, a.length);
+        if (zero == 0)
+            return 0;
+
+        if (cutoff == Double.NEGATIVE_INFINITY)
+            return 1 - distance(a, b)/zero;
+
+        double upper = 1 - lowerBound(a, b)/zero;
+        if (upper < cutoff) {
+            pruned++;
+            return upper;
+        }
+        double abandon = (1 - cutoff) * zero;
+        double dtw = distance(a, b, abandon);
+        double score = 1 - dtw/zero;
+        if (dtw > abandon) {
+            if (score < cutoff) {
+                abandoned++;
+                return score;
+            }
+            // rounding: the bound is not below the cutoff
+            score = 1 - distance(a, b)/zero;
+        }
+        return score;
+    }
+}
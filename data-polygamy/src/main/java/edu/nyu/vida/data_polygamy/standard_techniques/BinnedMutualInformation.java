@@ -0,0 +1,109 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.standard_techniques;
+
+import java.util.Arrays;
+
+/**
+ * Mutual information of equal-frequency bins, normalized by the entropies
+ * of the bins of both series: I(X;Y) / sqrt(H(X) H(Y)).
+ *
+ * Bins are assigned by rank, equal values sharing a bin. The bins and
+ * their entropies do not change with the rotations, so each score only
+ * fills the joint histogram, O(n + bins^2); histograms and the table of
+ * c log c are reused between scores.
+ */
+public class BinnedMutualInformation extends MutualInformation {
+
+    int bins;
+    int nbBins;
+
+    int[] binX = new int[0];
+    int[] binY = new int[0];
+    int[] joint = new int[0];
+    double[] cLogC = new double[0];
+    double entropyX, entropyY;
+
+    /**
+     * Estimator with bins bins (0 for the cube root of the number of values).
+     */
+    public BinnedMutualInformation(int bins) {
+        this.bins = bins;
+    }
+
+    @Override
+    public void setObservations(float[] x, float[] y, int n) {
+        super.setObservations(x, y, n);
+        nbBins = (bins > 0) ? bins : Math.max(2, (int) Math.cbrt(n));
+        if (binX.length < n) {
+            binX = new int[n];
+            binY = new int[n];
+        }
+        if (cLogC.length < n + 1) {
+            cLogC = new double[n + 1];
+            for (int c = 1; c <= n; c++)
+                cLogC[c] = c * Math.log(c);
+        }
+        if (joint.length < nbBins * nbBins)
+            joint = new int[nbBins * nbBins];
+
+        entropyX = bin(x, binX);
+        entropyY = bin(y, binY);
+    }
+
+    /**
+     * Assigns the bins of values, and returns the entropy of the bins.
+     */
+    double bin(float[] values, int[] bin) {
+        // value in the high bits, position in the low bits
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = (((long) sortable(values[i])) << 32) | i;
+        Arrays.sort(keys);
+
+        int[] counts = new int[nbBins];
+        int first = 0;
+        for (int rank = 0; rank < n; rank++) {
+            if ((keys[rank] >> 32) != (keys[first] >> 32))
+                first = rank;
+            int b = (int) (((long) first) * nbBins / n);
+            bin[(int) keys[rank]] = b;
+            counts[b]++;
+        }
+        return entropy(counts, nbBins);
+    }
+
+    /**
+     * Integer with the same order as the float value.
+     */
+    static int sortable(float value) {
+        int bits = Float.floatToIntBits(value);
+        return (bits < 0) ? bits ^ 0x7fffffff : bits;
+    }
+
+    double entropy(int[] counts, int size) {
+        double sum = 0;
+        for (int i = 0; i < size; i++)
+            sum += cLogC[counts[i]];
+        return Math.log(n) - sum / n;
+    }
+
+    @Override
+    public double score(int shiftX, int shiftY) {
+        if ((entropyX == 0) || (entropyY == 0))
+            return 0;
+
+        int size = nbBins * nbBins;
+        Arrays.fill(joint, 0, size, 0);
+        int i = shiftX % n;
+        int j = shiftY % n;
+        for (int k = 0; k < n; k++) {
+            joint[binX[i] * nbBins + binY[j]]++;
+            if (++i == n) i = 0;
+            if (++j == n) j = 0;
+        }
+        double mi = entropyX + entropyY - entropy(joint, size);
+        return Math.max(0, mi) / Math.sqrt(entropyX * entropyY);
+    }
+}
@@ -7,6 +7,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -141,6 +142,25 @@ public class CorrelationTechniques {
         bucketOption.setArgs(1);
         options.addOption(bucketOption);
         
+        Option miOption = new Option("mi", "mutual-information", true, "mutual information estimator: "
+                + "'kernel' (JIDT, default), 'binned' (equal-frequency bins), or 'ksg' (Kraskov et al.)");
+        miOption.setRequired(false);
+        miOption.setArgName("ESTIMATOR");
+        miOption.setArgs(1);
+        options.addOption(miOption);
+        
+        Option dtwOption = new Option("dtw", "dtw-band", true, "Sakoe-Chiba band of DTW, as a fraction "
+                + "of the length of the series (default: 1, the full width)");
+        dtwOption.setRequired(false);
+        dtwOption.setArgName("BAND");
+        dtwOption.setArgs(1);
+        options.addOption(dtwOption);
+        
+        Option miCalibrationOption = new Option("mic", "mi-calibration", false, "also write the mutual "
+                + "information of every estimator for each spatial unit (file 'mi-calibration')");
+        miCalibrationOption.setRequired(false);
+        options.addOption(miCalibrationOption);
+        
         Option helpOption = new Option("h", "help", false, "display this message");
         helpOption.setRequired(false);
         options.addOption(helpOption);
@@ -186,6 +206,15 @@ public class CorrelationTechniques {
         boolean bzip2Compression = false;
         String machine = cmd.getOptionValue("m");
         int nbNodes = Integer.parseInt(cmd.getOptionValue("n"));
+        String miEstimator = cmd.hasOption("mi") ? cmd.getOptionValue("mi") : "kernel";
+        boolean miCalibration = cmd.hasOption("mic");
+        float dtwBand = cmd.hasOption("dtw") ? Float.parseFloat(cmd.getOptionValue("dtw")) : 1;
+        if (!Arrays.asList(MutualInformation.estimators).contains(miEstimator)) {
+            System.out.println("Unknown mutual information estimator: " + miEstimator);
+            formatter.printHelp("hadoop jar data-polygamy.jar " +
+                        "edu.nyu.vida.data_polygamy.standard_techniques.CorrelationTechniques", options, true);
+            System.exit(0);
+        }
         
         Configuration s3conf = new Configuration();
         if (s3) {
@@ -350,6 +379,9 @@ public class CorrelationTechniques {
         conf.set("first-group", firstGroupStr);
         conf.set("second-group", secondGroupStr);
         conf.set("main-dataset-id", datasetId.get(shortDataset.get(0)));
+        conf.set("mi-estimator", miEstimator);
+        conf.setBoolean("mi-calibration", miCalibration);
+        conf.setFloat("dtw-band", dtwBand);
         if (noRelationship.length() > 0) {
             conf.set("no-relationship", noRelationship.substring(0, noRelationship.length()-1));
         }
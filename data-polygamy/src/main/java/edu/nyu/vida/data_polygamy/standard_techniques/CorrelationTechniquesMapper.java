@@ -95,22 +95,11 @@ public class CorrelationTechniquesMapper extends Mapper<SpatioTemporalWritable,
             System.exit(-1);
         }
         
+        // all the spatial resolutions (NBHD, ZIP, GRID and CITY) are
+        // paired; the reducer tests the spatial ones with spatial permutations
         int spatialResolution = key.getSpatialResolution();
         int temporalResolution = key.getTemporalResolution();
         
-        switch(spatialResolution) {
-        case FrameworkUtils.NBHD:
-            return;
-        case FrameworkUtils.ZIP:
-            return;
-        case FrameworkUtils.GRID:
-            return;
-        case FrameworkUtils.CITY:
-            break;
-        default:
-            break;
-        }
-        
         float[] attributeValues = value.get();
         int spatial = key.getSpatial();
         int temporal = key.getTemporal();
@@ -3,22 +3,12 @@
    See file LICENSE for full license details. */
 package edu.nyu.vida.data_polygamy.standard_techniques;
 
-import infodynamics.measures.continuous.kernel.EntropyCalculatorKernel;
-import infodynamics.measures.continuous.kernel.MutualInfoCalculatorMultiVariateKernel;
-
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Random;
-import java.util.TreeMap;
-
-import net.sf.javaml.core.DenseInstance;
-import net.sf.javaml.distance.fastdtw.dtw.DTW;
-import net.sf.javaml.distance.fastdtw.timeseries.TimeSeries;
 
-import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
@@ -28,6 +18,7 @@ import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.PairAttributeWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.SpatioTemporalValueWritable;
+import edu.nyu.vida.data_polygamy.utils.Permutation;
 import edu.nyu.vida.data_polygamy.utils.SpatialGraph;
 
 public class CorrelationTechniquesReducer extends Reducer<PairAttributeWritable, SpatioTemporalValueWritable, Text, Text> {
@@ -46,7 +37,6 @@ public class CorrelationTechniquesReducer extends Reducer<PairAttributeWritable,
     SpatialGraph nbhdGraph = new SpatialGraph();
     SpatialGraph zipGraph = new SpatialGraph();
     int gridSize = 0;
-    int[][] originalGrid;
     boolean isNbhd = false;
     boolean isGrid = false;
     boolean isZip = false;
@@ -64,7 +54,43 @@ public class CorrelationTechniquesReducer extends Reducer<PairAttributeWritable,
     // header
     HashMap<Integer,HashMap<Integer, String>> header = new HashMap<Integer,HashMap<Integer, String>>();
     
-    ArrayList<TreeMap<Integer, Float>>[] timeSeries;
+    // series of each spatial unit with values (row), for both datasets
+    AlignedSeries[][] timeSeries = new AlignedSeries[0][];
+    int[] units = new int[0];
+    int nbRows = 0;
+    HashMap<Integer,Integer> unitToRow = new HashMap<Integer,Integer>();
+    
+    // the same series on a common time axis, for the spatial permutations
+    SpatialSeries spatialSeries = new SpatialSeries();
+    boolean denseSeries = false;
+    
+    // spatial permutations of each resolution, drawn once for all the
+    // attribute pairs: for NBHD and ZIP, the target of each spatial unit
+    // (as Permutation.getTargets()); for GRID, the offsets of the
+    // toroidal shift; and the target row of each row in a repetition
+    HashMap<Integer,int[][]> spatialShifts = new HashMap<Integer,int[][]>();
+    Permutation permutation = new Permutation();
+    int[] rowTargets = new int[0];
+    
+    // values of the last pair of series aligned on their common times
+    int alignedIndex1 = -1;
+    int alignedIndex2 = -1;
+    int alignedSize = 0;
+    float[] aligned1 = new float[0];
+    float[] aligned2 = new float[0];
+    
+    StreamingPearson pearson = new StreamingPearson();
+    
+    // mutual information, and all the estimators for the calibration
+    MutualInformation mutualInformation;
+    MutualInformation[] calibrationEstimators = null;
+    String calibrationFileName;
+    
+    // DTW; during the temporal permutations, scores below the observed
+    // one (dtwCutoff) are not computed exactly
+    BandedDTW dtwDistance;
+    double dtwCutoff = Double.NEGATIVE_INFINITY;
+    Random random = new Random();
     
     // Monte Carlo permutation test
     //  null hypothesis (H0): random predictability
@@ -178,49 +204,32 @@ public class CorrelationTechniquesReducer extends Reducer<PairAttributeWritable,
         // zipcode graph
         zipGraph.init(FrameworkUtils.ZIP, conf);
         
+        // DTW band, as a fraction of the series (1 for the full width)
+        dtwDistance = new BandedDTW(conf.getFloat("dtw-band", 1));
+        
+        // mutual information
+        mutualInformation = MutualInformation.get(conf);
+        if (conf.getBoolean("mi-calibration", false)) {
+            calibrationEstimators = new MutualInformation[MutualInformation.estimators.length];
+            for (int i = 0; i < calibrationEstimators.length; i++)
+                calibrationEstimators[i] = MutualInformation.get(MutualInformation.estimators[i], conf);
+        }
+        
         // grid
         gridSize = 2048;
         //gridSize = Integer.parseInt(conf.get("spatial-resolution").replace("grid", ""));
-        originalGrid = new int[gridSize][gridSize];
-        for (int j = 0; j < gridSize; j++) {
-            for (int i = 0; i < gridSize; i++)
-                originalGrid[i][j] = j * gridSize + i;
-        }
     }
     
-    @SuppressWarnings("unchecked")
     @Override
     public void reduce(PairAttributeWritable key, Iterable<SpatioTemporalValueWritable> values, Context context)
             throws IOException, InterruptedException {
         
         resolutionHandler(key.getSpatialResolution(), key.getTemporalResolution());
         
-        int size = 0;
-        switch(spatial) {
-        case FrameworkUtils.NBHD:
-            size = spatialGraph.nbNodes();
-            break;
-        case FrameworkUtils.ZIP:
-            size = zipGraph.nbNodes();
-            break;
-        case FrameworkUtils.GRID:
-            size = gridSize;
-            break;
-        case FrameworkUtils.CITY:
-            size = 1;
-            break;
-        default:
-            size = 1;
-            break;
-        }
-        
-        timeSeries = (ArrayList<TreeMap<Integer, Float>>[]) new ArrayList[size];
-        for (int i = 0; i < size; i++) {
-            ArrayList<TreeMap<Integer, Float>> spatialTimeSeries = new ArrayList<TreeMap<Integer, Float>>();
-            spatialTimeSeries.add(new TreeMap<Integer, Float>()); // 0
-            spatialTimeSeries.add(new TreeMap<Integer, Float>()); // 1
-            timeSeries[i] = spatialTimeSeries;
-        }
+        nbRows = 0;
+        unitToRow.clear();
+        alignedIndex1 = -1;
+        alignedIndex2 = -1;
         
         // initializing some variables
         dataset1 = key.getFirstDataset();
@@ -228,6 +237,7 @@ public class CorrelationTechniquesReducer extends Reducer<PairAttributeWritable,
         fileName = datasets.get(dataset1) + "-" + datasets.get(dataset2) + "/"
                 + utils.temporalResolutionStr(key.getTemporalResolution()) + "-"
                 + utils.spatialResolutionStr(key.getSpatialResolution()) + "/data";
+        calibrationFileName = fileName.substring(0, fileName.length() - "data".length()) + "mi-calibration";
         
         Iterator<SpatioTemporalValueWritable> it = values.iterator();
         SpatioTemporalValueWritable st;
@@ -246,21 +256,27 @@ public class CorrelationTechniquesReducer extends Reducer<PairAttributeWritable,
             else
                 datasetKey = dataset2Key;
             
-            TreeMap<Integer, Float> map = timeSeries[spatial].get(datasetKey);
-            map.put(temporal, val);
-            timeSeries[spatial].set(datasetKey, map);
-            
+            timeSeries[row(spatial)][datasetKey].add(temporal, val);
+        }
+        
+        for (int i = 0; i < nbRows; i++) {
+            timeSeries[i][dataset1Key].sort();
+            timeSeries[i][dataset2Key].sort();
         }
+        // matrices of the series, unless too large or too sparse
+        denseSeries = !isCity && spatialSeries.init(timeSeries, units, nbRows);
         
         double corr = 0; // Pearsons Correlations
         double mi = 0; // Mutual Information
         double dtw = 0; // DTW
         
         int count = 0;
-        for (int i = 0; i < size; i++) {
-            double[] tempValues = computeCorrelationTechniques(timeSeries, i, i, false);
+        for (int i = 0; i < nbRows; i++) {
+            double[] tempValues = computeCorrelationTechniques(i, i, false);
             if (tempValues == null)
                 continue;
+            if (calibrationEstimators != null)
+                calibrate(key, units[i]);
             corr += tempValues[0];
             mi += tempValues[1];
             dtw += tempValues[2];
@@ -280,114 +296,19 @@ public class CorrelationTechniquesReducer extends Reducer<PairAttributeWritable,
         double pValueCorr = 0;
         double pValueMI = 0;
         double pValueDTW = 0;
-        ArrayList<Integer[]> pairs = new ArrayList<Integer[]>();
         
         switch(spatial) {
         case FrameworkUtils.NBHD:
-            for (int j = 0; j < repetitions; j++) {
-                double mcCorr = 0;
-                
-                pairs.clear();
-                pairs = bfsShift(true);
-                
-                count = 0;
-                for (int i = 0; i < pairs.size(); i++) {
-                    Integer[] pair = pairs.get(i);
-                    double[] tempValues = computeCorrelationTechniques(timeSeries, pair[0], pair[1], false);
-                    if (tempValues == null)
-                        continue;
-                    corr += tempValues[0];
-                    //mi += tempValues[1];
-                    //dtw += tempValues[2];
-                    count++;
-                }
-                mcCorr = (count == 0) ? 0 : mcCorr/count;
-                
-                if (corr > 0) {
-                    if (mcCorr >= corr)
-                        pValueCorr += 1;
-                }
-                else {
-                    if (mcCorr <= corr)
-                        pValueCorr += 1;
-                }
-                if (pValueCorr > (alpha*repetitions)) break; // pruning
-            }
-            
-            pValueCorr = pValueCorr/((double)(repetitions));
-            emitKeyValue(key, corr, mi, dtw, pValueCorr, pValueMI, pValueDTW);
-            break;
         case FrameworkUtils.ZIP:
-            for (int j = 0; j < repetitions; j++) {
-                double mcCorr = 0;
-                
-                pairs.clear();
-                pairs = bfsShift(false);
-                
-                count = 0;
-                for (int i = 0; i < pairs.size(); i++) {
-                    Integer[] pair = pairs.get(i);
-                    double[] tempValues = computeCorrelationTechniques(timeSeries, pair[0], pair[1], false);
-                    if (tempValues == null)
-                        continue;
-                    corr += tempValues[0];
-                    //mi += tempValues[1];
-                    //dtw += tempValues[2];
-                    count++;
-                }
-                mcCorr = (count == 0) ? 0 : mcCorr/count;
-                
-                if (corr > 0) {
-                    if (mcCorr >= corr)
-                        pValueCorr += 1;
-                }
-                else {
-                    if (mcCorr <= corr)
-                        pValueCorr += 1;
-                }
-                if (pValueCorr > (alpha*repetitions)) break; // pruning
-            }
-            
-            pValueCorr = pValueCorr/((double)(repetitions));
-            emitKeyValue(key, corr, mi, dtw, pValueCorr, pValueMI, pValueDTW);
-            break;
         case FrameworkUtils.GRID:
-            for (int j = 0; j < repetitions; j++) {
-                double mcCorr = 0;
-                
-                pairs.clear();
-                pairs = toroidalShift();
-                
-                count = 0;
-                for (int i = 0; i < pairs.size(); i++) {
-                    Integer[] pair = pairs.get(i);
-                    double[] tempValues = computeCorrelationTechniques(timeSeries, pair[0], pair[1], false);
-                    if (tempValues == null)
-                        continue;
-                    corr += tempValues[0];
-                    //mi += tempValues[1];
-                    //dtw += tempValues[2];
-                    count++;
-                }
-                mcCorr = (count == 0) ? 0 : mcCorr/count;
-                
-                if (corr > 0) {
-                    if (mcCorr >= corr)
-                        pValueCorr += 1;
-                }
-                else {
-                    if (mcCorr <= corr)
-                        pValueCorr += 1;
-                }
-                if (pValueCorr > (alpha*repetitions)) break; // pruning
-            }
-            
-            pValueCorr = pValueCorr/((double)(repetitions));
+            // only the correlation is tested for the spatial permutations
+            pValueCorr = spatialPValue(corr);
             emitKeyValue(key, corr, mi, dtw, pValueCorr, pValueMI, pValueDTW);
             break;
         case FrameworkUtils.CITY:
+            dtwCutoff = dtw;
             for (int j = 0; j < repetitions; j++) {
-                double[] tempValues = computeCorrelationTechniques(timeSeries, 0, 0, true);
+                double[] tempValues = computeCorrelationTechniques(0, 0, true);
                 double mcCorr = (tempValues == null) ? 0 : tempValues[0];
                 double mcMI = (tempValues == null) ? 0 : tempValues[1];
                 double mcDTW = (tempValues == null) ? 0 : tempValues[2];
@@ -413,6 +334,7 @@ public class CorrelationTechniquesReducer extends Reducer<PairAttributeWritable,
                         pValueDTW += 1;
                 }
             }
+            dtwCutoff = Double.NEGATIVE_INFINITY;
             
             pValueCorr = pValueCorr/((double)(repetitions));
             pValueMI = pValueMI/((double)(repetitions));
@@ -429,6 +351,8 @@ public class CorrelationTechniquesReducer extends Reducer<PairAttributeWritable,
     @Override
     public void cleanup(Context context) throws IOException, InterruptedException {
     	out.close();
+    	context.getCounter(BandedDTW.DTWCounter.PRUNED).increment(dtwDistance.pruned);
+    	context.getCounter(BandedDTW.DTWCounter.ABANDONED).increment(dtwDistance.abandoned);
     }
     
     private void emitKeyValue(PairAttributeWritable key, double corr, double mi, double dtw,
@@ -440,108 +364,96 @@ public class CorrelationTechniquesReducer extends Reducer<PairAttributeWritable,
         out.write(keyWritable, valueWritable, fileName);
     }
     
-    private double[] computeCorrelationTechniques(ArrayList<TreeMap<Integer, Float>>[] timeSeries,
-            int index1, int index2, boolean temporalPermutation) {
-        double[] values = {0.0, 0.0, 0.0};
-        
-        TreeMap<Integer, Float> map1 = timeSeries[index1].get(dataset1Key);
-        TreeMap<Integer, Float> map2 = timeSeries[index2].get(dataset2Key);
-        
-        ArrayList<Double> array1 =  new ArrayList<Double>();
-        ArrayList<Double> array2 =  new ArrayList<Double>();
-            
-        for (int temp : map1.keySet()) {
-            if (map2.containsKey(temp)) {
-                array1.add((double) map1.get(temp));
-                array2.add((double) map2.get(temp));
-            }
+    /**
+     * Aligns the series of index1 (first dataset) and index2 (second
+     * dataset) on their common times, unless they were the last ones
+     * aligned; returns the number of common times.
+     */
+    private int align(int index1, int index2) {
+        if ((index1 == alignedIndex1) && (index2 == alignedIndex2))
+            return alignedSize;
+        
+        AlignedSeries series1 = timeSeries[index1][dataset1Key];
+        AlignedSeries series2 = timeSeries[index2][dataset2Key];
+        int capacity = Math.min(series1.size, series2.size);
+        if (aligned1.length < capacity) {
+            aligned1 = new float[capacity];
+            aligned2 = new float[capacity];
         }
-        
-        double[] completeTempArray1 =  new double[map1.keySet().size()];
-        int index = 0;
-        for (int temp : map1.keySet()) {
-            completeTempArray1[index] = map1.get(temp);
-            index++;
+        alignedSize = AlignedSeries.align(series1, series2, aligned1, aligned2);
+        alignedIndex1 = index1;
+        alignedIndex2 = index2;
+        if (alignedSize >= 2)
+            mutualInformation.setObservations(aligned1, aligned2, alignedSize);
+        return alignedSize;
+    }
+    
+    /**
+     * Writes the mutual information of every estimator for the (aligned)
+     * series of the spatial unit index, to compare them with the kernel
+     * estimator of JIDT: the spatial unit, the number of values, and the
+     * score and time (microseconds) of each of MutualInformation.estimators.
+     */
+    private void calibrate(PairAttributeWritable key, int index) throws IOException, InterruptedException {
+        String value = index + "," + alignedSize;
+        for (MutualInformation estimator : calibrationEstimators) {
+            estimator.setObservations(aligned1, aligned2, alignedSize);
+            long start = System.nanoTime();
+            try {
+                value += "," + estimator.score(0, 0);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+            value += "," + (System.nanoTime() - start) / 1000;
         }
-        double[] completeTempArray2 =  new double[map2.keySet().size()];
-        index = 0;
-        for (int temp : map2.keySet()) {
-            completeTempArray2[index] = map2.get(temp);
-            index++;
+        out.write(new Text(header.get(dataset1).get(key.getFirstAttribute()) + "," +
+                header.get(dataset2).get(key.getSecondAttribute())), new Text(value), calibrationFileName);
+    }
+    
+    /**
+     * The first n values, rotated by shift.
+     */
+    private double[] toDoubleArray(float[] values, int shift, int n) {
+        double[] array = new double[n];
+        int j = shift;
+        for (int i = 0; i < n; i++) {
+            array[i] = values[j];
+            if (++j == n) j = 0;
         }
-            
-        map1.clear();
-        map2.clear();
+        return array;
+    }
+    
+    private double[] computeCorrelationTechniques(int index1, int index2, boolean temporalPermutation) {
+        double[] values = {0.0, 0.0, 0.0};
         
-        if (array1.size() < 2)
+        int size = align(index1, index2);
+        if (size < 2)
             return null;
         
         // Pearson's Correlation
-            
-        double[] tempDoubleArray1 = new double[array1.size()];
-        double[] tempDoubleArray2 = new double[array2.size()];
-        
-        int indexD1 = (temporalPermutation) ? new Random().nextInt(array1.size()) : 0;
-        int indexD2 = (temporalPermutation) ? new Random().nextInt(array2.size()) : 0;
-        for (int i = 0; i < array1.size(); i++) {
-            int j = (indexD1 + i) % array1.size();
-            int k = (indexD2 + i) % array2.size();
-            tempDoubleArray1[i] = array1.get(j);
-            tempDoubleArray2[i] = array2.get(k);
-        }
-        
-        array1 = null;
-        array2 = null;
         
-        PearsonsCorrelation pearsonsCorr = new PearsonsCorrelation();
-        values[0] = pearsonsCorr.correlation(tempDoubleArray1, tempDoubleArray2);
+        int indexD1 = (temporalPermutation) ? random.nextInt(size) : 0;
+        int indexD2 = (temporalPermutation) ? random.nextInt(size) : 0;
+        values[0] = pearson.correlation(aligned1, indexD1, aligned2, indexD2, size);
         
         // Mutual Information
         
         try {
-            values[1] = getMIScore(tempDoubleArray1, tempDoubleArray2);
+            values[1] = mutualInformation.score(indexD1, indexD2);
         } catch (Exception e) {
             e.printStackTrace();
-            /*String data1 = "";
-            for (double d : tempDoubleArray1)
-                data1 += d + ", ";
-            String data2 = "";
-            for (double d : tempDoubleArray2)
-                data2 += d + ", ";
-            System.out.println(data1);
-            System.out.println(data2);*/
             System.exit(-1);
         }
         
-        tempDoubleArray1 = null;
-        tempDoubleArray2 = null;
-        
         // DTW
         
-        double[] completeTempDoubleArray1 = new double[completeTempArray1.length];
-        double[] completeTempDoubleArray2 = new double[completeTempArray2.length];
-        
-        if (temporalPermutation) {
-            indexD1 = new Random().nextInt(completeTempArray1.length);
-            for (int i = 0; i < completeTempArray1.length; i++) {
-                int j = (indexD1 + i) % completeTempArray1.length;
-                completeTempDoubleArray1[i] = completeTempArray1[j];
-            }
-            
-            indexD2 = new Random().nextInt(completeTempArray2.length);
-            for (int i = 0; i < completeTempArray2.length; i++) {
-                int j = (indexD2 + i) % completeTempArray2.length;
-                completeTempDoubleArray2[i] = completeTempArray2[j];
-            }
-        } else {
-            System.arraycopy(completeTempArray1, 0, completeTempDoubleArray1, 0,
-                    completeTempArray1.length);
-            System.arraycopy(completeTempArray2, 0, completeTempDoubleArray2, 0,
-                    completeTempArray2.length);
-        }
-        
-        completeTempArray1 = null;
-        completeTempArray2 = null;
+        AlignedSeries series1 = timeSeries[index1][dataset1Key];
+        AlignedSeries series2 = timeSeries[index2][dataset2Key];
+        indexD1 = (temporalPermutation) ? random.nextInt(series1.size) : 0;
+        indexD2 = (temporalPermutation) ? random.nextInt(series2.size) : 0;
+        double[] completeTempDoubleArray1 = toDoubleArray(series1.values, indexD1, series1.size);
+        double[] completeTempDoubleArray2 = toDoubleArray(series2.values, indexD2, series2.size);
         
         completeTempDoubleArray1 = normalize(completeTempDoubleArray1);
         completeTempDoubleArray2 = normalize(completeTempDoubleArray2);
@@ -561,87 +473,136 @@ public class CorrelationTechniquesReducer extends Reducer<PairAttributeWritable,
         return array;
     }
     
-    private double getMIScore(double[] array1, double[] array2) throws Exception {
-        MutualInfoCalculatorMultiVariateKernel mutual =
-                new MutualInfoCalculatorMultiVariateKernel();
-        mutual.setProperty("NORMALISE_PROP_NAME", "true");
-        mutual.initialise(1, 1);
-        mutual.setObservations(array1, array2);
-        double mi = mutual.computeAverageLocalOfObservations();
-        
-        EntropyCalculatorKernel entropyCalculator = 
-                new EntropyCalculatorKernel();
-        entropyCalculator.setProperty("NORMALISE_PROP_NAME", "true");
-        entropyCalculator.initialise();
-        entropyCalculator.setObservations(array1);
-        double entropy1 = entropyCalculator.computeAverageLocalOfObservations();
-        
-        entropyCalculator.initialise();
-        entropyCalculator.setObservations(array2);
-        double entropy2 = entropyCalculator.computeAverageLocalOfObservations();
-        
-        /*double mi = MutualInformation.calculateMutualInformation(
-                array1, array2);
-        double entropy1 = Entropy.calculateEntropy(array1);
-        double entropy2 = Entropy.calculateEntropy(array2);*/
-        
-        if ((entropy1 == 0) || (entropy2 == 0))
-            return 0;
-        
-        return (mi/Math.sqrt(entropy1*entropy2)); // normalized variant
+    /**
+     * DTW score or, below dtwCutoff, an upper bound of the score below
+     * dtwCutoff (which gives the same outcome in the permutation test).
+     */
+    private double getDTWScore(double[] array1, double[] array2) {
+        return dtwDistance.score(array1, array2, dtwCutoff);
     }
     
-    private double getDTWScore(double[] array1, double[] array2) {
-        double[] constantArray1 = new double[array1.length];
-        Arrays.fill(constantArray1, 0);
-        double[] constantArray2 = new double[array2.length];
-        Arrays.fill(constantArray2, 0);
-        
-        double dtwAB = DTW.getWarpDistBetween(
-                new TimeSeries(new DenseInstance(array1)),
-                new TimeSeries(new DenseInstance(array2)));
-        double dtwA0 = DTW.getWarpDistBetween(
-                new TimeSeries(new DenseInstance(array1)),
-                new TimeSeries(new DenseInstance(constantArray2)));
-        double dtwB0 = DTW.getWarpDistBetween(
-                new TimeSeries(new DenseInstance(array2)),
-                new TimeSeries(new DenseInstance(constantArray1)));
-        
-        if ((dtwA0 + dtwB0) == 0)
-            return 0;
-        
-        return (1 - (dtwAB/(dtwA0 + dtwB0)));
+    /**
+     * Row of the series of a spatial unit, added if it has none yet.
+     */
+    private int row(int unit) {
+        Integer row = unitToRow.get(unit);
+        if (row != null)
+            return row;
+        if (nbRows == timeSeries.length) {
+            int capacity = Math.max(16, 2 * nbRows);
+            timeSeries = Arrays.copyOf(timeSeries, capacity);
+            units = Arrays.copyOf(units, capacity);
+        }
+        if (timeSeries[nbRows] == null)
+            timeSeries[nbRows] = new AlignedSeries[2];
+        timeSeries[nbRows][dataset1Key] = new AlignedSeries();
+        timeSeries[nbRows][dataset2Key] = new AlignedSeries();
+        units[nbRows] = unit;
+        unitToRow.put(unit, nbRows);
+        return nbRows++;
     }
     
-    private ArrayList<Integer[]> toroidalShift() {
-        
-        // each element inside the array list represents a pair
-        ArrayList<Integer[]> result = new ArrayList<Integer[]>();
-        
-        Random random = new Random();
+    /**
+     * p-value of the mean correlation corr of the spatial units, against
+     * the mean correlations of the spatial permutations of the resolution
+     * (pairing each unit of the first dataset with the target unit of the
+     * second one).
+     */
+    private double spatialPValue(double corr) {
+        int[][] shifts = spatialShifts(spatial);
+        if (rowTargets.length < nbRows)
+            rowTargets = new int[nbRows];
         
-        int x = random.nextInt(gridSize);
-        int y = random.nextInt(gridSize);
-        
-        // shifted grid
-        for (int j = 0; j < gridSize; j++) {
-            for (int i = 0; i < gridSize; i++) {
-                int newX = (x + i) % gridSize;
-                int newY = (y + j) % gridSize;
-                Integer[] pair = new Integer[2];
-                pair[0] = originalGrid[i][j];
-                pair[1] = originalGrid[newX][newY];
-                result.add(pair);
+        double pValueCorr = 0;
+        for (int j = 0; j < repetitions; j++) {
+            for (int r = 0; r < nbRows; r++) {
+                int target = target(shifts[j], units[r]);
+                if (denseSeries) {
+                    rowTargets[r] = (target < 0) ? -1 : spatialSeries.row(target);
+                } else {
+                    Integer row = (target < 0) ? null : unitToRow.get(target);
+                    rowTargets[r] = (row == null) ? -1 : row;
+                }
+            }
+            double mcCorr = (denseSeries) ? spatialSeries.meanCorrelation(rowTargets) :
+                meanCorrelation(rowTargets);
+            
+            if (corr > 0) {
+                if (mcCorr >= corr)
+                    pValueCorr += 1;
+            }
+            else {
+                if (mcCorr <= corr)
+                    pValueCorr += 1;
             }
+            if (pValueCorr > (alpha*repetitions)) break; // pruning
         }
-        
-        return result;
+        return pValueCorr/((double)(repetitions));
+    }
+    
+    /**
+     * Mean correlation of the pairs (r, targets[r]), as
+     * SpatialSeries.meanCorrelation, aligning the times of each pair (for
+     * series whose matrices would be too large or too sparse).
+     */
+    private double meanCorrelation(int[] targets) {
+        double sum = 0;
+        int pairs = 0;
+        for (int r = 0; r < nbRows; r++) {
+            if (targets[r] < 0) continue;
+            AlignedSeries series1 = timeSeries[r][dataset1Key];
+            AlignedSeries series2 = timeSeries[targets[r]][dataset2Key];
+            int capacity = Math.min(series1.size, series2.size);
+            if (aligned1.length < capacity) {
+                aligned1 = new float[capacity];
+                aligned2 = new float[capacity];
+            }
+            // NaN values are skipped, as in SpatialSeries
+            int size = AlignedSeries.alignDefined(series1, series2, aligned1, aligned2);
+            if (size < 2) continue;
+            sum += pearson.correlation(aligned1, 0, aligned2, 0, size);
+            pairs++;
+        }
+        // aligned1 and aligned2 do not hold the last aligned pair anymore
+        alignedIndex1 = -1;
+        alignedIndex2 = -1;
+        return (pairs == 0) ? 0 : sum/pairs;
+    }
+    
+    /**
+     * Target unit of unit in a spatial permutation, or -1 for none.
+     */
+    private int target(int[] shift, int unit) {
+        if (isGrid) {
+            int i = unit % gridSize;
+            int j = unit / gridSize;
+            return ((j + shift[1]) % gridSize) * gridSize + (i + shift[0]) % gridSize;
+        }
+        return (unit < shift.length) ? shift[unit] : -1;
     }
     
-    // TODO: we may not have all the neighborhoods for the data
-    private ArrayList<Integer[]> bfsShift(boolean isNbhd) {
-        if (isNbhd)
-            return spatialGraph.generateRandomShift();
-        return zipGraph.generateRandomShift();
+    /**
+     * Spatial permutations of resolution for all the repetitions: random
+     * BFS shifts of the graph (NBHD and ZIP) or toroidal shifts (GRID).
+     */
+    private int[][] spatialShifts(int resolution) {
+        int[][] shifts = spatialShifts.get(resolution);
+        if (shifts != null)
+            return shifts;
+        
+        shifts = new int[repetitions][];
+        for (int j = 0; j < repetitions; j++) {
+            if (resolution == FrameworkUtils.GRID) {
+                int x = random.nextInt(gridSize);
+                int y = random.nextInt(gridSize);
+                shifts[j] = new int[] {x, y};
+            } else {
+                // TODO: we may not have all the neighborhoods for the data
+                spatialGraph.generateRandomShift(random, permutation);
+                shifts[j] = Arrays.copyOf(permutation.getTargets(), permutation.size());
+            }
+        }
+        spatialShifts.put(resolution, shifts);
+        return shifts;
     }
 }
@@ -0,0 +1,220 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.standard_techniques;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Kraskov-Stoegbauer-Grassberger estimator (algorithm 1) of the mutual
+ * information, with the k nearest neighbors (max-norm) from a k-d tree,
+ * normalized as the information coefficient of correlation,
+ * sqrt(1 - exp(-2 I)), which is in [0, 1) and equals |r| for Gaussian
+ * variables.
+ *
+ * The series are normalized and, as in JIDT, a small noise breaks the
+ * ties of the values. The sorted marginals (for the neighbor counts) do
+ * not change with the rotations; each score builds the tree of the
+ * rotated pairs, O(n log n).
+ */
+public class KSGMutualInformation extends MutualInformation {
+
+    static final double noise = 1e-8;
+
+    int k;
+    Random random;
+
+    double[] nx = new double[0];
+    double[] ny = new double[0];
+    double[] sortedX = new double[0];
+    double[] sortedY = new double[0];
+    double[] digamma = new double[0];
+
+    // points of the tree (rotated pairs), and their order in the tree
+    double[] px = new double[0];
+    double[] py = new double[0];
+    int[] order = new int[0];
+
+    // k nearest distances of the current query
+    double[] nearest;
+    int nbNearest;
+
+    public KSGMutualInformation(int k) {
+        this.k = k;
+        this.nearest = new double[k];
+        this.random = new Random(42);
+    }
+
+    @Override
+    public void setObservations(float[] x, float[] y, int n) {
+        super.setObservations(x, y, n);
+        if (nx.length < n) {
+            nx = new double[n];
+            ny = new double[n];
+            sortedX = new double[n];
+            sortedY = new double[n];
+            px = new double[n];
+            py = new double[n];
+            order = new int[n];
+        }
+        if (digamma.length < n + 1) {
+            // digamma(1) = -Euler-Mascheroni; digamma(m+1) = digamma(m) + 1/m
+            digamma = new double[n + 1];
+            digamma[1] = -0.5772156649015329;
+            for (int m = 1; m < n; m++)
+                digamma[m+1] = digamma[m] + 1.0 / m;
+        }
+        normalize(x, nx);
+        normalize(y, ny);
+        System.arraycopy(nx, 0, sortedX, 0, n);
+        System.arraycopy(ny, 0, sortedY, 0, n);
+        Arrays.sort(sortedX, 0, n);
+        Arrays.sort(sortedY, 0, n);
+    }
+
+    void normalize(float[] values, double[] normalized) {
+        double mean = 0;
+        for (int i = 0; i < n; i++)
+            mean += values[i];
+        mean /= n;
+        double var = 0;
+        for (int i = 0; i < n; i++)
+            var += (values[i] - mean) * (values[i] - mean);
+        double std = Math.sqrt(var / (n - 1));
+        if (std == 0) std = 1;
+        for (int i = 0; i < n; i++)
+            normalized[i] = (values[i] - mean) / std + noise * random.nextGaussian();
+    }
+
+    @Override
+    public double score(int shiftX, int shiftY) {
+        if (n <= k)
+            return 0;
+
+        int i = shiftX % n;
+        int j = shiftY % n;
+        for (int p = 0; p < n; p++) {
+            px[p] = nx[i];
+            py[p] = ny[j];
+            order[p] = p;
+            if (++i == n) i = 0;
+            if (++j == n) j = 0;
+        }
+        build(0, n, 0);
+
+        double sum = 0;
+        for (int p = 0; p < n; p++) {
+            nbNearest = 0;
+            search(p, 0, n, 0);
+            double eps = nearest[k-1];
+            // neighbors strictly within eps in each marginal, without the point itself
+            int countX = Math.max(0, count(sortedX, px[p], eps) - 1);
+            int countY = Math.max(0, count(sortedY, py[p], eps) - 1);
+            sum += digamma[countX + 1] + digamma[countY + 1];
+        }
+        double mi = digamma[k] + digamma[n] - sum / n;
+        if (mi <= 0)
+            return 0;
+        return Math.sqrt(1 - Math.exp(-2 * mi));
+    }
+
+    /**
+     * Number of values in (value - eps, value + eps).
+     */
+    int count(double[] sorted, double value, double eps) {
+        return lowerBound(sorted, value + eps) - upperBound(sorted, value - eps);
+    }
+
+    // index of the first value >= v
+    int lowerBound(double[] sorted, double v) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < v) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // index of the first value > v
+    int upperBound(double[] sorted, double v) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] <= v) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /*
+     * k-d tree over order[lo, hi): the median (by x at even depths, by y
+     * at odd ones) is at the middle, and the subtrees on both sides.
+     */
+
+    double coordinate(int point, int depth) {
+        return ((depth & 1) == 0) ? px[point] : py[point];
+    }
+
+    void build(int lo, int hi, int depth) {
+        if (hi - lo <= 1) return;
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, depth);
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    // quickselect of the element of rank kth in order[lo, hi]
+    void select(int lo, int hi, int kth, int depth) {
+        while (hi > lo) {
+            double pivot = coordinate(order[(lo + hi) >>> 1], depth);
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (coordinate(order[i], depth) < pivot) i++;
+                while (coordinate(order[j], depth) > pivot) j--;
+                if (i <= j) {
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (kth <= j) hi = j;
+            else if (kth >= i) lo = i;
+            else return;
+        }
+    }
+
+    void search(int query, int lo, int hi, int depth) {
+        if (lo >= hi) return;
+        int mid = (lo + hi) >>> 1;
+        int point = order[mid];
+        if (point != query)
+            offer(Math.max(Math.abs(px[point] - px[query]), Math.abs(py[point] - py[query])));
+
+        double diff = coordinate(query, depth) - coordinate(point, depth);
+        if (diff < 0) {
+            search(query, lo, mid, depth + 1);
+            if ((nbNearest < k) || (-diff < nearest[k-1]))
+                search(query, mid + 1, hi, depth + 1);
+        } else {
+            search(query, mid + 1, hi, depth + 1);
+            if ((nbNearest < k) || (diff < nearest[k-1]))
+                search(query, lo, mid, depth + 1);
+        }
+    }
+
+    // keeps the k smallest distances, sorted
+    void offer(double distance) {
+        if ((nbNearest == k) && (distance >= nearest[k-1]))
+            return;
+        int i = (nbNearest < k) ? nbNearest++ : k - 1;
+        while ((i > 0) && (nearest[i-1] > distance)) {
+            nearest[i] = nearest[i-1];
+            i--;
+        }
+        nearest[i] = distance;
+    }
+}
@@ -0,0 +1,44 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.standard_techniques;
+
+import infodynamics.measures.continuous.kernel.EntropyCalculatorKernel;
+import infodynamics.measures.continuous.kernel.MutualInfoCalculatorMultiVariateKernel;
+
+/**
+ * Kernel estimator of JIDT: mutual information normalized by the
+ * entropies of both series, on normalized data. Every score is O(n^2).
+ */
+public class KernelMutualInformation extends MutualInformation {
+
+    @Override
+    public double score(int shiftX, int shiftY) throws Exception {
+        return score(rotate(x, shiftX, n), rotate(y, shiftY, n));
+    }
+
+    public static double score(double[] array1, double[] array2) throws Exception {
+        MutualInfoCalculatorMultiVariateKernel mutual =
+                new MutualInfoCalculatorMultiVariateKernel();
+        mutual.setProperty("NORMALISE_PROP_NAME", "true");
+        mutual.initialise(1, 1);
+        mutual.setObservations(array1, array2);
+        double mi = mutual.computeAverageLocalOfObservations();
+
+        EntropyCalculatorKernel entropyCalculator =
+                new EntropyCalculatorKernel();
+        entropyCalculator.setProperty("NORMALISE_PROP_NAME", "true");
+        entropyCalculator.initialise();
+        entropyCalculator.setObservations(array1);
+        double entropy1 = entropyCalculator.computeAverageLocalOfObservations();
+
+        entropyCalculator.initialise();
+        entropyCalculator.setObservations(array2);
+        double entropy2 = entropyCalculator.computeAverageLocalOfObservations();
+
+        if ((entropy1 == 0) || (entropy2 == 0))
+            return 0;
+
+        return (mi/Math.sqrt(entropy1*entropy2)); // normalized variant
+    }
+}
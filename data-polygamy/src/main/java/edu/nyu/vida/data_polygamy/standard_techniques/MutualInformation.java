@@ -0,0 +1,77 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.standard_techniques;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Normalized mutual information between two aligned series, used by
+ * CorrelationTechniquesReducer.
+ *
+ * setObservations gives the values of both series at their common times;
+ * score then computes the measure with both series rotated (for the
+ * temporal permutations of the Monte Carlo test), so that an estimator
+ * can keep what does not depend on the rotations (e.g., the marginals).
+ *
+ * The estimator is chosen with "mi-estimator" in the configuration:
+ *   kernel: JIDT kernel estimator (default), O(n^2)
+ *   binned: equal-frequency bins ("mi-bins", 0 for the cube root of n)
+ *   ksg:    Kraskov-Stoegbauer-Grassberger ("mi-k" neighbors, 4 by default)
+ */
+public abstract class MutualInformation {
+
+    public static final String[] estimators = {"kernel", "binned", "ksg"};
+
+    float[] x, y;
+    int n;
+
+    /**
+     * First n values of both series, which must not change while the
+     * estimator is used.
+     */
+    public void setObservations(float[] x, float[] y, int n) {
+        this.x = x;
+        this.y = y;
+        this.n = n;
+    }
+
+    /**
+     * Normalized mutual information of x rotated by shiftX and y rotated
+     * by shiftY (i.e., pairing x[(shiftX + i) % n] and y[(shiftY + i) % n]).
+     */
+    public abstract double score(int shiftX, int shiftY) throws Exception;
+
+    public static MutualInformation get(String estimator, int bins, int k) {
+        if (estimator.equals("kernel"))
+            return new KernelMutualInformation();
+        if (estimator.equals("binned"))
+            return new BinnedMutualInformation(bins);
+        if (estimator.equals("ksg"))
+            return new KSGMutualInformation(k);
+        System.out.println("Something went wrong... Unknown mutual information estimator: " + estimator);
+        System.exit(-1);
+        return null;
+    }
+
+    public static MutualInformation get(String estimator, Configuration conf) {
+        return get(estimator, conf.getInt("mi-bins", 0), conf.getInt("mi-k", 4));
+    }
+
+    public static MutualInformation get(Configuration conf) {
+        return get(conf.get("mi-estimator", "kernel"), conf);
+    }
+
+    /**
+     * The first n values, rotated by shift.
+     */
+    static double[] rotate(float[] values, int shift, int n) {
+        double[] array = new double[n];
+        int j = shift % n;
+        for (int i = 0; i < n; i++) {
+            array[i] = values[j];
+            if (++j == n) j = 0;
+        }
+        return array;
+    }
+}
@@ -0,0 +1,247 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.standard_techniques;
+
+import java.util.Arrays;
+
+/**
+ * Series of the spatial units of both datasets on a common time axis (the
+ * union of their times), for the spatial permutation tests: the values of
+ * each dataset are a matrix with a row per spatial unit (NaN where the
+ * unit has no value), so pairing units of both datasets does not merge
+ * their times again.
+ *
+ * The mean and the sum of squares of each row are computed once. Two
+ * complete rows (with a non-NaN value at every time) are correlated with a single
+ * product over the time axis; other pairs through the index arrays of
+ * their common times, with StreamingPearson.
+ *
+ * The matrices are only built if they have at most MAX_CELLS cells and at
+ * least MIN_DENSITY of them have a value (e.g., not for hourly GRID
+ * series, or for series with few common times); otherwise init returns
+ * false, and the pairs must be aligned one by one (AlignedSeries.align).
+ */
+public class SpatialSeries {
+
+    // largest matrix of a dataset (64 MB), and smallest fraction of its cells with a value
+    public static final long MAX_CELLS = 1L << 24;
+    public static final double MIN_DENSITY = 0.25;
+
+    int nbRows = 0;
+    int nbTimes = 0;
+    int[] times = new int[0];
+
+    // spatial unit of each row, and row of each spatial unit (-1 for none)
+    int[] units = new int[0];
+    int[] rowOf = new int[0];
+
+    // values of the first (0) and second (1) dataset: row r is
+    //   values[d][r * nbTimes], ..., values[d][(r+1) * nbTimes - 1]
+    float[][] values = {new float[0], new float[0]};
+    boolean[][] complete = {new boolean[0], new boolean[0]};
+    double[][] mean = {new double[0], new double[0]};
+    double[][] sumSquares = {new double[0], new double[0]};
+
+    // common times of the last pair (their positions in the matrices,
+    // if the pair was not complete)
+    int count = 0;
+    int[] index1 = new int[0];
+    int[] index2 = new int[0];
+
+    StreamingPearson pearson = new StreamingPearson();
+
+    /**
+     * Fills the matrices with the first nbRows (sorted) series of both
+     * datasets, series[r][0] and series[r][1], of spatial unit units[r];
+     * returns false (and keeps no series) if the matrices would be too
+     * large or too sparse.
+     */
+    public boolean init(AlignedSeries[][] series, int[] units, int nbRows) {
+
+        // clearing the rows of the previous series
+        for (int r = 0; r < this.nbRows; r++)
+            rowOf[this.units[r]] = -1;
+        this.nbRows = 0;
+
+        // time axis
+        int total = 0;
+        for (int r = 0; r < nbRows; r++)
+            total += series[r][0].size + series[r][1].size;
+        int[] allTimes = new int[total];
+        int k = 0;
+        for (int r = 0; r < nbRows; r++) {
+            for (int d = 0; d < 2; d++) {
+                System.arraycopy(series[r][d].times, 0, allTimes, k, series[r][d].size);
+                k += series[r][d].size;
+            }
+        }
+        Arrays.sort(allTimes);
+        int nbAllTimes = 0;
+        for (int i = 0; i < total; i++) {
+            if ((nbAllTimes == 0) || (allTimes[i] != allTimes[nbAllTimes-1]))
+                allTimes[nbAllTimes++] = allTimes[i];
+        }
+        long allCells = ((long) nbRows) * nbAllTimes;
+        if ((allCells > MAX_CELLS) || (total < MIN_DENSITY * 2 * allCells))
+            return false;
+        times = allTimes;
+        nbTimes = nbAllTimes;
+
+        this.nbRows = nbRows;
+        if (this.units.length < nbRows)
+            this.units = new int[nbRows];
+        int maxUnit = -1;
+        for (int r = 0; r < nbRows; r++) {
+            this.units[r] = units[r];
+            maxUnit = Math.max(maxUnit, units[r]);
+        }
+        if (rowOf.length <= maxUnit) {
+            int length = rowOf.length;
+            rowOf = Arrays.copyOf(rowOf, maxUnit + 1);
+            Arrays.fill(rowOf, length, rowOf.length, -1);
+        }
+        for (int r = 0; r < nbRows; r++)
+            rowOf[units[r]] = r;
+
+        if (index1.length < nbTimes) {
+            index1 = new int[nbTimes];
+            index2 = new int[nbTimes];
+        }
+
+        for (int d = 0; d < 2; d++) {
+            int cells = (int) allCells;
+            if (values[d].length < cells)
+                values[d] = new float[cells];
+            if (complete[d].length < nbRows) {
+                complete[d] = new boolean[nbRows];
+                mean[d] = new double[nbRows];
+                sumSquares[d] = new double[nbRows];
+            }
+            Arrays.fill(values[d], 0, cells, Float.NaN);
+            for (int r = 0; r < nbRows; r++) {
+                AlignedSeries s = series[r][d];
+                int offset = r * nbTimes;
+                int t = 0;
+                int defined = 0;
+                for (int i = 0; i < s.size; i++) {
+                    while (times[t] < s.times[i]) t++;
+                    values[d][offset + t] = s.values[i];
+                    if (!Float.isNaN(s.values[i])) defined++;
+                }
+                complete[d][r] = (defined == nbTimes);
+                if (complete[d][r])
+                    rowStats(d, r);
+            }
+        }
+        return true;
+    }
+
+    private void rowStats(int d, int r) {
+        float[] v = values[d];
+        int offset = r * nbTimes;
+        double sum = 0;
+        for (int t = 0; t < nbTimes; t++)
+            sum += v[offset + t];
+        double m = sum / nbTimes;
+        double ss = 0;
+        for (int t = 0; t < nbTimes; t++) {
+            double dev = v[offset + t] - m;
+            ss += dev * dev;
+        }
+        mean[d][r] = m;
+        sumSquares[d][r] = ss;
+    }
+
+    public int nbRows() {
+        return nbRows;
+    }
+
+    public int nbTimes() {
+        return nbTimes;
+    }
+
+    public int unit(int row) {
+        return units[row];
+    }
+
+    /**
+     * Row of a spatial unit, or -1 if it has no series.
+     */
+    public int row(int unit) {
+        if ((unit < 0) || (unit >= rowOf.length))
+            return -1;
+        return rowOf[unit];
+    }
+
+    /**
+     * Pearson's correlation of row1 of the first dataset and row2 of the
+     * second one on their common times (NaN for a constant series, or for
+     * fewer than two common times); their number is then in count.
+     */
+    public double correlation(int row1, int row2) {
+        if (complete[0][row1] && complete[1][row2]) {
+            count = nbTimes;
+            if (nbTimes < 2)
+                return Double.NaN;
+            double ss1 = sumSquares[0][row1];
+            double ss2 = sumSquares[1][row2];
+            if ((ss1 < 10 * Double.MIN_VALUE) || (ss2 == 0))
+                return Double.NaN;
+            float[] v1 = values[0];
+            float[] v2 = values[1];
+            double m1 = mean[0][row1];
+            double m2 = mean[1][row2];
+            int offset1 = row1 * nbTimes;
+            int offset2 = row2 * nbTimes;
+            double sum = 0;
+            for (int t = 0; t < nbTimes; t++)
+                sum += (v1[offset1 + t] - m1) * (v2[offset2 + t] - m2);
+            double r = sum / Math.sqrt(ss1 * ss2);
+            return Math.max(-1, Math.min(1, r));
+        }
+
+        float[] v1 = values[0];
+        float[] v2 = values[1];
+        int offset1 = row1 * nbTimes;
+        int offset2 = row2 * nbTimes;
+        int n = 0;
+        for (int t = 0; t < nbTimes; t++) {
+            if (!Float.isNaN(v1[offset1 + t]) && !Float.isNaN(v2[offset2 + t])) {
+                index1[n] = offset1 + t;
+                index2[n] = offset2 + t;
+                n++;
+            }
+        }
+        count = n;
+        if (n < 2)
+            return Double.NaN;
+        return pearson.correlation(v1, index1, v2, index2, n);
+    }
+
+    /**
+     * Number of common times of the last correlation.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Mean correlation of the pairs (r, targets[r]) with at least two
+     * common times, for the rows r of the first dataset with a target
+     * (-1 for none); 0 if there is no such pair.
+     */
+    public double meanCorrelation(int[] targets) {
+        double sum = 0;
+        int pairs = 0;
+        for (int r = 0; r < nbRows; r++) {
+            int target = targets[r];
+            if (target < 0) continue;
+            double corr = correlation(r, target);
+            if (count < 2) continue;
+            sum += corr;
+            pairs++;
+        }
+        return (pairs == 0) ? 0 : sum/pairs;
+    }
+}
@@ -0,0 +1,91 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.standard_techniques;
+
+/**
+ * Pearson's correlation in a single pass, with Welford's updates of the
+ * means and of the sums of squares and products (as SimpleRegression of
+ * commons-math, which PearsonsCorrelation uses).
+ *
+ * The correlation of a constant series is NaN, as in commons-math. The
+ * correlation methods read the values through a rotation or through
+ * index arrays, so the permutations of the Monte Carlo test do not copy
+ * the series; an instance can be reused without allocating.
+ */
+public class StreamingPearson {
+
+    int n = 0;
+    double meanX = 0;
+    double meanY = 0;
+    double sumXX = 0;
+    double sumYY = 0;
+    double sumXY = 0;
+
+    public void reset() {
+        n = 0;
+        meanX = 0;
+        meanY = 0;
+        sumXX = 0;
+        sumYY = 0;
+        sumXY = 0;
+    }
+
+    public void add(double x, double y) {
+        n++;
+        double dx = x - meanX;
+        double dy = y - meanY;
+        meanX += dx / n;
+        meanY += dy / n;
+        sumXX += dx * (x - meanX);
+        sumYY += dy * (y - meanY);
+        sumXY += dx * (y - meanY);
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    /**
+     * Correlation of the values added since the last reset.
+     */
+    public double correlation() {
+        if ((n < 2) || (sumXX < 10 * Double.MIN_VALUE) || (sumYY == 0))
+            return Double.NaN;
+        double r = sumXY / Math.sqrt(sumXX * sumYY);
+        return Math.max(-1, Math.min(1, r));
+    }
+
+    /**
+     * Correlation of the first n values of x and y.
+     */
+    public double correlation(float[] x, float[] y, int n) {
+        return correlation(x, 0, y, 0, n);
+    }
+
+    /**
+     * Correlation of the first n values of x and y, rotated by shiftX and
+     * shiftY (i.e., pairing x[(shiftX + i) % n] and y[(shiftY + i) % n]).
+     */
+    public double correlation(float[] x, int shiftX, float[] y, int shiftY, int n) {
+        reset();
+        int i = shiftX % n;
+        int j = shiftY % n;
+        for (int k = 0; k < n; k++) {
+            add(x[i], y[j]);
+            if (++i == n) i = 0;
+            if (++j == n) j = 0;
+        }
+        return correlation();
+    }
+
+    /**
+     * Correlation of x[indexX[i]] and y[indexY[i]], for i < n.
+     */
+    public double correlation(float[] x, int[] indexX, float[] y, int[] indexY, int n) {
+        reset();
+        for (int k = 0; k < n; k++)
+            add(x[indexX[k]], y[indexY[k]]);
+        return correlation();
+    }
+}
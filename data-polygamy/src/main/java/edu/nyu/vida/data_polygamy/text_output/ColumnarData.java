@@ -0,0 +1,339 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.text_output;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.FloatArrayWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.SpatioTemporalWritable;
+import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
+
+/**
+ * Exports the index (as FeatureData) and the aggregates (as
+ * ScalarFunctionData) of datasets to columnar files (ColumnarFile),
+ * streaming their SequenceFiles in a single process, without a job.
+ *
+ * The file of a dataset is <index-columnar or aggregates-columnar>/
+ * <dataset>/data, with the properties "content" (index or aggregates)
+ * and "dataset", and the columns:
+ *   - index: dataset, attribute, temporal_resolution, spatial_resolution,
+ *     spatial, is_outlier (0 or 1), start, end, length, and events (the
+ *     2-bit codes of TopologyTimeSeriesWritable, packed 4 per byte);
+ *   - aggregates: temporal, spatial, dataset, temporal_resolution,
+ *     spatial_resolution, and one FLOAT column per aggregate (value0,
+ *     value1, ...).
+ */
+public class ColumnarData {
+
+    public static final String[] indexColumns = {"dataset", "attribute", "temporal_resolution",
+        "spatial_resolution", "spatial", "is_outlier", "start", "end", "length", "events"};
+    public static final byte[] indexTypes = {ColumnarFile.INT, ColumnarFile.INT, ColumnarFile.INT,
+        ColumnarFile.INT, ColumnarFile.INT, ColumnarFile.INT, ColumnarFile.INT, ColumnarFile.INT,
+        ColumnarFile.INT, ColumnarFile.BYTES};
+
+    public static final String[] aggregatesKeyColumns = {"temporal", "spatial", "dataset",
+        "temporal_resolution", "spatial_resolution"};
+
+    /**
+     * SequenceFiles under dir, in the order of their paths.
+     */
+    static ArrayList<Path> sequenceFiles(FileSystem fs, Path dir) throws IOException {
+        ArrayList<Path> files = new ArrayList<Path>();
+        for (FileStatus status : fs.listStatus(dir)) {
+            Path path = status.getPath();
+            if (path.getName().startsWith("_") || path.getName().startsWith(".")) continue;
+            if (status.isDirectory())
+                files.addAll(sequenceFiles(fs, path));
+            else
+                files.add(path);
+        }
+        Collections.sort(files, new Comparator<Path>() {
+            public int compare(Path p1, Path p2) {
+                return p1.toString().compareTo(p2.toString());
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Writes the index files under input to the columnar file output;
+     * returns the number of rows.
+     */
+    public static long exportIndex(Configuration conf, FileSystem fs, Path input, Path output,
+            String dataset, int blockRows) throws IOException {
+
+        ColumnarFile.Writer writer = new ColumnarFile.Writer(fs, output, indexColumns, indexTypes, blockRows);
+        writer.setProperty("content", "index");
+        writer.setProperty("dataset", dataset);
+
+        long rows = 0;
+        AttributeResolutionWritable key = new AttributeResolutionWritable();
+        TopologyTimeSeriesWritable value = new TopologyTimeSeriesWritable();
+        for (Path file : sequenceFiles(fs, input)) {
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+            while (reader.next(key, value)) {
+                writer.setInt(0, key.getDataset());
+                writer.setInt(1, key.getAttribute());
+                writer.setInt(2, key.getTemporalResolution());
+                writer.setInt(3, key.getSpatialResolution());
+                writer.setInt(4, value.getSpatial());
+                writer.setInt(5, (value.getIsOutlier()) ? 1 : 0);
+                writer.setInt(6, value.getStart());
+                writer.setInt(7, value.getEnd());
+                writer.setInt(8, value.getLength());
+                writer.setBytes(9, value.getCodes(0, value.getLength()));
+                writer.endRow();
+                rows++;
+            }
+            reader.close();
+        }
+        writer.close();
+        return rows;
+    }
+
+    /**
+     * Writes the aggregate files under input to the columnar file output;
+     * returns the number of rows.
+     */
+    public static long exportAggregates(Configuration conf, FileSystem fs, Path input, Path output,
+            String dataset, int blockRows) throws IOException {
+
+        ColumnarFile.Writer writer = null;
+        int nbKeys = aggregatesKeyColumns.length;
+        int nbValues = 0;
+
+        long rows = 0;
+        SpatioTemporalWritable key = new SpatioTemporalWritable();
+        FloatArrayWritable value = new FloatArrayWritable();
+        for (Path file : sequenceFiles(fs, input)) {
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+            while (reader.next(key, value)) {
+                float[] values = value.get();
+                if (writer == null) {
+                    // the number of aggregates is the one of the first record
+                    nbValues = values.length;
+                    writer = aggregatesWriter(fs, output, dataset, nbValues, blockRows);
+                }
+                if (values.length != nbValues) {
+                    System.out.println("Something went wrong... Records of " + dataset
+                            + " have different numbers of aggregates");
+                    System.exit(-1);
+                }
+                writer.setInt(0, key.getTemporal());
+                writer.setInt(1, key.getSpatial());
+                writer.setInt(2, key.getDataset());
+                writer.setInt(3, key.getTemporalResolution());
+                writer.setInt(4, key.getSpatialResolution());
+                for (int i = 0; i < nbValues; i++)
+                    writer.setFloat(nbKeys + i, values[i]);
+                writer.endRow();
+                rows++;
+            }
+            reader.close();
+        }
+        if (writer == null)
+            writer = aggregatesWriter(fs, output, dataset, 0, blockRows);
+        writer.close();
+        return rows;
+    }
+
+    private static ColumnarFile.Writer aggregatesWriter(FileSystem fs, Path output, String dataset,
+            int nbValues, int blockRows) throws IOException {
+        int nbKeys = aggregatesKeyColumns.length;
+        String[] names = Arrays.copyOf(aggregatesKeyColumns, nbKeys + nbValues);
+        byte[] types = new byte[nbKeys + nbValues];
+        for (int i = 0; i < nbValues; i++) {
+            names[nbKeys + i] = "value" + i;
+            types[nbKeys + i] = ColumnarFile.FLOAT;
+        }
+        ColumnarFile.Writer writer = new ColumnarFile.Writer(fs, output, names, types, blockRows);
+        writer.setProperty("content", "aggregates");
+        writer.setProperty("dataset", dataset);
+        return writer;
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) throws IOException {
+
+        Options options = new Options();
+
+        Option forceOption = new Option("f", "force", false, "force the output "
+                + "even if files already exist");
+        forceOption.setRequired(false);
+        options.addOption(forceOption);
+
+        Option gOption = new Option("g", "group", true, "set group of datasets for which the output"
+                + " will be generated");
+        gOption.setRequired(true);
+        gOption.setArgName("GROUP");
+        gOption.setArgs(Option.UNLIMITED_VALUES);
+        options.addOption(gOption);
+
+        Option typeOption = new Option("t", "type", true, "data to export: index, aggregates, "
+                + "or both (default)");
+        typeOption.setRequired(false);
+        typeOption.setArgName("TYPE");
+        typeOption.setArgs(1);
+        options.addOption(typeOption);
+
+        Option blockOption = new Option("br", "block-rows", true, "number of rows per block "
+                + "(default: " + ColumnarFile.DEFAULT_BLOCK_ROWS + ")");
+        blockOption.setRequired(false);
+        blockOption.setArgName("ROWS");
+        blockOption.setArgs(1);
+        options.addOption(blockOption);
+
+        Option s3Option = new Option("s3", "s3", false, "data on Amazon S3");
+        s3Option.setRequired(false);
+        options.addOption(s3Option);
+
+        Option awsAccessKeyIdOption = new Option("aws_id", "aws-id", true, "aws access key id; "
+                + "this is required if the execution is on aws");
+        awsAccessKeyIdOption.setRequired(false);
+        awsAccessKeyIdOption.setArgName("AWS-ACCESS-KEY-ID");
+        awsAccessKeyIdOption.setArgs(1);
+        options.addOption(awsAccessKeyIdOption);
+
+        Option awsSecretAccessKeyOption = new Option("aws_key", "aws-id", true, "aws secrect access key; "
+                + "this is required if the execution is on aws");
+        awsSecretAccessKeyOption.setRequired(false);
+        awsSecretAccessKeyOption.setArgName("AWS-SECRET-ACCESS-KEY");
+        awsSecretAccessKeyOption.setArgs(1);
+        options.addOption(awsSecretAccessKeyOption);
+
+        Option bucketOption = new Option("b", "s3-bucket", true, "bucket on s3; "
+                + "this is required if the execution is on aws");
+        bucketOption.setRequired(false);
+        bucketOption.setArgName("S3-BUCKET");
+        bucketOption.setArgs(1);
+        options.addOption(bucketOption);
+
+        Option helpOption = new Option("h", "help", false, "display this message");
+        helpOption.setRequired(false);
+        options.addOption(helpOption);
+
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            formatter.printHelp("hadoop jar data-polygamy.jar " +
+                    "edu.nyu.vida.data_polygamy.text_output.ColumnarData", options, true);
+            System.exit(0);
+        }
+
+        if (cmd.hasOption("h")) {
+            formatter.printHelp("hadoop jar data-polygamy.jar " +
+                    "edu.nyu.vida.data_polygamy.text_output.ColumnarData", options, true);
+            System.exit(0);
+        }
+
+        boolean s3 = cmd.hasOption("s3");
+        String s3bucket = "";
+        String awsAccessKeyId = "";
+        String awsSecretAccessKey = "";
+
+        if (s3) {
+            if ((!cmd.hasOption("aws_id")) || (!cmd.hasOption("aws_key")) ||
+                    (!cmd.hasOption("b"))) {
+                System.out.println("Arguments 'aws_id', 'aws_key', and 'b'"
+                        + " are mandatory if execution is on AWS.");
+                formatter.printHelp("hadoop jar data-polygamy.jar " +
+                        "edu.nyu.vida.data_polygamy.text_output.ColumnarData", options, true);
+                System.exit(0);
+            }
+            s3bucket = cmd.getOptionValue("b");
+            awsAccessKeyId = cmd.getOptionValue("aws_id");
+            awsSecretAccessKey = cmd.getOptionValue("aws_key");
+        }
+
+        String type = cmd.hasOption("t") ? cmd.getOptionValue("t") : "both";
+        if (!Arrays.asList("index", "aggregates", "both").contains(type)) {
+            System.out.println("Invalid type: " + type + ". It should be index, aggregates, or both.");
+            System.exit(0);
+        }
+        boolean index = !type.equals("aggregates");
+        boolean aggregates = !type.equals("index");
+        int blockRows = cmd.hasOption("br") ? Integer.parseInt(cmd.getOptionValue("br"))
+                : ColumnarFile.DEFAULT_BLOCK_ROWS;
+        boolean removeExistingFiles = cmd.hasOption("f");
+
+        Configuration conf = new Configuration();
+        FileSystem fs = null;
+        String dir = "";
+        if (s3) {
+            conf.set("fs.s3.awsAccessKeyId", awsAccessKeyId);
+            conf.set("fs.s3.awsSecretAccessKey", awsSecretAccessKey);
+            conf.set("bucket", s3bucket);
+            fs = FileSystem.get(new Path(s3bucket).toUri(), conf);
+            dir = s3bucket;
+        } else {
+            fs = FileSystem.get(conf);
+            dir = fs.getHomeDirectory() + "/";
+        }
+
+        for (String dataset : cmd.getOptionValues("g")) {
+
+            if (index) {
+                if (FrameworkUtils.searchIndex(dataset, conf, s3).length == 0)
+                    System.out.println("No index found for " + dataset + ".");
+                else
+                    export(conf, fs, new Path(dir + FrameworkUtils.indexDir + "/" + dataset),
+                            new Path(dir + FrameworkUtils.indexColumnarDir + "/" + dataset + "/data"),
+                            dataset, true, blockRows, removeExistingFiles);
+            }
+
+            if (aggregates) {
+                if (FrameworkUtils.searchAggregates(dataset, conf, s3).length == 0)
+                    System.out.println("No aggregates found for " + dataset + ".");
+                else
+                    export(conf, fs, new Path(dir + FrameworkUtils.aggregatesDir + "/" + dataset),
+                            new Path(dir + FrameworkUtils.aggregatesColumnarDir + "/" + dataset + "/data"),
+                            dataset, false, blockRows, removeExistingFiles);
+            }
+        }
+
+        if (s3)
+            fs.close();
+    }
+
+    private static void export(Configuration conf, FileSystem fs, Path input, Path output, String dataset,
+            boolean index, int blockRows, boolean removeExistingFiles) throws IOException {
+
+        if (fs.exists(output) && !removeExistingFiles) {
+            System.out.println(output + " already exists.");
+            System.out.println("Use -f in the beginning of the command line to force the computation.");
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        long rows = (index) ? exportIndex(conf, fs, input, output, dataset, blockRows)
+                : exportAggregates(conf, fs, input, output, dataset, blockRows);
+        System.out.println(((index) ? "index" : "aggregates") + "-to-columnar\t" + dataset + "\t" + rows
+                + "\t" + fs.getFileStatus(output).getLen() + "\t" + (System.currentTimeMillis() - start));
+    }
+}
@@ -0,0 +1,556 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.text_output;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Self-describing columnar file of typed columns (INT, FLOAT and BYTES),
+ * written in blocks of rows.
+ *
+ * In each block, every column is a chunk with its own encoding, the
+ * smallest of:
+ *   - PLAIN: 4 bytes per value (INT and FLOAT), or a variable-length
+ *     size and the bytes of each value (BYTES);
+ *   - DELTA (INT): the first value and the differences between
+ *     consecutive values, as variable-length integers;
+ *   - DICTIONARY (INT and FLOAT): up to 256 distinct values, and one
+ *     byte per row with the position of its value (none if the chunk is
+ *     constant).
+ * The footer has the properties of the file (e.g., its content and
+ * dataset), the name and type of the columns and, for each block, its
+ * number of rows and the offset, size, encoding and minimum and maximum
+ * (of the values, or of the sizes for BYTES; NaN is ignored) of its
+ * chunks; it ends with its own offset and the magic number. Readers can
+ * skip blocks with these statistics, and only read the chunks of the
+ * columns they need.
+ */
+public class ColumnarFile {
+
+    public static final int MAGIC = 0x44504346; // DPCF
+    public static final int VERSION = 1;
+    public static final int DEFAULT_BLOCK_ROWS = 65536;
+
+    public static final byte INT = 0;
+    public static final byte FLOAT = 1;
+    public static final byte BYTES = 2;
+
+    public static final byte PLAIN = 0;
+    public static final byte DELTA = 1;
+    public static final byte DICTIONARY = 2;
+
+    static final int MAX_DICTIONARY = 256;
+    static final int HASH_BITS = 10;
+
+    /**
+     * Chunk of a column in a block.
+     */
+    public static class Chunk {
+        public long offset;
+        public int size;
+        public byte encoding;
+        // INT values, float bits, or sizes of BYTES values
+        long min;
+        long max;
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(offset);
+            out.writeInt(size);
+            out.writeByte(encoding);
+            out.writeLong(min);
+            out.writeLong(max);
+        }
+
+        void readFields(DataInputStream in) throws IOException {
+            offset = in.readLong();
+            size = in.readInt();
+            encoding = in.readByte();
+            min = in.readLong();
+            max = in.readLong();
+        }
+    }
+
+    /**
+     * Writes the rows of a columnar file: set every column of a row, then
+     * call endRow.
+     */
+    public static class Writer {
+
+        private FSDataOutputStream out;
+        private String[] names;
+        private byte[] types;
+        private int blockRows;
+        private LinkedHashMap<String,String> properties = new LinkedHashMap<String,String>();
+
+        // values of the current block
+        private int[][] ints;
+        private float[][] floats;
+        private byte[][][] bytes;
+        private int rows = 0;
+
+        private ArrayList<Integer> blockSizes = new ArrayList<Integer>();
+        private ArrayList<Chunk[]> blocks = new ArrayList<Chunk[]>();
+
+        // hash set of the distinct values of a chunk
+        private int[] hashKeys = new int[1 << HASH_BITS];
+        private boolean[] hashUsed = new boolean[1 << HASH_BITS];
+
+        private ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream();
+        private DataOutputStream chunk = new DataOutputStream(chunkBytes);
+
+        public Writer(FileSystem fs, Path file, String[] names, byte[] types) throws IOException {
+            this(fs, file, names, types, DEFAULT_BLOCK_ROWS);
+        }
+
+        public Writer(FileSystem fs, Path file, String[] names, byte[] types, int blockRows)
+                throws IOException {
+            if (names.length != types.length) {
+                System.out.println("Something went wrong... Number of names should match number of types");
+                System.exit(-1);
+            }
+            this.names = names;
+            this.types = types;
+            this.blockRows = blockRows;
+            ints = new int[names.length][];
+            floats = new float[names.length][];
+            bytes = new byte[names.length][][];
+            for (int c = 0; c < names.length; c++) {
+                switch (types[c]) {
+                case INT:
+                    ints[c] = new int[blockRows];
+                    break;
+                case FLOAT:
+                    floats[c] = new float[blockRows];
+                    break;
+                default:
+                    bytes[c] = new byte[blockRows][];
+                    break;
+                }
+            }
+            out = fs.create(file, true);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        public void setProperty(String key, String value) {
+            properties.put(key, value);
+        }
+
+        public void setInt(int column, int value) {
+            ints[column][rows] = value;
+        }
+
+        public void setFloat(int column, float value) {
+            floats[column][rows] = value;
+        }
+
+        public void setBytes(int column, byte[] value) {
+            bytes[column][rows] = value;
+        }
+
+        public void endRow() throws IOException {
+            if (++rows == blockRows)
+                writeBlock();
+        }
+
+        private void writeBlock() throws IOException {
+            if (rows == 0) return;
+            Chunk[] chunks = new Chunk[names.length];
+            for (int c = 0; c < names.length; c++) {
+                chunkBytes.reset();
+                Chunk chunkInfo = new Chunk();
+                switch (types[c]) {
+                case INT:
+                    encodeInts(ints[c], rows, chunkInfo);
+                    break;
+                case FLOAT:
+                    encodeFloats(floats[c], rows, chunkInfo);
+                    break;
+                default:
+                    encodeBytes(bytes[c], rows, chunkInfo);
+                    Arrays.fill(bytes[c], 0, rows, null);
+                    break;
+                }
+                chunk.flush();
+                chunkInfo.offset = out.getPos();
+                chunkInfo.size = chunkBytes.size();
+                chunkBytes.writeTo(out);
+                chunks[c] = chunkInfo;
+            }
+            blocks.add(chunks);
+            blockSizes.add(rows);
+            rows = 0;
+        }
+
+        private void encodeInts(int[] values, int n, Chunk info) throws IOException {
+            int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+            long deltaSize = 0;
+            for (int i = 0; i < n; i++) {
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+                long delta = (i == 0) ? values[0] : ((long) values[i]) - values[i-1];
+                deltaSize += WritableUtils.getVIntSize(delta);
+            }
+            info.min = min;
+            info.max = max;
+
+            int[] dictionary = dictionary(values, n);
+            long dictionarySize = Long.MAX_VALUE;
+            if (dictionary != null) {
+                dictionarySize = WritableUtils.getVIntSize(dictionary.length)
+                        + ((dictionary.length > 1) ? n : 0);
+                for (int v : dictionary)
+                    dictionarySize += WritableUtils.getVIntSize(v);
+            }
+            long plainSize = 4L * n;
+
+            if ((dictionarySize <= deltaSize) && (dictionarySize <= plainSize)) {
+                info.encoding = DICTIONARY;
+                WritableUtils.writeVInt(chunk, dictionary.length);
+                for (int v : dictionary)
+                    WritableUtils.writeVInt(chunk, v);
+                if (dictionary.length > 1) {
+                    for (int i = 0; i < n; i++)
+                        chunk.writeByte(Arrays.binarySearch(dictionary, values[i]));
+                }
+            } else if (deltaSize < plainSize) {
+                info.encoding = DELTA;
+                WritableUtils.writeVLong(chunk, values[0]);
+                for (int i = 1; i < n; i++)
+                    WritableUtils.writeVLong(chunk, ((long) values[i]) - values[i-1]);
+            } else {
+                info.encoding = PLAIN;
+                for (int i = 0; i < n; i++)
+                    chunk.writeInt(values[i]);
+            }
+        }
+
+        private void encodeFloats(float[] values, int n, Chunk info) throws IOException {
+            float min = Float.NaN, max = Float.NaN;
+            int[] bits = new int[n];
+            for (int i = 0; i < n; i++) {
+                float v = values[i];
+                bits[i] = Float.floatToIntBits(v);
+                if (Float.isNaN(v)) continue;
+                if (Float.isNaN(min) || (v < min)) min = v;
+                if (Float.isNaN(max) || (v > max)) max = v;
+            }
+            info.min = Float.floatToIntBits(min);
+            info.max = Float.floatToIntBits(max);
+
+            int[] dictionary = dictionary(bits, n);
+            if ((dictionary != null) && (1 + 4 * dictionary.length + ((dictionary.length > 1) ? n : 0) < 4L * n)) {
+                info.encoding = DICTIONARY;
+                WritableUtils.writeVInt(chunk, dictionary.length);
+                for (int v : dictionary)
+                    chunk.writeInt(v);
+                if (dictionary.length > 1) {
+                    for (int i = 0; i < n; i++)
+                        chunk.writeByte(Arrays.binarySearch(dictionary, bits[i]));
+                }
+            } else {
+                info.encoding = PLAIN;
+                for (int i = 0; i < n; i++)
+                    chunk.writeFloat(values[i]);
+            }
+        }
+
+        private void encodeBytes(byte[][] values, int n, Chunk info) throws IOException {
+            int min = Integer.MAX_VALUE, max = 0;
+            info.encoding = PLAIN;
+            for (int i = 0; i < n; i++) {
+                byte[] v = (values[i] == null) ? new byte[0] : values[i];
+                min = Math.min(min, v.length);
+                max = Math.max(max, v.length);
+                WritableUtils.writeVInt(chunk, v.length);
+                chunk.write(v);
+            }
+            info.min = min;
+            info.max = max;
+        }
+
+        /**
+         * Sorted distinct values, or null if there are more than
+         * MAX_DICTIONARY of them (found with a small hash set, so that
+         * columns with many values are rejected early).
+         */
+        private int[] dictionary(int[] values, int n) {
+            Arrays.fill(hashUsed, false);
+            int distinct = 0;
+            for (int i = 0; i < n; i++) {
+                int v = values[i];
+                int h = (v * 0x9E3779B9) >>> (32 - HASH_BITS);
+                while (hashUsed[h] && (hashKeys[h] != v))
+                    h = (h + 1) & (hashKeys.length - 1);
+                if (!hashUsed[h]) {
+                    if (++distinct > MAX_DICTIONARY)
+                        return null;
+                    hashUsed[h] = true;
+                    hashKeys[h] = v;
+                }
+            }
+            int[] dictionary = new int[distinct];
+            int k = 0;
+            for (int h = 0; h < hashKeys.length; h++) {
+                if (hashUsed[h])
+                    dictionary[k++] = hashKeys[h];
+            }
+            Arrays.sort(dictionary);
+            return dictionary;
+        }
+
+        public void close() throws IOException {
+            writeBlock();
+            long footer = out.getPos();
+            out.writeInt(properties.size());
+            for (Entry<String,String> entry : properties.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+            out.writeInt(names.length);
+            for (int c = 0; c < names.length; c++) {
+                out.writeUTF(names[c]);
+                out.writeByte(types[c]);
+            }
+            out.writeInt(blocks.size());
+            for (int b = 0; b < blocks.size(); b++) {
+                out.writeInt(blockSizes.get(b));
+                for (Chunk chunkInfo : blocks.get(b))
+                    chunkInfo.write(out);
+            }
+            out.writeLong(footer);
+            out.writeInt(MAGIC);
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the footer of a columnar file, and then the chunks on demand.
+     */
+    public static class Reader {
+
+        private FSDataInputStream in;
+        private LinkedHashMap<String,String> properties = new LinkedHashMap<String,String>();
+        private String[] names;
+        private byte[] types;
+        private int[] blockRows;
+        private Chunk[][] chunks;
+        private long nbRows = 0;
+
+        public Reader(FileSystem fs, Path file) throws IOException {
+            long length = fs.getFileStatus(file).getLen();
+            in = fs.open(file);
+            if ((length < 20) || (in.readInt() != MAGIC)) {
+                in.close();
+                throw new IOException("Not a columnar file: " + file);
+            }
+            if (in.readInt() != VERSION) {
+                in.close();
+                throw new IOException("Unsupported version of columnar file: " + file);
+            }
+            in.seek(length - 12);
+            long footer = in.readLong();
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("Truncated columnar file: " + file);
+            }
+
+            byte[] footerBytes = new byte[(int) (length - 12 - footer)];
+            in.seek(footer);
+            in.readFully(footerBytes);
+            DataInputStream f = new DataInputStream(new ByteArrayInputStream(footerBytes));
+            int nbProperties = f.readInt();
+            for (int i = 0; i < nbProperties; i++)
+                properties.put(f.readUTF(), f.readUTF());
+            int nbColumns = f.readInt();
+            names = new String[nbColumns];
+            types = new byte[nbColumns];
+            for (int c = 0; c < nbColumns; c++) {
+                names[c] = f.readUTF();
+                types[c] = f.readByte();
+            }
+            int nbBlocks = f.readInt();
+            blockRows = new int[nbBlocks];
+            chunks = new Chunk[nbBlocks][nbColumns];
+            for (int b = 0; b < nbBlocks; b++) {
+                blockRows[b] = f.readInt();
+                nbRows += blockRows[b];
+                for (int c = 0; c < nbColumns; c++) {
+                    chunks[b][c] = new Chunk();
+                    chunks[b][c].readFields(f);
+                }
+            }
+        }
+
+        public String getProperty(String key) {
+            return properties.get(key);
+        }
+
+        public LinkedHashMap<String,String> getProperties() {
+            return properties;
+        }
+
+        public int getNbColumns() {
+            return names.length;
+        }
+
+        public String getColumnName(int column) {
+            return names[column];
+        }
+
+        public byte getColumnType(int column) {
+            return types[column];
+        }
+
+        /**
+         * Position of the column with the given name, or -1.
+         */
+        public int getColumn(String name) {
+            for (int c = 0; c < names.length; c++) {
+                if (names[c].equals(name))
+                    return c;
+            }
+            return -1;
+        }
+
+        public int getNbBlocks() {
+            return blockRows.length;
+        }
+
+        public int getBlockRows(int block) {
+            return blockRows[block];
+        }
+
+        public long getNbRows() {
+            return nbRows;
+        }
+
+        public Chunk getChunk(int block, int column) {
+            return chunks[block][column];
+        }
+
+        public int getIntMin(int block, int column) {
+            return (int) chunks[block][column].min;
+        }
+
+        public int getIntMax(int block, int column) {
+            return (int) chunks[block][column].max;
+        }
+
+        /**
+         * Minimum of the values of a FLOAT chunk (NaN if all of them are).
+         */
+        public float getFloatMin(int block, int column) {
+            return Float.intBitsToFloat((int) chunks[block][column].min);
+        }
+
+        public float getFloatMax(int block, int column) {
+            return Float.intBitsToFloat((int) chunks[block][column].max);
+        }
+
+        /**
+         * Minimum size of the values of a BYTES chunk.
+         */
+        public int getSizeMin(int block, int column) {
+            return (int) chunks[block][column].min;
+        }
+
+        public int getSizeMax(int block, int column) {
+            return (int) chunks[block][column].max;
+        }
+
+        private DataInputStream read(int block, int column, byte type) throws IOException {
+            if (types[column] != type)
+                throw new IOException("Column " + names[column] + " has type " + types[column]);
+            Chunk chunk = chunks[block][column];
+            byte[] data = new byte[chunk.size];
+            synchronized (this) {
+                in.seek(chunk.offset);
+                in.readFully(data);
+            }
+            return new DataInputStream(new ByteArrayInputStream(data));
+        }
+
+        public int[] readInts(int block, int column) throws IOException {
+            DataInputStream data = read(block, column, INT);
+            int n = blockRows[block];
+            int[] values = new int[n];
+            switch (chunks[block][column].encoding) {
+            case DICTIONARY:
+                int[] dictionary = new int[WritableUtils.readVInt(data)];
+                for (int i = 0; i < dictionary.length; i++)
+                    dictionary[i] = WritableUtils.readVInt(data);
+                if (dictionary.length == 1)
+                    Arrays.fill(values, dictionary[0]);
+                else {
+                    for (int i = 0; i < n; i++)
+                        values[i] = dictionary[data.readUnsignedByte()];
+                }
+                break;
+            case DELTA:
+                long value = 0;
+                for (int i = 0; i < n; i++) {
+                    value += WritableUtils.readVLong(data);
+                    values[i] = (int) value;
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++)
+                    values[i] = data.readInt();
+                break;
+            }
+            return values;
+        }
+
+        public float[] readFloats(int block, int column) throws IOException {
+            DataInputStream data = read(block, column, FLOAT);
+            int n = blockRows[block];
+            float[] values = new float[n];
+            if (chunks[block][column].encoding == DICTIONARY) {
+                float[] dictionary = new float[WritableUtils.readVInt(data)];
+                for (int i = 0; i < dictionary.length; i++)
+                    dictionary[i] = Float.intBitsToFloat(data.readInt());
+                if (dictionary.length == 1)
+                    Arrays.fill(values, dictionary[0]);
+                else {
+                    for (int i = 0; i < n; i++)
+                        values[i] = dictionary[data.readUnsignedByte()];
+                }
+            } else {
+                for (int i = 0; i < n; i++)
+                    values[i] = data.readFloat();
+            }
+            return values;
+        }
+
+        public byte[][] readBytes(int block, int column) throws IOException {
+            DataInputStream data = read(block, column, BYTES);
+            int n = blockRows[block];
+            byte[][] values = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                values[i] = new byte[WritableUtils.readVInt(data)];
+                data.readFully(values[i]);
+            }
+            return values;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -28,6 +28,8 @@ import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -1304,6 +1306,170 @@ public class FrameworkUtils {
 
     }
     
+    /**
+     * Map output key of the index job: the attribute and resolutions of
+     * AttributeResolutionWritable (serialized in the same way), followed by
+     * the temporal and spatial values of the record, so that the values of
+     * an attribute reach the reducer ordered by time. The job groups the
+     * keys with GroupingComparator (attribute and resolutions only); the
+     * hash code also ignores the time and space, so that the default
+     * partitioner sends all the values of an attribute to the same reducer.
+     */
+    public static class AttributeResolutionTemporalWritable
+        implements WritableComparable<AttributeResolutionTemporalWritable> {
+
+        private int attribute;
+        private int spatialResolution;
+        private int temporalResolution;
+        private int dataset;
+        private int temporal;
+        private int spatial;
+        
+        public AttributeResolutionTemporalWritable() {
+            this.attribute = -1;
+            this.spatialResolution = -1;
+            this.temporalResolution = -1;
+            this.dataset = -1;
+            this.temporal = -1;
+            this.spatial = -1;
+        }
+        
+        public AttributeResolutionTemporalWritable(int attribute,
+                int spatialResolution, int temporalResolution,
+                int dataset, int temporal, int spatial) {
+            this.attribute = attribute;
+            this.spatialResolution = spatialResolution;
+            this.temporalResolution = temporalResolution;
+            this.dataset = dataset;
+            this.temporal = temporal;
+            this.spatial = spatial;
+        }
+        
+        public int getAttribute() {
+            return attribute;
+        }
+        
+        public int getSpatialResolution() {
+            return this.spatialResolution;
+        }
+        
+        public int getTemporalResolution() {
+            return this.temporalResolution;
+        }
+        
+        public int getDataset() {
+            return this.dataset;
+        }
+        
+        public int getTemporal() {
+            return this.temporal;
+        }
+        
+        public int getSpatial() {
+            return this.spatial;
+        }
+        
+        public AttributeResolutionWritable getAttributeResolution() {
+            return new AttributeResolutionWritable(attribute, spatialResolution,
+                    temporalResolution, dataset);
+        }
+        
+        @Override
+        public String toString() {
+            return String.valueOf(dataset) + "," +  String.valueOf(attribute) + "," +
+                    String.valueOf(temporalResolution) + "," + String.valueOf(spatialResolution) + "," +
+                    String.valueOf(temporal) + "," + String.valueOf(spatial);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            this.attribute = in.readInt();
+            this.spatialResolution = in.readInt();
+            this.temporalResolution = in.readInt();
+            this.dataset = in.readInt();
+            this.temporal = in.readInt();
+            this.spatial = in.readInt();
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(this.attribute);
+            out.writeInt(this.spatialResolution);
+            out.writeInt(this.temporalResolution);
+            out.writeInt(this.dataset);
+            out.writeInt(this.temporal);
+            out.writeInt(this.spatial);
+        }
+
+        @Override
+        public int compareTo(AttributeResolutionTemporalWritable arg0) {
+            return ComparisonChain.start()
+                    .compare(this.attribute, arg0.getAttribute())
+                    .compare(this.spatialResolution, arg0.getSpatialResolution())
+                    .compare(this.temporalResolution, arg0.getTemporalResolution())
+                    .compare(this.dataset, arg0.getDataset())
+                    .compare(this.temporal, arg0.getTemporal())
+                    .compare(this.spatial, arg0.getSpatial())
+                    .result();
+        }
+        
+        @Override
+        public int hashCode() {
+            // same as AttributeResolutionWritable
+            return Objects.hashCode(this.attribute,
+                    this.spatialResolution, this.temporalResolution,
+                    this.dataset);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof AttributeResolutionTemporalWritable))
+                return false;
+            return (this.compareTo((AttributeResolutionTemporalWritable) o) == 0) ? true : false;
+        }
+        
+        /**
+         * Sort comparator on the serialized keys (same order as compareTo).
+         */
+        public static class SortComparator extends WritableComparator {
+            
+            public SortComparator() {
+                super(AttributeResolutionTemporalWritable.class);
+            }
+            
+            @Override
+            public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+                return compareInts(b1, s1, b2, s2, 6);
+            }
+        }
+        
+        /**
+         * Grouping comparator on the serialized keys: one reduce call per
+         * attribute and resolutions.
+         */
+        public static class GroupingComparator extends WritableComparator {
+            
+            public GroupingComparator() {
+                super(AttributeResolutionTemporalWritable.class);
+            }
+            
+            @Override
+            public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+                return compareInts(b1, s1, b2, s2, 4);
+            }
+        }
+        
+        static int compareInts(byte[] b1, int s1, byte[] b2, int s2, int n) {
+            for (int i = 0; i < n; i++) {
+                int v1 = WritableComparator.readInt(b1, s1 + 4*i);
+                int v2 = WritableComparator.readInt(b2, s2 + 4*i);
+                if (v1 != v2)
+                    return (v1 < v2) ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+    
     public static class PairAttributeWritable implements WritableComparable<PairAttributeWritable> {
 
         private int firstAttribute;
@@ -1449,6 +1615,313 @@ public class FrameworkUtils {
 
     }
     
+    /**
+     * Key of the grouped relationship plan: all the attributes of a pair
+     * of datasets at a given resolution go to the same reduce call.
+     */
+    public static class DatasetPairWritable implements WritableComparable<DatasetPairWritable> {
+
+        private int firstDataset;
+        private int secondDataset;
+        
+        private int spatialResolution;
+        private int temporalResolution;
+        private boolean isOutlier;
+        
+        public DatasetPairWritable() {
+            this.firstDataset = -1;
+            this.secondDataset = -1;
+            
+            this.spatialResolution = -1;
+            this.temporalResolution = -1;
+            this.isOutlier = false;
+        }
+        
+        public DatasetPairWritable(int firstDataset, int secondDataset,
+                int spatialResolution, int temporalResolution, boolean isOutlier) {
+            this.firstDataset = firstDataset;
+            this.secondDataset = secondDataset;
+            this.spatialResolution = spatialResolution;
+            this.temporalResolution = temporalResolution;
+            this.isOutlier = isOutlier;
+        }
+        
+        public int getFirstDataset() {
+            return firstDataset;
+        }
+        
+        public int getSecondDataset() {
+            return secondDataset;
+        }
+        
+        public int getSpatialResolution() {
+            return spatialResolution;
+        }
+        
+        public int getTemporalResolution() {
+            return temporalResolution;
+        }
+        
+        public boolean getIsOutlier() {
+            return isOutlier;
+        }
+        
+        @Override
+        public String toString() {
+            return String.valueOf(firstDataset) + "," + String.valueOf(secondDataset) + "," +
+                    String.valueOf(spatialResolution) + "," + String.valueOf(temporalResolution) + "," +
+                    String.valueOf(isOutlier);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            // first dataset
+            this.firstDataset = in.readInt();
+            
+            // second dataset
+            this.secondDataset = in.readInt();
+            
+            // spatial resolution
+            this.spatialResolution = in.readInt();
+            
+            // temporal resolution
+            this.temporalResolution = in.readInt();
+            
+            // outlier info
+            this.isOutlier = in.readBoolean();
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            // first dataset
+            out.writeInt(this.firstDataset);
+            
+            // second dataset
+            out.writeInt(this.secondDataset);
+            
+            // spatial resolution
+            out.writeInt(this.spatialResolution);
+            
+            // temporal resolution
+            out.writeInt(this.temporalResolution);
+            
+            // outlier info
+            out.writeBoolean(this.isOutlier);
+        }
+
+        @Override
+        public int compareTo(DatasetPairWritable arg0) {
+            return ComparisonChain.start()
+                    .compare(this.firstDataset, arg0.getFirstDataset())
+                    .compare(this.secondDataset, arg0.getSecondDataset())
+                    .compare(this.spatialResolution, arg0.getSpatialResolution())
+                    .compare(this.temporalResolution, arg0.getTemporalResolution())
+                    .compare(this.isOutlier, arg0.getIsOutlier())
+                    .result();
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(this.firstDataset, this.secondDataset,
+                    this.spatialResolution, this.temporalResolution, this.isOutlier);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DatasetPairWritable))
+                return false;
+            return (this.compareTo((DatasetPairWritable) o) == 0) ? true : false;
+        }
+
+    }
+    
+    /**
+     * Event series of one attribute, as sent by the grouped relationship plan.
+     */
+    public static class AttributeTimeSeriesWritable implements WritableComparable<AttributeTimeSeriesWritable> {
+
+        private int attribute;
+        private TopologyTimeSeriesWritable timeSeries;
+        
+        public AttributeTimeSeriesWritable() {
+            this.attribute = -1;
+            this.timeSeries = new TopologyTimeSeriesWritable();
+        }
+        
+        public AttributeTimeSeriesWritable(int attribute, TopologyTimeSeriesWritable timeSeries) {
+            this.attribute = attribute;
+            this.timeSeries = timeSeries;
+        }
+        
+        public int getAttribute() {
+            return attribute;
+        }
+        
+        public TopologyTimeSeriesWritable getTimeSeries() {
+            return timeSeries;
+        }
+        
+        @Override
+        public String toString() {
+            return String.valueOf(attribute) + "," + timeSeries.toString();
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            // attribute
+            this.attribute = in.readInt();
+            
+            // time series
+            this.timeSeries.readFields(in);
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            // attribute
+            out.writeInt(this.attribute);
+            
+            // time series
+            this.timeSeries.write(out);
+        }
+
+        @Override
+        public int compareTo(AttributeTimeSeriesWritable arg0) {
+            return ComparisonChain.start()
+                    .compare(this.attribute, arg0.getAttribute())
+                    .compare(this.timeSeries, arg0.getTimeSeries())
+                    .result();
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(this.attribute, this.timeSeries);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof AttributeTimeSeriesWritable))
+                return false;
+            return (this.compareTo((AttributeTimeSeriesWritable) o) == 0) ? true : false;
+        }
+
+    }
+    
+    /**
+     * Relationship between two attributes, as written by the binary
+     * output of the relationship job: the pair of attributes, the score,
+     * the strength, the p-value and the event counts of the relationship,
+     * in the order of the text output.
+     */
+    public static class RelationshipWritable implements WritableComparable<RelationshipWritable> {
+
+        public static final int NB_COUNTS = 11;
+        
+        private PairAttributeWritable pair;
+        private float score;
+        private float strength;
+        private float pValue;
+        private float[] counts;
+        
+        public RelationshipWritable() {
+            this.pair = new PairAttributeWritable();
+            this.score = 0;
+            this.strength = 0;
+            this.pValue = 1;
+            this.counts = new float[NB_COUNTS];
+        }
+        
+        public RelationshipWritable(PairAttributeWritable pair, float score, float strength,
+                float pValue, float[] counts) {
+            this.pair = pair;
+            this.score = score;
+            this.strength = strength;
+            this.pValue = pValue;
+            this.counts = counts;
+        }
+        
+        public PairAttributeWritable getPair() {
+            return pair;
+        }
+        
+        public float getScore() {
+            return score;
+        }
+        
+        public float getStrength() {
+            return strength;
+        }
+        
+        public float getPValue() {
+            return pValue;
+        }
+        
+        /**
+         * Matched events, matched positive events, matched negative events,
+         * then the pairs of event types (pos/non, neg/non, non/pos, non/neg,
+         * pos/pos, neg/neg, pos/neg, neg/pos).
+         */
+        public float[] getCounts() {
+            return counts;
+        }
+        
+        @Override
+        public String toString() {
+            String output = pair.toString() + "," + pair.getSpatialResolution() + ","
+                    + pair.getTemporalResolution() + "\t" + score + "," + strength + "," + pValue;
+            for (int i = 0; i < NB_COUNTS; i++)
+                output += "," + counts[i];
+            return output;
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            // pair of attributes
+            this.pair.readFields(in);
+            
+            // score, strength and p-value
+            this.score = in.readFloat();
+            this.strength = in.readFloat();
+            this.pValue = in.readFloat();
+            
+            // event counts
+            for (int i = 0; i < NB_COUNTS; i++)
+                this.counts[i] = in.readFloat();
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            // pair of attributes
+            this.pair.write(out);
+            
+            // score, strength and p-value
+            out.writeFloat(this.score);
+            out.writeFloat(this.strength);
+            out.writeFloat(this.pValue);
+            
+            // event counts
+            for (int i = 0; i < NB_COUNTS; i++)
+                out.writeFloat(this.counts[i]);
+        }
+
+        @Override
+        public int compareTo(RelationshipWritable arg0) {
+            return this.pair.compareTo(arg0.getPair());
+        }
+        
+        @Override
+        public int hashCode() {
+            return this.pair.hashCode();
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RelationshipWritable))
+                return false;
+            return (this.compareTo((RelationshipWritable) o) == 0) ? true : false;
+        }
+
+    }
+    
     public static class TemporalFloatWritable implements WritableComparable<TemporalFloatWritable> {
 
         private int temporal;
@@ -1857,10 +2330,24 @@ public class FrameworkUtils {
     }
     
     public static class TopologyTimeSeriesWritable implements WritableComparable<TopologyTimeSeriesWritable> {
+        
+        /*
+         * Event series only take the values nonEvent, positiveEvent and
+         * negativeEvent, so they are kept with 2 bits per time step.
+         * On write, the series is stored either packed or as runs of
+         * equal events, whichever is smaller; the length field carries
+         * a negative marker for these, while a non-negative length
+         * denotes the previous one byte per time step format.
+         */
+        public static final int PACKED = -1;
+        public static final int RUN_LENGTH = -2;
+        
+        private static final byte[] codeToEvent = {0, nonEvent, positiveEvent, negativeEvent};
 
         private int spatial;
         private int dataset;
         private byte[] timeSeries;
+        private int length;
         private int start;
         private int end;
         private boolean isOutlier;
@@ -1869,6 +2356,7 @@ public class FrameworkUtils {
             this.spatial = 0;
             this.dataset = 0;
             this.timeSeries = new byte[0];
+            this.length = 0;
             this.start = 0;
             this.end = 0;
             this.isOutlier = false;
@@ -1877,7 +2365,8 @@ public class FrameworkUtils {
         public TopologyTimeSeriesWritable(TopologyTimeSeriesWritable object) {
             this.spatial = object.getSpatial();
             this.dataset = object.getDataset();
-            this.timeSeries = Arrays.copyOf(object.getTimeSeries(), object.getTimeSeries().length);
+            this.timeSeries = Arrays.copyOf(object.timeSeries, object.timeSeries.length);
+            this.length = object.getLength();
             this.start = object.getStart();
             this.end = object.getEnd();
             this.isOutlier = object.getIsOutlier();
@@ -1892,12 +2381,69 @@ public class FrameworkUtils {
                 boolean isOutlier) {
             this.spatial = spatial;
             this.dataset = dataset;
-            this.timeSeries = timeSeries;
+            this.timeSeries = pack(timeSeries);
+            this.length = timeSeries.length;
             this.start = start;
             this.end = end;
             this.isOutlier = isOutlier;
         }
         
+        private static int eventToCode(byte event) {
+            switch(event) {
+            case 0:
+                return 0;
+            case nonEvent:
+                return 1;
+            case positiveEvent:
+                return 2;
+            case negativeEvent:
+                return 3;
+            default:
+                System.out.println("Something went wrong... Invalid event value " + event);
+                System.exit(-1);
+            }
+            return 0;
+        }
+        
+        private static byte[] pack(byte[] events) {
+            byte[] packed = new byte[(events.length + 3) >> 2];
+            for (int i = 0; i < events.length; i++)
+                packed[i >> 2] |= eventToCode(events[i]) << ((i & 3) << 1);
+            return packed;
+        }
+        
+        private int getCode(int i) {
+            return getCode(timeSeries, i);
+        }
+        
+        /**
+         * 2-bit code of time step i in a packed series.
+         */
+        public static int getCode(byte[] codes, int i) {
+            return (codes[i >> 2] >> ((i & 3) << 1)) & 3;
+        }
+        
+        /**
+         * Event corresponding to a 2-bit code.
+         */
+        public static byte getEvent(int code) {
+            return codeToEvent[code];
+        }
+        
+        /**
+         * Packed codes of the time steps from (inclusive) to to (exclusive),
+         * starting at position 0.
+         */
+        public byte[] getCodes(int from, int to) {
+            int n = to - from;
+            if ((from & 3) == 0)
+                return Arrays.copyOfRange(timeSeries, from >> 2, (to + 3) >> 2);
+            byte[] codes = new byte[(n + 3) >> 2];
+            for (int i = 0; i < n; i++)
+                codes[i >> 2] |= getCode(from + i) << ((i & 3) << 1);
+            return codes;
+        }
+        
         public int getSpatial() {
             return this.spatial;
         }
@@ -1906,8 +2452,28 @@ public class FrameworkUtils {
             return this.dataset;
         }
         
+        /**
+         * Number of time steps in the series.
+         */
+        public int getLength() {
+            return this.length;
+        }
+        
+        /**
+         * Event (nonEvent, positiveEvent or negativeEvent) at time step i.
+         */
+        public byte get(int i) {
+            return codeToEvent[getCode(i)];
+        }
+        
+        /**
+         * Unpacked copy of the series, one byte per time step.
+         */
         public byte[] getTimeSeries() {
-            return this.timeSeries;
+            byte[] events = new byte[length];
+            for (int i = 0; i < length; i++)
+                events[i] = get(i);
+            return events;
         }
         
         public int getStart() {
@@ -1927,13 +2493,13 @@ public class FrameworkUtils {
             
             int timeSteps = getTimeSteps(tempRes, start, end);
             DateTime startTime = new DateTime(((long)start)*1000, DateTimeZone.UTC);
-            if (timeSteps != timeSeries.length) {
+            if (timeSteps != length) {
                 System.out.println("Something is wrong... Wrong time steps length");
                 System.exit(-1);
             }
             for (int i = 0; i < timeSteps; i++) {
                 long time = addTimeSteps(tempRes, i, startTime);
-                result += String.valueOf(time) + "," + timeSeries[i] + ",";
+                result += String.valueOf(time) + "," + get(i) + ",";
             }
             return result.substring(0, result.length()-1);
         }
@@ -1942,8 +2508,8 @@ public class FrameworkUtils {
         public String toString() {
             String result = dataset + "," + spatial + "," + isOutlier + ",";
             result += String.valueOf(start) + "," + String.valueOf(end) + ","; 
-            for (int i = 0; i < timeSeries.length; i++)
-                result += timeSeries[i] + ",";
+            for (int i = 0; i < length; i++)
+                result += get(i) + ",";
             return result.substring(0, result.length()-1);
         }
 
@@ -1951,9 +2517,32 @@ public class FrameworkUtils {
         public void readFields(DataInput in) throws IOException {
             spatial = in.readInt();
             dataset = in.readInt();
-            timeSeries = new byte[in.readInt()];
-            for (int i = 0; i < timeSeries.length; i++)
-                timeSeries[i] = in.readByte();
+            int format = in.readInt();
+            if (format == PACKED) {
+                length = in.readInt();
+                timeSeries = new byte[(length + 3) >> 2];
+                in.readFully(timeSeries);
+            } else if (format == RUN_LENGTH) {
+                length = in.readInt();
+                timeSeries = new byte[(length + 3) >> 2];
+                int nbRuns = in.readInt();
+                int pos = 0;
+                for (int r = 0; r < nbRuns; r++) {
+                    int code = in.readByte();
+                    int run = WritableUtils.readVInt(in);
+                    if (code != 0) {
+                        for (int i = pos; i < pos + run; i++)
+                            timeSeries[i >> 2] |= code << ((i & 3) << 1);
+                    }
+                    pos += run;
+                }
+            } else {
+                // previous format: one byte per time step
+                byte[] events = new byte[format];
+                in.readFully(events);
+                timeSeries = pack(events);
+                length = format;
+            }
             start = in.readInt();
             end = in.readInt();
             isOutlier = in.readBoolean();
@@ -1963,9 +2552,49 @@ public class FrameworkUtils {
         public void write(DataOutput out) throws IOException {
             out.writeInt(spatial);
             out.writeInt(dataset);
-            out.writeInt(timeSeries.length);
-            for (int i = 0; i < timeSeries.length; i++)
-                out.writeByte(timeSeries[i]);
+            
+            int packedSize = (length + 3) >> 2;
+            int nbRuns = 0;
+            int runLengthSize = 4;
+            int code = -1;
+            int run = 0;
+            for (int i = 0; (i < length) && (runLengthSize < packedSize); i++) {
+                int c = getCode(i);
+                if (c != code) {
+                    if (run > 0)
+                        runLengthSize += 1 + WritableUtils.getVIntSize(run);
+                    nbRuns++;
+                    code = c;
+                    run = 0;
+                }
+                run++;
+            }
+            if (run > 0)
+                runLengthSize += 1 + WritableUtils.getVIntSize(run);
+            
+            if (runLengthSize < packedSize) {
+                out.writeInt(RUN_LENGTH);
+                out.writeInt(length);
+                out.writeInt(nbRuns);
+                code = getCode(0);
+                run = 0;
+                for (int i = 0; i < length; i++) {
+                    int c = getCode(i);
+                    if (c != code) {
+                        out.writeByte(code);
+                        WritableUtils.writeVInt(out, run);
+                        code = c;
+                        run = 0;
+                    }
+                    run++;
+                }
+                out.writeByte(code);
+                WritableUtils.writeVInt(out, run);
+            } else {
+                out.writeInt(PACKED);
+                out.writeInt(length);
+                out.write(timeSeries, 0, packedSize);
+            }
             out.writeInt(start);
             out.writeInt(end);
             out.writeBoolean(isOutlier);
@@ -1987,7 +2616,6 @@ public class FrameworkUtils {
             return Objects.hashCode(
                     this.spatial,
                     this.dataset,
-                    this.timeSeries,
                     this.start,
                     this.end,
                     this.isOutlier);
@@ -2667,11 +3295,15 @@ public class FrameworkUtils {
     public static final String preProcessingDir = "pre-processing";
     public static final String aggregatesDir = "aggregates";
     public static final String aggregatesTextDir = "aggregates-text";
+    public static final String aggregatesColumnarDir = "aggregates-columnar";
     public static final String indexDir = "index";
     public static final String indexTextDir = "index-text";
+    public static final String indexColumnarDir = "index-columnar";
     public static final String mergeTreeDir = "mergetree";
     public static final String relationshipsDir = "relationships";
     public static final String relationshipsIdsDir = "relationships-ids";
+    public static final String profilesDir = "profiles";
+    public static final String pipelineDir = "pipeline";
     public static final String dataDir = "data";
     public static final String thresholdDir = dataDir + "/" + "thresholds";
     public static final String datasetsIndexDir = dataDir + "/" + "datasets";
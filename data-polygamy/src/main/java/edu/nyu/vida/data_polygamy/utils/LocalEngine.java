@@ -0,0 +1,682 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.JobStatus;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Runs a MapReduce job of the pipeline in the current JVM, with its map
+ * and reduce tasks on a pool of threads, instead of submitting it to a
+ * cluster. The job is run with its own input format, mapper, combiner,
+ * partitioner, comparators, reducer, and output format and committer, so
+ * the output files are the same as the ones of the cluster.
+ *
+ * Every map task groups its output by key in hash tables, one per
+ * partition. When the tables of a task reach mapreduce.task.io.sort.mb
+ * megabytes, or when the tables kept in memory by all the tasks would go
+ * over local-memory-mb megabytes, the tables are combined and written to
+ * local files (under local-spill-dir) as runs sorted by key; otherwise
+ * they are kept in memory as sorted runs. Every reduce task merges the
+ * runs of its partition in key order.
+ */
+public class LocalEngine {
+
+    /**
+     * Runs the job with the given number of threads, and returns its
+     * counters; the exceptions of the tasks are thrown again here.
+     */
+    public static Counters run(Job job, int threads)
+            throws IOException, InterruptedException, ClassNotFoundException {
+        return new LocalEngine(job, threads).run();
+    }
+
+    Job job;
+    Configuration conf;
+    int threads;
+    int nbReduces;
+
+    JobID jobId;
+    JobContext jobContext;
+
+    long taskBufferBytes;
+    long memoryLimitBytes;
+    AtomicLong memoryInUse = new AtomicLong(0);
+    File spillDir;
+
+    // runs of every partition, by map task and spill
+    ArrayList<ArrayList<Run>> runs = new ArrayList<ArrayList<Run>>();
+
+    Counters counters = new Counters();
+
+    LocalEngine(Job job, int threads) {
+        this.job = job;
+        this.conf = job.getConfiguration();
+        this.threads = Math.max(1, threads);
+        this.nbReduces = job.getNumReduceTasks();
+
+        this.jobId = new JobID("local" + System.currentTimeMillis(), 1);
+        this.jobContext = new JobContextImpl(conf, jobId);
+
+        this.taskBufferBytes = conf.getLong("mapreduce.task.io.sort.mb", 100) * 1024 * 1024;
+        this.memoryLimitBytes = conf.getLong("local-memory-mb",
+                Runtime.getRuntime().maxMemory() / (2 * 1024 * 1024)) * 1024 * 1024;
+        this.spillDir = new File(conf.get("local-spill-dir", System.getProperty("java.io.tmpdir")));
+
+        for (int i = 0; i < nbReduces; i++)
+            runs.add(new ArrayList<Run>());
+    }
+
+    Counters run() throws IOException, InterruptedException, ClassNotFoundException {
+
+        InputFormat<?,?> inputFormat = ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+        OutputFormat<?,?> outputFormat = ReflectionUtils.newInstance(job.getOutputFormatClass(), conf);
+        outputFormat.checkOutputSpecs(jobContext);
+
+        TaskAttemptContext setupContext = new TaskAttemptContextImpl(conf,
+                new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(), TaskType.JOB_SETUP, 0, 0));
+        OutputCommitter committer = outputFormat.getOutputCommitter(setupContext);
+        committer.setupJob(jobContext);
+
+        List<InputSplit> splits = inputFormat.getSplits(jobContext);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        boolean succeeded = false;
+        try {
+            ArrayList<Callable<Counters>> tasks = new ArrayList<Callable<Counters>>();
+            for (int i = 0; i < splits.size(); i++)
+                tasks.add(new MapTask(i, splits.get(i)));
+            runTasks(pool, tasks);
+
+            if (nbReduces > 0) {
+                tasks.clear();
+                for (int i = 0; i < nbReduces; i++)
+                    tasks.add(new ReduceTask(i));
+                runTasks(pool, tasks);
+            }
+            succeeded = true;
+        } finally {
+            pool.shutdownNow();
+            for (ArrayList<Run> partitionRuns : runs)
+                for (Run r : partitionRuns)
+                    r.delete();
+            if (!succeeded)
+                committer.abortJob(jobContext, JobStatus.State.FAILED);
+        }
+
+        committer.commitJob(jobContext);
+        return counters;
+    }
+
+    void runTasks(ExecutorService pool, ArrayList<Callable<Counters>> tasks)
+            throws IOException, InterruptedException {
+        ArrayList<Future<Counters>> futures = new ArrayList<Future<Counters>>();
+        for (Callable<Counters> task : tasks)
+            futures.add(pool.submit(task));
+        for (Future<Counters> future : futures) {
+            Counters taskCounters;
+            try {
+                taskCounters = future.get();
+            } catch (ExecutionException e) {
+                for (Future<Counters> f : futures)
+                    f.cancel(true);
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof InterruptedException)
+                    throw (InterruptedException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new IOException(cause);
+            }
+            synchronized (counters) {
+                counters.incrAllCounters(taskCounters);
+            }
+        }
+    }
+
+    static StatusReporter reporter(final Counters counters) {
+        return new StatusReporter() {
+            public Counter getCounter(Enum<?> name) { return counters.findCounter(name); }
+            public Counter getCounter(String group, String name) { return counters.findCounter(group, name); }
+            public void progress() {}
+            public float getProgress() { return 0; }
+            public void setStatus(String status) {}
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    RawComparator<Object> sortComparator() {
+        return (RawComparator<Object>) job.getSortComparator();
+    }
+
+    /*
+     * Map output
+     */
+
+    static class Bytes {
+        byte[] b;
+        int hash;
+
+        Bytes(byte[] b) {
+            this.b = b;
+            this.hash = Arrays.hashCode(b);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Bytes) && Arrays.equals(b, ((Bytes) o).b);
+        }
+    }
+
+    /**
+     * The map output of a task for one partition, grouped by key.
+     */
+    static class Table {
+        HashMap<Bytes,ArrayList<byte[]>> values = new HashMap<Bytes,ArrayList<byte[]>>();
+        long bytes = 0;
+
+        void add(byte[] key, byte[] value) {
+            Bytes k = new Bytes(key);
+            ArrayList<byte[]> list = values.get(k);
+            if (list == null) {
+                list = new ArrayList<byte[]>(2);
+                values.put(k, list);
+                bytes += key.length + 48;
+            }
+            list.add(value);
+            bytes += value.length + 24;
+        }
+
+        byte[][] sortedKeys(final RawComparator<Object> comparator) {
+            byte[][] keys = new byte[values.size()][];
+            int i = 0;
+            for (Bytes k : values.keySet())
+                keys[i++] = k.b;
+            Arrays.sort(keys, new Comparator<byte[]>() {
+                public int compare(byte[] k1, byte[] k2) {
+                    return comparator.compare(k1, 0, k1.length, k2, 0, k2.length);
+                }
+            });
+            return keys;
+        }
+    }
+
+    /**
+     * Sorted key-value pairs of a partition, either in memory or in a
+     * local file.
+     */
+    static abstract class Run {
+        // map task and spill, for a deterministic order of the values
+        long order;
+        long bytes;
+
+        byte[] key;
+        byte[] value;
+
+        abstract void open() throws IOException;
+
+        abstract boolean next() throws IOException;
+
+        void close() throws IOException {}
+
+        void delete() {}
+    }
+
+    static class MemoryRun extends Run {
+        byte[][] keys;
+        HashMap<Bytes,ArrayList<byte[]>> values;
+
+        int i;
+        ArrayList<byte[]> current;
+        int j;
+
+        MemoryRun(long order, Table table, byte[][] keys) {
+            this.order = order;
+            this.bytes = table.bytes;
+            this.keys = keys;
+            this.values = table.values;
+        }
+
+        void open() {
+            i = -1;
+            current = null;
+        }
+
+        boolean next() {
+            while ((current == null) || (j >= current.size())) {
+                if (++i >= keys.length)
+                    return false;
+                current = values.get(new Bytes(keys[i]));
+                j = 0;
+            }
+            key = keys[i];
+            value = current.get(j++);
+            return true;
+        }
+    }
+
+    static class SpillRun extends Run {
+        File file;
+        DataInputStream in;
+
+        SpillRun(long order, File file) {
+            this.order = order;
+            this.file = file;
+        }
+
+        void open() throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        }
+
+        boolean next() throws IOException {
+            int length = in.readInt();
+            if (length < 0)
+                return false;
+            key = new byte[length];
+            in.readFully(key);
+            value = new byte[in.readInt()];
+            in.readFully(value);
+            return true;
+        }
+
+        void close() throws IOException {
+            if (in != null)
+                in.close();
+            in = null;
+        }
+
+        void delete() {
+            try {
+                close();
+            } catch (IOException e) {}
+            file.delete();
+        }
+    }
+
+    class MapTask implements Callable<Counters> {
+
+        int index;
+        InputSplit split;
+        int spills = 0;
+
+        Counters taskCounters = new Counters();
+        Table[] tables;
+        long bytes = 0;
+
+        MapTask(int index, InputSplit split) {
+            this.index = index;
+            this.split = split;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        public Counters call() throws Exception {
+
+            Configuration taskConf = new Configuration(conf);
+            TaskAttemptID attemptId = new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(),
+                    TaskType.MAP, index, 0);
+            TaskAttemptContext taskContext = new TaskAttemptContextImpl(taskConf, attemptId,
+                    reporter(taskCounters));
+
+            InputFormat inputFormat = ReflectionUtils.newInstance(job.getInputFormatClass(), taskConf);
+            RecordReader reader = inputFormat.createRecordReader(split, taskContext);
+            reader.initialize(split, taskContext);
+
+            OutputFormat outputFormat = null;
+            OutputCommitter committer = null;
+            RecordWriter writer;
+            if (nbReduces == 0) {
+                // map-only job: the map output is the job output
+                outputFormat = ReflectionUtils.newInstance(job.getOutputFormatClass(), taskConf);
+                committer = outputFormat.getOutputCommitter(taskContext);
+                committer.setupTask(taskContext);
+                writer = outputFormat.getRecordWriter(taskContext);
+            } else {
+                tables = new Table[nbReduces];
+                for (int i = 0; i < nbReduces; i++)
+                    tables[i] = new Table();
+                writer = collector((Partitioner) ReflectionUtils.newInstance(job.getPartitionerClass(), taskConf));
+            }
+
+            Mapper mapper = ReflectionUtils.newInstance(job.getMapperClass(), taskConf);
+            MapContextImpl mapContext = new MapContextImpl(taskConf, attemptId, reader, writer,
+                    committer, reporter(taskCounters), split);
+            mapper.run(new WrappedMapper().getMapContext(mapContext));
+            reader.close();
+
+            if (nbReduces == 0) {
+                writer.close(taskContext);
+                if (committer.needsTaskCommit(taskContext))
+                    committer.commitTask(taskContext);
+                return taskCounters;
+            }
+
+            // the combined tables are kept in memory if they fit
+            combine(taskConf);
+            if (memoryInUse.addAndGet(bytes) > memoryLimitBytes) {
+                memoryInUse.addAndGet(-bytes);
+                spill();
+            } else {
+                RawComparator<Object> comparator = sortComparator();
+                for (int i = 0; i < nbReduces; i++) {
+                    if (tables[i].values.isEmpty()) continue;
+                    Run run = new MemoryRun(order(), tables[i], tables[i].sortedKeys(comparator));
+                    synchronized (runs.get(i)) {
+                        runs.get(i).add(run);
+                    }
+                }
+            }
+            tables = null;
+            return taskCounters;
+        }
+
+        long order() {
+            return ((long) index << 32) | (spills++);
+        }
+
+        RecordWriter<Object,Object> collector(final Partitioner<Object,Object> partitioner) {
+            final Counter outputRecords = taskCounters.findCounter(TaskCounter.MAP_OUTPUT_RECORDS);
+            final Counter outputBytes = taskCounters.findCounter(TaskCounter.MAP_OUTPUT_BYTES);
+            final Configuration taskConf = new Configuration(conf);
+            return new RecordWriter<Object,Object>() {
+                DataOutputBuffer buffer = new DataOutputBuffer();
+                public void write(Object key, Object value) throws IOException {
+                    int partition = (nbReduces == 1) ? 0 : partitioner.getPartition(key, value, nbReduces);
+                    buffer.reset();
+                    ((Writable) key).write(buffer);
+                    byte[] keyBytes = Arrays.copyOf(buffer.getData(), buffer.getLength());
+                    buffer.reset();
+                    ((Writable) value).write(buffer);
+                    byte[] valueBytes = Arrays.copyOf(buffer.getData(), buffer.getLength());
+                    long before = tables[partition].bytes;
+                    tables[partition].add(keyBytes, valueBytes);
+                    bytes += tables[partition].bytes - before;
+                    outputRecords.increment(1);
+                    outputBytes.increment(keyBytes.length + valueBytes.length);
+                    if (bytes > taskBufferBytes) {
+                        try {
+                            combine(taskConf);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        spill();
+                    }
+                }
+                public void close(TaskAttemptContext context) {}
+            };
+        }
+
+        /**
+         * Writes the tables to local files.
+         */
+        void spill() throws IOException {
+            RawComparator<Object> comparator = sortComparator();
+            Counter spilled = taskCounters.findCounter(TaskCounter.SPILLED_RECORDS);
+            for (int i = 0; i < nbReduces; i++) {
+                if (tables[i].values.isEmpty()) continue;
+                byte[][] keys = tables[i].sortedKeys(comparator);
+                File file = File.createTempFile("spill-" + index + "-" + i + "-", ".run", spillDir);
+                file.deleteOnExit();
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(file), 65536));
+                for (byte[] key : keys) {
+                    for (byte[] value : tables[i].values.get(new Bytes(key))) {
+                        out.writeInt(key.length);
+                        out.write(key);
+                        out.writeInt(value.length);
+                        out.write(value);
+                        spilled.increment(1);
+                    }
+                }
+                out.writeInt(-1);
+                out.close();
+                Run run = new SpillRun(order(), file);
+                run.bytes = file.length();
+                synchronized (runs.get(i)) {
+                    runs.get(i).add(run);
+                }
+                tables[i] = new Table();
+            }
+            bytes = 0;
+        }
+
+        /**
+         * Runs the combiner of the job, if any, over every table.
+         */
+        void combine(Configuration taskConf) throws IOException, InterruptedException {
+            RawComparator<Object> comparator = sortComparator();
+            bytes = 0;
+            for (int i = 0; i < nbReduces; i++) {
+                if (!tables[i].values.isEmpty())
+                    tables[i] = combine(taskConf, tables[i], comparator);
+                bytes += tables[i].bytes;
+            }
+        }
+
+        /**
+         * Runs the combiner of the job, if any, over the keys of a table.
+         */
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Table combine(Configuration taskConf, Table table, RawComparator<Object> comparator)
+                throws IOException, InterruptedException {
+
+            Class<? extends Reducer> combinerClass;
+            try {
+                combinerClass = job.getCombinerClass();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            if (combinerClass == null)
+                return table;
+
+            final Table combined = new Table();
+            final Counter outputRecords = taskCounters.findCounter(TaskCounter.COMBINE_OUTPUT_RECORDS);
+            RecordWriter writer = new RecordWriter() {
+                DataOutputBuffer buffer = new DataOutputBuffer();
+                public void write(Object key, Object value) throws IOException {
+                    buffer.reset();
+                    ((Writable) key).write(buffer);
+                    byte[] keyBytes = Arrays.copyOf(buffer.getData(), buffer.getLength());
+                    buffer.reset();
+                    ((Writable) value).write(buffer);
+                    combined.add(keyBytes, Arrays.copyOf(buffer.getData(), buffer.getLength()));
+                    outputRecords.increment(1);
+                }
+                public void close(TaskAttemptContext context) {}
+            };
+
+            MemoryRun run = new MemoryRun(0, table, table.sortedKeys(comparator));
+            run.open();
+            TaskAttemptID attemptId = new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(),
+                    TaskType.MAP, index, 0);
+            Reducer combiner = ReflectionUtils.newInstance(combinerClass, taskConf);
+            ReduceContextImpl context = new ReduceContextImpl(taskConf, attemptId,
+                    iterator(Collections.<Run>singletonList(run), comparator),
+                    new Counters().findCounter("combine", "keys"),
+                    taskCounters.findCounter(TaskCounter.COMBINE_INPUT_RECORDS),
+                    writer, null, reporter(taskCounters), comparator,
+                    job.getMapOutputKeyClass(), job.getMapOutputValueClass());
+            combiner.run(new WrappedReducer().getReducerContext(context));
+            return combined;
+        }
+    }
+
+    /*
+     * Reduce
+     */
+
+    /**
+     * Merges opened runs in key order; runs of earlier map tasks come
+     * first for equal keys.
+     */
+    static RawKeyValueIterator iterator(final List<Run> sources, final RawComparator<Object> comparator)
+            throws IOException {
+        final PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, sources.size()),
+                new Comparator<Run>() {
+            public int compare(Run r1, Run r2) {
+                int c = comparator.compare(r1.key, 0, r1.key.length, r2.key, 0, r2.key.length);
+                return (c != 0) ? c : Long.compare(r1.order, r2.order);
+            }
+        });
+        for (Run r : sources) {
+            if (r.next())
+                queue.add(r);
+            else
+                r.close();
+        }
+        return new RawKeyValueIterator() {
+            DataInputBuffer key = new DataInputBuffer();
+            DataInputBuffer value = new DataInputBuffer();
+            public DataInputBuffer getKey() { return key; }
+            public DataInputBuffer getValue() { return value; }
+            public boolean next() throws IOException {
+                Run r = queue.poll();
+                if (r == null)
+                    return false;
+                key.reset(r.key, r.key.length);
+                value.reset(r.value, r.value.length);
+                if (r.next())
+                    queue.add(r);
+                else
+                    r.close();
+                return true;
+            }
+            public void close() throws IOException {
+                for (Run r : queue)
+                    r.close();
+            }
+            public Progress getProgress() { return new Progress(); }
+        };
+    }
+
+    class ReduceTask implements Callable<Counters> {
+
+        int partition;
+        Counters taskCounters = new Counters();
+
+        ReduceTask(int partition) {
+            this.partition = partition;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        public Counters call() throws Exception {
+
+            ArrayList<Run> sources = runs.get(partition);
+            Collections.sort(sources, new Comparator<Run>() {
+                public int compare(Run r1, Run r2) {
+                    return Long.compare(r1.order, r2.order);
+                }
+            });
+            for (Run r : sources)
+                r.open();
+
+            Configuration taskConf = new Configuration(conf);
+            TaskAttemptID attemptId = new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(),
+                    TaskType.REDUCE, partition, 0);
+            TaskAttemptContext taskContext = new TaskAttemptContextImpl(taskConf, attemptId,
+                    reporter(taskCounters));
+
+            OutputFormat outputFormat = ReflectionUtils.newInstance(job.getOutputFormatClass(), taskConf);
+            OutputCommitter committer = outputFormat.getOutputCommitter(taskContext);
+            committer.setupTask(taskContext);
+            RecordWriter writer = outputFormat.getRecordWriter(taskContext);
+
+            RawKeyValueIterator input = iterator(sources, sortComparator());
+            Reducer reducer = ReflectionUtils.newInstance(job.getReducerClass(), taskConf);
+            ReduceContextImpl context = new ReduceContextImpl(taskConf, attemptId, input,
+                    taskCounters.findCounter(TaskCounter.REDUCE_INPUT_GROUPS),
+                    taskCounters.findCounter(TaskCounter.REDUCE_INPUT_RECORDS),
+                    writer, committer, reporter(taskCounters), job.getGroupingComparator(),
+                    job.getMapOutputKeyClass(), job.getMapOutputValueClass());
+            try {
+                reducer.run(new WrappedReducer().getReducerContext(context));
+                writer.close(taskContext);
+            } finally {
+                input.close();
+            }
+            if (committer.needsTaskCommit(taskContext))
+                committer.commitTask(taskContext);
+
+            // the runs of this partition are not needed anymore
+            for (Run r : sources) {
+                if (r instanceof MemoryRun)
+                    memoryInUse.addAndGet(-r.bytes);
+                r.delete();
+            }
+            sources.clear();
+            return taskCounters;
+        }
+    }
+
+    /**
+     * Counters of a job run by the engine, for the drivers.
+     */
+    public static void printCounters(Counters counters) {
+        for (String group : counters.getGroupNames())
+            for (Counter counter : counters.getGroup(group))
+                System.out.println(counter.getDisplayName() + "\t" + counter.getValue());
+    }
+
+}
@@ -3,15 +3,29 @@
    See file LICENSE for full license details. */
 package edu.nyu.vida.data_polygamy.utils;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.util.ReflectionUtils;
 
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.AttributeResolutionWritable;
@@ -19,8 +33,26 @@ import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.FloatArrayWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.SpatioTemporalWritable;
 import edu.nyu.vida.data_polygamy.utils.FrameworkUtils.TopologyTimeSeriesWritable;
 
+/**
+ * Merges the part files of a job into a single sequence file.
+ *
+ * merge() copies the part files one at a time. parallelMerge() reads up
+ * to a given number of part files at the same time, each into a bounded
+ * queue of batches of raw records, while a single writer appends the
+ * batches (in the same file order as merge()) to a block-compressed
+ * file. Optionally, the writer ends a block every time the key changes,
+ * and writes a sidecar index (toFile + ".index", a sequence file of key
+ * and offset) with the offset of the first record of every key, so a
+ * reader can seek directly to the records of one key (e.g., the series
+ * of one dataset attribute and resolution of the index).
+ */
 public class MergeFiles {
     
+    public static final String indexSuffix = ".index";
+    
+    // records per batch of the queues of parallelMerge()
+    static final int batchRecords = 1024;
+    
     public static <K, V> void merge(Path fromDirectory,
             Path toFile, Class<K> keyClass, Class<V> valueClass) throws IOException {
         
@@ -62,21 +94,299 @@ public class MergeFiles {
         writer.close();
     }
 
+    /**
+     * Raw records of a part file: key and value bytes, one after the other.
+     */
+    static class Batch {
+        DataOutputBuffer data = new DataOutputBuffer();
+        int[] keyStart = new int[batchRecords];
+        int[] keyLength = new int[batchRecords];
+        int[] valueLength = new int[batchRecords];
+        int size = 0;
+        boolean last = false;
+        // the part file could not be read (see the future of its reader)
+        boolean failed = false;
+    }
+    
+    /**
+     * Uncompressed value bytes of a batch, for SequenceFile.Writer.appendRaw().
+     */
+    static class BatchValue implements SequenceFile.ValueBytes {
+        byte[] data;
+        int start;
+        int length;
+        
+        @Override
+        public void writeUncompressedBytes(DataOutputStream outStream)
+                throws IOException {
+            outStream.write(data, start, length);
+        }
+        
+        @Override
+        public void writeCompressedBytes(DataOutputStream outStream)
+                throws IllegalArgumentException, IOException {
+            throw new IllegalArgumentException("Value bytes are not compressed");
+        }
+        
+        @Override
+        public int getSize() {
+            return length;
+        }
+    }
+    
+    /**
+     * Reads the records of a part file into its queue. Records of
+     * uncompressed and block-compressed files are copied as raw bytes;
+     * the ones of record-compressed files are deserialized and written
+     * back, since their raw values are compressed one by one. The queue
+     * always ends with a last batch, marked as failed if the file could
+     * not be read, so the writer never waits for a reader that stopped.
+     */
+    static class PartReader implements Callable<Long> {
+        
+        Configuration conf;
+        Path file;
+        ArrayBlockingQueue<Batch> queue;
+        
+        PartReader(Configuration conf, Path file, ArrayBlockingQueue<Batch> queue) {
+            this.conf = conf;
+            this.file = file;
+            this.queue = queue;
+        }
+        
+        @Override
+        public Long call() throws IOException, InterruptedException {
+            long records = 0;
+            boolean ended = false;
+            SequenceFile.Reader reader = null;
+            try {
+                reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+                boolean raw = !reader.isCompressed() || reader.isBlockCompressed();
+                DataOutputBuffer rawKey = new DataOutputBuffer();
+                SequenceFile.ValueBytes rawValue = reader.createValueBytes();
+                Writable key = (Writable) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+                Writable value = (Writable) ReflectionUtils.newInstance(reader.getValueClass(), conf);
+                
+                Batch batch = new Batch();
+                while (true) {
+                    DataOutputBuffer data = batch.data;
+                    int start = data.getLength();
+                    if (raw) {
+                        rawKey.reset();
+                        if (reader.nextRawKey(rawKey) < 0) break;
+                        data.write(rawKey.getData(), 0, rawKey.getLength());
+                        int valueStart = data.getLength();
+                        reader.nextRawValue(rawValue);
+                        rawValue.writeUncompressedBytes(data);
+                        batch.valueLength[batch.size] = data.getLength() - valueStart;
+                    } else {
+                        if (!reader.next(key, value)) break;
+                        key.write(data);
+                        int valueStart = data.getLength();
+                        value.write(data);
+                        batch.valueLength[batch.size] = data.getLength() - valueStart;
+                    }
+                    batch.keyStart[batch.size] = start;
+                    batch.keyLength[batch.size] = data.getLength() - start
+                            - batch.valueLength[batch.size];
+                    batch.size++;
+                    records++;
+                    if (batch.size == batchRecords) {
+                        queue.put(batch);
+                        batch = new Batch();
+                    }
+                }
+                batch.last = true;
+                queue.put(batch);
+                ended = true;
+            } finally {
+                try {
+                    if (reader != null)
+                        reader.close();
+                } finally {
+                    if (!ended) {
+                        Batch end = new Batch();
+                        end.last = true;
+                        end.failed = true;
+                        queue.put(end);
+                    }
+                }
+            }
+            return records;
+        }
+    }
+    
+    /**
+     * Merges the part files of fromDirectory into toFile, reading up to
+     * threads part files at the same time, with up to queueBatches
+     * batches of records in memory per part file. The output is
+     * block-compressed; if indexKeys is true, every key starts a new
+     * block, and the offsets of the keys are written to the sidecar
+     * index (see loadIndex()). Returns the number of records.
+     */
+    public static <K extends Writable, V extends Writable> long parallelMerge(Path fromDirectory,
+            Path toFile, Class<K> keyClass, Class<V> valueClass,
+            int threads, int queueBatches, boolean indexKeys) throws IOException {
+        
+        Configuration conf = new Configuration();
+        
+        FileSystem fs = FileSystem.get(conf);
+        
+        ArrayList<Path> files = new ArrayList<Path>();
+        for (FileStatus status : fs.listStatus(fromDirectory)) {
+            if (status.isDirectory()) {
+                System.out.println("Skip directory '" + status.getPath().getName() + "'");
+                continue;
+            }
+            Path file = status.getPath();
+            if (file.getName().startsWith("_")) {
+                System.out.println("Skip \"_\"-file '" + file.getName() + "'");
+                continue;
+            }
+            files.add(file);
+        }
+        
+        // part files are submitted in order, so the file being written is
+        //   always being read (or already read), and the readers of the
+        //   next files wait on their queues once these are full
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        ArrayList<ArrayBlockingQueue<Batch>> queues = new ArrayList<ArrayBlockingQueue<Batch>>();
+        ArrayList<Future<Long>> readers = new ArrayList<Future<Long>>();
+        for (Path file : files) {
+            ArrayBlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(Math.max(1, queueBatches));
+            queues.add(queue);
+            readers.add(executor.submit(new PartReader(conf, file, queue)));
+        }
+        
+        SequenceFile.Writer writer = SequenceFile.createWriter(
+                conf,
+                SequenceFile.Writer.file(toFile),
+                SequenceFile.Writer.keyClass(keyClass),
+                SequenceFile.Writer.valueClass(valueClass),
+                SequenceFile.Writer.compression(CompressionType.BLOCK)
+                );
+        SequenceFile.Writer indexWriter = null;
+        if (indexKeys)
+            indexWriter = SequenceFile.createWriter(
+                    conf,
+                    SequenceFile.Writer.file(toFile.suffix(indexSuffix)),
+                    SequenceFile.Writer.keyClass(keyClass),
+                    SequenceFile.Writer.valueClass(LongWritable.class)
+                    );
+        
+        Writable key = (Writable) ReflectionUtils.newInstance(keyClass, conf);
+        LongWritable offset = new LongWritable();
+        DataInputBuffer keyIn = new DataInputBuffer();
+        BatchValue value = new BatchValue();
+        byte[] previousKey = new byte[0];
+        int previousLength = -1;
+        long records = 0;
+        int i = 0;
+        
+        try {
+            for (i = 0; i < files.size(); i++) {
+                while (true) {
+                    Batch batch = queues.get(i).take();
+                    if (batch.failed) {
+                        // throws the ExecutionException of the reader
+                        readers.get(i).get();
+                        throw new IOException("Could not read " + files.get(i));
+                    }
+                    byte[] data = batch.data.getData();
+                    for (int j = 0; j < batch.size; j++) {
+                        int keyStart = batch.keyStart[j];
+                        int keyLength = batch.keyLength[j];
+                        if (indexKeys && (WritableComparator.compareBytes(data, keyStart, keyLength,
+                                previousKey, 0, previousLength) != 0)) {
+                            // a new block starts at the current length
+                            writer.sync();
+                            offset.set(writer.getLength());
+                            keyIn.reset(data, keyStart, keyLength);
+                            key.readFields(keyIn);
+                            indexWriter.append(key, offset);
+                            if (previousKey.length < keyLength)
+                                previousKey = new byte[keyLength];
+                            System.arraycopy(data, keyStart, previousKey, 0, keyLength);
+                            previousLength = keyLength;
+                        }
+                        value.data = data;
+                        value.start = keyStart + keyLength;
+                        value.length = batch.valueLength[j];
+                        writer.appendRaw(data, keyStart, keyLength, value);
+                    }
+                    if (batch.last) break;
+                }
+                records += readers.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not read " + files.get(i), e.getCause());
+        } finally {
+            executor.shutdownNow();
+            writer.close();
+            if (indexWriter != null)
+                indexWriter.close();
+        }
+        
+        return records;
+    }
+    
+    /**
+     * Reads the sidecar index of a file written by parallelMerge(), as a map
+     * of key to the offset of its first record. Keys written more than once
+     * (i.e., spread over part files) map to their first offset.
+     */
+    public static <K extends Writable> HashMap<K, Long> loadIndex(Configuration conf,
+            Path file, Class<K> keyClass) throws IOException {
+        
+        HashMap<K, Long> index = new HashMap<K, Long>();
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                SequenceFile.Reader.file(file.suffix(indexSuffix)));
+        LongWritable offset = new LongWritable();
+        while (true) {
+            K key = ReflectionUtils.newInstance(keyClass, conf);
+            if (!reader.next(key, offset)) break;
+            if (!index.containsKey(key))
+                index.put(key, offset.get());
+        }
+        reader.close();
+        return index;
+    }
+
     public static void main(String[] args) throws IllegalArgumentException, IOException, URISyntaxException {
         String fromDirectory = args[0];
         String toFile = args[1];
         String pipelinePhase = args[2];
         
+        // parallel merge: number of reader threads and of batches per queue
+        int threads = (args.length > 3) ? Integer.parseInt(args[3]) : 0;
+        int queueBatches = (args.length > 4) ? Integer.parseInt(args[4]) : 4;
+        
         if (pipelinePhase.equals("aggregates")) {
-            MergeFiles.merge(new Path(fromDirectory),
-                    new Path(toFile),
-                    SpatioTemporalWritable.class,
-                    FloatArrayWritable.class);
+            if (threads > 0)
+                MergeFiles.parallelMerge(new Path(fromDirectory),
+                        new Path(toFile),
+                        SpatioTemporalWritable.class,
+                        FloatArrayWritable.class,
+                        threads, queueBatches, false);
+            else
+                MergeFiles.merge(new Path(fromDirectory),
+                        new Path(toFile),
+                        SpatioTemporalWritable.class,
+                        FloatArrayWritable.class);
         } else if (pipelinePhase.equals("index")) {
-            MergeFiles.merge(new Path(fromDirectory),
-                    new Path(toFile),
-                    AttributeResolutionWritable.class,
-                    TopologyTimeSeriesWritable.class);
+            if (threads > 0)
+                MergeFiles.parallelMerge(new Path(fromDirectory),
+                        new Path(toFile),
+                        AttributeResolutionWritable.class,
+                        TopologyTimeSeriesWritable.class,
+                        threads, queueBatches, true);
+            else
+                MergeFiles.merge(new Path(fromDirectory),
+                        new Path(toFile),
+                        AttributeResolutionWritable.class,
+                        TopologyTimeSeriesWritable.class);
         } else {
             System.out.println("Invalid phase: " + pipelinePhase);
             System.exit(0);
@@ -0,0 +1,93 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Pairing of spatial units used by the permutation tests: source unit i
+ * is paired with target unit get(i), or with none if get(i) is -1.
+ * The array is reused across repetitions, growing when needed.
+ */
+public class Permutation {
+
+    private int[] targets = new int[0];
+    private int[] shuffled = new int[0];
+    private int size = 0;
+
+    public Permutation() {}
+
+    public Permutation(int size) {
+        reset(size);
+    }
+
+    /**
+     * Resizes the permutation to size units, all of them unpaired.
+     */
+    public void reset(int size) {
+        if (targets.length < size)
+            targets = new int[size];
+        this.size = size;
+        Arrays.fill(targets, 0, size, -1);
+    }
+
+    /**
+     * Random pairing of size units, drawn as Collections.shuffle(list, random)
+     * shuffles the list 0, ..., size-1: unit list.get(k) is paired with unit k.
+     */
+    public void shuffle(int size, Random random) {
+        reset(size);
+        if (shuffled.length < size)
+            shuffled = new int[size];
+        for (int k = 0; k < size; k++)
+            shuffled[k] = k;
+        for (int i = size; i > 1; i--) {
+            int j = random.nextInt(i);
+            int tmp = shuffled[i-1];
+            shuffled[i-1] = shuffled[j];
+            shuffled[j] = tmp;
+        }
+        for (int k = 0; k < size; k++)
+            targets[shuffled[k]] = k;
+    }
+
+    /**
+     * Random toroidal shift of a gridSize x gridSize grid, where cell (i, j)
+     * has id j * gridSize + i: every cell is moved by the same random offset.
+     */
+    public void toroidalShift(int gridSize, Random random) {
+        reset(gridSize*gridSize);
+
+        int x = random.nextInt(gridSize);
+        int y = random.nextInt(gridSize);
+
+        for (int j = 0; j < gridSize; j++) {
+            int newY = (y + j) % gridSize;
+            for (int i = 0; i < gridSize; i++) {
+                int newX = (x + i) % gridSize;
+                targets[j * gridSize + i] = newY * gridSize + newX;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int source) {
+        return targets[source];
+    }
+
+    public void set(int source, int target) {
+        targets[source] = target;
+    }
+
+    /**
+     * Backing array; only the first size() elements are valid.
+     */
+    public int[] getTargets() {
+        return targets;
+    }
+}
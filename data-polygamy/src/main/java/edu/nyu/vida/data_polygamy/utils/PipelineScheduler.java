@@ -0,0 +1,743 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Runs only the stale jobs of the pipeline (pre-processing, scalar
+ * function computation, feature identification, and relationship
+ * computation), instead of relying on the existence checks and the -f
+ * flags of every driver.
+ *
+ * The pipeline is a DAG of jobs, one per pre-processing of a dataset at
+ * a resolution, per dataset for the aggregates and the index (whose
+ * drivers compute all the resolutions of a dataset at once), and per
+ * pair of datasets for the relationships. The fingerprint of a job is a
+ * hash of its driver arguments and of the name, size, and modification
+ * time of every file of its inputs; the fingerprints of the jobs that
+ * succeeded are kept in FrameworkUtils.pipelineDir. A job is stale if
+ * one of its outputs is missing, if its fingerprint changed (e.g., a
+ * month of data was appended to a dataset), or if one of the jobs it
+ * depends on is stale.
+ *
+ * Stale jobs run as soon as their dependencies succeeded, up to a given
+ * number at the same time; jobs of a same stage never run at the same
+ * time, since their drivers share a temporary output directory. The
+ * dependents of a job that failed are skipped.
+ */
+public class PipelineScheduler {
+
+    public static final String stateFile = FrameworkUtils.pipelineDir + "/state";
+
+    /**
+     * A driver execution, identified by its (first) output.
+     */
+    public static class PipelineJob {
+        String id;
+        String stage;
+        String driver;
+        String[] args;
+        ArrayList<String> inputs = new ArrayList<String>();
+        ArrayList<String> outputs = new ArrayList<String>();
+        ArrayList<PipelineJob> dependencies = new ArrayList<PipelineJob>();
+        String reason = "";
+
+        public PipelineJob(String stage, String driver, String[] args, String... outputs) {
+            this.id = outputs[0];
+            this.stage = stage;
+            this.driver = driver;
+            this.args = args;
+            this.outputs.addAll(Arrays.asList(outputs));
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public String getDriver() {
+            return driver;
+        }
+
+        public String[] getArgs() {
+            return args;
+        }
+
+        public ArrayList<String> getInputs() {
+            return inputs;
+        }
+
+        public ArrayList<String> getOutputs() {
+            return outputs;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return id;
+        }
+    }
+
+    /**
+     * Executes a job, returning whether it succeeded.
+     */
+    public interface JobRunner {
+        boolean run(PipelineJob job) throws Exception;
+    }
+
+    /**
+     * Runs the driver of a job in a new process, e.g., with the command
+     * "hadoop jar data-polygamy.jar".
+     */
+    public static class ProcessRunner implements JobRunner {
+
+        String[] command;
+
+        public ProcessRunner(String command) {
+            this.command = command.trim().split("\\s+");
+        }
+
+        @Override
+        public boolean run(PipelineJob job) throws IOException, InterruptedException {
+            ArrayList<String> processArgs = new ArrayList<String>(Arrays.asList(command));
+            processArgs.add(job.driver);
+            processArgs.addAll(Arrays.asList(job.args));
+            Process process = new ProcessBuilder(processArgs).inheritIO().start();
+            return process.waitFor() == 0;
+        }
+    }
+
+    FileSystem fs;
+    Path base;
+    ArrayList<PipelineJob> jobs = new ArrayList<PipelineJob>();
+    HashMap<String, PipelineJob> jobIds = new HashMap<String, PipelineJob>();
+    HashMap<String, String> state = new HashMap<String, String>();
+
+    /**
+     * Pipeline whose files are relative to base (the home directory, or
+     * the S3 bucket).
+     */
+    public PipelineScheduler(FileSystem fs, Path base) throws IOException {
+        this.fs = fs;
+        this.base = base;
+        loadState();
+    }
+
+    Path resolve(String name) {
+        return new Path(base, name);
+    }
+
+    /**
+     * Adds a job, which depends on the jobs already added that write one
+     * of its inputs.
+     */
+    public PipelineJob addJob(PipelineJob job, String... inputs) {
+        for (String input : inputs) {
+            job.inputs.add(input);
+            for (PipelineJob other : jobs) {
+                if (other.outputs.contains(input) && !job.dependencies.contains(other))
+                    job.dependencies.add(other);
+            }
+        }
+        jobs.add(job);
+        jobIds.put(job.id, job);
+        return job;
+    }
+
+    public PipelineJob getJob(String id) {
+        return jobIds.get(id);
+    }
+
+    public ArrayList<PipelineJob> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * State
+     */
+
+    void loadState() throws IOException {
+        Path path = resolve(stateFile);
+        if (!fs.exists(path))
+            return;
+        BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path), Charset.forName("UTF-8")));
+        String line = br.readLine();
+        while (line != null) {
+            String[] keyVal = line.split("\t");
+            if (keyVal.length == 2)
+                state.put(keyVal[0], keyVal[1]);
+            line = br.readLine();
+        }
+        br.close();
+    }
+
+    synchronized void saveState() throws IOException {
+        Path path = resolve(stateFile);
+        Path tmp = resolve(stateFile + ".tmp");
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fs.create(tmp, true), Charset.forName("UTF-8")));
+        for (String id : state.keySet())
+            bw.write(id + "\t" + state.get(id) + "\n");
+        bw.close();
+        fs.delete(path, false);
+        fs.rename(tmp, path);
+    }
+
+    synchronized void record(PipelineJob job, String fingerprint) throws IOException {
+        state.put(job.id, fingerprint);
+        saveState();
+    }
+
+    /**
+     * Fingerprints
+     */
+
+    /**
+     * Hash of the driver arguments of the job, and of the name, size and
+     * modification time of the files of its inputs (skipping the ones
+     * starting with "_" or ".").
+     */
+    public String fingerprint(PipelineJob job) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        update(md5, job.driver);
+        for (String arg : job.args)
+            update(md5, arg);
+        for (String input : job.inputs) {
+            update(md5, input);
+            Path path = resolve(input);
+            if (fs.exists(path))
+                fingerprint(md5, fs.getFileStatus(path), "");
+            else
+                update(md5, "missing");
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md5.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    void fingerprint(MessageDigest md5, FileStatus status, String name) throws IOException {
+        if (status.isDirectory()) {
+            FileStatus[] children = fs.listStatus(status.getPath());
+            String[] names = new String[children.length];
+            HashMap<String, FileStatus> byName = new HashMap<String, FileStatus>();
+            for (int i = 0; i < children.length; i++) {
+                names[i] = children[i].getPath().getName();
+                byName.put(names[i], children[i]);
+            }
+            Arrays.sort(names);
+            for (String child : names) {
+                if (child.startsWith("_") || child.startsWith(".")) continue;
+                fingerprint(md5, byName.get(child), name + "/" + child);
+            }
+        } else {
+            update(md5, name + "\t" + status.getLen() + "\t" + status.getModificationTime());
+        }
+    }
+
+    static void update(MessageDigest md5, String value) {
+        md5.update(value.getBytes(Charset.forName("UTF-8")));
+        md5.update((byte) 0);
+    }
+
+    boolean outputsExist(PipelineJob job) throws IOException {
+        for (String output : job.outputs) {
+            if (!fs.exists(resolve(output)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Planning
+     */
+
+    /**
+     * Returns the stale jobs, in the order they were added (every job
+     * after the jobs it depends on), setting the reason why each job is
+     * stale; if force is true, all the jobs are stale.
+     */
+    public ArrayList<PipelineJob> plan(boolean force) throws IOException {
+        ArrayList<PipelineJob> stale = new ArrayList<PipelineJob>();
+        HashSet<PipelineJob> staleSet = new HashSet<PipelineJob>();
+        for (PipelineJob job : jobs) {
+            job.reason = "";
+            if (force) {
+                job.reason = "forced";
+            } else {
+                for (PipelineJob dependency : job.dependencies) {
+                    if (staleSet.contains(dependency)) {
+                        job.reason = "stale input " + dependency.id;
+                        break;
+                    }
+                }
+                if (job.reason.isEmpty()) {
+                    String previous = state.get(job.id);
+                    if (!outputsExist(job))
+                        job.reason = "missing output";
+                    else if (previous == null)
+                        job.reason = "no fingerprint";
+                    else if (!previous.equals(fingerprint(job)))
+                        job.reason = "inputs changed";
+                }
+            }
+            if (!job.reason.isEmpty()) {
+                stale.add(job);
+                staleSet.add(job);
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * Records the fingerprints of the jobs whose outputs exist, without
+     * running them (e.g., for outputs computed before using the scheduler);
+     * returns the number of jobs recorded.
+     */
+    public int markUpToDate() throws IOException {
+        int marked = 0;
+        for (PipelineJob job : jobs) {
+            if (outputsExist(job)) {
+                state.put(job.id, fingerprint(job));
+                marked++;
+            }
+        }
+        saveState();
+        return marked;
+    }
+
+    /**
+     * Execution
+     */
+
+    /**
+     * Runs the jobs of the plan with up to threads jobs at the same time,
+     * and returns the number of jobs that failed or were skipped.
+     */
+    public int run(ArrayList<PipelineJob> plan, final JobRunner runner, int threads)
+            throws IOException, InterruptedException {
+
+        ArrayList<PipelineJob> pending = new ArrayList<PipelineJob>(plan);
+        HashSet<PipelineJob> inPlan = new HashSet<PipelineJob>(plan);
+        HashSet<PipelineJob> succeeded = new HashSet<PipelineJob>();
+        HashSet<PipelineJob> failed = new HashSet<PipelineJob>();
+        HashSet<String> busyStages = new HashSet<String>();
+        HashMap<Future<Boolean>, PipelineJob> running = new HashMap<Future<Boolean>, PipelineJob>();
+        HashMap<PipelineJob, String> fingerprints = new HashMap<PipelineJob, String>();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        ExecutorCompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(pool);
+
+        try {
+            while (true) {
+                Iterator<PipelineJob> it = pending.iterator();
+                while (it.hasNext() && (running.size() < Math.max(1, threads))) {
+                    final PipelineJob job = it.next();
+                    boolean ready = true;
+                    boolean skip = false;
+                    for (PipelineJob dependency : job.dependencies) {
+                        if (failed.contains(dependency))
+                            skip = true;
+                        else if (inPlan.contains(dependency) && !succeeded.contains(dependency))
+                            ready = false;
+                    }
+                    if (skip) {
+                        System.out.println("Skip " + job.id + ": a job it depends on failed");
+                        failed.add(job);
+                        it.remove();
+                        continue;
+                    }
+                    if (!ready || busyStages.contains(job.stage))
+                        continue;
+
+                    // inputs as they are when the job starts
+                    fingerprints.put(job, fingerprint(job));
+                    busyStages.add(job.stage);
+                    it.remove();
+                    System.out.println("Run " + job.id + " (" + job.reason + ")");
+                    running.put(completion.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            return runner.run(job);
+                        }
+                    }), job);
+                }
+
+                if (running.isEmpty())
+                    break;
+
+                Future<Boolean> future = completion.take();
+                PipelineJob job = running.remove(future);
+                busyStages.remove(job.stage);
+                boolean success;
+                try {
+                    success = future.get() && outputsExist(job);
+                } catch (ExecutionException e) {
+                    System.out.println("Something went wrong... " + job.id + ": " + e.getCause());
+                    success = false;
+                }
+                if (success) {
+                    succeeded.add(job);
+                    record(job, fingerprints.get(job));
+                    System.out.println("Done " + job.id);
+                } else {
+                    failed.add(job);
+                    System.out.println("Failed " + job.id);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return failed.size();
+    }
+
+    /**
+     * Pipeline
+     */
+
+    /**
+     * Adds the jobs of the datasets described in the pipeline file (under
+     * the data directory, one line per pre-processing, with tab-separated
+     * fields):
+     *
+     *   dataset  header  defaults  temporal  spatial  current-spatial
+     *     pre-processing-indices  aggregation-indices
+     *
+     * where the indices are separated by spaces (as in the -i argument
+     * of PreProcessing, and the -g argument of Aggregation). The
+     * relationships are computed for every pair of datasets.
+     */
+    public void addPipeline(String pipelineFile, String[] commonArgs, boolean customThresholds,
+            String[] relationshipArgs, boolean outputIds) throws IOException {
+
+        ArrayList<String> datasets = new ArrayList<String>();
+        HashMap<String, ArrayList<String>> preProcessing = new HashMap<String, ArrayList<String>>();
+        HashMap<String, String[]> aggregationIndexes = new HashMap<String, String[]>();
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                fs.open(resolve(FrameworkUtils.dataDir + "/" + pipelineFile))));
+        String line = br.readLine();
+        while (line != null) {
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                line = br.readLine();
+                continue;
+            }
+            String[] fields = line.split("\t");
+            if (fields.length < 8) {
+                System.out.println("Something went wrong... Invalid pipeline line: " + line);
+                System.exit(-1);
+            }
+            String dataset = fields[0].trim();
+            String spatial = fields[4].trim();
+            String fileName = FrameworkUtils.preProcessingDir + "/" + dataset + "-" + fields[3].trim()
+                    + "-" + spatial.replace("-", "");
+
+            ArrayList<String> args = new ArrayList<String>(Arrays.asList(commonArgs));
+            args.addAll(Arrays.asList("-dn", dataset, "-dh", fields[1].trim(), "-dd", fields[2].trim(),
+                    "-t", fields[3].trim(), "-s", spatial, "-cs", fields[5].trim(), "-i"));
+            args.addAll(Arrays.asList(fields[6].trim().split("\\s+")));
+            addJob(new PipelineJob("pre-processing", "edu.nyu.vida.data_polygamy.pre_processing.PreProcessing",
+                    args.toArray(new String[args.size()]), fileName, fileName + ".aggregates"),
+                    FrameworkUtils.dataDir + "/" + dataset,
+                    FrameworkUtils.dataDir + "/" + fields[1].trim(),
+                    FrameworkUtils.dataDir + "/" + fields[2].trim());
+
+            if (!preProcessing.containsKey(dataset)) {
+                datasets.add(dataset);
+                preProcessing.put(dataset, new ArrayList<String>());
+                aggregationIndexes.put(dataset, fields[7].trim().split("\\s+"));
+            }
+            preProcessing.get(dataset).add(fileName);
+            preProcessing.get(dataset).add(fileName + ".aggregates");
+            line = br.readLine();
+        }
+        br.close();
+
+        for (String dataset : datasets) {
+            ArrayList<String> args = new ArrayList<String>(Arrays.asList(commonArgs));
+            args.addAll(Arrays.asList("-f", "-g", dataset));
+            args.addAll(Arrays.asList(aggregationIndexes.get(dataset)));
+            ArrayList<String> inputs = preProcessing.get(dataset);
+            addJob(new PipelineJob("aggregates", "edu.nyu.vida.data_polygamy.scalar_function_computation.Aggregation",
+                    args.toArray(new String[args.size()]), FrameworkUtils.aggregatesDir + "/" + dataset),
+                    inputs.toArray(new String[inputs.size()]));
+        }
+
+        for (String dataset : datasets) {
+            ArrayList<String> args = new ArrayList<String>(Arrays.asList(commonArgs));
+            args.addAll(Arrays.asList("-f", "-g", dataset));
+            ArrayList<String> inputs = new ArrayList<String>();
+            inputs.add(FrameworkUtils.aggregatesDir + "/" + dataset);
+            if (customThresholds) {
+                args.add("-t");
+                inputs.add(FrameworkUtils.thresholdDir);
+            }
+            addJob(new PipelineJob("index", "edu.nyu.vida.data_polygamy.feature_identification.IndexCreation",
+                    args.toArray(new String[args.size()]), FrameworkUtils.indexDir + "/" + dataset),
+                    inputs.toArray(new String[inputs.size()]));
+        }
+
+        // relationships are written as <dataset1>-<dataset2>, ordered by dataset id
+        HashMap<String, Integer> datasetId = new HashMap<String, Integer>();
+        br = new BufferedReader(new InputStreamReader(fs.open(resolve(FrameworkUtils.datasetsIndexDir))));
+        line = br.readLine();
+        while (line != null) {
+            String[] dt = line.split("\t");
+            datasetId.put(dt[0], Integer.parseInt(dt[1].trim()));
+            line = br.readLine();
+        }
+        br.close();
+        for (String dataset : datasets) {
+            if (!datasetId.containsKey(dataset)) {
+                System.out.println("Something went wrong... No dataset id for " + dataset);
+                System.exit(-1);
+            }
+        }
+
+        String relationshipsDir = outputIds ? FrameworkUtils.relationshipsIdsDir : FrameworkUtils.relationshipsDir;
+        for (int i = 0; i < datasets.size(); i++) {
+            for (int j = i + 1; j < datasets.size(); j++) {
+                String dataset1 = datasets.get(i);
+                String dataset2 = datasets.get(j);
+                if (datasetId.get(dataset1) > datasetId.get(dataset2)) {
+                    dataset1 = datasets.get(j);
+                    dataset2 = datasets.get(i);
+                }
+                ArrayList<String> args = new ArrayList<String>(Arrays.asList(commonArgs));
+                args.addAll(Arrays.asList("-f", "-g1", dataset1, "-g2", dataset2));
+                args.addAll(Arrays.asList(relationshipArgs));
+                addJob(new PipelineJob("relationships", "edu.nyu.vida.data_polygamy.relationship_computation.Relationship",
+                        args.toArray(new String[args.size()]), relationshipsDir + "/" + dataset1 + "-" + dataset2),
+                        FrameworkUtils.indexDir + "/" + dataset1,
+                        FrameworkUtils.indexDir + "/" + dataset2);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        Options options = new Options();
+
+        Option pipelineOption = new Option("p", "pipeline", true, "the file, under the data directory, "
+                + "that describes the pre-processing of the datasets of the pipeline");
+        pipelineOption.setRequired(true);
+        pipelineOption.setArgName("PIPELINE FILE");
+        pipelineOption.setArgs(1);
+        options.addOption(pipelineOption);
+
+        Option machineOption = new Option("m", "machine", true, "machine identifier");
+        machineOption.setRequired(true);
+        machineOption.setArgName("MACHINE");
+        machineOption.setArgs(1);
+        options.addOption(machineOption);
+
+        Option nodesOption = new Option("n", "nodes", true, "number of nodes");
+        nodesOption.setRequired(true);
+        nodesOption.setArgName("NODES");
+        nodesOption.setArgs(1);
+        options.addOption(nodesOption);
+
+        Option jobsOption = new Option("j", "jobs", true, "maximum number of jobs running at the same time "
+                + "(default 2)");
+        jobsOption.setRequired(false);
+        jobsOption.setArgName("JOBS");
+        jobsOption.setArgs(1);
+        options.addOption(jobsOption);
+
+        Option commandOption = new Option("cmd", "command", true, "command that runs a driver class "
+                + "(default 'hadoop jar data-polygamy.jar')");
+        commandOption.setRequired(false);
+        commandOption.setArgName("COMMAND");
+        commandOption.setArgs(1);
+        options.addOption(commandOption);
+
+        Option thresholdOption = new Option("t", "use-custom-thresholds", false,
+                "use custom thresholds for regular and rare events, defined in HDFS_HOME/" + FrameworkUtils.thresholdDir + " file");
+        thresholdOption.setRequired(false);
+        options.addOption(thresholdOption);
+
+        Option relationshipOption = new Option("ra", "relationship-args", true, "additional arguments of "
+                + "the relationship computation (e.g., '-sc 0.6 -r')");
+        relationshipOption.setRequired(false);
+        relationshipOption.setArgName("ARGUMENTS");
+        relationshipOption.setArgs(1);
+        options.addOption(relationshipOption);
+
+        Option forceOption = new Option("f", "force", false, "run all the jobs, even if their outputs are up to date");
+        forceOption.setRequired(false);
+        options.addOption(forceOption);
+
+        Option planOption = new Option("dry", "dry-run", false, "only print the jobs that would run");
+        planOption.setRequired(false);
+        options.addOption(planOption);
+
+        Option markOption = new Option("mark", "mark-up-to-date", false, "record the existing outputs as "
+                + "up to date, without running any job");
+        markOption.setRequired(false);
+        options.addOption(markOption);
+
+        Option s3Option = new Option("s3", "s3", false, "data on Amazon S3");
+        s3Option.setRequired(false);
+        options.addOption(s3Option);
+
+        Option awsAccessKeyIdOption = new Option("aws_id", "aws-id", true, "aws access key id; "
+                + "this is required if the execution is on aws");
+        awsAccessKeyIdOption.setRequired(false);
+        awsAccessKeyIdOption.setArgName("AWS-ACCESS-KEY-ID");
+        awsAccessKeyIdOption.setArgs(1);
+        options.addOption(awsAccessKeyIdOption);
+
+        Option awsSecretAccessKeyOption = new Option("aws_key", "aws-id", true, "aws secrect access key; "
+                + "this is required if the execution is on aws");
+        awsSecretAccessKeyOption.setRequired(false);
+        awsSecretAccessKeyOption.setArgName("AWS-SECRET-ACCESS-KEY");
+        awsSecretAccessKeyOption.setArgs(1);
+        options.addOption(awsSecretAccessKeyOption);
+
+        Option bucketOption = new Option("b", "s3-bucket", true, "bucket on s3; "
+                + "this is required if the execution is on aws");
+        bucketOption.setRequired(false);
+        bucketOption.setArgName("S3-BUCKET");
+        bucketOption.setArgs(1);
+        options.addOption(bucketOption);
+
+        Option helpOption = new Option("h", "help", false, "display this message");
+        helpOption.setRequired(false);
+        options.addOption(helpOption);
+
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            formatter.printHelp("hadoop jar data-polygamy.jar " +
+                    "edu.nyu.vida.data_polygamy.utils.PipelineScheduler", options, true);
+            System.exit(0);
+        }
+
+        if (cmd.hasOption("h")) {
+            formatter.printHelp("hadoop jar data-polygamy.jar " +
+                    "edu.nyu.vida.data_polygamy.utils.PipelineScheduler", options, true);
+            System.exit(0);
+        }
+
+        boolean s3 = cmd.hasOption("s3");
+        String s3bucket = "";
+        String awsAccessKeyId = "";
+        String awsSecretAccessKey = "";
+
+        if (s3) {
+            if ((!cmd.hasOption("aws_id")) || (!cmd.hasOption("aws_key")) ||
+                    (!cmd.hasOption("b"))) {
+                System.out.println("Arguments 'aws_id', 'aws_key', and 'b'"
+                        + " are mandatory if execution is on AWS.");
+                formatter.printHelp("hadoop jar data-polygamy.jar " +
+                        "edu.nyu.vida.data_polygamy.utils.PipelineScheduler", options, true);
+                System.exit(0);
+            }
+            s3bucket = cmd.getOptionValue("b");
+            awsAccessKeyId = cmd.getOptionValue("aws_id");
+            awsSecretAccessKey = cmd.getOptionValue("aws_key");
+        }
+
+        // arguments of every driver
+        ArrayList<String> commonArgs = new ArrayList<String>(Arrays.asList(
+                "-m", cmd.getOptionValue("m"), "-n", cmd.getOptionValue("n")));
+        if (s3)
+            commonArgs.addAll(Arrays.asList("-s3", "-aws_id", awsAccessKeyId,
+                    "-aws_key", awsSecretAccessKey, "-b", s3bucket));
+
+        String relationshipArgs = cmd.hasOption("ra") ? cmd.getOptionValue("ra").trim() : "";
+        String[] relationshipArgsArray = relationshipArgs.isEmpty() ? new String[0] : relationshipArgs.split("\\s+");
+        boolean outputIds = Arrays.asList(relationshipArgsArray).contains("-id");
+        int threads = cmd.hasOption("j") ? Integer.parseInt(cmd.getOptionValue("j")) : 2;
+        String command = cmd.hasOption("cmd") ? cmd.getOptionValue("cmd") : "hadoop jar data-polygamy.jar";
+
+        FileSystem fs;
+        Path base;
+        if (s3) {
+            Configuration s3conf = new Configuration();
+            s3conf.set("fs.s3.awsAccessKeyId", awsAccessKeyId);
+            s3conf.set("fs.s3.awsSecretAccessKey", awsSecretAccessKey);
+            s3conf.set("bucket", s3bucket);
+            base = new Path(s3bucket);
+            fs = FileSystem.get(base.toUri(), s3conf);
+        } else {
+            fs = FileSystem.get(new Configuration());
+            base = fs.getHomeDirectory();
+        }
+
+        PipelineScheduler scheduler = new PipelineScheduler(fs, base);
+        scheduler.addPipeline(cmd.getOptionValue("p"), commonArgs.toArray(new String[commonArgs.size()]),
+                cmd.hasOption("t"), relationshipArgsArray, outputIds);
+
+        if (cmd.hasOption("mark")) {
+            System.out.println(scheduler.markUpToDate() + " of " + scheduler.getJobs().size()
+                    + " jobs recorded as up to date.");
+            System.exit(0);
+        }
+
+        ArrayList<PipelineJob> plan = scheduler.plan(cmd.hasOption("f"));
+        if (plan.isEmpty()) {
+            System.out.println("All the " + scheduler.getJobs().size() + " jobs are up to date.");
+            System.out.println("Use -f to force the computation.");
+            System.exit(0);
+        }
+        for (PipelineJob job : plan)
+            System.out.println(job.stage + "\t" + job.id + "\t" + job.reason);
+        if (cmd.hasOption("dry"))
+            System.exit(0);
+
+        long start = System.currentTimeMillis();
+        int failed = scheduler.run(plan, new ProcessRunner(command), threads);
+        System.out.println("pipeline\t" + (plan.size() - failed) + " of " + plan.size()
+                + " jobs\t" + (System.currentTimeMillis() - start));
+        if (failed > 0)
+            System.exit(-1);
+    }
+}
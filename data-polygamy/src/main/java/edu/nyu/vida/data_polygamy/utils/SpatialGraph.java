@@ -3,33 +3,56 @@
    See file LICENSE for full license details. */
 package edu.nyu.vida.data_polygamy.utils;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Queue;
 import java.util.Random;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
+/**
+ * Graph of spatial units, used to draw random shifts for the permutation tests.
+ * The graph does not change after init, so the same instance can be shared
+ * by all the reduce calls and by concurrent permutation threads.
+ */
 public class SpatialGraph {
-    
-    private ArrayList<ArrayList<Integer>> adjacencyList = new ArrayList<ArrayList<Integer>>();
-    private ArrayList<ArrayList<Integer>> bfsLevelArray = new ArrayList<ArrayList<Integer>>();
+
+    // adjacency in compressed sparse row format: the neighbors of node v are
+    //   adjacency[adjacencyStart[v]], ..., adjacency[adjacencyStart[v+1]-1],
+    //   in the order of the edges file
+    private int[] adjacencyStart = new int[1];
+    private int[] adjacency = new int[0];
+
+    // main BFS: the nodes of level l are
+    //   bfsOrder[levelStart[l]], ..., bfsOrder[levelStart[l+1]-1]
+    private int[] bfsOrder = new int[0];
+    private int[] levelStart = new int[1];
+    private int nbLevels = 0;
+
     private Random random = new Random();
     private int mainOriginNode = 0;
     private int nbNodes = 0;
 
+    // buffers of the random BFS, reused by each thread
+    private ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
     public void init(String nodeFile, String edgeFile) throws IOException {
-    	
+
         BufferedReader buff = new BufferedReader(new FileReader(nodeFile));
-        
+
         String line = buff.readLine();
         HashSet<Integer> set = new HashSet<Integer>();
         while (line != null) {
@@ -37,62 +60,36 @@ public class SpatialGraph {
         	// assuming that neighborhoods and zip codes are read in order
         	//  and the same ids are present in the edges file
         	int id = Integer.parseInt(line.trim());
-        	if(!set.contains(id)) {
-        		adjacencyList.add(new ArrayList<Integer>());	
-        		set.add(id);
-        	}
-            
+        	set.add(id);
+
             buff.readLine();
             int nbPoints = Integer.parseInt(buff.readLine());
             for (int i = 0; i < nbPoints; i++)
                 buff.readLine();
-            
+
             line = buff.readLine();
         }
         buff.close();
-        
-        nbNodes = adjacencyList.size();
-        
+
         // reading edges
         buff = new BufferedReader(new FileReader(edgeFile));
         line = buff.readLine();
-        line = buff.readLine();
-        String[] values;
-        ArrayList<Integer> elem;
-        Integer id_1, id_2;
-        while (line != null) {
-            values = line.replace("\n", "").split(" ");
-            id_1 = Integer.parseInt(values[0]);
-            id_2 = Integer.parseInt(values[1]);
-            
-            elem = adjacencyList.get(id_1);
-            elem.add(id_2);
-            adjacencyList.set(id_1, elem);
-            
-            elem = adjacencyList.get(id_2);
-            elem.add(id_1);
-            adjacencyList.set(id_2, elem);
-            
-            line = buff.readLine();
-        }
+        IntArrayList edges = readEdges(buff);
         buff.close();
-        
-        // main BFS - choose random node
-        mainOriginNode = random.nextInt(nbNodes); 
-        bfs(mainOriginNode);
-        
+
+        build(set.size(), edges);
     }
 
-    
+
     public void init(int resolution, Configuration conf) throws IOException {
-    	
+
     	String bucket = conf.get("bucket", "");
     	Path edgesPath = null;
     	FileSystem fs = null;
-        
+
         // reading edges
     	switch (resolution) {
-    	
+
     	case FrameworkUtils.NBHD:
     	    edgesPath = new Path(bucket + "neighborhood-graph");
     	    break;
@@ -106,238 +103,353 @@ public class SpatialGraph {
             edgesPath = new Path(bucket + "zipcode-graph");
             break;
     	}
-        
+
         if (!bucket.equals(""))
             fs = FileSystem.get(edgesPath.toUri(), conf);
         else
             fs = FileSystem.get(new Configuration());
-        
+
         BufferedReader buff = new BufferedReader(new InputStreamReader(fs.open(edgesPath)));
         String line = buff.readLine();
-        
+
+        // assuming that neighborhoods and zip codes are read in order
+        //  and the same ids are present in the edges file
         String [] s = Utilities.splitString(line.trim());
-        nbNodes = Integer.parseInt(s[0].trim());
-        
-        for (int i = 0; i < nbNodes; i++) {
-            // assuming that neighborhoods and zip codes are read in order
-            //  and the same ids are present in the edges file
-            adjacencyList.add(new ArrayList<Integer>());
-        }
-        
-        line = buff.readLine();
+        int nodes = Integer.parseInt(s[0].trim());
+
+        IntArrayList edges = readEdges(buff);
+        buff.close();
+        fs.close();
+
+        build(nodes, edges);
+    }
+
+    /**
+     * Shares the structures of graph, which are never modified.
+     */
+    public void init(SpatialGraph graph) {
+        this.adjacencyStart = graph.adjacencyStart;
+        this.adjacency = graph.adjacency;
+        this.bfsOrder = graph.bfsOrder;
+        this.levelStart = graph.levelStart;
+        this.nbLevels = graph.nbLevels;
+        this.nbNodes = graph.nbNodes();
+        this.mainOriginNode = graph.getMainOriginNode();
+    }
+
+    private IntArrayList readEdges(BufferedReader buff) throws IOException {
+        IntArrayList edges = new IntArrayList();
+        String line = buff.readLine();
         String[] values;
-        ArrayList<Integer> elem;
-        Integer id_1, id_2;
         while (line != null) {
             values = line.replace("\n", "").split(" ");
-            id_1 = Integer.parseInt(values[0]);
-            id_2 = Integer.parseInt(values[1]);
-            
-            elem = adjacencyList.get(id_1);
-            elem.add(id_2);
-            adjacencyList.set(id_1, elem);
-            
-            elem = adjacencyList.get(id_2);
-            elem.add(id_1);
-            adjacencyList.set(id_2, elem);
-            
+            edges.add(Integer.parseInt(values[0]));
+            edges.add(Integer.parseInt(values[1]));
             line = buff.readLine();
         }
-        buff.close();
-        fs.close();
-        
+        return edges;
+    }
+
+    private void build(int nodes, IntArrayList edges) {
+
+        nbNodes = nodes;
+
+        // each edge is added to the neighbors of both nodes
+        int[] degree = new int[nbNodes];
+        for (int i = 0; i < edges.size(); i++)
+            degree[edges.getInt(i)]++;
+        adjacencyStart = new int[nbNodes + 1];
+        for (int v = 0; v < nbNodes; v++)
+            adjacencyStart[v+1] = adjacencyStart[v] + degree[v];
+        adjacency = new int[adjacencyStart[nbNodes]];
+        int[] next = Arrays.copyOf(adjacencyStart, nbNodes);
+        for (int i = 0; i < edges.size(); i += 2) {
+            int id_1 = edges.getInt(i);
+            int id_2 = edges.getInt(i+1);
+            adjacency[next[id_1]++] = id_2;
+            adjacency[next[id_2]++] = id_1;
+        }
+
         // main BFS - choose random node
-        mainOriginNode = random.nextInt(nbNodes); 
+        mainOriginNode = random.nextInt(nbNodes);
         bfs(mainOriginNode);
-        
     }
-    
-    public void init(SpatialGraph graph) {
-        this.adjacencyList = new ArrayList<ArrayList<Integer>>(graph.getAdjacencyList());
-        this.bfsLevelArray = new ArrayList<ArrayList<Integer>>(graph.getBfsLevelArray());
-        this.nbNodes = graph.nbNodes();
-        this.mainOriginNode = graph.getMainOriginNode();
+
+    public void setRandom(Random random) {
+        this.random = random;
     }
-    
+
     public int nbNodes() {
         return nbNodes;
     }
-    
+
+    /**
+     * Copy of the neighbors of each node.
+     */
     public ArrayList<ArrayList<Integer>> getAdjacencyList() {
+        ArrayList<ArrayList<Integer>> adjacencyList = new ArrayList<ArrayList<Integer>>();
+        for (int v = 0; v < nbNodes; v++) {
+            ArrayList<Integer> elem = new ArrayList<Integer>();
+            for (int k = adjacencyStart[v]; k < adjacencyStart[v+1]; k++)
+                elem.add(adjacency[k]);
+            adjacencyList.add(elem);
+        }
         return adjacencyList;
     }
 
+    /**
+     * Copy of the levels of the main BFS.
+     */
     public ArrayList<ArrayList<Integer>> getBfsLevelArray() {
+        ArrayList<ArrayList<Integer>> bfsLevelArray = new ArrayList<ArrayList<Integer>>();
+        for (int l = 0; l < nbLevels; l++) {
+            ArrayList<Integer> elem = new ArrayList<Integer>();
+            for (int k = levelStart[l]; k < levelStart[l+1]; k++)
+                elem.add(bfsOrder[k]);
+            bfsLevelArray.add(elem);
+        }
         return bfsLevelArray;
     }
 
     public int getMainOriginNode() {
         return mainOriginNode;
     }
-    
+
+    private int levelSize(int level) {
+        return levelStart[level+1] - levelStart[level];
+    }
+
     private void bfs(int node) {
-        
-        Queue<Integer> queue = new ArrayDeque<Integer>();
-        HashSet<Integer> seen = new HashSet<Integer>();
-        HashMap<Integer,Integer> level = new HashMap<Integer,Integer>();
-        
-        queue.add(node);
-        level.put(node, 0);
-        seen.add(node);
-        ArrayList<Integer> elem;
-        while (!queue.isEmpty()) {
+
+        int[] level = new int[nbNodes];
+        Arrays.fill(level, -1);
+
+        // nodes are dequeued level by level, so the queue is the BFS order
+        int[] queue = new int[nbNodes];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = node;
+        level[node] = 0;
+
+        IntArrayList starts = new IntArrayList();
+        while (head < tail) {
             // current node
-            int currentNode = queue.poll();
-            
+            int currentNode = queue[head];
+
             // level of current node
-            int nodeLevel = level.get(currentNode);
-            
-            // update the array of levels
-            if (bfsLevelArray.size() == nodeLevel)
-                bfsLevelArray.add(new ArrayList<Integer>());
-            elem = bfsLevelArray.get(nodeLevel);
-            elem.add(currentNode);
-            bfsLevelArray.set(nodeLevel, elem);
-            
-            for (Integer neighbor: adjacencyList.get(currentNode)) {
-                if (!seen.contains(neighbor)) {
-                    queue.add(neighbor);
-                    seen.add(neighbor);
-                    level.put(neighbor, nodeLevel + 1);
+            int nodeLevel = level[currentNode];
+            if (starts.size() == nodeLevel)
+                starts.add(head);
+            head++;
+
+            for (int k = adjacencyStart[currentNode]; k < adjacencyStart[currentNode+1]; k++) {
+                int neighbor = adjacency[k];
+                if (level[neighbor] == -1) {
+                    queue[tail++] = neighbor;
+                    level[neighbor] = nodeLevel + 1;
                 }
             }
         }
-        
+
+        bfsOrder = Arrays.copyOf(queue, tail);
+        nbLevels = starts.size();
+        levelStart = new int[nbLevels + 1];
+        for (int l = 0; l < nbLevels; l++)
+            levelStart[l] = starts.getInt(l);
+        levelStart[nbLevels] = tail;
     }
-    
-    private ArrayList<ArrayList<Integer>> randomBFS() {
-        
-        int origin = random.nextInt(nbNodes);
-        
-        Queue<Integer> queue = new ArrayDeque<Integer>();
-        int[] seen = new int[nbNodes];
-        
-        ArrayList<ArrayList<Integer>> randomBFSLevelArray = new ArrayList<ArrayList<Integer>>();
-        HashMap<Integer,Integer> level = new HashMap<Integer,Integer>();
-        
-        int[] leftNodes = new int[nbNodes];
-        for (int i = 0; i < nbNodes; i++) {
-            seen[i] = 0;
-            leftNodes[i] = 1;
+
+    private static class Buffers {
+        int[] queue = new int[0];
+        int[] level = new int[0];
+        boolean[] left = new boolean[0];
+        int[] nodeCursor = new int[0];
+
+        // random BFS, with the same layout as bfsOrder
+        int[] randomOrder = new int[0];
+        int[] randomCount = new int[0];
+        int[] levelCursor = new int[0];
+
+        void ensure(int nbNodes, int nbLevels) {
+            if (queue.length < nbNodes) {
+                queue = new int[nbNodes];
+                level = new int[nbNodes];
+                left = new boolean[nbNodes];
+                nodeCursor = new int[nbNodes];
+                randomOrder = new int[nbNodes];
+            }
+            if (randomCount.length < nbLevels) {
+                randomCount = new int[nbLevels];
+                levelCursor = new int[nbLevels];
+            }
         }
-        
+    }
+
+    /**
+     * BFS from a random origin with the same number of nodes per level
+     * as the main BFS; the result is in b.randomOrder.
+     */
+    private void randomBFS(Random random, Buffers b) {
+
+        b.ensure(nbNodes, nbLevels);
+        int[] queue = b.queue;
+        int[] level = b.level;
+        boolean[] left = b.left;
+        int[] randomOrder = b.randomOrder;
+        int[] randomCount = b.randomCount;
+
+        int origin = random.nextInt(nbNodes);
+
+        Arrays.fill(level, 0, nbNodes, -1);
+        Arrays.fill(left, 0, nbNodes, true);
+        Arrays.fill(randomCount, 0, nbLevels, 0);
+
         // running BFS
-        
-        queue.add(origin);
-        level.put(origin, 0);
-        seen[origin] = 1;
-        ArrayList<Integer> elem;
+
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = origin;
+        level[origin] = 0;
         int currentLevel = -1;
+        int randomLevels = 0;
         int count = 0;
-        while (!queue.isEmpty()) {
+        while (head < tail) {
             // current node
-            int currentNode = queue.poll();
-            
+            int currentNode = queue[head++];
+
             // node level
-            int nodeLevel = level.get(currentNode);
-            
+            int nodeLevel = level[currentNode];
+
             // current level
             if (nodeLevel > currentLevel) {
                 currentLevel = nodeLevel;
-                if (bfsLevelArray.size() == currentLevel)
+                if (nbLevels == currentLevel)
                     break;
                 count = 1;
-                randomBFSLevelArray.add(new ArrayList<Integer>());
+                randomLevels++;
             } else {
                 // guaranteeing that the random BFS will have the same structure as the main one
                 count++;
-                if (count > bfsLevelArray.get(currentLevel).size())
+                if (count > levelSize(currentLevel))
                     continue;
             }
-            
-            elem = randomBFSLevelArray.get(currentLevel);
-            elem.add(currentNode);
-            randomBFSLevelArray.set(currentLevel, elem);
-            leftNodes[currentNode] = 0;
-            
+
+            randomOrder[levelStart[currentLevel] + randomCount[currentLevel]++] = currentNode;
+            left[currentNode] = false;
+
             int nextLevel = nodeLevel + 1;
-            if (bfsLevelArray.size() == nextLevel)
+            if (nbLevels == nextLevel)
                 continue;
-            int sizeOriginalNextLevel = bfsLevelArray.get(nextLevel).size();
+            int sizeOriginalNextLevel = levelSize(nextLevel);
             int nodesCount = 0;
-            for (Integer neighbor: adjacencyList.get(currentNode)) {
-                if (seen[neighbor] == 0) {
+            for (int k = adjacencyStart[currentNode]; k < adjacencyStart[currentNode+1]; k++) {
+                int neighbor = adjacency[k];
+                if (level[neighbor] == -1) {
                     if (++nodesCount > sizeOriginalNextLevel)
                         break;
-                    queue.add(neighbor);
-                    seen[neighbor] = 1;
-                    level.put(neighbor, nextLevel);
+                    queue[tail++] = neighbor;
+                    level[neighbor] = nextLevel;
                 }
             }
         }
-        
+
         // filling the gaps
-        
-        for (int i = 0; i < bfsLevelArray.size(); i++) {
-            if (i+1 > randomBFSLevelArray.size())
-                randomBFSLevelArray.add(new ArrayList<Integer>());
-            
-            elem = randomBFSLevelArray.get(i);
-            int sizeOriginalElem = bfsLevelArray.get(i).size();
-            int diff = sizeOriginalElem - elem.size();
+
+        System.arraycopy(adjacencyStart, 0, b.nodeCursor, 0, nbNodes);
+        Arrays.fill(b.levelCursor, 0, nbLevels, 0);
+        for (int i = 0; i < nbLevels; i++) {
+            if (i+1 > randomLevels)
+                randomLevels = i+1;
+
+            int diff = levelSize(i) - randomCount[i];
             for (int j = 0; j < diff; j++) {
                 // start looking for neighbors in the previous level,
                 // and keep going down in the tree to find neighbors
                 int bfsIndex = i - 1;
-                Integer node = 0;
-                boolean found = false;
-                while (!found) {
-                    for (Integer nbhd: randomBFSLevelArray.get(bfsIndex)) {
-                        for (Integer neighbor: adjacencyList.get(nbhd)) {
-                            if (leftNodes[neighbor] == 1) {
-                                leftNodes[neighbor] = 0;
-                                node = neighbor;
-                                found = true;
-                                break;
-                            }
-                        }
-                        if (found) break;
-                    }
+                int node = -1;
+                int misses = 0;
+                while (node == -1) {
+                    node = leftNeighbor(bfsIndex, b);
                     bfsIndex++;
-                    if (bfsIndex == randomBFSLevelArray.size()) {
+                    if (bfsIndex == randomLevels) {
                         bfsIndex = 0;
                     }
+                    if ((node == -1) && (++misses > randomLevels)) {
+                        System.out.println("Something went wrong... No node left for the random BFS");
+                        System.exit(-1);
+                    }
+                }
+                randomOrder[levelStart[i] + randomCount[i]++] = node;
+            }
+        }
+    }
+
+    /**
+     * Takes the first node not in the random BFS yet that is a neighbor
+     * of level, in the order of the level and of the adjacency, or returns
+     * -1 if there is none. Nodes are only taken, so the neighbors and the
+     * nodes already scanned are skipped in the next calls.
+     */
+    private int leftNeighbor(int level, Buffers b) {
+        int[] nodeCursor = b.nodeCursor;
+        int start = levelStart[level];
+        int end = b.randomCount[level];
+        for (int c = b.levelCursor[level]; c < end; c++) {
+            int v = b.randomOrder[start + c];
+            for (int k = nodeCursor[v]; k < adjacencyStart[v+1]; k++) {
+                int neighbor = adjacency[k];
+                if (b.left[neighbor]) {
+                    b.left[neighbor] = false;
+                    nodeCursor[v] = k + 1;
+                    b.levelCursor[level] = c;
+                    return neighbor;
                 }
-                elem.add(node);
             }
-            randomBFSLevelArray.set(i, elem);
+            nodeCursor[v] = adjacencyStart[v+1];
         }
-        
-        return randomBFSLevelArray;
-        
+        b.levelCursor[level] = end;
+        return -1;
     }
-    
+
     public ArrayList<Integer[]> generateRandomShift() {
-        
+        return generateRandomShift(random);
+    }
+
+    /**
+     * Random shift drawn with the given random number generator, as pairs
+     * of a node of the main BFS and a node of the random BFS, level by level;
+     * the graph is not modified, so concurrent calls with different
+     * generators are safe.
+     */
+    public ArrayList<Integer[]> generateRandomShift(Random random) {
+
         ArrayList<Integer[]> result = new ArrayList<Integer[]>();
-        
-        ArrayList<ArrayList<Integer>> randomBFS = this.randomBFS();
-        ArrayList<Integer> elem;
-        ArrayList<Integer> randomElem;
-        for (int i = 0; i < bfsLevelArray.size(); i++) {
-            elem = bfsLevelArray.get(i);
-            randomElem = randomBFS.get(i);
-            if (elem.size() != randomElem.size())
-                System.out.println("Something is wrong...");
-            for (int j = 0; j < elem.size(); j++) {
-                Integer[] pair = new Integer[2];
-                pair[0] = elem.get(j);
-                pair[1] = randomElem.get(j);
-                result.add(pair);
-            }
+
+        Buffers b = buffers.get();
+        randomBFS(random, b);
+        for (int k = 0; k < levelStart[nbLevels]; k++) {
+            Integer[] pair = new Integer[2];
+            pair[0] = bfsOrder[k];
+            pair[1] = b.randomOrder[k];
+            result.add(pair);
         }
-        
+
         return result;
     }
-    
+
+    /**
+     * Same random shift as generateRandomShift(random), written into
+     * permutation: nodes that are not reached by the main BFS are left
+     * unpaired. Apart from growing permutation, this does not allocate.
+     */
+    public void generateRandomShift(Random random, Permutation permutation) {
+
+        permutation.reset(nbNodes);
+
+        Buffers b = buffers.get();
+        randomBFS(random, b);
+        for (int k = 0; k < levelStart[nbLevels]; k++)
+            permutation.set(bfsOrder[k], b.randomOrder[k]);
+    }
+
 }
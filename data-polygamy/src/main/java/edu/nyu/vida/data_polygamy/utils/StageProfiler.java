@@ -0,0 +1,177 @@
+/* Copyright (C) 2016 New York University
+   This file is part of Data Polygamy which is released under the Revised BSD License
+   See file LICENSE for full license details. */
+package edu.nyu.vida.data_polygamy.utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Timers and counters of the phases of the pipeline stages, reported as
+ * Hadoop counters (ProfileCounter, in milliseconds for the phases).
+ *
+ * Enabled with "profile" in the configuration; otherwise start() and
+ * stop() only test a boolean, and nothing is reported. With "profile-dir",
+ * every task also writes the time of every phase for each reduce key (or
+ * map task) to a file named after the task attempt in that directory.
+ *
+ * Usage, in a mapper or a reducer:
+ *
+ *   profiler = new StageProfiler(context);           // setup
+ *   long t = profiler.start();
+ *   ...
+ *   profiler.stop(Phase.PARSE, t);
+ *   profiler.record(bytes);                          // input record
+ *   profiler.endKey(key.toString());                 // reducers only
+ *   profiler.close(context);                         // cleanup
+ */
+public class StageProfiler {
+
+    public static enum Phase {PARSE, TRANSLATE, TIME_BUCKETING, FUNCTION_LOAD, TREE_BUILD,
+        SIMPLIFICATION, EVENT_QUERY, ALIGNMENT, MONTE_CARLO};
+
+    /**
+     * Counters of the profiler: the time of every phase (ms), the input
+     * records and bytes, and the reduce keys with their total time (ms);
+     * the time of every key is in the profile file.
+     */
+    public static enum ProfileCounter {PARSE_MS, TRANSLATE_MS, TIME_BUCKETING_MS, FUNCTION_LOAD_MS,
+        TREE_BUILD_MS, SIMPLIFICATION_MS, EVENT_QUERY_MS, ALIGNMENT_MS, MONTE_CARLO_MS,
+        RECORDS, BYTES, KEYS, KEY_MS};
+
+    static final Phase[] phases = Phase.values();
+    static final ProfileCounter[] phaseCounters = ProfileCounter.values();
+
+    boolean enabled;
+
+    // totals of the task, and of the current key
+    long[] time = new long[phases.length];
+    long[] keyTime = new long[phases.length];
+    long records = 0;
+    long keyRecords = 0;
+    long bytes = 0;
+    long keys = 0;
+    long keyStart = 0;
+    long totalKeyTime = 0;
+
+    Configuration conf;
+    Path profilePath = null;
+    BufferedWriter profile = null;
+
+    /**
+     * Disabled profiler.
+     */
+    public StageProfiler() {
+        enabled = false;
+    }
+
+    public StageProfiler(TaskAttemptContext context) {
+        conf = context.getConfiguration();
+        enabled = conf.getBoolean("profile", false);
+        String dir = conf.get("profile-dir", "");
+        if (enabled && !dir.isEmpty())
+            profilePath = new Path(dir, context.getTaskAttemptID().toString());
+        keyStart = System.nanoTime();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start time of a phase (0 if the profiler is disabled).
+     */
+    public long start() {
+        return (enabled) ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Adds the time since start to phase.
+     */
+    public void stop(Phase phase, long start) {
+        if (!enabled) return;
+        keyTime[phase.ordinal()] += System.nanoTime() - start;
+    }
+
+    /**
+     * Counts one input record (of unknown size).
+     */
+    public void record() {
+        record(0);
+    }
+
+    /**
+     * Counts one input record of bytes bytes.
+     */
+    public void record(long bytes) {
+        if (!enabled) return;
+        records++;
+        this.bytes += bytes;
+    }
+
+    /**
+     * Ends the current reduce key (or map task), adding its times to the
+     * ones of the task and to the profile file.
+     */
+    public void endKey(String key) throws IOException {
+        if (!enabled) return;
+        long end = System.nanoTime();
+        long total = end - keyStart;
+        keyStart = end;
+        keys++;
+        totalKeyTime += total;
+        if (profilePath != null) {
+            if (profile == null) {
+                FileSystem fs = FileSystem.get(profilePath.toUri(), conf);
+                profile = new BufferedWriter(new OutputStreamWriter(fs.create(profilePath, true)));
+                String header = "key\ttotal_ms\trecords";
+                for (Phase phase : phases)
+                    header += "\t" + phase.toString().toLowerCase() + "_ms";
+                profile.write(header + "\n");
+            }
+            StringBuilder line = new StringBuilder();
+            line.append(key).append('\t').append(ms(total)).append('\t').append(records - keyRecords);
+            for (int i = 0; i < phases.length; i++)
+                line.append('\t').append(ms(keyTime[i]));
+            profile.write(line.append('\n').toString());
+        }
+        for (int i = 0; i < phases.length; i++) {
+            time[i] += keyTime[i];
+            keyTime[i] = 0;
+        }
+        keyRecords = records;
+    }
+
+    static String ms(long nanos) {
+        return String.format("%.3f", nanos / 1000000.0);
+    }
+
+    /**
+     * Reports the counters of the task and closes the profile file; the
+     * phases not assigned to a key (e.g., of a mapper) are reported with
+     * the task.
+     */
+    public void close(TaskAttemptContext context) throws IOException {
+        if (!enabled) return;
+        for (int i = 0; i < phases.length; i++) {
+            time[i] += keyTime[i];
+            if (time[i] > 0)
+                context.getCounter(phaseCounters[i]).increment(time[i] / 1000000);
+        }
+        context.getCounter(ProfileCounter.RECORDS).increment(records);
+        context.getCounter(ProfileCounter.BYTES).increment(bytes);
+        if (keys > 0) {
+            context.getCounter(ProfileCounter.KEYS).increment(keys);
+            context.getCounter(ProfileCounter.KEY_MS).increment(totalKeyTime / 1000000);
+        }
+        if (profile != null)
+            profile.close();
+        enabled = false;
+    }
+}